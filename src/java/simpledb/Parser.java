@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -25,6 +27,14 @@ import simpledb.transaction.TransactionId;
 public class Parser {
     static boolean explain = false;
 
+    // Zql不支持LIMIT，解析前从语句末尾去掉 LIMIT n [OFFSET m]
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(?=;|$)",
+            Pattern.CASE_INSENSITIVE);
+    // 最近一次stripLimit得到的LIMIT/OFFSET，没有LIMIT时为-1
+    private int limit = -1;
+    private int offset = 0;
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -73,7 +83,14 @@ public class Parser {
             }
 
             boolean isJoin = false;
-            Predicate.Op op = getOp(wx.getOperator());
+            // IN和NOT IN只支持子查询，按等值的半连接和反连接处理
+            boolean in = wx.getOperator().equals("IN");
+            boolean notIn = wx.getOperator().equals("NOT IN");
+            if ((in || notIn) && !(ops.get(1) instanceof ZQuery)) {
+                throw new simpledb.ParsingException(
+                        wx.getOperator() + " is only supported with a subquery.");
+            }
+            Predicate.Op op = in || notIn ? Predicate.Op.EQUALS : getOp(wx.getOperator());
 
             boolean op1const = ops.get(0) instanceof ZConstant; // otherwise
                                                                       // is a
@@ -111,7 +128,7 @@ public class Parser {
                             (ZQuery) ops.get(1));
                     OpIterator pp = sublp.physicalPlan(tid,
                             TableStats.getStatsMap(), explain);
-                    lp.addJoin(tab1field, pp, op);
+                    lp.addJoin(tab1field, pp, op, notIn);
                 } else {
                     tab2field = ((ZConstant) ops.get(1)).getValue();
                     lp.addJoin(tab1field, tab2field, op);
@@ -137,8 +154,32 @@ public class Parser {
 
     }
 
+    /**
+     * Remove a trailing "LIMIT n [OFFSET m]" clause from the first statement of
+     * s, which Zql cannot parse, and remember it for the next call to
+     * parseQueryLogicalPlan.
+     *
+     * @return s without the LIMIT clause
+     */
+    String stripLimit(String s) {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find()) {
+            return s;
+        }
+        limit = Integer.parseInt(m.group(1));
+        offset = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+        return s.substring(0, m.start()) + s.substring(m.end());
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
+        // LIMIT只属于最外层的查询，子查询看不到
+        int limit = this.limit;
+        int offset = this.offset;
+        this.limit = -1;
+        this.offset = 0;
         @SuppressWarnings("unchecked")
         List<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
@@ -187,23 +228,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +249,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +260,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,12 +281,18 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        lp.setDistinct(q.isDistinct());
+
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        // 所有聚合在同一个Aggregate里一次算出
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), null);
         }
         // sort the data
 
@@ -272,6 +313,9 @@ public class Parser {
             lp.addOrderBy(f.getValue(), oby.getAscOrder());
 
         }
+        if (limit >= 0) {
+            lp.addLimit(limit, offset);
+        }
         return lp;
     }
 
@@ -465,7 +509,7 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
@@ -495,7 +539,14 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                text.write(buf, 0, n);
+            }
+            String statement = stripLimit(new String(text.toByteArray(), StandardCharsets.UTF_8));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(statement.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
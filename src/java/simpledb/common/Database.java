@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.execution.MemoryBroker;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -8,8 +9,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the memory broker, and the
+ * log files, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -20,6 +21,7 @@ public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final MemoryBroker _memorybroker;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -27,6 +29,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _memorybroker = new MemoryBroker();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -48,6 +51,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the memory broker of the static Database instance */
+    public static MemoryBroker getMemoryBroker() {
+        return _instance.get()._memorybroker;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -70,6 +78,22 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Method used for testing -- create a new memory broker with a budget of
+     * the given number of tuples and return it
+     */
+    public static MemoryBroker resetMemoryBroker(long budget) {
+        java.lang.reflect.Field memoryBrokerF;
+        try {
+            memoryBrokerF = Database.class.getDeclaredField("_memorybroker");
+            memoryBrokerF.setAccessible(true);
+            memoryBrokerF.set(_instance.get(), new MemoryBroker(budget));
+        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
+            e.printStackTrace();
+        }
+        return _instance.get()._memorybroker;
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
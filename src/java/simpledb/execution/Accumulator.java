@@ -0,0 +1,132 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The running values of one aggregate function for every group of a
+ * {@link GroupTable}, kept in long arrays indexed by group number. SUM, MIN
+ * and MAX keep one value per group, COUNT the row count, and AVG the sum and
+ * the count so that the average is only divided out when it is read.
+ */
+final class Accumulator implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Aggregator.Op op;
+	// SUM/AVG为和，MIN/MAX为当前最值，COUNT为行数
+	private long[] values;
+	// 只有AVG需要行数
+	private long[] counts;
+	// 已经初始化的组数
+	private int size;
+
+	Accumulator(Aggregator.Op op) {
+		switch (op) {
+			case MIN:
+			case MAX:
+			case SUM:
+			case AVG:
+			case COUNT:
+				break;
+			default:
+				throw new IllegalArgumentException("unsupported aggregate " + op);
+		}
+		this.op = op;
+		clear();
+	}
+
+	Aggregator.Op getOp() {
+		return op;
+	}
+
+	void clear() {
+		values = new long[64];
+		counts = op == Aggregator.Op.AVG ? new long[64] : null;
+		size = 0;
+	}
+
+	/**
+	 * 新组的初始值，组号必须是连续的
+	 */
+	private void addGroup(int group) {
+		if (group == values.length) {
+			values = Arrays.copyOf(values, group * 2);
+			if (counts != null) {
+				counts = Arrays.copyOf(counts, group * 2);
+			}
+		}
+		switch (op) {
+			case MIN:
+				values[group] = Long.MAX_VALUE;
+				break;
+			case MAX:
+				values[group] = Long.MIN_VALUE;
+				break;
+			default:
+				values[group] = 0;
+		}
+		if (counts != null) {
+			counts[group] = 0;
+		}
+		size = group + 1;
+	}
+
+	/**
+	 * Add a row with the given value to group.
+	 */
+	void add(int group, int value) {
+		if (group >= size) {
+			addGroup(group);
+		}
+		switch (op) {
+			case SUM:
+				values[group] += value;
+				break;
+			case AVG:
+				values[group] += value;
+				counts[group]++;
+				break;
+			case MIN:
+				values[group] = Math.min(values[group], value);
+				break;
+			case MAX:
+				values[group] = Math.max(values[group], value);
+				break;
+			default:
+				values[group]++;
+		}
+	}
+
+	/**
+	 * Start group over, forgetting the rows added to it so far. The groups
+	 * after it are dropped.
+	 */
+	void reset(int group) {
+		addGroup(group);
+	}
+
+	/**
+	 * Add a row to group for COUNT, which does not look at the value.
+	 */
+	void count(int group) {
+		if (group >= size) {
+			addGroup(group);
+		}
+		values[group]++;
+	}
+
+	/**
+	 * @return the aggregate of group
+	 */
+	Field result(int group) {
+		long value = values[group];
+		if (counts != null) {
+			value = counts[group] == 0 ? 0 : value / counts[group];
+		}
+		return new IntField((int) value);
+	}
+}
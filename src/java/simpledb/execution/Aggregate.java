@@ -2,9 +2,8 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.common.Type;
-import simpledb.storage.Field;
-import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -12,19 +11,26 @@ import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates are computed in a single pass over the
+ * child, grouped by a key of zero or more columns.
+ * <p>
+ * The child is read and aggregated in {@link #open()}, batch by batch.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements MemoryConsumer {
 
 	private static final long serialVersionUID = 1L;
 	private OpIterator opIterator;
-	private int aggregateFieldIndex;
-	private int groupByFieldIndex;
-	private Aggregator.Op op;
+	private final int[] aggregateFieldIndexes;
+	private final int[] groupByFieldIndexes;
+	private final Aggregator.Op[] ops;
+	private final int memoryGroups;
 	private Aggregator aggregator;
-	private TupleDesc tupleDesc;
+	private final TupleDesc tupleDesc;
+	private transient MemoryGrant grant;
+	// 当前聚合结果的迭代器，open时建立
+	private transient OpIterator results;
+	private transient boolean built;
 
 	/**
 	 * Constructor.
@@ -40,72 +46,182 @@ public class Aggregate extends Operator {
 	 * @param aop    The aggregation operator to use
 	 */
 	public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+		this(child, afield, gfield, aop, HashAggregator.MEMORY_GROUPS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param child        The OpIterator that is feeding us tuples.
+	 * @param afield       The column over which we are computing an aggregate.
+	 * @param gfield       The column over which we are grouping the result, or
+	 *                     -1 if there is no grouping
+	 * @param aop          The aggregation operator to use
+	 * @param memoryGroups the maximum number of groups kept in memory before
+	 *                     the rows of other groups are spilled to disk
+	 */
+	public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int memoryGroups) {
+		this(child, new int[]{afield}, IntegerAggregator.groupColumns(gfield), new Aggregator.Op[]{aop},
+			memoryGroups);
+	}
+
+	/**
+	 * Constructor for several aggregates over a composite group key.
+	 *
+	 * @param child   The OpIterator that is feeding us tuples.
+	 * @param afields The column of each aggregate.
+	 * @param gfields The columns over which we are grouping the result; empty
+	 *                if there is no grouping
+	 * @param aops    The aggregation operator of each aggregate
+	 */
+	public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+		this(child, afields, gfields, aops, HashAggregator.MEMORY_GROUPS);
+	}
+
+	/**
+	 * Constructor for several aggregates over a composite group key.
+	 *
+	 * @param child        The OpIterator that is feeding us tuples.
+	 * @param afields      The column of each aggregate.
+	 * @param gfields      The columns over which we are grouping the result;
+	 *                     empty if there is no grouping
+	 * @param aops         The aggregation operator of each aggregate
+	 * @param memoryGroups the maximum number of groups kept in memory before
+	 *                     the rows of other groups are spilled to disk
+	 * @throws IllegalArgumentException if afields and aops differ in length,
+	 *                                  or an aggregate other than COUNT is
+	 *                                  applied to a non-INT_TYPE column
+	 */
+	public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops, int memoryGroups) {
+		if (afields.length != aops.length || afields.length == 0) {
+			throw new IllegalArgumentException("need one operator per aggregate field");
+		}
 		opIterator = child;
-		aggregateFieldIndex = afield;
-		groupByFieldIndex = gfield;
-		op = aop;
-		tupleDesc = opIterator.getTupleDesc();
-		Type aggregateType = opIterator.getTupleDesc().getFieldType(aggregateFieldIndex);
-		if (aggregateType.equals(Type.INT_TYPE)) {
-			aggregator = new IntegerAggregator(groupByFieldIndex, Type.INT_TYPE, aggregateFieldIndex, op);
-		} else {
-			aggregator = new StringAggregator(groupByFieldIndex, Type.STRING_TYPE, aggregateFieldIndex, op);
+		this.memoryGroups = memoryGroups;
+		aggregateFieldIndexes = afields.clone();
+		groupByFieldIndexes = gfields.clone();
+		ops = aops.clone();
+		TupleDesc childTd = child.getTupleDesc();
+		int width = gfields.length;
+		Type[] types = new Type[width + afields.length];
+		String[] names = new String[types.length];
+		for (int i = 0; i < width; i++) {
+			types[i] = childTd.getFieldType(gfields[i]);
+			names[i] = childTd.getFieldName(gfields[i]);
 		}
-		try {
-			child.open();
-			while (child.hasNext()) {
-				Tuple tuple = child.next();
-				aggregator.mergeTupleIntoGroup(tuple);
+		for (int i = 0; i < afields.length; i++) {
+			if (aops[i] != Aggregator.Op.COUNT && childTd.getFieldType(afields[i]) != Type.INT_TYPE) {
+				throw new IllegalArgumentException(
+					childTd.getFieldType(afields[i]) + " fields only support COUNT, not " + aops[i]);
 			}
-		} catch (TransactionAbortedException | DbException e) {
-			throw new RuntimeException(e);
+			types[width + i] = Type.INT_TYPE;
+			names[width + i] = nameOfAggregatorOp(aops[i]) + "(" + childTd.getFieldName(afields[i]) + ")";
+		}
+		tupleDesc = new TupleDesc(types, names);
+		// 提前建一个聚合器，不支持的聚合操作在这里就抛出IllegalArgumentException
+		aggregator = newAggregator();
+	}
+
+	private Aggregator newAggregator() {
+		TupleDesc childTd = opIterator.getTupleDesc();
+		Type[] groupByTypes = new Type[groupByFieldIndexes.length];
+		for (int i = 0; i < groupByTypes.length; i++) {
+			groupByTypes[i] = childTd.getFieldType(groupByFieldIndexes[i]);
+		}
+		HashAggregator aggregator = new HashAggregator(groupByFieldIndexes, groupByTypes, aggregateFieldIndexes, ops,
+			memoryGroups);
+		aggregator.setMemoryGrant(grant);
+		return aggregator;
+	}
+
+	@Override
+	public int memoryDemand() {
+		if (groupByFieldIndexes.length == 0) {
+			// 不分组时只有一个组
+			return 0;
+		}
+		return MemoryBroker.demand(opIterator, memoryGroups);
+	}
+
+	@Override
+	public void setMemoryGrant(MemoryGrant grant) {
+		this.grant = grant;
+		if (!built) {
+			// 构造时建的聚合器还没有用过，换成带grant的
+			aggregator = newAggregator();
 		}
 	}
 
 	/**
-	 * @return If this aggregate is accompanied by a groupby, return the groupby
-	 * field index in the <b>INPUT</b> tuples. If not, return
+	 * @return If this aggregate is accompanied by a groupby, return the first
+	 * groupby field index in the <b>INPUT</b> tuples. If not, return
 	 * {@link Aggregator#NO_GROUPING}
 	 */
 	public int groupField() {
-		return groupByFieldIndex;
+		return groupByFieldIndexes.length == 0 ? Aggregator.NO_GROUPING : groupByFieldIndexes[0];
+	}
+
+	/**
+	 * @return the groupby field indexes in the <b>INPUT</b> tuples, empty if
+	 * there is no grouping
+	 */
+	public int[] groupFields() {
+		return groupByFieldIndexes.clone();
 	}
 
 	/**
 	 * @return If this aggregate is accompanied by a group by, return the name
-	 * of the groupby field in the <b>OUTPUT</b> tuples. If not, return
+	 * of the first groupby field in the <b>OUTPUT</b> tuples. If not, return
 	 * null;
 	 */
 	public String groupFieldName() {
-		if (groupByFieldIndex == -1) {
+		if (groupByFieldIndexes.length == 0) {
 			return null;
 		}
-		return tupleDesc.getFieldName(groupByFieldIndex);
+		return tupleDesc.getFieldName(0);
 	}
 
 	/**
-	 * @return the aggregate field
+	 * @return the field of the first aggregate
 	 */
 	public int aggregateField() {
-		return aggregateFieldIndex;
+		return aggregateFieldIndexes[0];
+	}
+
+	/**
+	 * @return the field of each aggregate in the <b>INPUT</b> tuples
+	 */
+	public int[] aggregateFields() {
+		return aggregateFieldIndexes.clone();
 	}
 
 	/**
-	 * @return return the name of the aggregate field in the <b>OUTPUT</b>
-	 * tuples
+	 * @return return the name of the first aggregate field in the
+	 * <b>OUTPUT</b> tuples
 	 */
 	public String aggregateFieldName() {
-		if (aggregateFieldIndex == -1) {
-			return null;
-		}
-		return tupleDesc.getFieldName(aggregateFieldIndex);
+		return tupleDesc.getFieldName(groupByFieldIndexes.length);
 	}
 
 	/**
-	 * @return return the aggregate operator
+	 * @return return the operator of the first aggregate
 	 */
 	public Aggregator.Op aggregateOp() {
-		return op;
+		return ops[0];
+	}
+
+	/**
+	 * @return the operator of each aggregate
+	 */
+	public Aggregator.Op[] aggregateOps() {
+		return ops.clone();
+	}
+
+	/**
+	 * @return the maximum number of groups kept in memory
+	 */
+	public int getMemoryGroups() {
+		return memoryGroups;
 	}
 
 	public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -114,33 +230,70 @@ public class Aggregate extends Operator {
 
 	public void open() throws NoSuchElementException, DbException,
 		TransactionAbortedException {
+		build();
 		super.open();
-		aggregator.iterator().open();
 	}
 
 	/**
-	 * Returns the next tuple. If there is a group by field, then the first
-	 * field is the field by which we are grouping, and the second field is the
-	 * result of computing the aggregate. If there is no group by field, then
-	 * the result tuple should contain one field representing the result of the
-	 * aggregate. Should return null if there are no more tuples.
+	 * Read the whole child into the hash aggregator; called by
+	 * {@link #open()}. Subclasses that aggregate while iterating override it
+	 * to just open the child.
+	 */
+	protected void build() throws DbException, TransactionAbortedException {
+		if (built) {
+			aggregator.close();
+			aggregator = newAggregator();
+		}
+		opIterator.open();
+		// 按batch读取child，聚合器直接在列向量上合并
+		TupleBatch batch;
+		while ((batch = opIterator.nextBatch()) != null) {
+			aggregator.mergeBatchIntoGroup(batch);
+		}
+		opIterator.close();
+		built = true;
+		results = aggregator.iterator();
+		results.open();
+	}
+
+	/**
+	 * Returns the next tuple. The group by fields come first, followed by the
+	 * result of each aggregate. Should return null if there are no more
+	 * tuples.
 	 */
 	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-		while (aggregator.iterator().hasNext()) {
-			return aggregator.iterator().next();
+		if (results.hasNext()) {
+			return results.next();
 		}
 		return null;
 	}
 
+	/**
+	 * 输出的schema由聚合器决定，用第一个结果tuple的TupleDesc建batch
+	 */
+	@Override
+	public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		TupleBatch batch = null;
+		while (results.hasNext()) {
+			Tuple tuple = results.next();
+			if (batch == null) {
+				batch = new TupleBatch(tuple.getTupleDesc());
+			}
+			batch.addTuple(tuple);
+			if (batch.isFull()) {
+				break;
+			}
+		}
+		return batch;
+	}
+
 	public void rewind() throws DbException, TransactionAbortedException {
-		aggregator.iterator().rewind();
+		results.rewind();
 	}
 
 	/**
-	 * Returns the TupleDesc of this Aggregate. If there is no group by field,
-	 * this will have one field - the aggregate column. If there is a group by
-	 * field, the first field will be the group by field, and the second will be
-	 * the aggregate value column.
+	 * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+	 * followed by one INT_TYPE column per aggregate.
 	 * <p>
 	 * The name of an aggregate column should be informative. For example:
 	 * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -153,7 +306,12 @@ public class Aggregate extends Operator {
 
 	public void close() {
 		super.close();
-		aggregator.iterator().close();
+		if (results != null) {
+			results.close();
+			results = null;
+		}
+		// 删除溢出的分区文件
+		aggregator.close();
 	}
 
 	@Override
@@ -163,7 +321,7 @@ public class Aggregate extends Operator {
 
 	@Override
 	public void setChildren(OpIterator[] children) {
-		// some code goes here
+		opIterator = children[0];
 	}
 
 }
@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleIterator;
 
 import java.io.Serializable;
@@ -78,6 +79,19 @@ public interface Aggregator extends Serializable {
 	 */
 	void mergeTupleIntoGroup(Tuple tup);
 
+	/**
+	 * Merge every selected row of a batch into the aggregate. The default
+	 * implementation materializes each row and calls
+	 * {@link #mergeTupleIntoGroup}.
+	 *
+	 * @param batch the rows containing an aggregate field and a group-by field
+	 */
+	default void mergeBatchIntoGroup(TupleBatch batch) {
+		for (int i = 0; i < batch.numRows(); i++) {
+			mergeTupleIntoGroup(batch.getTuple(batch.rowAt(i)));
+		}
+	}
+
 	/**
 	 * Create a OpIterator over group aggregate results.
 	 *
@@ -85,4 +99,11 @@ public interface Aggregator extends Serializable {
 	 */
 	OpIterator iterator();
 
+	/**
+	 * Release the resources, such as spill files, held by this aggregator.
+	 * The default implementation does nothing.
+	 */
+	default void close() {
+	}
+
 }
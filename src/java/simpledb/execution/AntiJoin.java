@@ -0,0 +1,38 @@
+package simpledb.execution;
+
+/**
+ * AntiJoin returns the tuples of child1 that have no match in child2 under an
+ * equality predicate, as for "f NOT IN (SELECT ...)". It reads its inputs as
+ * {@link SemiJoin} does and keeps the rows SemiJoin drops; since those are
+ * the rows whose key is missing from child2, no Bloom filter is pushed down.
+ */
+public class AntiJoin extends SemiJoin {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p      The predicate to join the children on; must be EQUALS
+	 * @param child1 Iterator for the relation whose tuples are returned
+	 * @param child2 Iterator for the relation the tuples of child1 must not
+	 *               match, e.g. a subquery
+	 */
+	public AntiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+		this(p, child1, child2, MEMORY_KEYS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p          The predicate to join the children on; must be EQUALS
+	 * @param child1     Iterator for the relation whose tuples are returned
+	 * @param child2     Iterator for the relation the tuples of child1 must
+	 *                   not match
+	 * @param memoryKeys the maximum number of distinct keys of child2 kept in
+	 *                   memory
+	 */
+	public AntiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryKeys) {
+		super(p, child1, child2, memoryKeys, true);
+	}
+}
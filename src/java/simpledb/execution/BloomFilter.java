@@ -0,0 +1,117 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.TupleBatch;
+
+import java.io.Serializable;
+
+/**
+ * BloomFilter is a compact, approximate set of join keys. It never reports a
+ * key that was added as missing, but may report a few keys that were not
+ * added as present. Keys are hashed through {@link Field#hashCode()}, so an
+ * INT_TYPE key given as a plain int and as an IntField is the same key.
+ */
+public class BloomFilter implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Bits per expected key; with {@link #HASHES} hashes about 1% false
+	 * positives
+	 */
+	public static final int BITS_PER_KEY = 10;
+	public static final int HASHES = 4;
+
+	private final long[] words;
+	private final int mask;
+
+	/**
+	 * Create an empty filter.
+	 *
+	 * @param expectedKeys the number of keys the filter is sized for
+	 */
+	public BloomFilter(int expectedKeys) {
+		long bits = Math.max(64, (long) expectedKeys * BITS_PER_KEY);
+		// 位数取2的幂，用掩码代替取模
+		int size = Integer.highestOneBit((int) Math.min(bits, 1 << 30) - 1) << 1;
+		words = new long[size / 64];
+		mask = size - 1;
+	}
+
+	/**
+	 * 由key的hashCode导出两个hash，第i个位置是h1 + i * h2
+	 */
+	private static long mix(int keyHash) {
+		long h = keyHash * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		h *= 0xff51afd7ed558ccdL;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * Add a key given by its {@link Field#hashCode()}.
+	 */
+	void addHash(int keyHash) {
+		long h = mix(keyHash);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & mask;
+			words[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	boolean containsHash(int keyHash) {
+		long h = mix(keyHash);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & mask;
+			if ((words[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void add(Field key) {
+		addHash(key.hashCode());
+	}
+
+	/**
+	 * Add the key in a column of a batch row.
+	 */
+	public void add(TupleBatch batch, int row, int column) {
+		addHash(batch.getTupleDesc().getFieldType(column) == Type.INT_TYPE
+			? batch.getInt(column, row) : batch.getField(column, row).hashCode());
+	}
+
+	/**
+	 * @return false if key has certainly not been added
+	 */
+	public boolean mightContain(Field key) {
+		return containsHash(key.hashCode());
+	}
+
+	/**
+	 * @return false if the key in a column of a batch row has certainly not
+	 * been added
+	 */
+	public boolean mightContain(TupleBatch batch, int row, int column) {
+		return containsHash(batch.getTupleDesc().getFieldType(column) == Type.INT_TYPE
+			? batch.getInt(column, row) : batch.getField(column, row).hashCode());
+	}
+
+	/**
+	 * Add all keys of another filter of the same size.
+	 */
+	public synchronized void merge(BloomFilter other) {
+		if (other.words.length != words.length) {
+			throw new IllegalArgumentException("filters of different sizes");
+		}
+		for (int i = 0; i < words.length; i++) {
+			words[i] |= other.words[i];
+		}
+	}
+}
@@ -31,6 +31,22 @@ public class Delete extends Operator {
 		transactionId = t;
 		opIterator = child;
 		tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
+		lockRows(child);
+	}
+
+	/**
+	 * 子树中的扫描只锁读到的行，删除时意向锁和行锁不会和自己扫描时的页锁合并成排他锁
+	 */
+	private static void lockRows(OpIterator op) {
+		if (op instanceof SeqScan) {
+			((SeqScan) op).lockRows();
+		} else if (op instanceof Operator) {
+			for (OpIterator child : ((Operator) op).getChildren()) {
+				if (child != null) {
+					lockRows(child);
+				}
+			}
+		}
 	}
 
 	public TupleDesc getTupleDesc() {
@@ -87,5 +103,6 @@ public class Delete extends Operator {
 	@Override
 	public void setChildren(OpIterator[] children) {
 		opIterator = children[0];
+		lockRows(opIterator);
 	}
 }
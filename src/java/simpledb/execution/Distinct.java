@@ -0,0 +1,388 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+/**
+ * Distinct removes duplicate tuples of its child, returning the first tuple
+ * of each set of duplicates in the order of the child. It is pipelined: a
+ * tuple is returned as soon as it is read, if it has not been seen before.
+ * <p>
+ * By default the tuples seen so far are kept in a {@link GroupTable}. At most
+ * memoryTuples distinct tuples are kept in memory; once the table is full,
+ * duplicates of the tuples in memory are still dropped, while any other tuple
+ * is written to one of {@link #NUM_PARTITIONS} {@link SpillFile}s chosen by
+ * its hash. After the child has been read each partition is deduplicated on
+ * its own, partitioning again on other hash bits if it is still too large,
+ * up to {@link #MAX_DEPTH} levels, as in {@link HashAggregator}. Within a
+ * query the table is also full once the {@link MemoryGrant} is used up.
+ * <p>
+ * A Distinct created with {@link #sorted(OpIterator, int)} relies on its
+ * child being sorted on one field: duplicates then have the same value of
+ * that field, so only the tuples of the current run of equal values are
+ * remembered, and nothing is remembered while each value occurs once.
+ */
+public class Distinct extends Operator implements MemoryConsumer {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of distinct tuples kept in memory
+	 */
+	public final static int MEMORY_TUPLES = 20000;
+	/**
+	 * Number of spill partitions, a power of two
+	 */
+	public final static int NUM_PARTITIONS = 16;
+	/**
+	 * Partitioning levels after which all tuples are kept in memory
+	 */
+	public final static int MAX_DEPTH = 3;
+
+	/**
+	 * A source of batches: the child or a spill partition being read back.
+	 */
+	private interface BatchSource {
+		TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+	}
+
+	private OpIterator child;
+	private final int sortedField;
+	private final int memoryTuples;
+	private final int[] columns;
+	private final Type[] types;
+	private final boolean intSortKey;
+	transient private MemoryGrant grant;
+
+	transient private GroupTable seen;
+	transient private MemoryReservation memory;
+	transient private BatchSource source;
+	// 当前的分区层数，决定用hash的哪几位选分区
+	transient private int depth;
+	// 超出内存后写入的分区，没有溢出时为null
+	transient private SpillFile[] partitions;
+	// 还没去重的分区及其层数
+	transient private Deque<SpillFile> pending;
+	transient private Deque<Integer> pendingDepths;
+	// 正在读的分区，读完后删除
+	transient private SpillFile current;
+	// fetchNext逐行返回的batch
+	transient private TupleBatch batch;
+	transient private int batchIndex;
+	// 有序输入：当前这一段相同排序值的第一行，以及这一段的行数
+	transient private TupleBatch runBatch;
+	transient private int runRow;
+	transient private int runLength;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param child The OpIterator whose duplicate tuples are removed
+	 */
+	public Distinct(OpIterator child) {
+		this(child, MEMORY_TUPLES);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param child        The OpIterator whose duplicate tuples are removed
+	 * @param memoryTuples the maximum number of distinct tuples kept in
+	 *                     memory before the rest are spilled
+	 */
+	public Distinct(OpIterator child, int memoryTuples) {
+		this(child, -1, memoryTuples);
+	}
+
+	private Distinct(OpIterator child, int sortedField, int memoryTuples) {
+		if (memoryTuples <= 0) {
+			throw new IllegalArgumentException("memoryTuples must be positive");
+		}
+		TupleDesc td = child.getTupleDesc();
+		if (sortedField >= td.numFields()) {
+			throw new IllegalArgumentException("no field " + sortedField);
+		}
+		this.child = child;
+		this.sortedField = sortedField;
+		this.memoryTuples = memoryTuples;
+		columns = new int[td.numFields()];
+		types = new Type[td.numFields()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = i;
+			types[i] = td.getFieldType(i);
+		}
+		intSortKey = sortedField >= 0 && td.getFieldType(sortedField) == Type.INT_TYPE;
+	}
+
+	/**
+	 * @param child a child whose tuples are sorted, ascending or descending,
+	 *              on field
+	 * @return a Distinct that only remembers the tuples of the current run of
+	 * equal values of field
+	 */
+	public static Distinct sorted(OpIterator child, int field) {
+		if (field < 0) {
+			throw new IllegalArgumentException("no field " + field);
+		}
+		return new Distinct(child, field, MEMORY_TUPLES);
+	}
+
+	/**
+	 * @return the field the child is sorted on, or -1 if duplicates are found
+	 * by hashing
+	 */
+	public int getSortedField() {
+		return sortedField;
+	}
+
+	/**
+	 * @return the maximum number of distinct tuples kept in memory
+	 */
+	public int getMemoryTuples() {
+		return memoryTuples;
+	}
+
+	@Override
+	public int memoryDemand() {
+		if (sortedField >= 0) {
+			// 有序输入只记住一段相同排序值的tuple
+			return 0;
+		}
+		return MemoryBroker.demand(child, memoryTuples);
+	}
+
+	@Override
+	public void setMemoryGrant(MemoryGrant grant) {
+		this.grant = grant;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return child.getTupleDesc();
+	}
+
+	public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+		child.open();
+		start();
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		cleanup();
+		child.close();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		cleanup();
+		child.rewind();
+		start();
+	}
+
+	private void start() {
+		seen = new GroupTable(types);
+		memory = new MemoryReservation(grant, memoryTuples);
+		source = child::nextBatch;
+		depth = 0;
+		pending = new ArrayDeque<>();
+		pendingDepths = new ArrayDeque<>();
+		runLength = 0;
+	}
+
+	/**
+	 * 删除所有还没处理的spill文件，清空状态
+	 */
+	private void cleanup() {
+		if (partitions != null) {
+			for (SpillFile partition : partitions) {
+				partition.delete();
+			}
+			partitions = null;
+		}
+		if (pending != null) {
+			for (SpillFile partition : pending) {
+				partition.delete();
+			}
+			pending = null;
+		}
+		if (current != null) {
+			current.delete();
+			current = null;
+		}
+		seen = null;
+		if (memory != null) {
+			memory.release();
+			memory = null;
+		}
+		source = null;
+		batch = null;
+		runBatch = null;
+	}
+
+	/**
+	 * 每一层用hash的不同4位选分区，和GroupTable用的低位也错开
+	 */
+	private int partitionOf(int hash) {
+		return (hash >>> (28 - 4 * depth)) & (NUM_PARTITIONS - 1);
+	}
+
+	/**
+	 * @return true if the rows of new tuples go to the partitions from now on
+	 */
+	private boolean startSpilling() throws DbException {
+		if (memory.fits(seen.size() + 1) || depth >= MAX_DEPTH) {
+			return false;
+		}
+		partitions = new SpillFile[NUM_PARTITIONS];
+		for (int i = 0; i < NUM_PARTITIONS; i++) {
+			partitions[i] = new SpillFile(child.getTupleDesc());
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if a row has not been seen before and is returned now
+	 */
+	private boolean isNew(TupleBatch b, int row) throws DbException {
+		if (sortedField >= 0) {
+			return isNewInRun(b, row);
+		}
+		if (partitions != null || startSpilling()) {
+			if (seen.find(b, row, columns) < 0) {
+				partitions[partitionOf(seen.hash(b, row, columns))].write(b, row);
+			}
+			return false;
+		}
+		int size = seen.size();
+		return seen.findOrAdd(b, row, columns) == size;
+	}
+
+	/**
+	 * 有序输入：排序值变了就开始新的一段；一段的第二行到来时才把第一行放进表
+	 */
+	private boolean isNewInRun(TupleBatch b, int row) {
+		if (runLength == 0 || !sameSortKey(b, row)) {
+			runBatch = b;
+			runRow = row;
+			runLength = 1;
+			return true;
+		}
+		if (runLength == 1) {
+			if (seen.size() > 0) {
+				seen.clear();
+			}
+			seen.findOrAdd(runBatch, runRow, columns);
+		}
+		runLength++;
+		int size = seen.size();
+		return seen.findOrAdd(b, row, columns) == size;
+	}
+
+	private boolean sameSortKey(TupleBatch b, int row) {
+		if (intSortKey) {
+			return b.getInt(sortedField, row) == runBatch.getInt(sortedField, runRow);
+		}
+		return b.getField(sortedField, row).equals(runBatch.getField(sortedField, runRow));
+	}
+
+	/**
+	 * @return the next batch of the current source, moving on to the next
+	 * spill partition when it is exhausted, or null at the end
+	 */
+	private TupleBatch nextInput() throws DbException, TransactionAbortedException {
+		while (true) {
+			TupleBatch b = source.nextBatch();
+			if (b != null) {
+				return b;
+			}
+			if (current != null) {
+				current.delete();
+				current = null;
+			}
+			if (partitions != null) {
+				for (SpillFile partition : partitions) {
+					if (partition.size() == 0) {
+						partition.delete();
+					} else {
+						partition.finishWriting();
+						pending.push(partition);
+						pendingDepths.push(depth + 1);
+					}
+				}
+				partitions = null;
+			}
+			if (pending.isEmpty()) {
+				return null;
+			}
+			current = pending.pop();
+			depth = pendingDepths.pop();
+			seen.clear();
+			source = current.reader()::nextBatch;
+		}
+	}
+
+	/**
+	 * Narrows each batch of the child to the rows not seen before, by
+	 * selecting them; no values are copied.
+	 */
+	@Override
+	public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		if (batch != null && batchIndex < batch.numRows()) {
+			// 先返回fetchNext没读完的行
+			int[] rows = new int[batch.numRows() - batchIndex];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = batch.rowAt(batchIndex + i);
+			}
+			TupleBatch rest = batch;
+			batch = null;
+			rest.select(rows, rows.length);
+			return rest;
+		}
+		TupleBatch b;
+		while ((b = nextInput()) != null) {
+			int n = b.numRows();
+			int[] rows = new int[n];
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				int row = b.rowAt(i);
+				if (isNew(b, row)) {
+					rows[count++] = row;
+				}
+			}
+			if (count > 0) {
+				b.select(rows, count);
+				return b;
+			}
+		}
+		return null;
+	}
+
+	protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+		while (batch == null || batchIndex == batch.numRows()) {
+			batch = nextBatch();
+			batchIndex = 0;
+			if (batch == null) {
+				return null;
+			}
+		}
+		return batch.getTuple(batch.rowAt(batchIndex++));
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		child = children[0];
+	}
+}
@@ -0,0 +1,109 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Exchange is the base class of the operators that move batches between
+ * threads. Each child is an independent copy of a pipeline (e.g. a morsel
+ * driven {@link SeqScan} under a {@link Filter}) that is run in slices by the
+ * {@link QueryScheduler}, in the group of the query; the exchange hands the
+ * batches the pipelines produce to its consumer(s).
+ *
+ * @see Gather
+ * @see Repartition
+ */
+public abstract class Exchange extends Operator {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Marks the end of the batches of one producer in a queue
+	 */
+	static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[]{Type.INT_TYPE}), 1);
+
+	protected OpIterator[] children;
+
+	protected Exchange(OpIterator[] children) {
+		if (children.length == 0) {
+			throw new IllegalArgumentException("an exchange needs at least one child");
+		}
+		this.children = children.clone();
+	}
+
+	/**
+	 * @return the name of this exchange shown in query plans
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return the number of producer pipelines
+	 */
+	public int getParallelism() {
+		return children.length;
+	}
+
+	/**
+	 * Take the next batch from a queue filled by producers.
+	 */
+	static TupleBatch take(BlockingQueue<TupleBatch> queue) throws DbException {
+		try {
+			return QueryScheduler.take(queue);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while waiting for producers");
+		}
+	}
+
+	/**
+	 * Put a batch into a bounded queue, giving up if the consumer goes away
+	 * while the queue is full.
+	 *
+	 * @param abandoned true once nobody will read the queue any more
+	 * @return false if the batch was dropped
+	 */
+	static boolean offer(BlockingQueue<TupleBatch> queue, TupleBatch batch, BooleanSupplier abandoned)
+		throws InterruptedException {
+		return QueryScheduler.offer(queue, batch, abandoned);
+	}
+
+	@Override
+	public TupleDesc getTupleDesc() {
+		return children[0].getTupleDesc();
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return children.clone();
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		this.children = children.clone();
+	}
+
+	/**
+	 * 把生产者的异常原样抛给消费者
+	 */
+	static void rethrow(Throwable failure) throws DbException, TransactionAbortedException {
+		if (failure instanceof DbException) {
+			throw (DbException) failure;
+		}
+		if (failure instanceof TransactionAbortedException) {
+			throw (TransactionAbortedException) failure;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		throw new DbException("producer failed: " + failure);
+	}
+}
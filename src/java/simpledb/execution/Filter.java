@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -11,8 +12,10 @@ import java.util.*;
  * 实现where语句
  */
 public class Filter extends Operator {
-	private Predicate predicate;
+	private final List<Predicate> predicates;
 	private OpIterator opIterator;
+	// 反序列化后重新编译
+	private transient PredicateCompiler.CompiledPredicate compiled;
 
 	private static final long serialVersionUID = 1L;
 
@@ -24,12 +27,37 @@ public class Filter extends Operator {
 	 * @param child The child operator
 	 */
 	public Filter(Predicate p, OpIterator child) {
-		predicate = p;
+		this(Collections.singletonList(p), child);
+	}
+
+	/**
+	 * Constructor for a filter that keeps the tuples satisfying all of a
+	 * conjunction of predicates, evaluated by one {@link PredicateCompiler}
+	 * evaluator.
+	 *
+	 * @param predicates The conjuncts to filter tuples with; not empty
+	 * @param child      The child operator
+	 */
+	public Filter(List<Predicate> predicates, OpIterator child) {
+		if (predicates.isEmpty()) {
+			throw new IllegalArgumentException("a filter needs at least one predicate");
+		}
+		this.predicates = Collections.unmodifiableList(new ArrayList<>(predicates));
 		opIterator = child;
 	}
 
+	/**
+	 * @return the first conjunct of the filter
+	 */
 	public Predicate getPredicate() {
-		return predicate;
+		return predicates.get(0);
+	}
+
+	/**
+	 * @return all conjuncts of the filter
+	 */
+	public List<Predicate> getPredicates() {
+		return predicates;
 	}
 
 	public TupleDesc getTupleDesc() {
@@ -38,6 +66,9 @@ public class Filter extends Operator {
 
 	public void open() throws DbException, NoSuchElementException,
 		TransactionAbortedException {
+		if (compiled == null) {
+			compiled = PredicateCompiler.compile(predicates, opIterator.getTupleDesc());
+		}
 		super.open();
 		opIterator.open();
 	}
@@ -53,8 +84,8 @@ public class Filter extends Operator {
 
 	/**
 	 * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-	 * child operator, applying the predicate to them and returning those that
-	 * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+	 * child operator, applying the predicates to them and returning those that
+	 * pass all of them.
 	 *
 	 * @return The next tuple that passes the filter, or null if there are no
 	 * more tuples
@@ -65,13 +96,34 @@ public class Filter extends Operator {
 		// some code goes here
 		while (opIterator.hasNext()) {
 			Tuple tuple = opIterator.next();
-			if (predicate.filter(tuple)) {
+			if (compiled.test(tuple)) {
 				return tuple;
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * 从child取batch，只在选择向量上做过滤，不复制数据；整个batch都被过滤掉时继续取下一个
+	 */
+	@Override
+	public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		TupleBatch batch;
+		while ((batch = opIterator.nextBatch()) != null) {
+			int n = batch.numRows();
+			int[] selection = new int[n];
+			for (int i = 0; i < n; i++) {
+				selection[i] = batch.rowAt(i);
+			}
+			int count = compiled.filter(batch, selection, n);
+			if (count > 0) {
+				batch.select(selection, count);
+				return batch;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public OpIterator[] getChildren() {
 		return new OpIterator[] {opIterator};
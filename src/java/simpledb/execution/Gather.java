@@ -0,0 +1,152 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Gather runs its children in parallel and returns the union of their
+ * tuples, in no particular order, to a single consumer. The children are
+ * usually copies of one pipeline over a morsel driven {@link SeqScan}.
+ */
+public class Gather extends Exchange {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Morsels morsels;
+	private transient BlockingQueue<TupleBatch> queue;
+	private transient Producers producers;
+	private transient TupleBatch current;
+	private transient int pos;
+	private transient int finished;
+
+	/**
+	 * @param children the pipelines to run in parallel; they must have the
+	 *                 same schema
+	 */
+	public Gather(OpIterator[] children) {
+		this(children, null);
+	}
+
+	/**
+	 * @param children the pipelines to run in parallel; they must have the
+	 *                 same schema
+	 * @param morsels  the morsels scanned by the children, reset whenever the
+	 *                 children are started; may be null
+	 */
+	public Gather(OpIterator[] children, Morsels morsels) {
+		super(children);
+		this.morsels = morsels;
+	}
+
+	/**
+	 * @return the morsels scanned by the children, or null
+	 */
+	public Morsels getMorsels() {
+		return morsels;
+	}
+
+	@Override
+	public String getName() {
+		return "gather(" + getParallelism() + ")";
+	}
+
+	private void start() {
+		queue = new ArrayBlockingQueue<>(children.length * 2 + 2);
+		current = null;
+		pos = 0;
+		finished = 0;
+		producers = new Producers(children, morsels, new Producers.Sink() {
+			@Override
+			public void accept(int producer, TupleBatch batch) throws InterruptedException {
+				offer(queue, batch, producers::isCancelled);
+			}
+
+			@Override
+			public void finish(int producer) throws InterruptedException {
+				offer(queue, END, producers::isCancelled);
+			}
+		});
+		producers.start();
+	}
+
+	private void stop() {
+		if (producers != null) {
+			producers.stop();
+			producers = null;
+		}
+		queue = null;
+		current = null;
+	}
+
+	@Override
+	public void open() throws DbException, TransactionAbortedException {
+		start();
+		super.open();
+	}
+
+	/**
+	 * @return the next non-empty batch from any producer, or null when all
+	 * producers are done
+	 */
+	private TupleBatch nextFromQueue() throws DbException, TransactionAbortedException {
+		while (finished < children.length) {
+			TupleBatch batch = take(queue);
+			if (batch == END) {
+				finished++;
+				producers.check();
+			} else if (batch.numRows() > 0) {
+				return batch;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+		if (current == null || pos == current.numRows()) {
+			current = nextFromQueue();
+			pos = 0;
+			if (current == null) {
+				return null;
+			}
+		}
+		return current.getTuple(current.rowAt(pos++));
+	}
+
+	/**
+	 * 直接把生产者的batch交给消费者
+	 */
+	@Override
+	public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		if (current != null && pos < current.numRows()) {
+			// 先交出已经按行读了一部分的batch剩下的行
+			int[] rows = new int[current.numRows() - pos];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = current.rowAt(pos + i);
+			}
+			TupleBatch rest = current;
+			rest.select(rows, rows.length);
+			current = null;
+			return rest;
+		}
+		current = null;
+		return nextFromQueue();
+	}
+
+	@Override
+	public void rewind() throws DbException, TransactionAbortedException {
+		stop();
+		start();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		stop();
+	}
+}
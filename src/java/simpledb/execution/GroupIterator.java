@@ -0,0 +1,75 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Iterator over the groups of a {@link GroupTable} in order of group number.
+ * Each output tuple holds the group key columns followed by the result of
+ * every accumulator for that group. Groups added while iterating are
+ * returned as well.
+ */
+class GroupIterator extends Operator {
+
+	private static final long serialVersionUID = 1L;
+	private final GroupTable groups;
+	private final Accumulator[] accumulators;
+	private final TupleDesc td;
+	private final int width;
+	private int next;
+
+	/**
+	 * @param groups       the groups to return
+	 * @param accumulators the aggregates to return for each group
+	 * @param td           the schema of the output tuples
+	 */
+	GroupIterator(GroupTable groups, Accumulator[] accumulators, TupleDesc td) {
+		this.groups = groups;
+		this.accumulators = accumulators;
+		this.td = td;
+		this.width = groups.getKeyTypes().length;
+	}
+
+	@Override
+	public void open() throws DbException, TransactionAbortedException {
+		next = 0;
+		super.open();
+	}
+
+	@Override
+	protected Tuple fetchNext() {
+		if (next >= groups.size()) {
+			return null;
+		}
+		int group = next++;
+		Tuple tuple = new Tuple(td);
+		for (int i = 0; i < width; i++) {
+			tuple.setField(i, groups.getKey(group, i));
+		}
+		for (int i = 0; i < accumulators.length; i++) {
+			tuple.setField(width + i, accumulators[i].result(group));
+		}
+		return tuple;
+	}
+
+	@Override
+	public void rewind() {
+		next = 0;
+	}
+
+	@Override
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[0];
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+	}
+}
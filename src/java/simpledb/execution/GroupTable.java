@@ -0,0 +1,351 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * GroupTable maps group keys to dense group numbers 0, 1, 2, ... in order of
+ * first appearance, using open addressing over primitive arrays, so that
+ * aggregation state can be kept in arrays indexed by group number.
+ * <p>
+ * Keys of one or two INT_TYPE columns are packed into a long and looked up
+ * without allocating; other keys are kept as Field arrays and only copied
+ * when a new group is added.
+ */
+public class GroupTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Type[] keyTypes;
+	private final int width;
+	// key是一到两个int列时打包成long
+	private final boolean packed;
+	// 组号+1，0表示空槽
+	private int[] slots;
+	private int mask;
+	private int size;
+	// packed时每组的key
+	private long[] longKeys;
+	// 否则每组的key，按组号依次存放width个field
+	private Field[] fieldKeys;
+	private int[] hashes;
+	// 查找时复用的key，避免每行分配数组
+	private final Field[] probe;
+
+	/**
+	 * Create an empty table.
+	 *
+	 * @param keyTypes the types of the group key columns
+	 */
+	public GroupTable(Type[] keyTypes) {
+		this.keyTypes = keyTypes.clone();
+		this.width = keyTypes.length;
+		boolean allInts = width > 0 && width <= 2;
+		for (Type t : keyTypes) {
+			allInts &= t == Type.INT_TYPE;
+		}
+		this.packed = allInts;
+		this.probe = new Field[width];
+		clear();
+	}
+
+	/**
+	 * Remove all groups.
+	 */
+	public void clear() {
+		slots = new int[INITIAL_CAPACITY * 2];
+		mask = slots.length - 1;
+		size = 0;
+		if (packed) {
+			longKeys = new long[INITIAL_CAPACITY];
+		} else {
+			fieldKeys = new Field[INITIAL_CAPACITY * width];
+			hashes = new int[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * @return the number of groups
+	 */
+	public int size() {
+		return size;
+	}
+
+	public Type[] getKeyTypes() {
+		return keyTypes.clone();
+	}
+
+	/**
+	 * @return the number of the group of a single INT_TYPE key, adding it if
+	 * it is new
+	 */
+	public int findOrAdd(int key) {
+		if (!packed) {
+			probe[0] = new IntField(key);
+			return findOrAddFields(probe);
+		}
+		return findOrAddPacked(key);
+	}
+
+	/**
+	 * @return the number of the group of key, adding it if it is new
+	 */
+	public int findOrAdd(Field[] key) {
+		if (packed) {
+			return findOrAddPacked(pack(key));
+		}
+		return findOrAddFields(key);
+	}
+
+	/**
+	 * @return the number of the group of the given columns of a batch row,
+	 * adding it if it is new
+	 */
+	public int findOrAdd(TupleBatch batch, int row, int[] columns) {
+		if (packed) {
+			return findOrAddPacked(packKey(batch, row, columns));
+		}
+		for (int i = 0; i < width; i++) {
+			probe[i] = batch.getField(columns[i], row);
+		}
+		return findOrAddFields(probe);
+	}
+
+	/**
+	 * @return the number of the group of the given columns of a tuple, adding
+	 * it if it is new
+	 */
+	public int findOrAdd(Tuple tuple, int[] columns) {
+		if (packed) {
+			return findOrAddPacked(packKey(tuple, columns));
+		}
+		for (int i = 0; i < width; i++) {
+			probe[i] = tuple.getField(columns[i]);
+		}
+		return findOrAdd(probe);
+	}
+
+	/**
+	 * @return the number of the group of the given columns of a batch row, or
+	 * -1 if there is no such group
+	 */
+	public int find(TupleBatch batch, int row, int[] columns) {
+		return find(batch, row, columns, probe);
+	}
+
+	/**
+	 * Like {@link #find(TupleBatch, int, int[])}, but keeps the key in
+	 * scratch instead of a buffer of the table, so that several threads can
+	 * look up keys in a table that is no longer modified.
+	 *
+	 * @param scratch an array of the width of the key owned by the caller
+	 */
+	public int find(TupleBatch batch, int row, int[] columns, Field[] scratch) {
+		if (packed) {
+			return findPacked(packKey(batch, row, columns));
+		}
+		for (int i = 0; i < width; i++) {
+			scratch[i] = batch.getField(columns[i], row);
+		}
+		return findFields(scratch, hashFields(scratch));
+	}
+
+	/**
+	 * @return the number of the group of the given columns of a tuple, or -1
+	 * if there is no such group
+	 */
+	public int find(Tuple tuple, int[] columns) {
+		if (packed) {
+			return findPacked(packKey(tuple, columns));
+		}
+		for (int i = 0; i < width; i++) {
+			probe[i] = tuple.getField(columns[i]);
+		}
+		return findFields(probe, hashFields(probe));
+	}
+
+	/**
+	 * @return the hash of the given columns of a batch row, the same for equal
+	 * keys in every GroupTable with these key types
+	 */
+	public int hash(TupleBatch batch, int row, int[] columns) {
+		return hash(batch, row, columns, probe);
+	}
+
+	/**
+	 * Like {@link #hash(TupleBatch, int, int[])}, keeping the key in scratch
+	 * as {@link #find(TupleBatch, int, int[], Field[])} does.
+	 */
+	public int hash(TupleBatch batch, int row, int[] columns, Field[] scratch) {
+		if (packed) {
+			return mix(packKey(batch, row, columns));
+		}
+		for (int i = 0; i < width; i++) {
+			scratch[i] = batch.getField(columns[i], row);
+		}
+		return hashFields(scratch);
+	}
+
+	/**
+	 * @return the hash of the given columns of a tuple, the same as
+	 * {@link #hash(TupleBatch, int, int[])} for the same key
+	 */
+	public int hash(Tuple tuple, int[] columns) {
+		if (packed) {
+			return mix(packKey(tuple, columns));
+		}
+		for (int i = 0; i < width; i++) {
+			probe[i] = tuple.getField(columns[i]);
+		}
+		return hashFields(probe);
+	}
+
+	/**
+	 * @return column i of the key of group
+	 */
+	public Field getKey(int group, int i) {
+		if (packed) {
+			long key = longKeys[group];
+			int value = width == 2 && i == 0 ? (int) (key >>> 32) : (int) key;
+			return new IntField(value);
+		}
+		return fieldKeys[group * width + i];
+	}
+
+	private long packKey(TupleBatch batch, int row, int[] columns) {
+		long key = batch.getInt(columns[0], row);
+		if (width == 2) {
+			key = (key << 32) | (batch.getInt(columns[1], row) & 0xffffffffL);
+		}
+		return key;
+	}
+
+	private long packKey(Tuple tuple, int[] columns) {
+		long key = tuple.getInt(columns[0]);
+		if (width == 2) {
+			key = (key << 32) | (tuple.getInt(columns[1]) & 0xffffffffL);
+		}
+		return key;
+	}
+
+	private long pack(Field[] key) {
+		long packedKey = ((IntField) key[0]).getValue();
+		if (width == 2) {
+			packedKey = (packedKey << 32) | (((IntField) key[1]).getValue() & 0xffffffffL);
+		}
+		return packedKey;
+	}
+
+	private static int mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private int findPacked(long key) {
+		int slot = mix(key) & mask;
+		while (slots[slot] != 0) {
+			int group = slots[slot] - 1;
+			if (longKeys[group] == key) {
+				return group;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int findOrAddPacked(long key) {
+		int slot = mix(key) & mask;
+		while (slots[slot] != 0) {
+			int group = slots[slot] - 1;
+			if (longKeys[group] == key) {
+				return group;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == longKeys.length) {
+			longKeys = Arrays.copyOf(longKeys, size * 2);
+		}
+		longKeys[size] = key;
+		return add(slot);
+	}
+
+	private int hashFields(Field[] key) {
+		int h = 0;
+		for (int i = 0; i < width; i++) {
+			h = 31 * h + key[i].hashCode();
+		}
+		return mix(h);
+	}
+
+	private int findFields(Field[] key, int h) {
+		int slot = h & mask;
+		while (slots[slot] != 0) {
+			int group = slots[slot] - 1;
+			if (hashes[group] == h && keyEquals(group, key)) {
+				return group;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int findOrAddFields(Field[] key) {
+		int h = hashFields(key);
+		int slot = h & mask;
+		while (slots[slot] != 0) {
+			int group = slots[slot] - 1;
+			if (hashes[group] == h && keyEquals(group, key)) {
+				return group;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == hashes.length) {
+			hashes = Arrays.copyOf(hashes, size * 2);
+			fieldKeys = Arrays.copyOf(fieldKeys, size * 2 * width);
+		}
+		hashes[size] = h;
+		System.arraycopy(key, 0, fieldKeys, size * width, width);
+		return add(slot);
+	}
+
+	private boolean keyEquals(int group, Field[] key) {
+		for (int i = 0; i < width; i++) {
+			if (!fieldKeys[group * width + i].equals(key[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int add(int slot) {
+		int group = size++;
+		slots[slot] = group + 1;
+		// 装载因子不超过1/2
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return group;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		mask = slots.length - 1;
+		for (int group = 0; group < size; group++) {
+			int h = packed ? mix(longKeys[group]) : hashes[group];
+			int slot = h & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = group + 1;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * HashAggregator computes aggregates grouped by a key of zero or more columns,
+ * numbering the groups with a {@link GroupTable} and keeping one
+ * {@link Accumulator} per aggregate.
+ * <p>
+ * At most memoryGroups groups are kept in memory. Once the table is full,
+ * rows of the groups already in memory are still aggregated in place, while
+ * rows of any other group are written to one of {@link #NUM_PARTITIONS}
+ * {@link SpillFile}s chosen by the hash of their group key. The results of
+ * the groups in memory are returned first; each partition is then
+ * aggregated on its own, partitioning again on other hash bits if it is still
+ * too large, up to {@link #MAX_DEPTH} levels. With a {@link MemoryGrant},
+ * the table is also full once the grant is used up.
+ */
+public class HashAggregator implements Aggregator {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of groups kept in memory
+	 */
+	public final static int MEMORY_GROUPS = 20000;
+	/**
+	 * Number of spill partitions, a power of two
+	 */
+	public final static int NUM_PARTITIONS = 16;
+	/**
+	 * Partitioning levels after which all groups are kept in memory
+	 */
+	public final static int MAX_DEPTH = 3;
+
+	private final int[] groupColumns;
+	private final Type[] groupTypes;
+	private final int[] aggregateColumns;
+	private final Op[] ops;
+	private final int memoryGroups;
+	private final int depth;
+	private final GroupTable groups;
+	private final Accumulator[] accumulators;
+	private final TupleDesc tupleDesc;
+	// 超出内存后按分组key的hash写入的分区，没有溢出时为null
+	private transient SpillFile[] partitions;
+	private transient MemoryGrant grant;
+	// 内存中的组数，第一次检查时建立，close时归还
+	private transient MemoryReservation memory;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param groupColumns     the group key columns of the input rows; empty
+	 *                         if there is no grouping
+	 * @param groupTypes       the types of the group key columns
+	 * @param aggregateColumns the input column of each aggregate
+	 * @param ops              the aggregate function of each aggregate; only
+	 *                         COUNT may be applied to non-INT_TYPE columns
+	 * @param memoryGroups     the maximum number of groups kept in memory
+	 * @throws IllegalArgumentException if an op is not MIN, MAX, SUM, AVG or
+	 *                                  COUNT
+	 */
+	public HashAggregator(int[] groupColumns, Type[] groupTypes, int[] aggregateColumns, Op[] ops,
+						  int memoryGroups) {
+		this(groupColumns, groupTypes, aggregateColumns, ops, memoryGroups, 0);
+	}
+
+	private HashAggregator(int[] groupColumns, Type[] groupTypes, int[] aggregateColumns, Op[] ops,
+						   int memoryGroups, int depth) {
+		if (memoryGroups <= 0) {
+			throw new IllegalArgumentException("memoryGroups must be positive");
+		}
+		this.groupColumns = groupColumns.clone();
+		this.groupTypes = groupTypes.clone();
+		this.aggregateColumns = aggregateColumns.clone();
+		this.ops = ops.clone();
+		this.memoryGroups = memoryGroups;
+		this.depth = depth;
+		this.groups = new GroupTable(groupTypes);
+		this.accumulators = new Accumulator[ops.length];
+		Type[] types = new Type[groupTypes.length + ops.length];
+		System.arraycopy(groupTypes, 0, types, 0, groupTypes.length);
+		for (int i = 0; i < ops.length; i++) {
+			accumulators[i] = new Accumulator(ops[i]);
+			types[groupTypes.length + i] = Type.INT_TYPE;
+		}
+		this.tupleDesc = new TupleDesc(types);
+	}
+
+	/**
+	 * @return the number of groups kept in memory
+	 */
+	public int getMemoryGroups() {
+		return memoryGroups;
+	}
+
+	/**
+	 * Reserve the memory of the groups against grant; must be called before
+	 * the first row is merged.
+	 */
+	public void setMemoryGrant(MemoryGrant grant) {
+		this.grant = grant;
+	}
+
+	/**
+	 * @return true if rows have been written to spill partitions
+	 */
+	public boolean isSpilling() {
+		return partitions != null;
+	}
+
+	/**
+	 * @return the schema of the results: the group key columns followed by
+	 * one INT_TYPE column per aggregate
+	 */
+	public TupleDesc getTupleDesc() {
+		return tupleDesc;
+	}
+
+	private void update(int group, TupleBatch batch, int row) {
+		for (int i = 0; i < accumulators.length; i++) {
+			if (ops[i] == Op.COUNT) {
+				accumulators[i].count(group);
+			} else {
+				accumulators[i].add(group, batch.getInt(aggregateColumns[i], row));
+			}
+		}
+	}
+
+	private void update(int group, Tuple tup) {
+		for (int i = 0; i < accumulators.length; i++) {
+			if (ops[i] == Op.COUNT) {
+				accumulators[i].count(group);
+			} else {
+				accumulators[i].add(group, tup.getInt(aggregateColumns[i]));
+			}
+		}
+	}
+
+	/**
+	 * 每一层用hash的不同4位选分区，和GroupTable用的低位也错开
+	 */
+	private int partitionOf(int hash) {
+		return (hash >>> (28 - 4 * depth)) & (NUM_PARTITIONS - 1);
+	}
+
+	/**
+	 * @return true if the rows of new groups go to the partitions from now on
+	 */
+	private boolean startSpilling(TupleDesc inputTd) throws DbException {
+		if (partitions != null) {
+			return true;
+		}
+		if (memory == null) {
+			memory = new MemoryReservation(grant, memoryGroups);
+		}
+		if (memory.fits(groups.size() + 1) || depth >= MAX_DEPTH) {
+			return false;
+		}
+		partitions = new SpillFile[NUM_PARTITIONS];
+		for (int i = 0; i < NUM_PARTITIONS; i++) {
+			partitions[i] = new SpillFile(inputTd);
+		}
+		return true;
+	}
+
+	/**
+	 * Merge a new tuple into the aggregate for a distinct group value.
+	 */
+	public void mergeTupleIntoGroup(Tuple tup) {
+		try {
+			if (startSpilling(tup.getTupleDesc())) {
+				int group = groups.find(tup, groupColumns);
+				if (group < 0) {
+					partitions[partitionOf(groups.hash(tup, groupColumns))].write(tup);
+					return;
+				}
+				update(group, tup);
+			} else {
+				update(groups.findOrAdd(tup, groupColumns), tup);
+			}
+		} catch (DbException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Merge the rows of a batch. Rows of groups already in memory update the
+	 * accumulators without allocating.
+	 */
+	@Override
+	public void mergeBatchIntoGroup(TupleBatch batch) {
+		try {
+			int n = batch.numRows();
+			for (int i = 0; i < n; i++) {
+				int row = batch.rowAt(i);
+				int group;
+				if (partitions != null || startSpilling(batch.getTupleDesc())) {
+					group = groups.find(batch, row, groupColumns);
+					if (group < 0) {
+						partitions[partitionOf(groups.hash(batch, row, groupColumns))].write(batch, row);
+						continue;
+					}
+				} else {
+					group = groups.findOrAdd(batch, row, groupColumns);
+				}
+				update(group, batch, row);
+			}
+		} catch (DbException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Create a OpIterator over group aggregate results: the groups kept in
+	 * memory, then the groups of each spill partition.
+	 */
+	public OpIterator iterator() {
+		GroupIterator inMemory = new GroupIterator(groups, accumulators, tupleDesc);
+		if (partitions == null) {
+			return inMemory;
+		}
+		return new SpilledIterator(inMemory);
+	}
+
+	/**
+	 * Delete the spill partitions and release the memory of the groups.
+	 */
+	@Override
+	public void close() {
+		if (partitions != null) {
+			for (SpillFile partition : partitions) {
+				partition.delete();
+			}
+			partitions = null;
+		}
+		if (memory != null) {
+			memory.release();
+			memory = null;
+		}
+	}
+
+	/**
+	 * 先输出内存中的组，再逐个分区重新聚合并输出
+	 */
+	private class SpilledIterator extends Operator {
+		private static final long serialVersionUID = 1L;
+		private final OpIterator inMemory;
+		private OpIterator current;
+		private HashAggregator sub;
+		private int next;
+
+		SpilledIterator(OpIterator inMemory) {
+			this.inMemory = inMemory;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			inMemory.open();
+			current = inMemory;
+			next = 0;
+			super.open();
+		}
+
+		@Override
+		protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+			while (!current.hasNext()) {
+				closeSub();
+				if (partitions == null || next == partitions.length) {
+					return null;
+				}
+				SpillFile partition = partitions[next++];
+				sub = new HashAggregator(groupColumns, groupTypes, aggregateColumns, ops, memoryGroups, depth + 1);
+				sub.setMemoryGrant(grant);
+				SpillFile.Reader reader = partition.reader();
+				TupleBatch batch;
+				while ((batch = reader.nextBatch()) != null) {
+					sub.mergeBatchIntoGroup(batch);
+				}
+				current = sub.iterator();
+				current.open();
+			}
+			return current.next();
+		}
+
+		private void closeSub() {
+			if (sub != null) {
+				current.close();
+				sub.close();
+				sub = null;
+			}
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			closeSub();
+			inMemory.rewind();
+			current = inMemory;
+			next = 0;
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			closeSub();
+			inMemory.close();
+		}
+
+		@Override
+		public TupleDesc getTupleDesc() {
+			return tupleDesc;
+		}
+
+		@Override
+		public OpIterator[] getChildren() {
+			return new OpIterator[0];
+		}
+
+		@Override
+		public void setChildren(OpIterator[] children) {
+		}
+	}
+}
@@ -2,27 +2,47 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.JoinedTuple;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. child1 is the build side: while it fits
+ * into the memory budget it is kept in a single hash table and child2 is
+ * streamed against it. When it does not fit, both inputs are partitioned by
+ * hash into {@link SpillFile}s; the first partition stays resident and is
+ * joined while child2 is read, the others are joined one after another
+ * afterwards. Partitions that still do not fit are repartitioned with a
+ * different hash, and after {@link #MAX_DEPTH} levels (e.g. one key with
+ * more duplicates than the budget) the build partition is loaded in chunks.
+ * The budget is memoryTuples build tuples, or less once the
+ * {@link MemoryGrant} of the query is used up.
+ * <p>
+ * Once child1 has been read, a {@link BloomFilter} of its keys is handed to
+ * the scans of child2 through a {@link RuntimeFilter}, so that probe rows
+ * without a match are dropped as they are scanned.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int memoryTuples;
+    private transient MemoryGrant grant;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -31,9 +51,26 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p            The predicate to use to join the children
+     * @param child1       Iterator for the left(outer) relation to join, used
+     *                     as the build side
+     * @param child2       Iterator for the right(inner) relation to join
+     * @param memoryTuples the maximum number of build tuples kept in memory
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryTuples) {
+        if (memoryTuples <= 0) {
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        }
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryTuples = memoryTuples;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -44,7 +81,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,48 +91,370 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
+
+    /**
+     * @return the maximum number of build tuples kept in memory
+     */
+    public int getMemoryTuples() {
+        return memoryTuples;
+    }
+
+    @Override
+    public int memoryDemand() {
+        return MemoryBroker.demand(child1, memoryTuples);
+    }
+
+    @Override
+    public void setMemoryGrant(MemoryGrant grant) {
+        this.grant = grant;
+    }
+
     final Map<Object, List<Tuple>> map = new HashMap<>();
+    // default memory budget, in build tuples
     public final static int MAP_SIZE = 20000;
+    // number of partitions a spilling input is split into
+    public final static int NUM_PARTITIONS = 16;
+    // levels of repartitioning before falling back to chunked builds
+    public final static int MAX_DEPTH = 3;
+    // no Bloom filter is pushed down for build sides larger than this
+    public final static int MAX_FILTER_KEYS = 1 << 22;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+    private final RuntimeFilter runtimeFilter = new RuntimeFilter();
+
+    /**
+     * A source of batches: a child operator or a spill file being read back.
+     */
+    private interface BatchSource {
+        TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * The spilled build and probe tuples of one hash partition.
+     */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int depth;
+
+        Partition(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
         }
-        return cnt > 0;
 
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
     }
 
+    // build state: where build tuples come from and how far they have been read
+    transient private BatchSource buildSource;
+    transient private TupleBatch buildBatch;
+    transient private int buildIndex;
+    // whether buildSource has been read completely; false only for chunked builds
+    transient private boolean buildDone;
+    transient private int inMemory;
+    // the memory of the build tables, at most memoryTuples
+    transient private MemoryReservation memory;
+    // repartitioning level of the current build; the hash function depends on it
+    transient private int depth;
+    // the partition kept in map while partitioning, -1 once it spilled too
+    transient private int resident;
+    // spill files of the current build, null while everything fits in memory
+    transient private SpillFile[] buildParts;
+    transient private SpillFile[] probeParts;
+    // partitions left to join after the current one
+    transient private Deque<Partition> pending;
+    // the spilled partition being joined, null while reading child2
+    transient private Partition current;
+
+    // probe state: the current batch of the probe side, the position of the
+    // next row to probe in it, and the matches of the last probed row
+    transient private BatchSource probeSource;
+    transient private TupleBatch probeBatch;
+    transient private int probeIndex;
+    transient private int probeRow;
+    transient private List<Tuple> matches;
+    transient private int matchIndex;
+    transient private Tuple buildTuple;
+    // the current probe row as a tuple, shared by all its join results
+    transient private Tuple probeTuple;
+    // hashes of all build keys for the Bloom filter, null once there are too many
+    transient private int[] keyHashes;
+    transient private int numKeys;
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
+        // 先读完build端再打开probe端，probe端的扫描从一开始就能用上Bloom filter
+        start();
         child2.open();
-        loadMap();
         super.open();
     }
 
     public void close() {
         super.close();
+        cleanup();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
+        start();
         child2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    private void start() throws DbException, TransactionAbortedException {
+        pending = new ArrayDeque<>();
+        current = null;
+        memory = new MemoryReservation(grant, memoryTuples);
+        runtimeFilter.clear();
+        RuntimeFilter.pushDown(child2, pred.getField2(), runtimeFilter);
+        keyHashes = new int[64];
+        numKeys = 0;
+        startBuild(child1::nextBatch, 0);
+        if (keyHashes != null) {
+            BloomFilter bloom = new BloomFilter(numKeys);
+            for (int i = 0; i < numKeys; i++) {
+                bloom.addHash(keyHashes[i]);
+            }
+            runtimeFilter.publish(bloom);
+            keyHashes = null;
+        }
+        probeSource = child2::nextBatch;
+    }
+
+    /**
+     * 删除所有还没处理的spill文件，清空状态
+     */
+    private void cleanup() {
+        deleteAll(buildParts);
+        deleteAll(probeParts);
+        buildParts = null;
+        probeParts = null;
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+        if (pending != null) {
+            for (Partition partition : pending) {
+                partition.delete();
+            }
+            pending = null;
+        }
+        map.clear();
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
+        runtimeFilter.clear();
+        keyHashes = null;
+        buildSource = null;
+        buildBatch = null;
+        probeSource = null;
+        probeBatch = null;
+        matches = null;
+        buildTuple = null;
+        probeTuple = null;
+    }
+
+    private static void deleteAll(SpillFile[] files) {
+        if (files != null) {
+            for (SpillFile file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private int partitionOf(Field key) {
+        // 每一层用不同的hash，重新分区时同一分区的tuple能被分开
+        int h = key.hashCode() ^ (depth * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % NUM_PARTITIONS;
+    }
+
+    private void startBuild(BatchSource source, int depth) throws DbException, TransactionAbortedException {
+        this.depth = depth;
+        buildSource = source;
+        buildBatch = null;
+        buildIndex = 0;
+        resident = 0;
+        buildParts = null;
+        probeParts = null;
+        buildDone = loadBuild();
+    }
+
+    /**
+     * 从buildSource读入build端，超出内存预算时开始分区落盘。
+     * 到达MAX_DEPTH后不再分区，读满预算就停下，剩下的留给下一块
+     *
+     * @return true if the build side has been read completely
+     */
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        map.clear();
+        inMemory = 0;
+        int keyField = pred.getField1();
+        while (true) {
+            if (buildBatch == null || buildIndex == buildBatch.numRows()) {
+                buildBatch = buildSource.nextBatch();
+                buildIndex = 0;
+                if (buildBatch == null) {
+                    return true;
+                }
+            }
+            if (depth >= MAX_DEPTH && !memory.fits(inMemory + 1)) {
+                return false;
+            }
+            Tuple t = buildBatch.getTuple(buildBatch.rowAt(buildIndex++));
+            Field key = t.getField(keyField);
+            if (depth == 0 && keyHashes != null) {
+                addKeyHash(key.hashCode());
+            }
+            if (buildParts != null) {
+                int partition = partitionOf(key);
+                if (partition != resident) {
+                    buildParts[partition].write(t);
+                    continue;
+                }
+            }
+            map.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+            if (!memory.fits(++inMemory) && depth < MAX_DEPTH) {
+                spill();
+            }
+        }
+    }
+
+    /**
+     * 记下build key的hash；第一层读的是整个child1
+     */
+    private void addKeyHash(int hash) {
+        if (numKeys == MAX_FILTER_KEYS) {
+            keyHashes = null;
+            return;
+        }
+        if (numKeys == keyHashes.length) {
+            keyHashes = Arrays.copyOf(keyHashes, numKeys * 2);
+        }
+        keyHashes[numKeys++] = hash;
+    }
+
+    /**
+     * 内存超出预算：第一次时建立分区文件，把非常驻分区的tuple写出去；
+     * 常驻分区自己也放不下时把它也写出去
+     */
+    private void spill() throws DbException {
+        int keyField = pred.getField1();
+        if (buildParts == null) {
+            buildParts = new SpillFile[NUM_PARTITIONS];
+            probeParts = new SpillFile[NUM_PARTITIONS];
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i] = new SpillFile(child1.getTupleDesc());
+                probeParts[i] = new SpillFile(child2.getTupleDesc());
+            }
+        }
+        Iterator<List<Tuple>> it = map.values().iterator();
+        while (it.hasNext()) {
+            List<Tuple> tuples = it.next();
+            int partition = partitionOf(tuples.get(0).getField(keyField));
+            if (partition != resident) {
+                for (Tuple t : tuples) {
+                    buildParts[partition].write(t);
+                }
+                inMemory -= tuples.size();
+                it.remove();
+            }
+        }
+        if (!memory.fits(inMemory)) {
+            for (List<Tuple> tuples : map.values()) {
+                for (Tuple t : tuples) {
+                    buildParts[resident].write(t);
+                }
+            }
+            map.clear();
+            inMemory = 0;
+            resident = -1;
+        }
+    }
+
+    /**
+     * 当前probe端读完后切换到下一块build或下一个分区
+     *
+     * @return false if the join is finished
+     */
+    private boolean nextPhase() throws DbException, TransactionAbortedException {
+        if (current != null && !buildDone) {
+            // 分块build还没读完，用下一块重新扫一遍probe分区
+            buildDone = loadBuild();
+            probeSource = current.probe.reader()::nextBatch;
+            return true;
+        }
+        if (buildParts != null) {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                if (i == resident || buildParts[i].size() == 0 || probeParts[i].size() == 0) {
+                    buildParts[i].delete();
+                    probeParts[i].delete();
+                } else {
+                    buildParts[i].finishWriting();
+                    probeParts[i].finishWriting();
+                    pending.push(new Partition(buildParts[i], probeParts[i], depth + 1));
+                }
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+        map.clear();
+        if (pending.isEmpty()) {
+            return false;
+        }
+        current = pending.pop();
+        startBuild(current.build.reader()::nextBatch, current.depth);
+        probeSource = current.probe.reader()::nextBatch;
+        return true;
+    }
+
+    /**
+     * Moves to the next pair of matching build tuple and probe row, spilling
+     * probe rows of non-resident partitions on the way.
+     *
+     * @return false if there are no more matches
+     */
+    private boolean advance() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (matches != null && matchIndex < matches.size()) {
+                buildTuple = matches.get(matchIndex++);
+                return true;
+            }
+            matches = null;
+            if (probeBatch != null && probeIndex < probeBatch.numRows()) {
+                probeRow = probeBatch.rowAt(probeIndex++);
+                probeTuple = null;
+                Field key = probeBatch.getField(pred.getField2(), probeRow);
+                if (probeParts != null) {
+                    int partition = partitionOf(key);
+                    if (partition != resident) {
+                        probeParts[partition].write(probeBatch, probeRow);
+                        continue;
+                    }
+                }
+                matches = map.get(key);
+                matchIndex = 0;
+                continue;
+            }
+            probeBatch = probeSource.nextBatch();
+            probeIndex = 0;
+            if (probeBatch == null && !nextPhase()) {
+                return false;
+            }
+        }
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,53 +470,50 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        if (!advance()) {
+            return null;
         }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+        // probe行只物化一次，每个匹配只生成一个引用两边的JoinedTuple
+        if (probeTuple == null) {
+            probeTuple = probeBatch.getTuple(probeRow);
         }
+        return new JoinedTuple(comboTD, buildTuple, probeTuple);
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Writes the joined rows straight into the column vectors of the output
+     * batch. A batch may end in the middle of the matches of one probe row;
+     * the next call continues from there.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch out = new TupleBatch(comboTD);
+        while (!out.isFull() && advance()) {
+            appendJoined(out);
         }
+        return out.size() == 0 ? null : out;
+    }
 
-        return null;
+    private void appendJoined(TupleBatch out) {
+        int row = out.size();
+        int td1n = buildTuple.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++) {
+            out.setField(i, row, buildTuple.getField(i));
+        }
+        TupleDesc td2 = probeBatch.getTupleDesc();
+        for (int i = 0; i < td2.numFields(); i++) {
+            if (td2.getFieldType(i) == Type.INT_TYPE) {
+                out.setInt(td1n + i, row, probeBatch.getInt(i, probeRow));
+            } else {
+                out.setField(td1n + i, row, probeBatch.getField(i, probeRow));
+            }
+        }
+        out.appendRow();
     }
 
     @Override
@@ -170,5 +526,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
@@ -0,0 +1,25 @@
+package simpledb.execution;
+
+/**
+ * IndexAntiJoin returns the tuples of child1 that have no match in child2,
+ * probing an index on the join field of child2 as {@link IndexSemiJoin} does
+ * and keeping the tuples it drops.
+ */
+public class IndexAntiJoin extends IndexSemiJoin {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p      The predicate to join the children on
+	 * @param child1 Iterator for the relation whose tuples are returned
+	 * @param child2 Index access method of the other relation, keyed on the
+	 *               join field of p
+	 * @throws IllegalArgumentException if the predicate cannot be answered by
+	 *                                  an index scan
+	 */
+	public IndexAntiJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+		super(p, child1, child2, true);
+	}
+}
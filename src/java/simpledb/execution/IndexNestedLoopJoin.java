@@ -0,0 +1,182 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.JoinedTuple;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins each outer tuple with the inner tuples found by
+ * probing an index on the inner join field, e.g. a
+ * {@link simpledb.index.BTreeScan} over a BTreeFile keyed on it. The inner
+ * relation is never scanned as a whole, so joining a small outer input to a
+ * large indexed table costs a few page reads per outer tuple. When the outer
+ * input is sorted on its join field, consecutive probes reuse the leaf the
+ * previous probe started on.
+ * <p>
+ * Supports EQUALS and the range predicates; the join field of child2 must be
+ * the field the index is keyed on.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+	private static final long serialVersionUID = 1L;
+	private final JoinPredicate joinPredicate;
+	private OpIterator child1;
+	private IndexOpIterator child2;
+	private final TupleDesc tupleDesc;
+	// 用外表的值查索引时使用的比较符，outer op inner 等价于 inner indexOp outer
+	private final Predicate.Op indexOp;
+
+	private transient Tuple outerTuple;
+	private transient boolean innerOpen;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p      The predicate to use to join the children
+	 * @param child1 Iterator for the outer relation to join
+	 * @param child2 Index access method of the inner relation, keyed on the
+	 *               join field of p
+	 * @throws IllegalArgumentException if the predicate cannot be answered by
+	 *                                  an index scan
+	 */
+	public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+		this.indexOp = indexOp(p.getOperator());
+		this.joinPredicate = p;
+		this.child1 = child1;
+		this.child2 = child2;
+		tupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+	}
+
+	/**
+	 * @return the operator comparing the inner key against the outer value,
+	 * equivalent to "outer op inner"
+	 * @throws IllegalArgumentException if op is not EQUALS or a range operator
+	 */
+	public static Predicate.Op indexOp(Predicate.Op op) {
+		switch (op) {
+			case EQUALS:
+				return Predicate.Op.EQUALS;
+			case LESS_THAN:
+				return Predicate.Op.GREATER_THAN;
+			case LESS_THAN_OR_EQ:
+				return Predicate.Op.GREATER_THAN_OR_EQ;
+			case GREATER_THAN:
+				return Predicate.Op.LESS_THAN;
+			case GREATER_THAN_OR_EQ:
+				return Predicate.Op.LESS_THAN_OR_EQ;
+			default:
+				throw new IllegalArgumentException("index nested-loop join doesn't support " + op);
+		}
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return joinPredicate;
+	}
+
+	/**
+	 * @return the field name of join field1. Should be quantified by
+	 * alias or table name.
+	 */
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(joinPredicate.getField1());
+	}
+
+	/**
+	 * @return the field name of join field2. Should be quantified by
+	 * alias or table name.
+	 */
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(joinPredicate.getField2());
+	}
+
+	public TupleDesc getTupleDesc() {
+		return tupleDesc;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+		TransactionAbortedException {
+		child1.open();
+		outerTuple = null;
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		if (innerOpen) {
+			child2.close();
+			innerOpen = false;
+		}
+		outerTuple = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		outerTuple = null;
+	}
+
+	/**
+	 * 用外表tuple的连接字段查索引，内表迭代器第一次open，之后rewind
+	 */
+	private void probe(Tuple outer) throws DbException, TransactionAbortedException {
+		IndexPredicate ipred = new IndexPredicate(indexOp, outer.getField(joinPredicate.getField1()));
+		if (innerOpen) {
+			child2.rewind(ipred);
+		} else {
+			child2.open(ipred);
+			innerOpen = true;
+		}
+	}
+
+	/**
+	 * Returns the next tuple generated by the join, or null if there are no
+	 * more tuples. Tuples come out in the order of the outer relation.
+	 *
+	 * @return The next matching tuple.
+	 * @see JoinPredicate#filter
+	 */
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (outerTuple != null) {
+				while (child2.hasNext()) {
+					Tuple inner = child2.next();
+					if (joinPredicate.filter(outerTuple, inner)) {
+						return merge(outerTuple, inner);
+					}
+				}
+			}
+			if (!child1.hasNext()) {
+				outerTuple = null;
+				return null;
+			}
+			outerTuple = child1.next();
+			probe(outerTuple);
+		}
+	}
+
+	/**
+	 * 输出行只引用两边的tuple，不复制字段
+	 */
+	private Tuple merge(Tuple tuple1, Tuple tuple2) {
+		return new JoinedTuple(tupleDesc, tuple1, tuple2);
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child1, child2};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		if (children.length != 2) {
+			throw new RuntimeException("IndexNestedLoopJoin setChildren's length must be 2");
+		}
+		child1 = children[0];
+		child2 = (IndexOpIterator) children[1];
+	}
+
+}
@@ -0,0 +1,145 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * IndexSemiJoin returns the tuples of child1 that have at least one match in
+ * child2, found by probing an index on the join field of child2, e.g. a
+ * {@link simpledb.index.BTreeScan} over a BTreeFile keyed on it. Each probe
+ * stops at the first match, so a key with many duplicates in child2 costs no
+ * more than a unique one, and child2 is never scanned as a whole. The output
+ * has the schema of child1, in its order.
+ * <p>
+ * Supports EQUALS and the range predicates, like {@link IndexNestedLoopJoin}.
+ * {@link IndexAntiJoin} returns the tuples of child1 without a match instead.
+ */
+public class IndexSemiJoin extends Operator {
+
+	private static final long serialVersionUID = 1L;
+	private final JoinPredicate joinPredicate;
+	private OpIterator child1;
+	private IndexOpIterator child2;
+	private final boolean anti;
+	// 用外表的值查索引时使用的比较符
+	private final Predicate.Op indexOp;
+
+	private transient boolean innerOpen;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p      The predicate to join the children on
+	 * @param child1 Iterator for the relation whose tuples are returned
+	 * @param child2 Index access method of the other relation, keyed on the
+	 *               join field of p
+	 * @throws IllegalArgumentException if the predicate cannot be answered by
+	 *                                  an index scan
+	 */
+	public IndexSemiJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+		this(p, child1, child2, false);
+	}
+
+	protected IndexSemiJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2, boolean anti) {
+		this.indexOp = IndexNestedLoopJoin.indexOp(p.getOperator());
+		this.joinPredicate = p;
+		this.child1 = child1;
+		this.child2 = child2;
+		this.anti = anti;
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return joinPredicate;
+	}
+
+	/**
+	 * @return the field name of join field1, quantified by alias or table name
+	 */
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(joinPredicate.getField1());
+	}
+
+	/**
+	 * @return the field name of join field2, quantified by alias or table name
+	 */
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(joinPredicate.getField2());
+	}
+
+	/**
+	 * @return true if the tuples of child1 without a match are returned
+	 */
+	public boolean isAnti() {
+		return anti;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return child1.getTupleDesc();
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+		TransactionAbortedException {
+		child1.open();
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		if (innerOpen) {
+			child2.close();
+			innerOpen = false;
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+	}
+
+	/**
+	 * 用外表tuple的连接字段查索引，找到第一个匹配就停
+	 */
+	private boolean hasMatch(Tuple outer) throws DbException, TransactionAbortedException {
+		IndexPredicate ipred = new IndexPredicate(indexOp, outer.getField(joinPredicate.getField1()));
+		if (innerOpen) {
+			child2.rewind(ipred);
+		} else {
+			child2.open(ipred);
+			innerOpen = true;
+		}
+		while (child2.hasNext()) {
+			if (joinPredicate.filter(outer, child2.next())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (child1.hasNext()) {
+			Tuple outer = child1.next();
+			if (hasMatch(outer) != anti) {
+				return outer;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child1, child2};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		if (children.length != 2) {
+			throw new RuntimeException("IndexSemiJoin setChildren's length must be 2");
+		}
+		child1 = children[0];
+		child2 = (IndexOpIterator) children[1];
+	}
+}
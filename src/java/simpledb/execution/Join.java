@@ -2,23 +2,37 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.JoinedTuple;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
- * 实现join语句
+ * 实现join语句，块嵌套循环连接：每次从外表读入若干页的tuple作为一个块，
+ * 对每个块只扫描一遍内表，结果在fetchNext中按需产生。
+ * 查询的MemoryGrant用完时块会变小，内表多扫描几遍
  */
-public class Join extends Operator {
+public class Join extends Operator implements MemoryConsumer {
 
 	private static final long serialVersionUID = 1L;
+	// 默认外表块缓存的页数
+	public static final int DEFAULT_BLOCK_PAGES = 16;
 	private JoinPredicate joinPredicate;
 	private OpIterator child1;
 	private OpIterator child2;
 	private TupleDesc tupleDesc;
-	private Queue<Tuple> joinedTuples;
-	private Iterator<Tuple> iterator;
+	private final int blockPages;
+	private transient MemoryGrant grant;
+	// 外表块占用的内存
+	private transient MemoryReservation memory;
+	// 当前外表块
+	private transient List<Tuple> block;
+	// 当前内表tuple，为null表示需要取下一个
+	private transient Tuple innerTuple;
+	// 当前内表tuple下一个要比较的块内位置
+	private transient int blockIndex;
 
 	/**
 	 * Constructor. Accepts two children to join and the predicate to join them
@@ -29,38 +43,37 @@ public class Join extends Operator {
 	 * @param child2 Iterator for the right(inner) relation to join
 	 */
 	public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+		this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p          The predicate to use to join the children
+	 * @param child1     Iterator for the left(outer) relation to join
+	 * @param child2     Iterator for the right(inner) relation to join
+	 * @param blockPages the number of pages of outer tuples buffered per
+	 *                   scan of the inner relation
+	 */
+	public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
+		if (blockPages <= 0) {
+			throw new IllegalArgumentException("blockPages must be positive");
+		}
 		this.joinPredicate = p;
 		this.child1 = child1;
 		this.child2 = child2;
+		this.blockPages = blockPages;
 		TupleDesc tupleDesc1 = child1.getTupleDesc();
 		TupleDesc tupleDesc2 = child2.getTupleDesc();
 		tupleDesc = TupleDesc.merge(tupleDesc1, tupleDesc2);
-		joinedTuples = new ArrayDeque<>();
-		try {
-			this.child1.open();
-			while (child1.hasNext()) {
-				Tuple tuple1 = child1.next();
-				// 每次迭代前打开迭代器，确保从头开始
-				this.child2.open();
-				while (child2.hasNext()) {
-					Tuple tuple2 = child2.next();
-					if (joinPredicate.filter(tuple1, tuple2)) {
-						Tuple result = new Tuple(tupleDesc);
-						for (int i = 0; i < tuple1.getTupleDesc().numFields(); i++) {
-							result.setField(i, tuple1.getField(i));
-						}
-						for (int i = 0; i < tuple2.getTupleDesc().numFields(); i++) {
-							result.setField(i + tuple1.getTupleDesc().numFields(), tuple2.getField(i));
-						}
-						joinedTuples.add(result);
-					}
-				}
-				child1.remove();
-			}
-			iterator = joinedTuples.iterator();
-		} catch (TransactionAbortedException | DbException e) {
-			throw new RuntimeException(e);
-		}
+	}
+
+	/**
+	 * @return the number of pages of outer tuples buffered per scan of the
+	 * inner relation
+	 */
+	public int getBlockPages() {
+		return blockPages;
 	}
 
 	public JoinPredicate getJoinPredicate() {
@@ -83,6 +96,16 @@ public class Join extends Operator {
 		return child2.getTupleDesc().getFieldName(joinPredicate.getField2());
 	}
 
+	@Override
+	public int memoryDemand() {
+		return MemoryBroker.demand(child1, blockSize());
+	}
+
+	@Override
+	public void setMemoryGrant(MemoryGrant grant) {
+		this.grant = grant;
+	}
+
 	/**
 	 * @see TupleDesc#merge(TupleDesc, TupleDesc) for possible
 	 * implementation logic.
@@ -93,6 +116,12 @@ public class Join extends Operator {
 
 	public void open() throws DbException, NoSuchElementException,
 		TransactionAbortedException {
+		child1.open();
+		child2.open();
+		block = new ArrayList<>();
+		memory = new MemoryReservation(grant, blockSize());
+		innerTuple = null;
+		blockIndex = 0;
 		super.open();
 	}
 
@@ -100,12 +129,41 @@ public class Join extends Operator {
 		super.close();
 		child1.close();
 		child2.close();
+		block = null;
+		if (memory != null) {
+			memory.release();
+			memory = null;
+		}
+		innerTuple = null;
 	}
 
 	public void rewind() throws DbException, TransactionAbortedException {
 		child1.rewind();
 		child2.rewind();
-		iterator = joinedTuples.iterator();
+		block.clear();
+		innerTuple = null;
+		blockIndex = 0;
+	}
+
+	/**
+	 * 块能容纳的外表tuple数，按HeapPage每页的slot数计算
+	 */
+	private int blockSize() {
+		int tupleBits = child1.getTupleDesc().getSize() * 8 + 1;
+		int tuplesPerPage = Math.max(1, BufferPool.getPageSize() * 8 / tupleBits);
+		return blockPages * tuplesPerPage;
+	}
+
+	/**
+	 * 读入外表的下一个块，外表读完时返回false
+	 */
+	private boolean loadBlock() throws DbException, TransactionAbortedException {
+		block.clear();
+		int size = blockSize();
+		while (block.size() < size && memory.fits(block.size() + 1) && child1.hasNext()) {
+			block.add(child1.next());
+		}
+		return !block.isEmpty();
 	}
 
 	/**
@@ -127,10 +185,39 @@ public class Join extends Operator {
 	 * @see JoinPredicate#filter
 	 */
 	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-		if (iterator.hasNext()) {
-			return iterator.next();
+		while (true) {
+			if (innerTuple == null) {
+				if (block.isEmpty() || !child2.hasNext()) {
+					// 内表扫完一遍，换下一个外表块再从头扫内表
+					if (!block.isEmpty()) {
+						child2.rewind();
+					}
+					if (!loadBlock()) {
+						return null;
+					}
+					if (!child2.hasNext()) {
+						block.clear();
+						continue;
+					}
+				}
+				innerTuple = child2.next();
+				blockIndex = 0;
+			}
+			while (blockIndex < block.size()) {
+				Tuple outerTuple = block.get(blockIndex++);
+				if (joinPredicate.filter(outerTuple, innerTuple)) {
+					return merge(outerTuple, innerTuple);
+				}
+			}
+			innerTuple = null;
 		}
-		return null;
+	}
+
+	/**
+	 * 输出行只引用两边的tuple，不复制字段
+	 */
+	private Tuple merge(Tuple tuple1, Tuple tuple2) {
+		return new JoinedTuple(tupleDesc, tuple1, tuple2);
 	}
 
 	@Override
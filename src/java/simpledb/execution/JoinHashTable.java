@@ -0,0 +1,353 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * JoinHashTable is the build side of a {@link ParallelHashJoin}: a hash table
+ * on one key column that is built once and then probed concurrently by all
+ * the probe pipelines of the join.
+ * <p>
+ * The build pipelines run in parallel and radix-partition their rows on the
+ * high bits of the key hash into 2^{@link #PARTITION_BITS} partitions, small
+ * enough to stay in cache while they are built. The partitions are then built
+ * concurrently, each into its own {@link GroupTable} with the rows of a key
+ * chained together, and its keys are added to a {@link BloomFilter} for the
+ * probe side's scans. Unlike {@link HashEquiJoin}, the whole build side is
+ * kept in memory.
+ * <p>
+ * The table is built when it is first opened and dropped when it has been
+ * closed as often as it was opened, so all the probe pipelines should be
+ * opened before any of them is closed, as a {@link Gather} does.
+ */
+public class JoinHashTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of hash bits the build side is partitioned on
+	 */
+	public static final int PARTITION_BITS = 6;
+
+	// 行号的低ROW_BITS位是batch内的行，高位是batch的编号
+	private static final int ROW_BITS = 10;
+	private static final int ROW_MASK = (1 << ROW_BITS) - 1;
+
+	private final OpIterator[] children;
+	private final Morsels morsels;
+	private final int[] keyColumns;
+	private final Type[] keyTypes;
+	private final int parallelism;
+
+	private transient int opened;
+	// 当前这次建表；第一个open建表，其余的open等它建完
+	private transient Build building;
+	// 每个分区的表，以及每组的第一行
+	private transient GroupTable[] tables;
+	private transient int[][] heads;
+	// 所有分区的行，以及每行的下一个同key的行
+	private transient TupleBatch[] batches;
+	private transient int[][] chains;
+	private transient int size;
+	private transient BloomFilter bloom;
+
+	/**
+	 * @param children    the build pipelines to run in parallel; they must
+	 *                    have the same schema
+	 * @param morsels     the morsels scanned by the children, reset before the
+	 *                    table is built; may be null
+	 * @param keyColumn   the column of the build side to join on
+	 * @param parallelism the number of tasks building the partitions
+	 */
+	public JoinHashTable(OpIterator[] children, Morsels morsels, int keyColumn, int parallelism) {
+		if (children.length == 0) {
+			throw new IllegalArgumentException("a hash table needs at least one build pipeline");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.children = children.clone();
+		this.morsels = morsels;
+		this.keyColumns = new int[]{keyColumn};
+		this.keyTypes = new Type[]{children[0].getTupleDesc().getFieldType(keyColumn)};
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the build pipelines
+	 */
+	public OpIterator[] getChildren() {
+		return children.clone();
+	}
+
+	public int getKeyColumn() {
+		return keyColumns[0];
+	}
+
+	public Type getKeyType() {
+		return keyTypes[0];
+	}
+
+	public TupleDesc getTupleDesc() {
+		return children[0].getTupleDesc();
+	}
+
+	/**
+	 * @return the number of build rows; only valid while the table is open
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a Bloom filter of all build keys; only valid while the table is
+	 * open
+	 */
+	public BloomFilter getBloomFilter() {
+		return bloom;
+	}
+
+	/**
+	 * A build of the table, waited for by the opens after the first.
+	 */
+	private static final class Build {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Throwable failure;
+	}
+
+	/**
+	 * Build the table, unless it is already open; wait for the build if it is
+	 * being built. An open that fails does not count.
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		Build b;
+		boolean first;
+		synchronized (this) {
+			first = opened++ == 0;
+			if (first) {
+				building = new Build();
+			}
+			b = building;
+		}
+		if (first) {
+			try {
+				build();
+			} catch (Throwable t) {
+				b.failure = t;
+			} finally {
+				b.done.countDown();
+			}
+		} else {
+			// 不能在锁上等：等待的worker要让线程池补充线程去跑建表的任务
+			try {
+				QueryScheduler.await(b.done);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				undoOpen();
+				throw new DbException("interrupted while waiting for a hash table");
+			}
+		}
+		if (b.failure != null) {
+			undoOpen();
+			Exchange.rethrow(b.failure);
+		}
+	}
+
+	private synchronized void undoOpen() {
+		if (--opened == 0) {
+			building = null;
+		}
+	}
+
+	/**
+	 * Drop the table once every open has been matched by a close.
+	 */
+	public synchronized void close() {
+		if (opened > 0 && --opened == 0) {
+			building = null;
+			tables = null;
+			heads = null;
+			batches = null;
+			chains = null;
+			bloom = null;
+			size = 0;
+		}
+	}
+
+	private void build() throws DbException, TransactionAbortedException {
+		int partitions = 1 << PARTITION_BITS;
+		TupleDesc td = getTupleDesc();
+		// 每个生产者按分区攒的行
+		List<List<List<TupleBatch>>> parts = new ArrayList<>(children.length);
+		GroupTable[] hashers = new GroupTable[children.length];
+		for (int i = 0; i < children.length; i++) {
+			List<List<TupleBatch>> producerParts = new ArrayList<>(partitions);
+			for (int p = 0; p < partitions; p++) {
+				producerParts.add(new ArrayList<>());
+			}
+			parts.add(producerParts);
+			hashers[i] = new GroupTable(keyTypes);
+		}
+		Producers producers = new Producers(children, morsels, new Producers.Sink() {
+			@Override
+			public void accept(int producer, TupleBatch batch) {
+				List<List<TupleBatch>> out = parts.get(producer);
+				int n = batch.numRows();
+				for (int i = 0; i < n; i++) {
+					int row = batch.rowAt(i);
+					int p = hashers[producer].hash(batch, row, keyColumns) >>> (32 - PARTITION_BITS);
+					List<TupleBatch> list = out.get(p);
+					TupleBatch last = list.isEmpty() ? null : list.get(list.size() - 1);
+					if (last == null || last.isFull()) {
+						last = new TupleBatch(td, 1 << ROW_BITS);
+						list.add(last);
+					}
+					Repartition.copyRow(batch, row, last);
+				}
+			}
+
+			@Override
+			public void finish(int producer) {
+			}
+		});
+		producers.start();
+		try {
+			producers.await();
+		} finally {
+			producers.stop();
+		}
+
+		// 把各生产者的同一分区排在一起
+		List<TupleBatch> all = new ArrayList<>();
+		int[] first = new int[partitions + 1];
+		for (int p = 0; p < partitions; p++) {
+			first[p] = all.size();
+			for (List<List<TupleBatch>> producerParts : parts) {
+				all.addAll(producerParts.get(p));
+			}
+		}
+		first[partitions] = all.size();
+		batches = all.toArray(new TupleBatch[0]);
+		chains = new int[batches.length][];
+		tables = new GroupTable[partitions];
+		heads = new int[partitions][];
+		size = 0;
+		for (TupleBatch batch : batches) {
+			size += batch.size();
+		}
+
+		bloom = new BloomFilter(size);
+
+		// 各任务轮流认领分区建表，每个分区是一个分片；key先记在自己的Bloom filter里最后合并
+		AtomicInteger next = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		int tasks = Math.min(parallelism, partitions);
+		CountDownLatch running = new CountDownLatch(tasks);
+		QueryScheduler scheduler = QueryScheduler.shared();
+		QueryScheduler.Group group = QueryScheduler.currentGroup();
+		for (int i = 0; i < tasks; i++) {
+			BloomFilter keys = new BloomFilter(size);
+			scheduler.schedule(group, () -> {
+				try {
+					int p = next.getAndIncrement();
+					if (p < partitions && failure.get() == null) {
+						buildPartition(p, first[p], first[p + 1], keys);
+						return false;
+					}
+					bloom.merge(keys);
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+				running.countDown();
+				return true;
+			});
+		}
+		try {
+			QueryScheduler.await(running);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while building a hash table");
+		}
+		if (failure.get() != null) {
+			Exchange.rethrow(failure.get());
+		}
+	}
+
+	/**
+	 * 用batches[from, to)的行建分区p的表，同key的行串成链，新key加入keys
+	 */
+	private void buildPartition(int p, int from, int to, BloomFilter keys) {
+		GroupTable table = new GroupTable(keyTypes);
+		int[] head = new int[16];
+		for (int b = from; b < to; b++) {
+			TupleBatch batch = batches[b];
+			int[] chain = new int[batch.size()];
+			for (int row = 0; row < chain.length; row++) {
+				int groups = table.size();
+				int group = table.findOrAdd(batch, row, keyColumns);
+				if (group == groups) {
+					// 新的key
+					keys.add(batch, row, keyColumns[0]);
+					if (group == head.length) {
+						head = Arrays.copyOf(head, head.length * 2);
+					}
+					chain[row] = -1;
+				} else {
+					chain[row] = head[group];
+				}
+				head[group] = (b << ROW_BITS) | row;
+			}
+			chains[b] = chain;
+		}
+		tables[p] = table;
+		heads[p] = head;
+	}
+
+	/**
+	 * Look up the key of a probe row. Several threads may probe at the same
+	 * time, each with its own scratch array.
+	 *
+	 * @param keyColumns the key column of the probe side, of the same type as
+	 *                   the key of the table
+	 * @param scratch    an array of length 1 owned by the caller
+	 * @return the first build row with this key, or -1 if there is none
+	 */
+	int first(TupleBatch batch, int row, int[] keyColumns, Field[] scratch) {
+		int p = tables[0].hash(batch, row, keyColumns, scratch) >>> (32 - PARTITION_BITS);
+		int group = tables[p].find(batch, row, keyColumns, scratch);
+		return group < 0 ? -1 : heads[p][group];
+	}
+
+	/**
+	 * @return the build row after buildRow with the same key, or -1
+	 */
+	int next(int buildRow) {
+		return chains[buildRow >>> ROW_BITS][buildRow & ROW_MASK];
+	}
+
+	/**
+	 * @return the batch holding buildRow
+	 */
+	TupleBatch batchOf(int buildRow) {
+		return batches[buildRow >>> ROW_BITS];
+	}
+
+	/**
+	 * @return the row of buildRow in {@link #batchOf}
+	 */
+	static int rowOf(int buildRow) {
+		return buildRow & ROW_MASK;
+	}
+}
@@ -4,6 +4,7 @@ import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
+import java.util.function.BiPredicate;
 
 /**
  * 比较某两行数据的指定列是否相等，等价与join on xxx = yyy
@@ -14,6 +15,8 @@ public class JoinPredicate implements Serializable {
 	private int firstFieldIndex;
 	private int secondFieldIndex;
 	private Predicate.Op op;
+	// 第一次比较时按列类型编译；并发编译出的结果相同，不用加锁
+	private transient BiPredicate<Tuple, Tuple> compiled;
 
 	/**
 	 * Constructor -- create a new predicate over two fields of two tuples.
@@ -33,15 +36,20 @@ public class JoinPredicate implements Serializable {
 	}
 
 	/**
-	 * Apply the predicate to the two specified tuples. The comparison can be
-	 * made through Field's compare method.
+	 * Apply the predicate to the two specified tuples. The comparison is
+	 * compiled by {@link PredicateCompiler} for the type of the join fields
+	 * the first time it is made.
 	 *
 	 * @return true if the tuples satisfy the predicate.
 	 */
 	public boolean filter(Tuple t1, Tuple t2) {
-		Field firstField = t1.getField(firstFieldIndex);
-		Field secondField = t2.getField(secondFieldIndex);
-		return firstField.compare(op, secondField);
+		BiPredicate<Tuple, Tuple> c = compiled;
+		if (c == null) {
+			Field firstField = t1.getField(firstFieldIndex);
+			c = PredicateCompiler.compileJoin(firstFieldIndex, op, secondFieldIndex, firstField.getType());
+			compiled = c;
+		}
+		return c.test(t1, t2);
 	}
 
 	public int getField1() {
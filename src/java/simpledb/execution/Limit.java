@@ -0,0 +1,126 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit implements LIMIT ... OFFSET: it skips the first offset tuples of its
+ * child and returns at most limit of the following ones. The child is closed
+ * as soon as the last tuple has been returned, so a pipelined child stops
+ * reading (and releases its buffers) without being drained.
+ */
+public class Limit extends Operator {
+
+	private static final long serialVersionUID = 1L;
+	private OpIterator child;
+	private final int limit;
+	private final int offset;
+
+	// 已经返回的行数
+	private transient int produced;
+	private transient boolean skipped;
+	private transient boolean childOpen;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param limit  the maximum number of tuples to return
+	 * @param offset the number of tuples of child to skip first
+	 * @param child  the child operator
+	 */
+	public Limit(int limit, int offset, OpIterator child) {
+		if (limit < 0 || offset < 0) {
+			throw new IllegalArgumentException("limit and offset must not be negative");
+		}
+		this.limit = limit;
+		this.offset = offset;
+		this.child = child;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return child.getTupleDesc();
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+		TransactionAbortedException {
+		child.open();
+		childOpen = true;
+		produced = 0;
+		skipped = false;
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		closeChild();
+	}
+
+	private void closeChild() {
+		if (childOpen) {
+			child.close();
+			childOpen = false;
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		if (childOpen) {
+			child.rewind();
+		} else {
+			child.open();
+			childOpen = true;
+		}
+		produced = 0;
+		skipped = false;
+	}
+
+	/**
+	 * Returns the next tuple of the child within the limit, or null when the
+	 * limit has been reached or the child is exhausted.
+	 */
+	protected Tuple fetchNext() throws NoSuchElementException,
+		TransactionAbortedException, DbException {
+		if (produced >= limit) {
+			closeChild();
+			return null;
+		}
+		if (!skipped) {
+			for (int i = 0; i < offset && child.hasNext(); i++) {
+				child.next();
+			}
+			skipped = true;
+		}
+		if (!child.hasNext()) {
+			return null;
+		}
+		produced++;
+		Tuple t = child.next();
+		if (produced == limit) {
+			// 够了就立刻关闭孩子，不再读后面的数据
+			closeChild();
+		}
+		return t;
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		child = children[0];
+	}
+
+}
@@ -0,0 +1,186 @@
+package simpledb.execution;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * MemoryBroker divides a global memory budget, in tuples, among the queries
+ * running at the same time. Before a query opens its plan it asks for a
+ * {@link MemoryGrant} of the memory its {@link MemoryConsumer}s want
+ * ({@link #demand}), bounded by a per-query maximum; the consumers reserve
+ * against the grant and spill once it is used up. When the budget has been
+ * granted to other queries, admission waits until enough is returned.
+ * Queries are admitted in the order they asked, so a large request is not
+ * starved by a stream of small ones; queries that want no memory at all do
+ * not wait.
+ * <p>
+ * A query holding a grant may be blocked on a lock of a transaction that is
+ * itself waiting for admission, a wait the lock manager cannot see. So a
+ * query that has waited longer than the admission timeout is admitted with
+ * whatever is left of the budget, possibly nothing; its consumers still get
+ * the first chunk each of them always has (see {@link MemoryReservation})
+ * and spill beyond it.
+ * <p>
+ * Sizes are counted in tuples, the unit of the budgets of the operators;
+ * the heap used per tuple depends on the width of the rows.
+ */
+public class MemoryBroker {
+
+	/**
+	 * Default global budget, in tuples
+	 */
+	public final static long DEFAULT_BUDGET = 1L << 21;
+	/**
+	 * Default share of the budget a single query can be granted
+	 */
+	public final static int DEFAULT_MAX_SHARE = 8;
+	/**
+	 * Default time a query waits for its full grant, in milliseconds
+	 */
+	public final static long DEFAULT_ADMISSION_TIMEOUT = 1000;
+
+	private final long budget;
+	private final long maxGrant;
+	private final long admissionTimeout;
+	private long granted;
+	// 等待准入的请求，按先后顺序
+	private final Deque<Object> waiting = new ArrayDeque<>();
+
+	public MemoryBroker() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param budget the number of tuples granted to all queries together
+	 */
+	public MemoryBroker(long budget) {
+		this(budget, Math.max(1, budget / DEFAULT_MAX_SHARE));
+	}
+
+	/**
+	 * @param budget   the number of tuples granted to all queries together
+	 * @param maxGrant the largest grant of a single query
+	 */
+	public MemoryBroker(long budget, long maxGrant) {
+		this(budget, maxGrant, DEFAULT_ADMISSION_TIMEOUT);
+	}
+
+	/**
+	 * @param budget           the number of tuples granted to all queries
+	 *                         together
+	 * @param maxGrant         the largest grant of a single query
+	 * @param admissionTimeout the milliseconds a query waits for its full
+	 *                         grant before it is admitted with what is left
+	 */
+	public MemoryBroker(long budget, long maxGrant, long admissionTimeout) {
+		if (budget <= 0 || maxGrant <= 0 || maxGrant > budget || admissionTimeout <= 0) {
+			throw new IllegalArgumentException("invalid memory budget " + budget + ", " + maxGrant
+				+ ", " + admissionTimeout);
+		}
+		this.budget = budget;
+		this.maxGrant = maxGrant;
+		this.admissionTimeout = admissionTimeout;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return the number of tuples granted to the running queries
+	 */
+	public synchronized long getGranted() {
+		return granted;
+	}
+
+	/**
+	 * Admit a query, waiting while the rest of the budget is not enough for
+	 * it, but at most the admission timeout.
+	 *
+	 * @param demand the number of tuples the query asks for
+	 * @return a grant of demand tuples, but at most the per-query maximum,
+	 * or only the rest of the budget if the query timed out waiting
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized MemoryGrant admit(long demand) throws InterruptedException {
+		if (demand <= 0) {
+			// 不用内存的查询(比如按索引查几行)不排在大请求后面
+			return new MemoryGrant(this, 0);
+		}
+		long size = Math.min(demand, maxGrant);
+		Object ticket = new Object();
+		waiting.add(ticket);
+		long deadline = System.currentTimeMillis() + admissionTimeout;
+		try {
+			while (waiting.peek() != ticket || granted + size > budget) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					// 占着内存的查询可能在等本事务的锁，不能一直等下去
+					size = Math.max(0, Math.min(size, budget - granted));
+					break;
+				}
+				QueryScheduler.waitOn(this, left);
+			}
+		} finally {
+			// 被中断时也要离开队列，不能挡住后面的请求
+			waiting.remove(ticket);
+			notifyAll();
+		}
+		granted += size;
+		return new MemoryGrant(this, size);
+	}
+
+	synchronized void release(long size) {
+		granted -= size;
+		notifyAll();
+	}
+
+	/**
+	 * @return the sum of the memory demands of the consumers in plan
+	 */
+	public static long demand(OpIterator plan) {
+		long demand = 0;
+		if (plan instanceof MemoryConsumer) {
+			demand += ((MemoryConsumer) plan).memoryDemand();
+		}
+		if (plan instanceof Operator && ((Operator) plan).getChildren() != null) {
+			for (OpIterator child : ((Operator) plan).getChildren()) {
+				if (child != null) {
+					demand += demand(child);
+				}
+			}
+		}
+		return demand;
+	}
+
+	/**
+	 * Hand grant to all consumers in plan.
+	 */
+	public static void assign(OpIterator plan, MemoryGrant grant) {
+		if (plan instanceof MemoryConsumer) {
+			((MemoryConsumer) plan).setMemoryGrant(grant);
+		}
+		if (plan instanceof Operator && ((Operator) plan).getChildren() != null) {
+			for (OpIterator child : ((Operator) plan).getChildren()) {
+				if (child != null) {
+					assign(child, grant);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the demand of a consumer with the given budget whose memory
+	 * grows with the number of tuples of input: the estimated cardinality of
+	 * input if it has been estimated, otherwise the whole budget
+	 */
+	static int demand(OpIterator input, int budget) {
+		if (input instanceof Operator) {
+			int card = ((Operator) input).getEstimatedCardinality();
+			if (card > 0) {
+				return Math.min(budget, card);
+			}
+		}
+		return budget;
+	}
+}
@@ -0,0 +1,23 @@
+package simpledb.execution;
+
+/**
+ * An operator that keeps a bounded number of tuples in memory and spills, or
+ * shrinks its working set, beyond that. A query asks the
+ * {@link MemoryBroker} for a grant of the sum of the demands of its
+ * consumers, and each consumer then reserves its memory against the grant.
+ */
+public interface MemoryConsumer {
+
+	/**
+	 * @return the number of tuples this operator would like to keep in memory,
+	 * at most its own budget; estimated from the cardinality of its input when
+	 * known
+	 */
+	int memoryDemand();
+
+	/**
+	 * Reserve the memory of this operator against grant from the next open
+	 * on; null to use the budget of the operator alone.
+	 */
+	void setMemoryGrant(MemoryGrant grant);
+}
@@ -0,0 +1,78 @@
+package simpledb.execution;
+
+/**
+ * MemoryGrant is the memory admitted for one query by the
+ * {@link MemoryBroker}, in tuples. The memory consumers of the query reserve
+ * parts of it as they grow and release them when they close; the grant is
+ * returned to the broker when the query is done. The consumers of parallel
+ * pipelines share one grant, so it is thread safe.
+ */
+public class MemoryGrant {
+
+	private final MemoryBroker broker;
+	private final long size;
+	private long reserved;
+	private boolean closed;
+
+	MemoryGrant(MemoryBroker broker, long size) {
+		this.broker = broker;
+		this.size = size;
+	}
+
+	/**
+	 * @return the number of tuples granted to the query
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of tuples currently reserved by the consumers
+	 */
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	/**
+	 * Reserve up to tuples tuples.
+	 *
+	 * @return the number of tuples reserved, less than requested (possibly 0)
+	 * when the grant is running out
+	 */
+	public synchronized int reserve(int tuples) {
+		if (closed) {
+			return 0;
+		}
+		int granted = (int) Math.max(0, Math.min(tuples, size - reserved));
+		reserved += granted;
+		return granted;
+	}
+
+	/**
+	 * Reserve tuples tuples even beyond the size of the grant, for the least
+	 * memory a consumer needs to make progress.
+	 */
+	synchronized void reserveAnyway(int tuples) {
+		reserved += tuples;
+	}
+
+	/**
+	 * Return tuples reserved tuples to the grant.
+	 */
+	public synchronized void release(int tuples) {
+		reserved -= tuples;
+	}
+
+	/**
+	 * Return the grant to the broker; later reservations are not admitted.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		broker.release(size);
+	}
+}
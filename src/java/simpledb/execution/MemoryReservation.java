@@ -0,0 +1,70 @@
+package simpledb.execution;
+
+import simpledb.storage.TupleBatch;
+
+/**
+ * The memory one {@link MemoryConsumer} holds, in tuples: at most the budget
+ * of the operator, and, when the operator has a {@link MemoryGrant}, what it
+ * could reserve against the grant. The reservation grows in chunks of a batch
+ * as the operator keeps more tuples; when it cannot grow the operator spills.
+ * At least one batch, or the whole budget if smaller, is always available,
+ * so that every operator makes progress however many queries run.
+ */
+public class MemoryReservation {
+
+	/**
+	 * Tuples reserved at a time
+	 */
+	public final static int CHUNK = TupleBatch.DEFAULT_CAPACITY;
+
+	private final MemoryGrant grant;
+	private final int limit;
+	private int reserved;
+
+	/**
+	 * @param grant  the grant of the query, or null to be bounded by limit
+	 *               alone
+	 * @param limit  the budget of the operator
+	 */
+	public MemoryReservation(MemoryGrant grant, int limit) {
+		this.grant = grant;
+		this.limit = limit;
+		reserved = Math.min(limit, CHUNK);
+		if (grant != null) {
+			grant.reserveAnyway(reserved);
+		}
+	}
+
+	/**
+	 * @return true if the operator may keep tuples tuples in memory, growing
+	 * the reservation if needed
+	 */
+	public boolean fits(int tuples) {
+		if (tuples <= reserved) {
+			return true;
+		}
+		if (tuples > limit) {
+			return false;
+		}
+		int want = Math.min(limit, Math.max(tuples, reserved + CHUNK)) - reserved;
+		reserved += grant == null ? want : grant.reserve(want);
+		return tuples <= reserved;
+	}
+
+	/**
+	 * @return the number of tuples reserved so far
+	 */
+	public int getReserved() {
+		return reserved;
+	}
+
+	/**
+	 * Return the reservation to the grant.
+	 */
+	public void release() {
+		if (grant != null) {
+			grant.release(reserved);
+		}
+		reserved = 0;
+	}
+}
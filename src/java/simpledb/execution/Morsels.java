@@ -0,0 +1,80 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Morsels splits the page range of a table into runs of consecutive pages
+ * ("morsels") that are claimed one at a time by the scans of parallel worker
+ * pipelines. Claiming is a single atomic increment, so a worker that finishes
+ * its morsel early simply takes the next one and the workers stay balanced
+ * without any up-front partitioning.
+ */
+public class Morsels implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of pages per morsel
+	 */
+	public static final int MORSEL_PAGES = 16;
+
+	private final int numPages;
+	private final int morselPages;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param numPages the number of pages of the table
+	 */
+	public Morsels(int numPages) {
+		this(numPages, MORSEL_PAGES);
+	}
+
+	/**
+	 * @param numPages    the number of pages of the table
+	 * @param morselPages the number of pages per morsel
+	 */
+	public Morsels(int numPages, int morselPages) {
+		if (morselPages <= 0) {
+			throw new IllegalArgumentException("morselPages must be positive");
+		}
+		this.numPages = numPages;
+		this.morselPages = morselPages;
+	}
+
+	/**
+	 * Claim the next morsel.
+	 *
+	 * @return the first page of the morsel, or -1 if all morsels have been
+	 * claimed
+	 */
+	public int next() {
+		int morsel = next.getAndIncrement();
+		if ((long) morsel * morselPages >= numPages) {
+			return -1;
+		}
+		return morsel * morselPages;
+	}
+
+	/**
+	 * @return the page after the last page of the morsel starting at start
+	 */
+	public int end(int start) {
+		return Math.min(start + morselPages, numPages);
+	}
+
+	/**
+	 * @return the number of pages of the table
+	 */
+	public int numPages() {
+		return numPages;
+	}
+
+	/**
+	 * Make all morsels available again, e.g. to scan the table a second time.
+	 * Must not be called while a scan is claiming morsels.
+	 */
+	public void reset() {
+		next.set(0);
+	}
+}
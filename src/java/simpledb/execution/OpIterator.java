@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
@@ -43,6 +44,33 @@ public interface OpIterator extends Serializable {
 	 */
 	Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+	/**
+	 * Returns the next batch of tuples in column-oriented form. Operators that
+	 * can work on whole vectors override this; the default implementation
+	 * adapts the row interface by collecting up to
+	 * {@link TupleBatch#DEFAULT_CAPACITY} tuples from {@link #next()}.
+	 * <p>
+	 * Between open (or rewind) and close, a consumer should use either
+	 * nextBatch or hasNext/next, not both.
+	 *
+	 * @return the next batch with at least one selected row, or null if there
+	 * are no more tuples.
+	 * @throws IllegalStateException If the iterator has not been opened
+	 */
+	default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		TupleBatch batch = null;
+		while (hasNext()) {
+			if (batch == null) {
+				batch = new TupleBatch(getTupleDesc());
+			}
+			batch.addTuple(next());
+			if (batch.isFull()) {
+				break;
+			}
+		}
+		return batch;
+	}
+
 	/**
 	 * Resets the iterator to the start.
 	 *
@@ -1,30 +1,61 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The child is sorted in memory if it fits in the memory budget. Otherwise
+ * it is cut into sorted runs written to {@link SpillFile}s, which are merged
+ * with a k-way loser tree; when there are more runs than can be merged at
+ * once, intermediate passes merge them into longer runs first. The final
+ * merge happens lazily as tuples are fetched. INT_TYPE sort keys are compared
+ * as primitive ints.
+ * <p>
+ * Within a query a run is also spilled once the {@link MemoryGrant} of the
+ * query is used up.
  */
-public class OrderBy extends Operator {
+public class OrderBy extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of tuples sorted in memory before a run is spilled
+     */
+    public final static int MEMORY_TUPLES = 20000;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
     private final int orderByField;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
     private final boolean asc;
+    private final int memoryTuples;
+    // 排序字段是int时用基本类型比较
+    private final boolean intKey;
+    private transient MemoryGrant grant;
+
+    // 没有溢出时内存中排好序的tuple
+    private transient Tuple[] sorted;
+    private transient int sortedSize;
+    private transient int pos;
+    // 溢出时的有序run和最后一趟归并
+    private transient List<SpillFile> runs;
+    private transient Merge merge;
+    // 内存中run的大小，最多memoryTuples
+    private transient MemoryReservation memory;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -33,62 +64,232 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, MEMORY_TUPLES);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator.
+     *
+     * @param orderbyField the field to which the sort is applied.
+     * @param asc          true if the sort order is ascending.
+     * @param child        the tuples to sort.
+     * @param memoryTuples the maximum number of tuples sorted in memory
+     *                     before a sorted run is written to disk
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int memoryTuples) {
+        if (memoryTuples <= 0) {
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        }
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryTuples = memoryTuples;
+        this.intKey = td.getFieldType(orderbyField) == Type.INT_TYPE;
     }
-    
+
     public boolean isASC()
     {
 	return this.asc;
     }
-    
+
     public int getOrderByField()
     {
         return this.orderByField;
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /**
+     * @return the maximum number of tuples sorted in memory
+     */
+    public int getMemoryTuples() {
+        return memoryTuples;
+    }
+
+    @Override
+    public int memoryDemand() {
+        return MemoryBroker.demand(child, memoryTuples);
+    }
+
+    @Override
+    public void setMemoryGrant(MemoryGrant grant) {
+        this.grant = grant;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the number of runs merged at once: each run being merged
+     * buffers one batch
+     */
+    private int fanIn() {
+        return Math.max(2, memoryTuples / TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 升序时就是原值，降序时按位取反，这样都可以按升序比较且不会溢出
+     */
+    private int sortKey(int value) {
+        return asc ? value : ~value;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        memory = new MemoryReservation(grant, memoryTuples);
+        Tuple[] buffer = new Tuple[Math.min(memoryTuples, TupleBatch.DEFAULT_CAPACITY)];
+        int[] keys = intKey ? new int[buffer.length] : null;
+        int n = 0;
+        runs = null;
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            for (int i = 0; i < batch.numRows(); i++) {
+                int row = batch.rowAt(i);
+                if (!memory.fits(n + 1)) {
+                    spillRun(buffer, keys, n);
+                    n = 0;
+                }
+                if (n == buffer.length) {
+                    int length = (int) Math.min(memoryTuples, 2L * buffer.length);
+                    buffer = Arrays.copyOf(buffer, length);
+                    keys = intKey ? Arrays.copyOf(keys, length) : null;
+                }
+                buffer[n] = batch.getTuple(row);
+                if (intKey) {
+                    keys[n] = sortKey(batch.getInt(orderByField, row));
+                }
+                n++;
+            }
+        }
+        if (runs == null) {
+            sort(buffer, keys, n);
+            sorted = buffer;
+            sortedSize = n;
+            pos = 0;
+        } else {
+            spillRun(buffer, keys, n);
+            sorted = null;
+            mergeRuns();
+            merge = new Merge(runs);
+        }
         super.open();
     }
 
+    /**
+     * Sort the first n tuples of buffer. Int keys are packed with the tuple
+     * position into longs, so a primitive sort orders them stably.
+     */
+    private void sort(Tuple[] buffer, int[] keys, int n) {
+        if (!intKey) {
+            Arrays.sort(buffer, 0, n, new TupleComparator(orderByField, asc));
+            return;
+        }
+        long[] packed = new long[n];
+        for (int i = 0; i < n; i++) {
+            packed[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+        Tuple[] copy = Arrays.copyOf(buffer, n);
+        for (int i = 0; i < n; i++) {
+            buffer[i] = copy[(int) packed[i]];
+        }
+    }
+
+    private void spillRun(Tuple[] buffer, int[] keys, int n) throws DbException {
+        if (runs == null) {
+            runs = new ArrayList<>();
+        }
+        if (n == 0) {
+            return;
+        }
+        sort(buffer, keys, n);
+        SpillFile run = new SpillFile(td);
+        for (int i = 0; i < n; i++) {
+            run.write(buffer[i]);
+            buffer[i] = null;
+        }
+        run.finishWriting();
+        runs.add(run);
+    }
+
+    /**
+     * 中间趟：把相邻的fanIn个run归并成一个，直到剩下的run可以一次归并完
+     */
+    private void mergeRuns() throws DbException {
+        int fanIn = fanIn();
+        while (runs.size() > fanIn) {
+            List<SpillFile> merged = new ArrayList<>();
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<SpillFile> group = runs.subList(from, Math.min(from + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(td);
+                Merge m = new Merge(group);
+                Tuple t;
+                while ((t = m.next()) != null) {
+                    out.write(t);
+                }
+                out.finishWriting();
+                for (SpillFile run : group) {
+                    run.delete();
+                }
+                merged.add(out);
+            }
+            runs = merged;
+        }
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.delete();
+            }
+            runs = null;
+        }
+        sorted = null;
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        if (runs == null) {
+            pos = 0;
+        } else {
+            merge.close();
+            merge = new Merge(runs);
+        }
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        if (merge != null) {
+            return merge.next();
+        }
+        if (sorted != null && pos < sortedSize) {
+            return sorted[pos++];
         } else
             return null;
     }
@@ -103,26 +304,108 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * Read cursor over one sorted run.
+     */
+    private final class Run {
+        private final SpillFile.Reader reader;
+        private TupleBatch batch;
+        private int row = -1;
+        // 当前tuple，run读完时为null
+        Tuple tuple;
+        int key;
 
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+        Run(SpillFile file) throws DbException {
+            reader = file.reader();
+            advance();
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        void advance() throws DbException {
+            row++;
+            if (batch == null || row >= batch.size()) {
+                batch = reader.nextBatch();
+                row = 0;
+                if (batch == null) {
+                    tuple = null;
+                    return;
+                }
+            }
+            tuple = batch.getTuple(row);
+            if (intKey) {
+                key = sortKey(batch.getInt(orderByField, row));
+            }
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    /**
+     * k-way merge of sorted runs with a loser tree: each internal node keeps
+     * the loser of the match played there and tree[0] the overall winner, so
+     * replacing the winner replays only the matches on its path to the root.
+     */
+    private final class Merge {
+        private final Run[] runs;
+        private final int[] tree;
+        private final TupleComparator comparator = new TupleComparator(orderByField, asc);
+
+        Merge(List<SpillFile> files) throws DbException {
+            int k = files.size();
+            runs = new Run[k];
+            for (int i = 0; i < k; i++) {
+                runs[i] = new Run(files.get(i));
+            }
+            // 先让所有节点都指向比任何run都小的虚拟叶子k，再依次调整每个叶子
+            tree = new int[Math.max(k, 1)];
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--) {
+                adjust(i);
+            }
+        }
+
+        /**
+         * @return true if run a comes before run b; exhausted runs come last
+         * and ties go to the earlier run
+         */
+        private boolean before(int a, int b) {
+            if (a == runs.length || b == runs.length) {
+                return a == runs.length;
+            }
+            Tuple ta = runs[a].tuple, tb = runs[b].tuple;
+            if (ta == null || tb == null) {
+                return tb == null && (ta != null || a < b);
+            }
+            int c = intKey ? Integer.compare(runs[a].key, runs[b].key) : comparator.compare(ta, tb);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        private void adjust(int s) {
+            for (int t = (s + runs.length) / 2; t > 0; t /= 2) {
+                if (before(tree[t], s)) {
+                    int winner = tree[t];
+                    tree[t] = s;
+                    s = winner;
+                }
+            }
+            tree[0] = s;
+        }
+
+        Tuple next() throws DbException {
+            if (runs.length == 0) {
+                return null;
+            }
+            Run winner = runs[tree[0]];
+            Tuple t = winner.tuple;
+            if (t != null) {
+                winner.advance();
+                adjust(tree[0]);
+            }
+            return t;
+        }
+
+        void close() {
+            for (Run run : runs) {
+                run.reader.close();
+            }
+        }
     }
-    
+
 }
@@ -0,0 +1,227 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.JoinedTuple;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * ParallelHashJoin is the probe side of a parallel hash equi-join. The build
+ * side is a {@link JoinHashTable} shared by several ParallelHashJoins, each
+ * probing it with its own copy of a probe pipeline (usually a morsel driven
+ * {@link SeqScan}); a {@link Gather} over these copies runs the probes in
+ * parallel. The join does not preserve the order of either input.
+ * <p>
+ * The output has the columns of the left input followed by those of the right
+ * input, as for {@link HashEquiJoin}; either one may be the build side. The
+ * Bloom filter of the build keys is pushed down to the scans of the probe
+ * pipeline through a {@link RuntimeFilter}.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private final JoinHashTable table;
+    private OpIterator probe;
+    private final boolean buildLeft;
+    private final int[] probeKey;
+    private final TupleDesc comboTD;
+    // build列和probe列在输出中的起始位置
+    private final int buildOffset;
+    private final int probeOffset;
+    private final RuntimeFilter runtimeFilter = new RuntimeFilter();
+
+    // 当前的probe batch、下一个要探测的位置，以及当前probe行的下一个匹配行
+    transient private Field[] scratch;
+    transient private TupleBatch probeBatch;
+    transient private int probeIndex;
+    transient private int probeRow;
+    transient private int match;
+    transient private int buildRow;
+    // the current probe row as a tuple, shared by all its join results
+    transient private Tuple probeTuple;
+
+    /**
+     * Constructor.
+     *
+     * @param p         The predicate to use to join the children; its
+     *                  operator must be EQUALS
+     * @param table     the hash table of the build side, on the join field of
+     *                  that side
+     * @param probe     the probe pipeline
+     * @param buildLeft true if the build side is the left input of the join
+     *                  (field1 of p), false if it is the right input
+     */
+    public ParallelHashJoin(JoinPredicate p, JoinHashTable table, OpIterator probe, boolean buildLeft) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        }
+        int buildField = buildLeft ? p.getField1() : p.getField2();
+        int probeField = buildLeft ? p.getField2() : p.getField1();
+        if (table.getKeyColumn() != buildField
+                || table.getKeyType() != probe.getTupleDesc().getFieldType(probeField)) {
+            throw new IllegalArgumentException("the hash table is not on the join field");
+        }
+        this.pred = p;
+        this.table = table;
+        this.probe = probe;
+        this.buildLeft = buildLeft;
+        this.probeKey = new int[]{probeField};
+        comboTD = buildLeft ? TupleDesc.merge(table.getTupleDesc(), probe.getTupleDesc())
+                : TupleDesc.merge(probe.getTupleDesc(), table.getTupleDesc());
+        buildOffset = buildLeft ? 0 : probe.getTupleDesc().numFields();
+        probeOffset = buildLeft ? table.getTupleDesc().numFields() : 0;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public JoinHashTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return true if the build side is the left input of the join
+     */
+    public boolean isBuildLeft() {
+        return buildLeft;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return getChildren()[0].getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return getChildren()[1].getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        table.open();
+        runtimeFilter.publish(table.getBloomFilter());
+        RuntimeFilter.pushDown(probe, probeKey[0], runtimeFilter);
+        probe.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        probe.close();
+        table.close();
+        probeTuple = null;
+        runtimeFilter.clear();
+        probeBatch = null;
+    }
+
+    /**
+     * Rewinds the probe side; the hash table is kept.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        probe.rewind();
+        reset();
+    }
+
+    private void reset() {
+        scratch = new Field[1];
+        probeBatch = null;
+        probeIndex = 0;
+        match = -1;
+    }
+
+    /**
+     * 移到下一对匹配的build行和probe行
+     *
+     * @return false if there are no more matches
+     */
+    private boolean advance() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (match >= 0) {
+                buildRow = match;
+                match = table.next(match);
+                return true;
+            }
+            if (probeBatch != null && probeIndex < probeBatch.numRows()) {
+                probeRow = probeBatch.rowAt(probeIndex++);
+                probeTuple = null;
+                match = table.first(probeBatch, probeRow, probeKey, scratch);
+                continue;
+            }
+            probeBatch = probe.nextBatch();
+            probeIndex = 0;
+            if (probeBatch == null) {
+                return false;
+            }
+        }
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!advance()) {
+            return null;
+        }
+        Tuple build = table.batchOf(buildRow).getTuple(JoinHashTable.rowOf(buildRow));
+        if (probeTuple == null) {
+            probeTuple = probeBatch.getTuple(probeRow);
+        }
+        return buildOffset == 0 ? new JoinedTuple(comboTD, build, probeTuple)
+            : new JoinedTuple(comboTD, probeTuple, build);
+    }
+
+    /**
+     * Writes the joined rows straight into the column vectors of the output
+     * batch, like {@link HashEquiJoin#nextBatch()}.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch out = new TupleBatch(comboTD);
+        while (!out.isFull() && advance()) {
+            int row = out.size();
+            copyColumns(table.batchOf(buildRow), JoinHashTable.rowOf(buildRow), out, row, buildOffset);
+            copyColumns(probeBatch, probeRow, out, row, probeOffset);
+            out.appendRow();
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    private static void copyColumns(TupleBatch from, int row, TupleBatch to, int toRow, int offset) {
+        TupleDesc td = from.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                to.setInt(offset + i, toRow, from.getInt(i, row));
+            } else {
+                to.setField(offset + i, toRow, from.getField(i, row));
+            }
+        }
+    }
+
+    /**
+     * @return the left and right inputs of the join; the build side is
+     * represented by the first build pipeline of the table
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        OpIterator build = table.getChildren()[0];
+        return buildLeft ? new OpIterator[]{build, probe} : new OpIterator[]{probe, build};
+    }
+
+    /**
+     * Replaces the probe side; the build side belongs to the shared table and
+     * is left alone.
+     */
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.probe = children[buildLeft ? 1 : 0];
+    }
+
+}
@@ -0,0 +1,293 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * PredicateCompiler turns a conjunction of {@link Predicate}s over one input
+ * into a single {@link CompiledPredicate}. Each conjunct becomes a lambda
+ * specialized for the type of its column and its operator, e.g. a plain
+ * {@code int} comparison against the unboxed operand, so evaluating a row no
+ * longer goes through {@link Field#compare} and its switch on the operator;
+ * the conjuncts are chained into one evaluator that a single {@link Filter}
+ * applies. {@link JoinPredicate}s are compiled the same way, for the type of
+ * their join fields.
+ */
+public final class PredicateCompiler {
+
+	private PredicateCompiler() {
+	}
+
+	/**
+	 * A compiled conjunction of predicates.
+	 */
+	public interface CompiledPredicate {
+		/**
+		 * @return true if t satisfies every conjunct
+		 */
+		boolean test(Tuple t);
+
+		/**
+		 * Keep the rows that satisfy every conjunct.
+		 *
+		 * @param rows  physical row numbers of batch; the rows that pass are
+		 *              moved to the front, in order
+		 * @param count the number of valid entries of rows
+		 * @return the number of rows that pass
+		 */
+		int filter(TupleBatch batch, int[] rows, int count);
+	}
+
+	/**
+	 * @return an evaluator for the conjunction of predicates over tuples of td
+	 */
+	public static CompiledPredicate compile(List<Predicate> predicates, TupleDesc td) {
+		CompiledPredicate compiled = null;
+		for (Predicate p : predicates) {
+			CompiledPredicate next = compile(p, td);
+			compiled = compiled == null ? next : and(compiled, next);
+		}
+		if (compiled == null) {
+			return new CompiledPredicate() {
+				public boolean test(Tuple t) {
+					return true;
+				}
+
+				public int filter(TupleBatch batch, int[] rows, int count) {
+					return count;
+				}
+			};
+		}
+		return compiled;
+	}
+
+	/**
+	 * 后一个条件只检查前一个条件留下的行
+	 */
+	private static CompiledPredicate and(CompiledPredicate first, CompiledPredicate second) {
+		return new CompiledPredicate() {
+			public boolean test(Tuple t) {
+				return first.test(t) && second.test(t);
+			}
+
+			public int filter(TupleBatch batch, int[] rows, int count) {
+				count = first.filter(batch, rows, count);
+				return count == 0 ? 0 : second.filter(batch, rows, count);
+			}
+		};
+	}
+
+	private static CompiledPredicate compile(Predicate p, TupleDesc td) {
+		int field = p.getField();
+		if (td.getFieldType(field) == Type.INT_TYPE) {
+			return compileInt(field, p.getOp(), ((IntField) p.getOperand()).getValue());
+		}
+		return compileString(field, p.getOp(), ((StringField) p.getOperand()).getValue());
+	}
+
+	/**
+	 * int列：每种操作符一个循环，直接比较列数组里的值
+	 */
+	private static CompiledPredicate compileInt(int field, Predicate.Op op, int operand) {
+		switch (op) {
+			case EQUALS:
+			case LIKE:
+				return new CompiledPredicate() {
+					public boolean test(Tuple t) {
+						return t.getInt(field) == operand;
+					}
+
+					public int filter(TupleBatch batch, int[] rows, int count) {
+						int[] values = batch.getIntColumn(field);
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							int row = rows[i];
+							if (values[row] == operand) rows[n++] = row;
+						}
+						return n;
+					}
+				};
+			case NOT_EQUALS:
+				return new CompiledPredicate() {
+					public boolean test(Tuple t) {
+						return t.getInt(field) != operand;
+					}
+
+					public int filter(TupleBatch batch, int[] rows, int count) {
+						int[] values = batch.getIntColumn(field);
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							int row = rows[i];
+							if (values[row] != operand) rows[n++] = row;
+						}
+						return n;
+					}
+				};
+			case GREATER_THAN:
+				return new CompiledPredicate() {
+					public boolean test(Tuple t) {
+						return t.getInt(field) > operand;
+					}
+
+					public int filter(TupleBatch batch, int[] rows, int count) {
+						int[] values = batch.getIntColumn(field);
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							int row = rows[i];
+							if (values[row] > operand) rows[n++] = row;
+						}
+						return n;
+					}
+				};
+			case GREATER_THAN_OR_EQ:
+				return new CompiledPredicate() {
+					public boolean test(Tuple t) {
+						return t.getInt(field) >= operand;
+					}
+
+					public int filter(TupleBatch batch, int[] rows, int count) {
+						int[] values = batch.getIntColumn(field);
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							int row = rows[i];
+							if (values[row] >= operand) rows[n++] = row;
+						}
+						return n;
+					}
+				};
+			case LESS_THAN:
+				return new CompiledPredicate() {
+					public boolean test(Tuple t) {
+						return t.getInt(field) < operand;
+					}
+
+					public int filter(TupleBatch batch, int[] rows, int count) {
+						int[] values = batch.getIntColumn(field);
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							int row = rows[i];
+							if (values[row] < operand) rows[n++] = row;
+						}
+						return n;
+					}
+				};
+			case LESS_THAN_OR_EQ:
+				return new CompiledPredicate() {
+					public boolean test(Tuple t) {
+						return t.getInt(field) <= operand;
+					}
+
+					public int filter(TupleBatch batch, int[] rows, int count) {
+						int[] values = batch.getIntColumn(field);
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							int row = rows[i];
+							if (values[row] <= operand) rows[n++] = row;
+						}
+						return n;
+					}
+				};
+		}
+		throw new IllegalArgumentException("unsupported operator " + op);
+	}
+
+	/**
+	 * 字符串列：比较本身的代价远大于一次虚调用，只按操作符选出比较函数
+	 */
+	private static CompiledPredicate compileString(int field, Predicate.Op op, String operand) {
+		java.util.function.Predicate<String> matches;
+		switch (op) {
+			case EQUALS:
+				matches = operand::equals;
+				break;
+			case NOT_EQUALS:
+				matches = s -> !operand.equals(s);
+				break;
+			case GREATER_THAN:
+				matches = s -> s.compareTo(operand) > 0;
+				break;
+			case GREATER_THAN_OR_EQ:
+				matches = s -> s.compareTo(operand) >= 0;
+				break;
+			case LESS_THAN:
+				matches = s -> s.compareTo(operand) < 0;
+				break;
+			case LESS_THAN_OR_EQ:
+				matches = s -> s.compareTo(operand) <= 0;
+				break;
+			case LIKE:
+				matches = s -> s.contains(operand);
+				break;
+			default:
+				throw new IllegalArgumentException("unsupported operator " + op);
+		}
+		return new CompiledPredicate() {
+			public boolean test(Tuple t) {
+				return matches.test(((StringField) t.getField(field)).getValue());
+			}
+
+			public int filter(TupleBatch batch, int[] rows, int count) {
+				int n = 0;
+				for (int i = 0; i < count; i++) {
+					int row = rows[i];
+					if (matches.test(((StringField) batch.getField(field, row)).getValue())) rows[n++] = row;
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return an evaluator of {@code t1.field1 op t2.field2} for join fields of
+	 * the given type
+	 */
+	public static BiPredicate<Tuple, Tuple> compileJoin(int field1, Predicate.Op op, int field2, Type type) {
+		if (type == Type.INT_TYPE) {
+			switch (op) {
+				case EQUALS:
+				case LIKE:
+					return (t1, t2) -> t1.getInt(field1) == t2.getInt(field2);
+				case NOT_EQUALS:
+					return (t1, t2) -> t1.getInt(field1) != t2.getInt(field2);
+				case GREATER_THAN:
+					return (t1, t2) -> t1.getInt(field1) > t2.getInt(field2);
+				case GREATER_THAN_OR_EQ:
+					return (t1, t2) -> t1.getInt(field1) >= t2.getInt(field2);
+				case LESS_THAN:
+					return (t1, t2) -> t1.getInt(field1) < t2.getInt(field2);
+				case LESS_THAN_OR_EQ:
+					return (t1, t2) -> t1.getInt(field1) <= t2.getInt(field2);
+			}
+			throw new IllegalArgumentException("unsupported operator " + op);
+		}
+		switch (op) {
+			case EQUALS:
+				return (t1, t2) -> value(t1, field1).equals(value(t2, field2));
+			case NOT_EQUALS:
+				return (t1, t2) -> !value(t1, field1).equals(value(t2, field2));
+			case GREATER_THAN:
+				return (t1, t2) -> value(t1, field1).compareTo(value(t2, field2)) > 0;
+			case GREATER_THAN_OR_EQ:
+				return (t1, t2) -> value(t1, field1).compareTo(value(t2, field2)) >= 0;
+			case LESS_THAN:
+				return (t1, t2) -> value(t1, field1).compareTo(value(t2, field2)) < 0;
+			case LESS_THAN_OR_EQ:
+				return (t1, t2) -> value(t1, field1).compareTo(value(t2, field2)) <= 0;
+			case LIKE:
+				return (t1, t2) -> value(t1, field1).contains(value(t2, field2));
+		}
+		throw new IllegalArgumentException("unsupported operator " + op);
+	}
+
+	private static String value(Tuple t, int field) {
+		return ((StringField) t.getField(field)).getValue();
+	}
+}
@@ -0,0 +1,171 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The producer tasks of an {@link Exchange}: one task per child opens it and
+ * hands each of its batches to a {@link Sink}. The tasks run in slices of
+ * {@link QueryScheduler#SLICE_BATCHES} batches on the
+ * {@link QueryScheduler}, in the group of the thread that starts them. A
+ * failure in any task is kept and rethrown to the consumer by
+ * {@link #check()}.
+ */
+final class Producers {
+
+	/**
+	 * Receives the batches of the producers; called on the worker threads.
+	 */
+	interface Sink {
+		void accept(int producer, TupleBatch batch) throws InterruptedException;
+
+		/**
+		 * Called once when a producer is done, also after a failure.
+		 */
+		void finish(int producer) throws InterruptedException;
+	}
+
+	private final OpIterator[] children;
+	private final Morsels morsels;
+	private final Sink sink;
+	// 还没结束的生产者数，没有启动时为null
+	private CountDownLatch running;
+	private volatile boolean cancelled;
+	private volatile Throwable failure;
+
+	/**
+	 * @param children the producer pipelines
+	 * @param morsels  the morsels scanned by the children, reset before each
+	 *                 start; may be null
+	 * @param sink     where the batches go
+	 */
+	Producers(OpIterator[] children, Morsels morsels, Sink sink) {
+		this.children = children;
+		this.morsels = morsels;
+		this.sink = sink;
+	}
+
+	boolean isCancelled() {
+		return cancelled;
+	}
+
+	boolean isRunning() {
+		return running != null;
+	}
+
+	/**
+	 * Start a task for every child.
+	 */
+	void start() {
+		cancelled = false;
+		failure = null;
+		if (morsels != null) {
+			morsels.reset();
+		}
+		running = new CountDownLatch(children.length);
+		QueryScheduler scheduler = QueryScheduler.shared();
+		QueryScheduler.Group group = QueryScheduler.currentGroup();
+		for (int i = 0; i < children.length; i++) {
+			scheduler.schedule(group, new Producer(i, running));
+		}
+	}
+
+	/**
+	 * One child, opened in its first slice.
+	 */
+	private final class Producer implements QueryScheduler.Task {
+		private final int producer;
+		private final CountDownLatch done;
+		private boolean opened;
+
+		Producer(int producer, CountDownLatch done) {
+			this.producer = producer;
+			this.done = done;
+		}
+
+		@Override
+		public boolean runSlice() {
+			OpIterator child = children[producer];
+			try {
+				if (!opened) {
+					opened = true;
+					child.open();
+				}
+				for (int i = 0; i < QueryScheduler.SLICE_BATCHES; i++) {
+					TupleBatch batch;
+					if (cancelled || (batch = child.nextBatch()) == null) {
+						finish();
+						return true;
+					}
+					sink.accept(producer, batch);
+				}
+				return false;
+			} catch (Throwable t) {
+				if (failure == null) {
+					failure = t;
+				}
+				finish();
+				return true;
+			}
+		}
+
+		private void finish() {
+			try {
+				sink.finish(producer);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable t) {
+				if (failure == null) {
+					failure = t;
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Rethrow the first failure of a producer, if any.
+	 */
+	void check() throws DbException, TransactionAbortedException {
+		if (failure != null) {
+			Exchange.rethrow(failure);
+		}
+	}
+
+	/**
+	 * Wait until every task has finished on its own, then rethrow the first
+	 * failure, if any.
+	 */
+	void await() throws DbException, TransactionAbortedException {
+		try {
+			QueryScheduler.await(running);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException("interrupted while waiting for producers");
+		}
+		check();
+	}
+
+	/**
+	 * Cancel the tasks, wait for them to finish and close the children.
+	 */
+	void stop() {
+		if (running == null) {
+			return;
+		}
+		cancelled = true;
+		try {
+			QueryScheduler.await(running);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		running = null;
+		for (OpIterator child : children) {
+			child.close();
+		}
+	}
+}
@@ -3,7 +3,9 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.CompactTuple;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -44,10 +46,32 @@ public class Project extends Operator {
         td = new TupleDesc(types, fieldAr);
     }
 
+    /**
+     * Constructor with explicit output field names, for plans whose child
+     * names its columns differently from the query's output, e.g. the final
+     * step of a parallel aggregate.
+     *
+     * @param fieldList The ids of the fields child's tupleDesc to project out
+     * @param td        The schema of the output tuples
+     * @param child     The child operator
+     */
+    public Project(List<Integer> fieldList, TupleDesc td, OpIterator child) {
+        this.child = child;
+        outFieldIds = fieldList;
+        this.td = td;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the ids of the fields of the child's tupleDesc projected out
+     */
+    public List<Integer> getFieldList() {
+        return Collections.unmodifiableList(outFieldIds);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -65,7 +89,9 @@ public class Project extends Operator {
 
     /**
      * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * operator, projecting out the fields from the tuple. Only the projected
+     * fields are copied, int values unboxed; over a join they are read
+     * through its {@link simpledb.storage.JoinedTuple} view.
      *
      * @return The next tuple, or null if there are no more tuples
      */
@@ -73,14 +99,33 @@ public class Project extends Operator {
             TransactionAbortedException, DbException {
         if (!child.hasNext()) return null;
         Tuple t = child.next();
-        Tuple newTuple = new Tuple(td);
+        CompactTuple newTuple = new CompactTuple(td);
         newTuple.setRecordId(t.getRecordId());
         for (int i = 0; i < td.numFields(); i++) {
-            newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                newTuple.setInt(i, t.getInt(outFieldIds.get(i)));
+            } else {
+                newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            }
         }
         return newTuple;
     }
 
+    /**
+     * Projects a whole batch of the child by selecting its column vectors;
+     * no values are copied.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null) return null;
+        int[] columns = new int[outFieldIds.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = outFieldIds.get(i);
+        }
+        return batch.project(td, columns);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -15,6 +16,16 @@ import java.util.*;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * Before the plan is opened the query is admitted by the
+ * {@link MemoryBroker} of the database, which may wait for other queries to
+ * finish; the {@link MemoryGrant} is handed to the memory consumers of the
+ * plan and returned when the query is closed.
+ * <p>
+ * The caller pulls the results on its own thread, while the parallel parts
+ * of the plan run on the {@link QueryScheduler}. All of that work belongs to
+ * the scheduler group of the query, so that it takes turns with the work of
+ * other queries.
  * 
  * @author Sam Madden
  */
@@ -27,6 +38,8 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     final TransactionId tid;
     transient private boolean started = false;
+    transient private MemoryGrant grant;
+    transient private QueryScheduler.Group group;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -59,7 +72,23 @@ public class Query implements Serializable {
 
     public void start() throws DbException,
             TransactionAbortedException {
-        op.open();
+        try {
+            grant = Database.getMemoryBroker().admit(MemoryBroker.demand(op));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for memory");
+        }
+        MemoryBroker.assign(op, grant);
+        group = new QueryScheduler.Group();
+        QueryScheduler.Group previous = QueryScheduler.enter(group);
+        try {
+            op.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            releaseGrant();
+            throw e;
+        } finally {
+            QueryScheduler.exit(previous);
+        }
 
         started = true;
     }
@@ -70,7 +99,12 @@ public class Query implements Serializable {
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        QueryScheduler.Group previous = QueryScheduler.enter(group);
+        try {
+            return op.hasNext();
+        } finally {
+            QueryScheduler.exit(previous);
+        }
     }
 
     /**
@@ -90,13 +124,32 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        QueryScheduler.Group previous = QueryScheduler.enter(group);
+        try {
+            return op.next();
+        } finally {
+            QueryScheduler.exit(previous);
+        }
     }
 
     /** Close the iterator */
     public void close() {
-        op.close();
+        QueryScheduler.Group previous = QueryScheduler.enter(group);
+        try {
+            op.close();
+        } finally {
+            QueryScheduler.exit(previous);
+        }
         started = false;
+        releaseGrant();
+    }
+
+    private void releaseGrant() {
+        if (grant != null) {
+            grant.close();
+            grant = null;
+            MemoryBroker.assign(op, null);
+        }
     }
 
     public void execute() throws DbException, TransactionAbortedException {
@@ -114,12 +167,15 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try {
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                System.out.println(tup);
+                cnt++;
+            }
+        } finally {
+            this.close();
         }
         System.out.println("\n " + cnt + " rows.");
-        this.close();
     }
 }
@@ -0,0 +1,276 @@
+package simpledb.execution;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * QueryScheduler runs the parallel work of all queries, such as the producer
+ * pipelines of the {@link Exchange}s, on one work-stealing
+ * {@link ForkJoinPool} sized to the cores.
+ * <p>
+ * Work is split into {@link Task}s that run in short slices: a producer
+ * pipeline returns its worker after {@link #SLICE_BATCHES} batches, about a
+ * morsel of its scan ({@link Morsels}), and is scheduled again. The tasks of
+ * one query form a {@link Group}, and the ready groups take turns: each
+ * worker that becomes free runs one slice of the group at the head of the
+ * rotation, which then goes to the back. A query with a few tasks therefore
+ * waits for at most one slice of every other query, however many tasks the
+ * large queries have, and an idle worker steals whatever slice is ready, so a
+ * pipeline that got the skewed morsels does not hold up the others.
+ * <p>
+ * A query enters its group while its plan is opened and iterated (see
+ * {@link Query}); exchanges started from a slice stay in the group of the
+ * slice, and work started outside any query goes to a default group. Waits of
+ * a slice on other slices (e.g. a full exchange queue) are managed blocks, so
+ * the pool adds workers instead of running out of them. So are waits for
+ * locks and for memory admission ({@link #waitOn}): the transaction a slice
+ * waits for may itself need a worker for the slices that are still queued.
+ */
+public class QueryScheduler {
+
+	/**
+	 * Batches a producer pipeline returns before it yields its worker
+	 */
+	public final static int SLICE_BATCHES = 16;
+
+	/**
+	 * Work that runs in slices.
+	 */
+	public interface Task {
+		/**
+		 * Run a slice of the work.
+		 *
+		 * @return true if the work is done, false to be scheduled again
+		 */
+		boolean runSlice();
+	}
+
+	/**
+	 * The tasks of one query, which get their turn together.
+	 */
+	public static final class Group {
+		// 准备好运行的任务，按先后顺序
+		private final Deque<Task> ready = new ArrayDeque<>();
+		// 是否在轮转队列中
+		private boolean queued;
+	}
+
+	private static final Group DEFAULT_GROUP = new Group();
+	private static final ThreadLocal<Group> CURRENT = new ThreadLocal<>();
+	private static QueryScheduler shared;
+
+	private final ForkJoinPool pool;
+	// 有任务可运行的查询，轮流运行队首查询的一个分片
+	private final Deque<Group> rotation = new ArrayDeque<>();
+
+	/**
+	 * @param parallelism the number of workers
+	 */
+	public QueryScheduler(int parallelism) {
+		pool = new ForkJoinPool(parallelism, p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("simpledb-worker-" + t.getPoolIndex());
+			t.setDaemon(true);
+			return t;
+		}, null, true);
+	}
+
+	/**
+	 * @return the scheduler shared by all queries, with one worker per core
+	 */
+	public static synchronized QueryScheduler shared() {
+		if (shared == null) {
+			shared = new QueryScheduler(Runtime.getRuntime().availableProcessors());
+		}
+		return shared;
+	}
+
+	/**
+	 * @return the number of workers
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * @return the group of the query the current thread works for
+	 */
+	public static Group currentGroup() {
+		Group group = CURRENT.get();
+		return group == null ? DEFAULT_GROUP : group;
+	}
+
+	/**
+	 * Make group the group of the work started by the current thread.
+	 *
+	 * @return the previous group, to be restored with {@link #exit}
+	 */
+	public static Group enter(Group group) {
+		Group previous = CURRENT.get();
+		CURRENT.set(group);
+		return previous;
+	}
+
+	/**
+	 * Restore the group returned by {@link #enter}.
+	 */
+	public static void exit(Group previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * Run task in slices in group.
+	 */
+	public void schedule(Group group, Task task) {
+		synchronized (this) {
+			group.ready.add(task);
+			if (!group.queued) {
+				group.queued = true;
+				rotation.add(group);
+			}
+		}
+		// 每个就绪任务对应一个驱动任务，空闲的worker会窃取它们
+		pool.execute(this::runNext);
+	}
+
+	/**
+	 * Run a slice of the first task of the group whose turn it is.
+	 */
+	private void runNext() {
+		Group group;
+		Task task;
+		synchronized (this) {
+			group = rotation.poll();
+			task = group.ready.poll();
+			if (group.ready.isEmpty()) {
+				group.queued = false;
+			} else {
+				rotation.add(group);
+			}
+		}
+		boolean done;
+		Group previous = enter(group);
+		try {
+			done = task.runSlice();
+		} finally {
+			exit(previous);
+		}
+		if (!done) {
+			schedule(group, task);
+		}
+	}
+
+	/**
+	 * Take an item from a queue, letting the pool add a worker while the
+	 * current worker waits.
+	 */
+	static <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+		Object[] item = new Object[1];
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				if (item[0] == null) {
+					item[0] = queue.take();
+				}
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return item[0] != null || (item[0] = queue.poll()) != null;
+			}
+		});
+		@SuppressWarnings("unchecked")
+		T result = (T) item[0];
+		return result;
+	}
+
+	/**
+	 * Put an item into a bounded queue, giving up if the consumer goes away
+	 * while the queue is full; the pool may add a worker meanwhile.
+	 *
+	 * @param abandoned true once nobody will read the queue any more
+	 * @return false if the item was dropped
+	 */
+	static <T> boolean offer(BlockingQueue<T> queue, T item, BooleanSupplier abandoned)
+		throws InterruptedException {
+		boolean[] offered = new boolean[1];
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				while (!offered[0] && !abandoned.getAsBoolean()) {
+					offered[0] = queue.offer(item, 10, TimeUnit.MILLISECONDS);
+				}
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				if (!offered[0]) {
+					offered[0] = queue.offer(item);
+				}
+				return offered[0] || abandoned.getAsBoolean();
+			}
+		});
+		return offered[0];
+	}
+
+	/**
+	 * Wait on monitor, whose lock the current thread holds, until notified,
+	 * like {@link Object#wait()}; the pool may add a worker while the
+	 * current worker waits. Callers recheck their condition in a loop.
+	 */
+	public static void waitOn(Object monitor) throws InterruptedException {
+		waitOn(monitor, 0);
+	}
+
+	/**
+	 * Like {@link #waitOn(Object)}, but wait at most millis milliseconds;
+	 * 0 waits until notified.
+	 */
+	public static void waitOn(Object monitor, long millis) throws InterruptedException {
+		boolean[] woken = new boolean[1];
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				monitor.wait(millis);
+				woken[0] = true;
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return woken[0];
+			}
+		});
+	}
+
+	/**
+	 * Wait until latch reaches zero, letting the pool add a worker while the
+	 * current worker waits.
+	 */
+	static void await(CountDownLatch latch) throws InterruptedException {
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				latch.await();
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return latch.getCount() == 0;
+			}
+		});
+	}
+}
@@ -0,0 +1,259 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Repartition runs its children in parallel and redistributes their tuples
+ * by the hash of a key, so that all tuples with equal keys end up in the same
+ * partition. Each partition is read by its own Repartition operator, created
+ * together by {@link #partition}; an operator placed above each of them (e.g.
+ * an {@link Aggregate} grouping on the key) can then run in parallel without
+ * coordination, typically under a {@link Gather}.
+ * <p>
+ * The children are started when the first partition is opened and stopped
+ * when the last one is closed, so all partitions should be opened and closed
+ * together.
+ */
+public class Repartition extends Exchange {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Shuffle shuffle;
+	private final int partition;
+	private transient TupleBatch current;
+	private transient int pos;
+	private transient int finished;
+
+	private Repartition(OpIterator[] children, Shuffle shuffle, int partition) {
+		super(children);
+		this.shuffle = shuffle;
+		this.partition = partition;
+	}
+
+	/**
+	 * Create the partitions of the tuples of children.
+	 *
+	 * @param children   the pipelines to run in parallel; they must have the
+	 *                   same schema
+	 * @param morsels    the morsels scanned by the children, reset whenever
+	 *                   the children are started; may be null
+	 * @param keyColumns the columns of the key to partition on
+	 * @param partitions the number of partitions
+	 * @return one operator per partition
+	 */
+	public static Repartition[] partition(OpIterator[] children, Morsels morsels, int[] keyColumns,
+										  int partitions) {
+		Shuffle shuffle = new Shuffle(children, morsels, keyColumns, partitions);
+		Repartition[] result = new Repartition[partitions];
+		for (int i = 0; i < partitions; i++) {
+			result[i] = new Repartition(children, shuffle, i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the partition read by this operator
+	 */
+	public int getPartition() {
+		return partition;
+	}
+
+	@Override
+	public String getName() {
+		return "repartition(" + getParallelism() + "->" + shuffle.queues.size() + ")";
+	}
+
+	@Override
+	public void open() throws DbException, TransactionAbortedException {
+		current = null;
+		pos = 0;
+		finished = 0;
+		shuffle.open();
+		super.open();
+	}
+
+	private TupleBatch nextFromQueue() throws DbException, TransactionAbortedException {
+		while (finished < children.length) {
+			TupleBatch batch = take(shuffle.queues.get(partition));
+			if (batch == END) {
+				finished++;
+				shuffle.producers.check();
+			} else {
+				return batch;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+		if (current == null || pos == current.numRows()) {
+			current = nextFromQueue();
+			pos = 0;
+			if (current == null) {
+				return null;
+			}
+		}
+		return current.getTuple(current.rowAt(pos++));
+	}
+
+	@Override
+	public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		if (current != null && pos < current.numRows()) {
+			int[] rows = new int[current.numRows() - pos];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = current.rowAt(pos + i);
+			}
+			TupleBatch rest = current;
+			rest.select(rows, rows.length);
+			current = null;
+			return rest;
+		}
+		current = null;
+		return nextFromQueue();
+	}
+
+	/**
+	 * A single partition cannot be rewound, since its tuples are produced
+	 * together with those of the other partitions; close and reopen all of
+	 * them instead.
+	 */
+	@Override
+	public void rewind() throws DbException {
+		throw new DbException("a partition of a repartition cannot be rewound");
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		current = null;
+		shuffle.close(partition);
+	}
+
+	/**
+	 * 所有分区共享的生产者和队列
+	 */
+	private static class Shuffle {
+		private final OpIterator[] children;
+		private final int[] keyColumns;
+		private final Type[] keyTypes;
+		private final List<BlockingQueue<TupleBatch>> queues;
+		// 已关闭的分区，发给它们的batch直接丢弃
+		private final AtomicIntegerArray closed;
+		// 每个生产者往每个分区攒的batch
+		private final TupleBatch[][] buffers;
+		private final GroupTable[] hashers;
+		private final Producers producers;
+		private int open;
+
+		Shuffle(OpIterator[] children, Morsels morsels, int[] keyColumns, int partitions) {
+			this.children = children;
+			this.keyColumns = keyColumns.clone();
+			TupleDesc td = children[0].getTupleDesc();
+			keyTypes = new Type[keyColumns.length];
+			for (int i = 0; i < keyColumns.length; i++) {
+				keyTypes[i] = td.getFieldType(keyColumns[i]);
+			}
+			queues = new ArrayList<>(Collections.nCopies(partitions, null));
+			closed = new AtomicIntegerArray(partitions);
+			buffers = new TupleBatch[children.length][partitions];
+			hashers = new GroupTable[children.length];
+			producers = new Producers(children, morsels, new Producers.Sink() {
+				@Override
+				public void accept(int producer, TupleBatch batch) throws InterruptedException {
+					scatter(producer, batch);
+				}
+
+				@Override
+				public void finish(int producer) throws InterruptedException {
+					for (int p = 0; p < queues.size(); p++) {
+						TupleBatch buffer = buffers[producer][p];
+						buffers[producer][p] = null;
+						if (buffer != null && buffer.size() > 0) {
+							send(p, buffer);
+						}
+						send(p, END);
+					}
+				}
+			});
+		}
+
+		private void send(int p, TupleBatch batch) throws InterruptedException {
+			if (closed.get(p) == 0) {
+				offer(queues.get(p), batch, () -> producers.isCancelled() || closed.get(p) != 0);
+			}
+		}
+
+		/**
+		 * 按key的hash把batch的行复制到各分区的batch里
+		 */
+		private void scatter(int producer, TupleBatch batch) throws InterruptedException {
+			TupleBatch[] out = buffers[producer];
+			GroupTable hasher = hashers[producer];
+			TupleDesc td = batch.getTupleDesc();
+			int n = batch.numRows();
+			for (int i = 0; i < n; i++) {
+				int row = batch.rowAt(i);
+				int p = Math.floorMod(hasher.hash(batch, row, keyColumns), queues.size());
+				if (out[p] == null) {
+					out[p] = new TupleBatch(td);
+				}
+				copyRow(batch, row, out[p]);
+				if (out[p].isFull()) {
+					send(p, out[p]);
+					out[p] = null;
+				}
+			}
+		}
+
+		synchronized void open() {
+			if (open++ == 0) {
+				for (int p = 0; p < queues.size(); p++) {
+					queues.set(p, new ArrayBlockingQueue<>(children.length * 2 + 2));
+					closed.set(p, 0);
+				}
+				for (int i = 0; i < children.length; i++) {
+					hashers[i] = new GroupTable(keyTypes);
+					buffers[i] = new TupleBatch[queues.size()];
+				}
+				producers.start();
+			}
+		}
+
+		synchronized void close(int partition) {
+			if (open == 0) {
+				return;
+			}
+			closed.set(partition, 1);
+			if (--open == 0) {
+				producers.stop();
+			}
+		}
+	}
+
+	static void copyRow(TupleBatch from, int row, TupleBatch to) {
+		int dst = to.size();
+		TupleDesc td = from.getTupleDesc();
+		for (int c = 0; c < td.numFields(); c++) {
+			if (td.getFieldType(c) == Type.INT_TYPE) {
+				to.setInt(c, dst, from.getInt(c, row));
+			} else {
+				to.setField(c, dst, from.getField(c, row));
+			}
+		}
+		to.setRecordId(dst, from.getRecordId(row));
+		to.appendRow();
+	}
+}
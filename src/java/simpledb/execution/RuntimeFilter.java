@@ -0,0 +1,107 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.TupleBatch;
+
+import java.io.Serializable;
+
+/**
+ * RuntimeFilter carries the {@link BloomFilter} of the build keys of a hash
+ * join down to the scans of its probe side. The join registers the filter
+ * with the scans when the plan is opened ({@link #pushDown}) and publishes
+ * the Bloom filter once its build phase has seen every key; from then on the
+ * scans drop the rows whose key cannot have a match, before they reach any
+ * operator above.
+ * <p>
+ * A row dropped this way could not have produced an output row of the join,
+ * so the filter may be pushed through filters, exchanges, the inputs of
+ * other inner joins and the returned input of semi- and anti-joins, but not
+ * through operators that compute over the rows they read, such as aggregates
+ * or limits.
+ */
+public class RuntimeFilter implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// build端读完前为null，此时所有行都通过
+	private transient volatile BloomFilter bloom;
+
+	/**
+	 * Start filtering with a Bloom filter of all build keys.
+	 */
+	public void publish(BloomFilter bloom) {
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Stop filtering, e.g. while the build side is read again.
+	 */
+	public void clear() {
+		bloom = null;
+	}
+
+	/**
+	 * @return false if no build row has key
+	 */
+	public boolean mightMatch(Field key) {
+		BloomFilter b = bloom;
+		return b == null || b.mightContain(key);
+	}
+
+	/**
+	 * @return false if no build row has the key in a column of a batch row
+	 */
+	public boolean mightMatch(TupleBatch batch, int row, int column) {
+		BloomFilter b = bloom;
+		return b == null || b.mightContain(batch, row, column);
+	}
+
+	/**
+	 * Register filter with the scans under plan that produce the given column
+	 * of the output of plan.
+	 *
+	 * @return true if the filter was registered with at least one scan
+	 */
+	public static boolean pushDown(OpIterator plan, int column, RuntimeFilter filter) {
+		if (plan instanceof SeqScan) {
+			((SeqScan) plan).addRuntimeFilter(column, filter);
+			return true;
+		}
+		if (plan instanceof Filter) {
+			return pushDown(((Filter) plan).getChildren()[0], column, filter);
+		}
+		if (plan instanceof Gather) {
+			// 每条并行流水线都过滤
+			boolean pushed = false;
+			for (OpIterator child : ((Gather) plan).getChildren()) {
+				pushed |= pushDown(child, column, filter);
+			}
+			return pushed;
+		}
+		if (plan instanceof ParallelHashJoin) {
+			// build端的表可能已经建好，只下推到probe端
+			ParallelHashJoin j = (ParallelHashJoin) plan;
+			OpIterator[] children = j.getChildren();
+			int leftWidth = children[0].getTupleDesc().numFields();
+			boolean left = column < leftWidth;
+			if (left == j.isBuildLeft()) {
+				return false;
+			}
+			return left ? pushDown(children[0], column, filter)
+				: pushDown(children[1], column - leftWidth, filter);
+		}
+		if (plan instanceof HashEquiJoin || plan instanceof Join || plan instanceof SortMergeJoin
+			|| plan instanceof IndexNestedLoopJoin) {
+			// 内连接的输出是两边的列拼起来
+			OpIterator[] children = ((Operator) plan).getChildren();
+			int leftWidth = children[0].getTupleDesc().numFields();
+			return column < leftWidth ? pushDown(children[0], column, filter)
+				: pushDown(children[1], column - leftWidth, filter);
+		}
+		if (plan instanceof SemiJoin || plan instanceof IndexSemiJoin) {
+			// 输出只有child1的列
+			return pushDown(((Operator) plan).getChildren()[0], column, filter);
+		}
+		return false;
+	}
+}
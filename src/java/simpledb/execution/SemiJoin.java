@@ -0,0 +1,434 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+/**
+ * SemiJoin returns the tuples of child1 that have at least one match in
+ * child2 under an equality predicate, as for "f IN (SELECT ...)". Each tuple
+ * of child1 is returned once, in the order of child1, however many matches it
+ * has; the output has the schema of child1.
+ * <p>
+ * child2 is the build side, but only its distinct join keys are kept, in a
+ * {@link GroupTable}, so duplicates in child2 take neither memory nor time.
+ * Each row of child1 is then decided by a single lookup: batches of child1 are
+ * narrowed to the rows to return by their selection vector, no join tuple is
+ * built. Once child2 has been read, a {@link BloomFilter} of its keys is
+ * handed to the scans of child1 through a {@link RuntimeFilter}.
+ * <p>
+ * At most memoryKeys distinct keys are kept in memory, fewer once the
+ * {@link MemoryGrant} of the query is used up. Once the table is full, the
+ * other build rows, and later the probe rows whose key is not in memory, are
+ * written to one of {@link #NUM_PARTITIONS} pairs of
+ * {@link SpillFile}s chosen by the hash of the key; the pairs are joined one
+ * after another afterwards, partitioning again on other hash bits up to
+ * {@link #MAX_DEPTH} levels, as in {@link Distinct}. Rows of child1 that are
+ * spilled are returned after the others.
+ * <p>
+ * {@link AntiJoin} returns the tuples of child1 without a match instead.
+ */
+public class SemiJoin extends Operator implements MemoryConsumer {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of distinct build keys kept in memory
+	 */
+	public final static int MEMORY_KEYS = 20000;
+	/**
+	 * Number of spill partitions, a power of two
+	 */
+	public final static int NUM_PARTITIONS = 16;
+	/**
+	 * Partitioning levels after which all build keys are kept in memory
+	 */
+	public final static int MAX_DEPTH = 3;
+
+	/**
+	 * A source of batches: a child or a spill file being read back.
+	 */
+	private interface BatchSource {
+		TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+	}
+
+	/**
+	 * The spilled build and probe rows of one hash partition.
+	 */
+	private static class Partition {
+		final SpillFile build;
+		final SpillFile probe;
+		final int depth;
+
+		Partition(SpillFile build, SpillFile probe, int depth) {
+			this.build = build;
+			this.probe = probe;
+			this.depth = depth;
+		}
+
+		void delete() {
+			build.delete();
+			probe.delete();
+		}
+	}
+
+	private final JoinPredicate pred;
+	private OpIterator child1, child2;
+	private final boolean anti;
+	private final int memoryKeys;
+	private final int[] probeColumns;
+	private final int[] buildColumns;
+	private final Type[] keyTypes;
+	private final RuntimeFilter runtimeFilter = new RuntimeFilter();
+	transient private MemoryGrant grant;
+
+	transient private GroupTable keys;
+	transient private MemoryReservation memory;
+	transient private BatchSource probeSource;
+	// 当前的分区层数，决定用hash的哪几位选分区
+	transient private int depth;
+	// 内存放不下后写入的分区，没有溢出时为null
+	transient private SpillFile[] buildParts;
+	transient private SpillFile[] probeParts;
+	// 还没处理的分区
+	transient private Deque<Partition> pending;
+	// 正在处理的分区，读完后删除
+	transient private Partition current;
+	// fetchNext逐行返回的batch
+	transient private TupleBatch batch;
+	transient private int batchIndex;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p      The predicate to join the children on; must be EQUALS
+	 * @param child1 Iterator for the relation whose tuples are returned
+	 * @param child2 Iterator for the relation the tuples of child1 are
+	 *               matched against, e.g. a subquery
+	 */
+	public SemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+		this(p, child1, child2, MEMORY_KEYS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p          The predicate to join the children on; must be EQUALS
+	 * @param child1     Iterator for the relation whose tuples are returned
+	 * @param child2     Iterator for the relation the tuples of child1 are
+	 *                   matched against
+	 * @param memoryKeys the maximum number of distinct keys of child2 kept in
+	 *                   memory
+	 */
+	public SemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryKeys) {
+		this(p, child1, child2, memoryKeys, false);
+	}
+
+	protected SemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryKeys, boolean anti) {
+		if (p.getOperator() != Predicate.Op.EQUALS) {
+			throw new IllegalArgumentException("hash semi-joins only support EQUALS, not " + p.getOperator());
+		}
+		if (memoryKeys <= 0) {
+			throw new IllegalArgumentException("memoryKeys must be positive");
+		}
+		Type t1 = child1.getTupleDesc().getFieldType(p.getField1());
+		Type t2 = child2.getTupleDesc().getFieldType(p.getField2());
+		if (t1 != t2) {
+			throw new IllegalArgumentException("cannot match " + t1 + " against " + t2);
+		}
+		this.pred = p;
+		this.child1 = child1;
+		this.child2 = child2;
+		this.memoryKeys = memoryKeys;
+		this.anti = anti;
+		probeColumns = new int[]{p.getField1()};
+		buildColumns = new int[]{p.getField2()};
+		keyTypes = new Type[]{t1};
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return pred;
+	}
+
+	/**
+	 * @return the field name of join field1, quantified by alias or table name
+	 */
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(pred.getField1());
+	}
+
+	/**
+	 * @return the field name of join field2, quantified by alias or table name
+	 */
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(pred.getField2());
+	}
+
+	/**
+	 * @return true if the tuples of child1 without a match are returned
+	 */
+	public boolean isAnti() {
+		return anti;
+	}
+
+	/**
+	 * @return the maximum number of distinct keys of child2 kept in memory
+	 */
+	public int getMemoryKeys() {
+		return memoryKeys;
+	}
+
+	@Override
+	public int memoryDemand() {
+		return MemoryBroker.demand(child2, memoryKeys);
+	}
+
+	@Override
+	public void setMemoryGrant(MemoryGrant grant) {
+		this.grant = grant;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return child1.getTupleDesc();
+	}
+
+	public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+		child2.open();
+		// 先读完build端再打开child1，child1的扫描从一开始就能用上Bloom filter
+		start();
+		child1.open();
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		cleanup();
+		child1.close();
+		child2.close();
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		cleanup();
+		child2.rewind();
+		start();
+		child1.rewind();
+	}
+
+	private void start() throws DbException, TransactionAbortedException {
+		pending = new ArrayDeque<>();
+		current = null;
+		keys = new GroupTable(keyTypes);
+		memory = new MemoryReservation(grant, memoryKeys);
+		runtimeFilter.clear();
+		if (!anti) {
+			// 反连接要返回没有匹配的行，不能提前丢掉
+			RuntimeFilter.pushDown(child1, pred.getField1(), runtimeFilter);
+		}
+		build(child2::nextBatch, 0);
+		if (!anti && buildParts == null) {
+			// 溢出时内存中没有全部key，不能过滤
+			BloomFilter bloom = new BloomFilter(keys.size());
+			for (int g = 0; g < keys.size(); g++) {
+				bloom.add(keys.getKey(g, 0));
+			}
+			runtimeFilter.publish(bloom);
+		}
+		probeSource = child1::nextBatch;
+	}
+
+	/**
+	 * 删除所有还没处理的spill文件，清空状态
+	 */
+	private void cleanup() {
+		deleteAll(buildParts);
+		deleteAll(probeParts);
+		buildParts = null;
+		probeParts = null;
+		if (current != null) {
+			current.delete();
+			current = null;
+		}
+		if (pending != null) {
+			for (Partition partition : pending) {
+				partition.delete();
+			}
+			pending = null;
+		}
+		runtimeFilter.clear();
+		keys = null;
+		if (memory != null) {
+			memory.release();
+			memory = null;
+		}
+		probeSource = null;
+		batch = null;
+	}
+
+	private static void deleteAll(SpillFile[] files) {
+		if (files != null) {
+			for (SpillFile file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * 每一层用hash的不同4位选分区，和GroupTable用的低位也错开
+	 */
+	private int partitionOf(int hash) {
+		return (hash >>> (28 - 4 * depth)) & (NUM_PARTITIONS - 1);
+	}
+
+	/**
+	 * 把source的所有不同key放进表；表满后其余的build行写入分区
+	 */
+	private void build(BatchSource source, int depth) throws DbException, TransactionAbortedException {
+		this.depth = depth;
+		keys.clear();
+		TupleBatch b;
+		while ((b = source.nextBatch()) != null) {
+			for (int i = 0; i < b.numRows(); i++) {
+				int row = b.rowAt(i);
+				if (buildParts == null && !memory.fits(keys.size() + 1) && depth < MAX_DEPTH) {
+					startSpilling();
+				}
+				if (buildParts == null) {
+					keys.findOrAdd(b, row, buildColumns);
+				} else if (keys.find(b, row, buildColumns) < 0) {
+					buildParts[partitionOf(keys.hash(b, row, buildColumns))].write(b, row);
+				}
+			}
+		}
+	}
+
+	private void startSpilling() throws DbException {
+		buildParts = new SpillFile[NUM_PARTITIONS];
+		probeParts = new SpillFile[NUM_PARTITIONS];
+		for (int i = 0; i < NUM_PARTITIONS; i++) {
+			buildParts[i] = new SpillFile(child2.getTupleDesc());
+			probeParts[i] = new SpillFile(child1.getTupleDesc());
+		}
+	}
+
+	/**
+	 * @return true if a probe row is returned now; rows whose key may be in a
+	 * spilled partition are written to it and decided later
+	 */
+	private boolean isReturned(TupleBatch b, int row) throws DbException {
+		if (keys.find(b, row, probeColumns) >= 0) {
+			return !anti;
+		}
+		if (buildParts != null) {
+			probeParts[partitionOf(keys.hash(b, row, probeColumns))].write(b, row);
+			return false;
+		}
+		return anti;
+	}
+
+	/**
+	 * @return the next batch of the current probe source, moving on to the
+	 * next spilled partition when it is exhausted, or null at the end
+	 */
+	private TupleBatch nextInput() throws DbException, TransactionAbortedException {
+		while (true) {
+			TupleBatch b = probeSource.nextBatch();
+			if (b != null) {
+				return b;
+			}
+			if (current != null) {
+				current.delete();
+				current = null;
+			}
+			if (buildParts != null) {
+				for (int i = 0; i < NUM_PARTITIONS; i++) {
+					// 没有probe行的分区没有输出；半连接时没有build行的分区也没有
+					if (probeParts[i].size() == 0 || (!anti && buildParts[i].size() == 0)) {
+						buildParts[i].delete();
+						probeParts[i].delete();
+					} else {
+						buildParts[i].finishWriting();
+						probeParts[i].finishWriting();
+						pending.push(new Partition(buildParts[i], probeParts[i], depth + 1));
+					}
+				}
+				buildParts = null;
+				probeParts = null;
+			}
+			if (pending.isEmpty()) {
+				return null;
+			}
+			current = pending.pop();
+			build(current.build.reader()::nextBatch, current.depth);
+			probeSource = current.probe.reader()::nextBatch;
+		}
+	}
+
+	/**
+	 * Narrows each batch of child1 to the rows returned, by selecting them; no
+	 * values are copied.
+	 */
+	@Override
+	public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+		if (batch != null && batchIndex < batch.numRows()) {
+			// 先返回fetchNext没读完的行
+			int[] rows = new int[batch.numRows() - batchIndex];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = batch.rowAt(batchIndex + i);
+			}
+			TupleBatch rest = batch;
+			batch = null;
+			rest.select(rows, rows.length);
+			return rest;
+		}
+		TupleBatch b;
+		while ((b = nextInput()) != null) {
+			int n = b.numRows();
+			int[] rows = new int[n];
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				int row = b.rowAt(i);
+				if (isReturned(b, row)) {
+					rows[count++] = row;
+				}
+			}
+			if (count > 0) {
+				b.select(rows, count);
+				return b;
+			}
+		}
+		return null;
+	}
+
+	protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+		while (batch == null || batchIndex == batch.numRows()) {
+			batch = nextBatch();
+			batchIndex = 0;
+			if (batch == null) {
+				return null;
+			}
+		}
+		return batch.getTuple(batch.rowAt(batchIndex++));
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child1, child2};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		if (children.length != 2) {
+			throw new RuntimeException("SemiJoin setChildren's length must be 2");
+		}
+		child1 = children[0];
+		child2 = children[1];
+	}
+}
@@ -13,6 +13,14 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A SeqScan over a {@link HeapFile} may also be one of several parallel scans
+ * sharing a {@link Morsels}: it then only reads the morsels it claims, and the
+ * scans together read every page once.
+ * <p>
+ * Filters and projections may be pushed down into a scan of a HeapFile (see
+ * {@link #pushDown}); the file then evaluates the predicates on the page
+ * bytes and decodes only the requested columns of the rows that pass.
  */
 public class SeqScan implements OpIterator {
 
@@ -22,6 +30,16 @@ public class SeqScan implements OpIterator {
 	private TransactionId transactionId;
 	private String tableName;
 	private DbFileIterator iterator;
+	// 并行扫描时共享的页范围，否则为null
+	private final Morsels morsels;
+	// 上层连接下推的运行时过滤器，及其在本表中对应的列
+	private RuntimeFilter[] runtimeFilters = new RuntimeFilter[0];
+	private int[] runtimeFilterColumns = new int[0];
+	// 下推到文件的过滤条件(按表的列号)和投影，columns为null时返回所有列
+	private List<Predicate> predicates = Collections.emptyList();
+	private int[] columns;
+	// 只锁返回的行，不锁整页，见lockRows
+	private boolean lockRows;
 
 	/**
 	 * Creates a sequential scan over the specified table as a part of the
@@ -37,10 +55,46 @@ public class SeqScan implements OpIterator {
 	 *                   tableAlias.null, or null.null).
 	 */
 	public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+		this(tid, tableid, tableAlias, null);
+	}
+
+	/**
+	 * Creates one of several parallel scans over a heap table.
+	 *
+	 * @param tid        The transaction this scan is running as a part of.
+	 * @param tableid    the table to scan.
+	 * @param tableAlias the alias of this table
+	 * @param morsels    the morsels of the table shared by the parallel scans,
+	 *                   see {@link #morsels(int)}; null to scan the whole table
+	 * @throws IllegalArgumentException if morsels is given and the table is not
+	 *                                  a HeapFile
+	 */
+	public SeqScan(TransactionId tid, int tableid, String tableAlias, Morsels morsels) {
 		transactionId = tid;
 		alias = tableAlias;
 		dbFile = Database.getCatalog().getDatabaseFile(tableid);
 		tableName = Database.getCatalog().getTableName(tableid);
+		if (morsels != null && !(dbFile instanceof HeapFile)) {
+			throw new IllegalArgumentException("only heap tables can be scanned in parallel");
+		}
+		this.morsels = morsels;
+	}
+
+	/**
+	 * @return the morsels of a heap table, covering the same pages as a
+	 * serial scan
+	 */
+	public static Morsels morsels(int tableid) {
+		HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+		return new Morsels(file.numPages());
+	}
+
+	/**
+	 * @return the morsels shared with other parallel scans, or null if this
+	 * scan reads the whole table
+	 */
+	public Morsels getMorsels() {
+		return morsels;
 	}
 
 	/**
@@ -51,6 +105,20 @@ public class SeqScan implements OpIterator {
 		return tableName;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return dbFile.getId();
+	}
+
+	/**
+	 * @return the transaction this scan is running as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return transactionId;
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans.
 	 */
@@ -77,8 +145,86 @@ public class SeqScan implements OpIterator {
 		this(tid, tableId, Database.getCatalog().getTableName(tableId));
 	}
 
+	/**
+	 * Push a conjunction of predicates and a projection down into the scan of
+	 * a heap table, replacing any pushed down before. Takes effect from the
+	 * next open on.
+	 *
+	 * @param predicates conjuncts over the columns of the table
+	 * @param columns    the columns of the table to return, in order; null
+	 *                   for all columns
+	 * @throws IllegalArgumentException if the table is not a HeapFile
+	 */
+	public void pushDown(List<Predicate> predicates, int[] columns) {
+		if (!(dbFile instanceof HeapFile)) {
+			throw new IllegalArgumentException("only scans of heap tables support pushdown");
+		}
+		this.predicates = new ArrayList<>(predicates);
+		this.columns = columns == null ? null : columns.clone();
+	}
+
+	/**
+	 * @return the predicates pushed down into the scan, over the columns of
+	 * the table
+	 */
+	public List<Predicate> getPushedPredicates() {
+		return Collections.unmodifiableList(predicates);
+	}
+
+	/**
+	 * @return the columns of the table returned by the scan, or null if it
+	 * returns all of them
+	 */
+	public int[] getColumns() {
+		return columns == null ? null : columns.clone();
+	}
+
+	/**
+	 * Lock the rows the scan returns instead of the pages it reads, where the
+	 * table supports row locks. Used under a {@link Delete}, so that
+	 * transactions deleting different rows of a page do not block each
+	 * other. Takes effect from the next open on.
+	 */
+	public void lockRows() {
+		lockRows = true;
+	}
+
+	private DbFileIterator fileIterator(DbFileIterator it) {
+		if (!predicates.isEmpty() || columns != null) {
+			it.pushDown(predicates, columns);
+		}
+		if (lockRows) {
+			it.lockRows();
+		}
+		return it;
+	}
+
+	/**
+	 * Drop the rows whose value in column does not pass filter, see
+	 * {@link RuntimeFilter#pushDown}. Filters added after the scan has been
+	 * opened are used from the next open on.
+	 *
+	 * @param column the column of this scan holding the join key
+	 */
+	public synchronized void addRuntimeFilter(int column, RuntimeFilter filter) {
+		for (RuntimeFilter f : runtimeFilters) {
+			if (f == filter) {
+				return;
+			}
+		}
+		runtimeFilters = Arrays.copyOf(runtimeFilters, runtimeFilters.length + 1);
+		runtimeFilterColumns = Arrays.copyOf(runtimeFilterColumns, runtimeFilterColumns.length + 1);
+		runtimeFilters[runtimeFilters.length - 1] = filter;
+		runtimeFilterColumns[runtimeFilterColumns.length - 1] = column;
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
-		iterator = dbFile.iterator(transactionId);
+		iterator = morsels == null ? fileIterator(dbFile.iterator(transactionId)) : new MorselIterator();
+		synchronized (this) {
+			if (runtimeFilters.length > 0) {
+				iterator = new RuntimeFilterIterator(iterator, runtimeFilters.clone(), runtimeFilterColumns.clone());
+			}
+		}
 		iterator.open();
 	}
 
@@ -94,11 +240,13 @@ public class SeqScan implements OpIterator {
 	 */
 	public TupleDesc getTupleDesc() {
 		TupleDesc origin = dbFile.getTupleDesc();
-		Type[] types = new Type[origin.numFields()];
-		String[] fields = new String[origin.numFields()];
+		int n = columns == null ? origin.numFields() : columns.length;
+		Type[] types = new Type[n];
+		String[] fields = new String[n];
 		for (int i = 0; i < types.length; i++) {
-			types[i] = origin.getFieldType(i);
-			fields[i] = String.format("%s.%s", alias, origin.getFieldName(i));
+			int column = columns == null ? i : columns[i];
+			types[i] = origin.getFieldType(column);
+			fields[i] = String.format("%s.%s", alias, origin.getFieldName(column));
 		}
 		return new TupleDesc(types, fields);
 	}
@@ -112,12 +260,175 @@ public class SeqScan implements OpIterator {
 		return iterator.next();
 	}
 
+	/**
+	 * 由底层文件直接解码成batch，不经过next()
+	 */
+	@Override
+	public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		return iterator.nextBatch(getTupleDesc());
+	}
+
 	public void close() {
 		iterator.close();
 	}
 
+	/**
+	 * Rewind. A parallel scan claims morsels again, so the owner of the
+	 * morsels must have reset them.
+	 */
 	public void rewind() throws DbException, NoSuchElementException,
 		TransactionAbortedException {
 		iterator.rewind();
 	}
+
+	/**
+	 * 跳过运行时过滤器判定不可能连接上的行
+	 */
+	private static class RuntimeFilterIterator extends AbstractDbFileIterator {
+		private final DbFileIterator child;
+		private final RuntimeFilter[] filters;
+		private final int[] columns;
+
+		RuntimeFilterIterator(DbFileIterator child, RuntimeFilter[] filters, int[] columns) {
+			this.child = child;
+			this.filters = filters;
+			this.columns = columns;
+		}
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			child.open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (child.hasNext()) {
+				Tuple t = child.next();
+				if (passes(t)) {
+					return t;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public TupleBatch nextBatch(TupleDesc td) throws DbException, TransactionAbortedException {
+			if (hasReadAhead()) {
+				return nextBatchByRow(td);
+			}
+			TupleBatch batch;
+			while ((batch = child.nextBatch(td)) != null) {
+				int[] rows = new int[batch.numRows()];
+				int count = 0;
+				for (int i = 0; i < rows.length; i++) {
+					int row = batch.rowAt(i);
+					if (passes(batch, row)) {
+						rows[count++] = row;
+					}
+				}
+				if (count > 0) {
+					batch.select(rows, count);
+					return batch;
+				}
+			}
+			return null;
+		}
+
+		private boolean passes(TupleBatch batch, int row) {
+			for (int i = 0; i < filters.length; i++) {
+				if (!filters[i].mightMatch(batch, row, columns[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean passes(Tuple t) {
+			for (int i = 0; i < filters.length; i++) {
+				if (!filters[i].mightMatch(t.getField(columns[i]))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			super.close();
+			child.rewind();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			child.close();
+		}
+	}
+
+	/**
+	 * 逐个认领morsel，读完一个再取下一个
+	 */
+	private class MorselIterator extends AbstractDbFileIterator {
+		private DbFileIterator current;
+
+		@Override
+		public void open() throws DbException, TransactionAbortedException {
+			current = null;
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (current == null || !current.hasNext()) {
+				if (current != null) {
+					current.close();
+				}
+				int start = morsels.next();
+				if (start < 0) {
+					current = null;
+					return null;
+				}
+				current = fileIterator(((HeapFile) dbFile).iterator(transactionId, start, morsels.end(start)));
+				current.open();
+			}
+			return current.next();
+		}
+
+		@Override
+		public TupleBatch nextBatch(TupleDesc td) throws DbException, TransactionAbortedException {
+			if (hasReadAhead()) {
+				return nextBatchByRow(td);
+			}
+			while (true) {
+				if (current != null) {
+					TupleBatch batch = current.nextBatch(td);
+					if (batch != null) {
+						return batch;
+					}
+					current.close();
+					current = null;
+				}
+				int start = morsels.next();
+				if (start < 0) {
+					return null;
+				}
+				current = fileIterator(((HeapFile) dbFile).iterator(transactionId, start, morsels.end(start)));
+				current.open();
+			}
+		}
+
+		@Override
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+	}
 }
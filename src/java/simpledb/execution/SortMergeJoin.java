@@ -0,0 +1,437 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.JoinedTuple;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs sorted ascending on their join fields in a
+ * single merged pass. A child that is not already ordered on its join field
+ * (see {@link #isSortedOn}) is sorted with an {@link OrderBy} first, so two
+ * B+ tree tables joined on their keys need no sort and no hash table at all.
+ * <p>
+ * Supports EQUALS and the range predicates LESS_THAN, LESS_THAN_OR_EQ,
+ * GREATER_THAN and GREATER_THAN_OR_EQ. For EQUALS only the run of right
+ * tuples sharing the current key is buffered; range predicates buffer the
+ * right tuples that may still match. At most memoryTuples of them, fewer once
+ * the {@link MemoryGrant} of the query runs out, are kept in memory; the rest
+ * of the right input is written to a {@link SpillFile} that is read again for
+ * each left tuple.
+ */
+public class SortMergeJoin extends Operator implements MemoryConsumer {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of right tuples a range join keeps in memory
+	 */
+	public final static int MEMORY_TUPLES = 20000;
+
+	private final JoinPredicate joinPredicate;
+	private OpIterator child1;
+	private OpIterator child2;
+	private final TupleDesc tupleDesc;
+	private final int memoryTuples;
+	private transient MemoryGrant grant;
+	// 范围连接时buffer占用的内存
+	private transient MemoryReservation memory;
+
+	// 当前左表tuple和它匹配的右表tuple在matchList中的区间[index, end)
+	private transient Tuple leftTuple;
+	private transient List<Tuple> matchList;
+	private transient int index;
+	private transient int end;
+	// 右表已读出但还没有放进buffer的下一个tuple
+	private transient Tuple rightNext;
+	// EQUALS: 当前key对应的右表tuple；范围连接: 可能还会匹配的右表tuple
+	private transient List<Tuple> buffer;
+	private transient Field runKey;
+	// LESS_THAN/LESS_THAN_OR_EQ时buffer中第一个还可能匹配的位置
+	private transient int start;
+	// 范围连接时buffer放不下的右表tuple，按顺序接在buffer之后
+	private transient SpillFile spill;
+	// 当前左表tuple正在读的spill
+	private transient SpillFile.Reader spillReader;
+	private transient TupleBatch spillBatch;
+	private transient int spillIndex;
+
+	/**
+	 * Constructor. Accepts two children to join and the predicate to join them
+	 * on
+	 *
+	 * @param p      The predicate to use to join the children
+	 * @param child1 Iterator for the left relation to join
+	 * @param child2 Iterator for the right relation to join
+	 * @throws IllegalArgumentException if the predicate is not an equality or
+	 *                                  range comparison
+	 */
+	public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+		this(p, child1, child2, MEMORY_TUPLES);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param p            The predicate to use to join the children
+	 * @param child1       Iterator for the left relation to join
+	 * @param child2       Iterator for the right relation to join
+	 * @param memoryTuples the maximum number of right tuples a range join
+	 *                     keeps in memory before spilling the rest
+	 * @throws IllegalArgumentException if the predicate is not an equality or
+	 *                                  range comparison
+	 */
+	public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryTuples) {
+		if (!supports(p.getOperator())) {
+			throw new IllegalArgumentException("sort-merge join doesn't support " + p.getOperator());
+		}
+		if (memoryTuples <= 0) {
+			throw new IllegalArgumentException("memoryTuples must be positive");
+		}
+		this.joinPredicate = p;
+		this.memoryTuples = memoryTuples;
+		this.child1 = sorted(child1, p.getField1());
+		this.child2 = sorted(child2, p.getField2());
+		tupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+	}
+
+	/**
+	 * @return true if SortMergeJoin can evaluate join predicates using op
+	 */
+	public static boolean supports(Predicate.Op op) {
+		switch (op) {
+			case EQUALS:
+			case LESS_THAN:
+			case LESS_THAN_OR_EQ:
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQ:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Return true if the tuples of child are known to come out in ascending
+	 * order of field: scans of a BTreeFile keyed on field, ascending OrderBy
+	 * on field, and Filters or SortMergeJoins over such inputs.
+	 */
+	public static boolean isSortedOn(OpIterator child, int field) {
+		if (child instanceof OrderBy) {
+			OrderBy orderBy = (OrderBy) child;
+			return orderBy.isASC() && orderBy.getOrderByField() == field;
+		}
+		if (child instanceof SeqScan) {
+			return isKeyField(((SeqScan) child).getTableName(), field);
+		}
+		if (child instanceof BTreeScan) {
+			return isKeyField(((BTreeScan) child).getTableName(), field);
+		}
+		if (child instanceof Filter) {
+			return isSortedOn(((Filter) child).getChildren()[0], field);
+		}
+		if (child instanceof SortMergeJoin) {
+			// 输出按左表的连接字段有序，等值连接时右表连接字段的值与之相同
+			SortMergeJoin join = (SortMergeJoin) child;
+			JoinPredicate p = join.getJoinPredicate();
+			int rightField = join.child1.getTupleDesc().numFields() + p.getField2();
+			return field == p.getField1() || (p.getOperator() == Predicate.Op.EQUALS && field == rightField);
+		}
+		return false;
+	}
+
+	private static boolean isKeyField(String tableName, int field) {
+		try {
+			DbFile file = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(tableName));
+			return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+		} catch (NoSuchElementException e) {
+			return false;
+		}
+	}
+
+	private static OpIterator sorted(OpIterator child, int field) {
+		return isSortedOn(child, field) ? child : new OrderBy(field, true, child);
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return joinPredicate;
+	}
+
+	/**
+	 * @return the field name of join field1. Should be quantified by
+	 * alias or table name.
+	 */
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(joinPredicate.getField1());
+	}
+
+	/**
+	 * @return the field name of join field2. Should be quantified by
+	 * alias or table name.
+	 */
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(joinPredicate.getField2());
+	}
+
+	/**
+	 * @return the maximum number of right tuples a range join keeps in memory
+	 */
+	public int getMemoryTuples() {
+		return memoryTuples;
+	}
+
+	/**
+	 * 等值连接只缓存一个key的run，不向grant申请内存
+	 */
+	@Override
+	public int memoryDemand() {
+		return isRange() ? MemoryBroker.demand(child2, memoryTuples) : 0;
+	}
+
+	@Override
+	public void setMemoryGrant(MemoryGrant grant) {
+		this.grant = grant;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return tupleDesc;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+		TransactionAbortedException {
+		child1.open();
+		child2.open();
+		memory = new MemoryReservation(grant, memoryTuples);
+		init();
+		super.open();
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		child2.close();
+		leftTuple = null;
+		rightNext = null;
+		buffer = null;
+		matchList = null;
+		deleteSpill();
+		if (memory != null) {
+			memory.release();
+			memory = null;
+		}
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		child2.rewind();
+		init();
+	}
+
+	private void init() throws DbException, TransactionAbortedException {
+		leftTuple = null;
+		matchList = null;
+		index = end = 0;
+		buffer = new ArrayList<>();
+		runKey = null;
+		start = 0;
+		rightNext = null;
+		deleteSpill();
+		Predicate.Op op = joinPredicate.getOperator();
+		if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ) {
+			// 匹配的是右表的后缀，需要整个右表
+			while (child2.hasNext()) {
+				bufferRight(child2.next());
+			}
+		} else {
+			rightNext = nextRight();
+		}
+	}
+
+	private boolean isRange() {
+		return joinPredicate.getOperator() != Predicate.Op.EQUALS;
+	}
+
+	private Tuple nextRight() throws DbException, TransactionAbortedException {
+		return child2.hasNext() ? child2.next() : null;
+	}
+
+	/**
+	 * 范围连接缓存一个右表tuple：内存放得下时放进buffer，否则写到spill末尾
+	 */
+	private void bufferRight(Tuple t) throws DbException {
+		if (spill == null && memory.fits(buffer.size() + 1)) {
+			buffer.add(t);
+			return;
+		}
+		if (spill == null) {
+			spill = new SpillFile(child2.getTupleDesc());
+		}
+		spill.write(t);
+	}
+
+	private void deleteSpill() {
+		if (spillReader != null) {
+			spillReader.close();
+			spillReader = null;
+		}
+		spillBatch = null;
+		if (spill != null) {
+			spill.delete();
+			spill = null;
+		}
+	}
+
+	private static int compare(Field f1, Field f2) {
+		if (f1.compare(Predicate.Op.EQUALS, f2)) {
+			return 0;
+		}
+		return f1.compare(Predicate.Op.LESS_THAN, f2) ? -1 : 1;
+	}
+
+	private Field rightKey(Tuple t) {
+		return t.getField(joinPredicate.getField2());
+	}
+
+	/**
+	 * 左表读到新的key时，推进右表，算出匹配区间
+	 */
+	private void position(Field key) throws DbException, TransactionAbortedException {
+		switch (joinPredicate.getOperator()) {
+			case EQUALS: {
+				if (runKey == null || compare(key, runKey) != 0) {
+					// 左表有重复key时复用同一段run
+					buffer = new ArrayList<>();
+					runKey = key;
+					while (rightNext != null && compare(rightKey(rightNext), key) < 0) {
+						rightNext = nextRight();
+					}
+					while (rightNext != null && compare(rightKey(rightNext), key) == 0) {
+						buffer.add(rightNext);
+						rightNext = nextRight();
+					}
+				}
+				index = 0;
+				break;
+			}
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQ: {
+				boolean inclusive = joinPredicate.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ;
+				while (spill == null && rightNext != null && (compare(rightKey(rightNext), key) < 0
+					|| (inclusive && compare(rightKey(rightNext), key) == 0))) {
+					bufferRight(rightNext);
+					rightNext = nextRight();
+				}
+				if (spill != null) {
+					// 内存满了：右表剩下的都写到spill，spill只写一次，之后每个左表tuple从头读
+					while (rightNext != null) {
+						spill.write(rightNext);
+						rightNext = nextRight();
+					}
+				}
+				index = 0;
+				break;
+			}
+			default: {
+				boolean inclusive = joinPredicate.getOperator() == Predicate.Op.LESS_THAN_OR_EQ;
+				while (start < buffer.size() && (compare(rightKey(buffer.get(start)), key) < 0
+					|| (!inclusive && compare(rightKey(buffer.get(start)), key) == 0))) {
+					start++;
+				}
+				index = start;
+			}
+		}
+		matchList = buffer;
+		end = buffer.size();
+		if (spillReader != null) {
+			spillReader.close();
+		}
+		spillReader = spill != null ? spill.reader() : null;
+		spillBatch = null;
+	}
+
+	/**
+	 * @return the next tuple of the spill matching the current left tuple, or
+	 * null when there are no more
+	 */
+	private Tuple nextSpilled() throws DbException {
+		while (spillReader != null) {
+			if (spillBatch != null && spillIndex < spillBatch.numRows()) {
+				Tuple t = spillBatch.getTuple(spillBatch.rowAt(spillIndex++));
+				if (joinPredicate.filter(leftTuple, t)) {
+					return t;
+				}
+				Predicate.Op op = joinPredicate.getOperator();
+				if (op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ) {
+					// spill有序，后面的右表tuple都不会匹配
+					spillReader.close();
+					spillReader = null;
+				}
+				continue;
+			}
+			spillBatch = spillReader.nextBatch();
+			spillIndex = 0;
+			if (spillBatch == null) {
+				spillReader = null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the next tuple generated by the join, or null if there are no
+	 * more tuples. Tuples come out in ascending order of the left join field.
+	 *
+	 * @return The next matching tuple.
+	 * @see JoinPredicate#filter
+	 */
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (leftTuple != null) {
+				if (index < end) {
+					return merge(leftTuple, matchList.get(index++));
+				}
+				Tuple spilled = nextSpilled();
+				if (spilled != null) {
+					return merge(leftTuple, spilled);
+				}
+			}
+			if (!child1.hasNext()) {
+				return null;
+			}
+			leftTuple = child1.next();
+			position(leftTuple.getField(joinPredicate.getField1()));
+		}
+	}
+
+	/**
+	 * 输出行只引用两边的tuple，不复制字段
+	 */
+	private Tuple merge(Tuple tuple1, Tuple tuple2) {
+		return new JoinedTuple(tupleDesc, tuple1, tuple2);
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child1, child2};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		if (children.length != 2) {
+			throw new RuntimeException("SortMergeJoin setChildren's length must be 2");
+		}
+		child1 = sorted(children[0], joinPredicate.getField1());
+		child2 = sorted(children[1], joinPredicate.getField2());
+	}
+
+}
@@ -0,0 +1,223 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * StreamAggregate computes the same result as {@link Aggregate} for a child
+ * whose tuples arrive grouped, i.e. all tuples with the same group key are
+ * adjacent, as they are when the child is sorted on the group fields. Only
+ * the aggregates of the current group are kept, and each group is returned as
+ * soon as the key changes, so no hash table is built and the first group is
+ * available without reading the whole child.
+ */
+public class StreamAggregate extends Aggregate {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int[] groupFields;
+	private final int[] aggregateFields;
+	private final Aggregator.Op[] ops;
+	private final boolean[] intKey;
+	// 当前组的聚合值，组号固定为0
+	private final Accumulator[] accumulators;
+	// 当前组的key，int列另存一份用于比较
+	private final Field[] key;
+	private final int[] intKeyValues;
+	private transient boolean inGroup;
+	private transient TupleBatch batch;
+	private transient int pos;
+	private transient boolean childDone;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param child   The OpIterator that is feeding us tuples, grouped on
+	 *                gfields.
+	 * @param afields The column of each aggregate.
+	 * @param gfields The columns over which we are grouping the result; empty
+	 *                if there is no grouping
+	 * @param aops    The aggregation operator of each aggregate
+	 */
+	public StreamAggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+		super(child, afields, gfields, aops);
+		groupFields = gfields.clone();
+		aggregateFields = afields.clone();
+		ops = aops.clone();
+		TupleDesc childTd = child.getTupleDesc();
+		intKey = new boolean[gfields.length];
+		for (int i = 0; i < gfields.length; i++) {
+			intKey[i] = childTd.getFieldType(gfields[i]) == Type.INT_TYPE;
+		}
+		key = new Field[gfields.length];
+		intKeyValues = new int[gfields.length];
+		accumulators = new Accumulator[aops.length];
+		for (int i = 0; i < aops.length; i++) {
+			accumulators[i] = new Accumulator(aops[i]);
+		}
+	}
+
+	/**
+	 * Constructor for a single aggregate.
+	 *
+	 * @param child  The OpIterator that is feeding us tuples, grouped on
+	 *               gfield.
+	 * @param afield The column over which we are computing an aggregate.
+	 * @param gfield The column over which we are grouping the result, or -1 if
+	 *               there is no grouping
+	 * @param aop    The aggregation operator to use
+	 */
+	public StreamAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+		this(child, new int[]{afield}, IntegerAggregator.groupColumns(gfield), new Aggregator.Op[]{aop});
+	}
+
+	/**
+	 * @return true if the tuples of child with equal values of field are
+	 * adjacent, so that a StreamAggregate grouping on field can be used
+	 */
+	public static boolean isGroupedOn(OpIterator child, int field) {
+		if (child instanceof OrderBy) {
+			// 降序也能让相同的key相邻
+			return ((OrderBy) child).getOrderByField() == field;
+		}
+		return SortMergeJoin.isSortedOn(child, field);
+	}
+
+	/**
+	 * @return 0: only the current group is kept
+	 */
+	@Override
+	public int memoryDemand() {
+		return 0;
+	}
+
+	@Override
+	protected void build() throws DbException, TransactionAbortedException {
+		getChildren()[0].open();
+		inGroup = false;
+		batch = null;
+		pos = 0;
+		childDone = false;
+	}
+
+	private boolean sameKey(TupleBatch b, int row) {
+		for (int i = 0; i < groupFields.length; i++) {
+			if (intKey[i]) {
+				if (b.getInt(groupFields[i], row) != intKeyValues[i]) {
+					return false;
+				}
+			} else if (!b.getField(groupFields[i], row).equals(key[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void startGroup(TupleBatch b, int row) {
+		for (int i = 0; i < groupFields.length; i++) {
+			key[i] = b.getField(groupFields[i], row);
+			if (intKey[i]) {
+				intKeyValues[i] = b.getInt(groupFields[i], row);
+			}
+		}
+		for (Accumulator accumulator : accumulators) {
+			accumulator.reset(0);
+		}
+		inGroup = true;
+	}
+
+	private void update(TupleBatch b, int row) {
+		for (int i = 0; i < accumulators.length; i++) {
+			if (ops[i] == Aggregator.Op.COUNT) {
+				accumulators[i].count(0);
+			} else {
+				accumulators[i].add(0, b.getInt(aggregateFields[i], row));
+			}
+		}
+	}
+
+	private Tuple result() {
+		Tuple tuple = new Tuple(getTupleDesc());
+		for (int i = 0; i < key.length; i++) {
+			tuple.setField(i, key[i]);
+		}
+		for (int i = 0; i < accumulators.length; i++) {
+			tuple.setField(key.length + i, accumulators[i].result(0));
+		}
+		return tuple;
+	}
+
+	/**
+	 * Aggregates rows until the group key changes, then returns the finished
+	 * group. The row with the new key starts the next group.
+	 */
+	@Override
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (batch == null || pos == batch.numRows()) {
+				batch = childDone ? null : getChildren()[0].nextBatch();
+				pos = 0;
+				if (batch == null) {
+					childDone = true;
+					break;
+				}
+				continue;
+			}
+			int row = batch.rowAt(pos);
+			Tuple finished = null;
+			if (!inGroup) {
+				startGroup(batch, row);
+			} else if (!sameKey(batch, row)) {
+				finished = result();
+				startGroup(batch, row);
+			}
+			update(batch, row);
+			pos++;
+			if (finished != null) {
+				return finished;
+			}
+		}
+		// child读完，输出最后一组
+		if (inGroup) {
+			inGroup = false;
+			return result();
+		}
+		return null;
+	}
+
+	@Override
+	public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		TupleBatch out = null;
+		while (hasNext()) {
+			if (out == null) {
+				out = new TupleBatch(getTupleDesc());
+			}
+			out.addTuple(next());
+			if (out.isFull()) {
+				break;
+			}
+		}
+		return out;
+	}
+
+	@Override
+	public void rewind() throws DbException, TransactionAbortedException {
+		getChildren()[0].rewind();
+		inGroup = false;
+		batch = null;
+		pos = 0;
+		childDone = false;
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		getChildren()[0].close();
+		batch = null;
+	}
+}
@@ -0,0 +1,238 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * TopN implements ORDER BY ... LIMIT ... OFFSET. Instead of sorting the whole
+ * child like {@link OrderBy}, it keeps the first offset + limit tuples of the
+ * ordering in a bounded binary heap whose root is the last of them; each
+ * child tuple is compared with the root once and discarded unless it comes
+ * before it. Memory is O(offset + limit) whatever the size of the child.
+ * <p>
+ * Ties keep the order of the child, as with OrderBy. INT_TYPE sort keys are
+ * compared as primitive ints.
+ */
+public class TopN extends Operator {
+
+	private static final long serialVersionUID = 1L;
+	private OpIterator child;
+	private final TupleDesc td;
+	private final int orderByField;
+	private final boolean asc;
+	private final int limit;
+	private final int offset;
+	private final boolean intKey;
+	private final TupleComparator comparator;
+
+	// 堆里的tuple、排序key和读入的序号，堆顶是当前前N个里排在最后的
+	private transient Tuple[] heap;
+	private transient int[] keys;
+	private transient long[] seqs;
+	private transient int size;
+	// 堆排序后输出的位置
+	private transient int pos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param orderbyField the field to which the sort is applied.
+	 * @param asc          true if the sort order is ascending.
+	 * @param limit        the maximum number of tuples to return
+	 * @param offset       the number of tuples of the ordering to skip first
+	 * @param child        the tuples to sort.
+	 */
+	public TopN(int orderbyField, boolean asc, int limit, int offset, OpIterator child) {
+		if (limit < 0 || offset < 0) {
+			throw new IllegalArgumentException("limit and offset must not be negative");
+		}
+		this.child = child;
+		this.td = child.getTupleDesc();
+		this.orderByField = orderbyField;
+		this.asc = asc;
+		this.limit = limit;
+		this.offset = offset;
+		this.intKey = td.getFieldType(orderbyField) == Type.INT_TYPE;
+		this.comparator = new TupleComparator(orderbyField, asc);
+	}
+
+	public boolean isASC() {
+		return asc;
+	}
+
+	public int getOrderByField() {
+		return orderByField;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+		TransactionAbortedException {
+		child.open();
+		int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) limit + offset);
+		if (limit == 0) {
+			capacity = 0;
+		}
+		// 数组按需增长，LIMIT很大而输入很小时不会预先分配
+		heap = new Tuple[Math.min(capacity, TupleBatch.DEFAULT_CAPACITY)];
+		keys = intKey ? new int[heap.length] : null;
+		seqs = new long[heap.length];
+		size = 0;
+		long seq = 0;
+		TupleBatch batch;
+		while (capacity > 0 && (batch = child.nextBatch()) != null) {
+			for (int i = 0; i < batch.numRows(); i++) {
+				int row = batch.rowAt(i);
+				// int key不用先构造tuple，被丢弃的行不产生对象
+				int key = intKey ? sortKey(batch.getInt(orderByField, row)) : 0;
+				Tuple t = intKey ? null : batch.getTuple(row);
+				if (size < capacity) {
+					if (size == heap.length) {
+						grow(capacity);
+					}
+					heap[size] = t != null ? t : batch.getTuple(row);
+					if (intKey) {
+						keys[size] = key;
+					}
+					seqs[size] = seq;
+					siftUp(size++);
+				} else if (intKey ? key < keys[0] : comparator.compare(t, heap[0]) < 0) {
+					// 比堆顶靠前才替换，key相同时先读到的排在前面，所以不替换
+					heap[0] = t != null ? t : batch.getTuple(row);
+					if (intKey) {
+						keys[0] = key;
+					}
+					seqs[0] = seq;
+					siftDown(0, size);
+				}
+				seq++;
+			}
+		}
+		// 原地堆排序：每次把堆顶换到末尾，结果按排序顺序存放
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		pos = offset;
+		super.open();
+	}
+
+	/**
+	 * 升序时就是原值，降序时按位取反，这样都可以按升序比较且不会溢出
+	 */
+	private int sortKey(int value) {
+		return asc ? value : ~value;
+	}
+
+	private void grow(int capacity) {
+		int length = (int) Math.min(capacity, 2L * heap.length);
+		heap = Arrays.copyOf(heap, length);
+		seqs = Arrays.copyOf(seqs, length);
+		if (intKey) {
+			keys = Arrays.copyOf(keys, length);
+		}
+	}
+
+	/**
+	 * @return true if the tuple at i comes after the tuple at j in the ordering
+	 */
+	private boolean after(int i, int j) {
+		int c = intKey ? Integer.compare(keys[i], keys[j]) : comparator.compare(heap[i], heap[j]);
+		return c > 0 || (c == 0 && seqs[i] > seqs[j]);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!after(i, parent)) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int n) {
+		while (true) {
+			int largest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < n && after(left, largest)) {
+				largest = left;
+			}
+			if (right < n && after(right, largest)) {
+				largest = right;
+			}
+			if (largest == i) {
+				return;
+			}
+			swap(i, largest);
+			i = largest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		Tuple t = heap[i];
+		heap[i] = heap[j];
+		heap[j] = t;
+		long s = seqs[i];
+		seqs[i] = seqs[j];
+		seqs[j] = s;
+		if (intKey) {
+			int k = keys[i];
+			keys[i] = keys[j];
+			keys[j] = k;
+		}
+	}
+
+	public void close() {
+		super.close();
+		child.close();
+		heap = null;
+		keys = null;
+		seqs = null;
+	}
+
+	public void rewind() {
+		pos = offset;
+	}
+
+	/**
+	 * Returns the next tuple of the top offset + limit, skipping the first
+	 * offset, or null if there are no more tuples.
+	 */
+	protected Tuple fetchNext() {
+		if (heap != null && pos < size) {
+			return heap[pos++];
+		}
+		return null;
+	}
+
+	@Override
+	public OpIterator[] getChildren() {
+		return new OpIterator[]{child};
+	}
+
+	@Override
+	public void setChildren(OpIterator[] children) {
+		child = children[0];
+	}
+
+}
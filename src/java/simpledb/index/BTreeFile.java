@@ -187,8 +187,23 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry entry = null;
+		while(it.hasNext()) {
+			entry = it.next();
+			// keys equal to f may also be in the left subtree, go left to find the left-most one
+			if(f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+			}
+		}
+		if(entry == null) {
+			throw new DbException("internal page " + pid.getPageNumber() + " has no entries");
+		}
+		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
 	}
 	
 	/**
@@ -231,16 +246,38 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page on the right
+		List<Tuple> moving = new ArrayList<>();
+		Iterator<Tuple> it = page.reverseIterator();
+		while(moving.size() < page.getNumTuples() / 2 && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between page and its old right sibling
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field midKey = newPage.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		// keys equal to the middle key stay on the left, where findLeafPage looks for them first
+		return field.compare(Op.GREATER_THAN, midKey) ? newPage : page;
 	}
 	
 	/**
@@ -268,16 +305,31 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page on the right
+		List<BTreeEntry> moving = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(moving.size() < page.getNumEntries() / 2 && it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+
+		// push the last remaining entry of page up into the parent
+		BTreeEntry mid = page.reverseIterator().next();
+		page.deleteKeyAndRightChild(mid);
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		return field.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -437,18 +489,95 @@ public class BTreeFile implements DbFile {
 			rootPtr.setRootId(rootId);
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// find and lock the left-most leaf page corresponding to the key field
+		Field key = t.getField(keyField);
+		BufferPool bufferPool = Database.getBufferPool();
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+
+		// next-key locking: the new key falls into the range of the largest key <= key.
+		// If a scan of another transaction has locked that range, wait for it to finish.
+		BTreeKeyRange gap = new BTreeKeyRange(tableid, precedingKey(tid, dirtypages, leafPage, key, true));
+		while(bufferPool.isKeyRangeLockedByOthers(tid, gap)) {
+			if(leafPage.isDirty() != tid) {
+				// don't wait while holding the leaf, the scanning transaction may need to read it again
+				dirtypages.remove(leafPage.getId());
+				bufferPool.unsafeReleasePage(tid, leafPage.getId());
+			}
+			bufferPool.waitForKeyRange(tid, gap);
+			leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+			gap = new BTreeKeyRange(tableid, precedingKey(tid, dirtypages, leafPage, key, true));
+		}
+		// lock the new key until the transaction completes, so that scans reaching it wait for us
+		bufferPool.acquireKeyRangeLock(tid, new BTreeKeyRange(tableid, key), Permissions.READ_WRITE);
+
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
 		}
 
-		// insert the tuple into the leaf page
+		// insert the tuple into the leaf page. The leaf is now dirty, so its lock is held until
+		// the transaction completes: the key lock alone does not keep other transactions from
+		// reading the uncommitted tuple or from changing and flushing the page before we finish
 		leafPage.insertTuple(t);
 
         return new ArrayList<>(dirtypages.values());
 	}
+
+	/**
+	 * Find the key whose next-key lock range covers the given key: the largest key on the leaf
+	 * smaller than (or, if inclusive, equal to) key, falling back to the last key of the left
+	 * sibling. Pages read from the left sibling are only latched.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page which key belongs to
+	 * @param key - the key to search for
+	 * @param inclusive - whether a key equal to key counts as preceding it
+	 * @return the preceding key, or null if key falls before the first key of the index
+	 * @see BTreeKeyRange
+	 */
+	Field precedingKey(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field key,
+			boolean inclusive) throws DbException, TransactionAbortedException {
+		Op op = inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN;
+		Iterator<Tuple> it = page.reverseIterator();
+		while(it.hasNext()) {
+			Field f = it.next().getField(keyField);
+			if(f.compare(op, key)) {
+				return f;
+			}
+		}
+		// every key on this page is after key, the preceding key is the last one on the left sibling
+		BTreePageId leftId = page.getLeftSiblingId();
+		while(leftId != null) {
+			boolean held = dirtypages.containsKey(leftId) || Database.getBufferPool().holdsLock(tid, leftId);
+			BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leftId, Permissions.READ_ONLY);
+			Iterator<Tuple> leftIt = left.reverseIterator();
+			Field last = leftIt.hasNext() ? leftIt.next().getField(keyField) : null;
+			BTreePageId nextLeftId = left.getLeftSiblingId();
+			if(!held) {
+				releaseLeafLatch(tid, left);
+			}
+			if(last != null) {
+				return last;
+			}
+			leftId = nextLeftId;
+		}
+		return null;
+	}
+
+	/**
+	 * Release the lock on a leaf page which was only read. Leaf page locks act as latches for
+	 * readers, isolation is provided by the next-key locks on the keys they return. Pages
+	 * dirtied by tid stay locked until the transaction completes.
+	 *
+	 * @param tid - the transaction id
+	 * @param page - the leaf page to release
+	 */
+	static void releaseLeafLatch(TransactionId tid, BTreeLeafPage page) {
+		if(page.isDirty() != tid) {
+			Database.getBufferPool().unsafeReleasePage(tid, page.getId());
+		}
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
@@ -802,6 +931,12 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
+		// next-key locking: a serializable scan that returned the key holds a shared lock on its
+		// range. Lock it exclusively before touching the leaf, so we never wait for the scan
+		// while holding a page it may need to read again, and keep it until the transaction completes
+		Database.getBufferPool().acquireKeyRangeLock(tid, new BTreeKeyRange(tableid, t.getField(keyField)),
+				Permissions.READ_WRITE);
+
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -1134,107 +1269,3 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		curp = null;
 	}
 }
-
-/**
- * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
- */
-class BTreeSearchIterator extends AbstractDbFileIterator {
-
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
-
-	final TransactionId tid;
-	final BTreeFile f;
-	final IndexPredicate ipred;
-
-	/**
-	 * Constructor for this iterator
-	 * @param f - the BTreeFile containing the tuples
-	 * @param tid - the transaction id
-	 * @param ipred - the predicate to filter on
-	 */
-	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
-		this.f = f;
-		this.tid = tid;
-		this.ipred = ipred;
-	}
-
-	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
-	 */
-	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, null);
-		}
-		it = curp.iterator();
-	}
-
-	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
-	 * 
-	 * @return the next tuple matching the predicate, or null if none exists
-	 */
-	@Override
-	protected Tuple readNext() throws TransactionAbortedException, DbException,
-	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
-			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
-				return null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-			}
-		}
-
-		return null;
-	}
-
-	/**
-	 * rewind this iterator back to the beginning of the tuples
-	 */
-	public void rewind() throws DbException, TransactionAbortedException {
-		close();
-		open();
-	}
-
-	/**
-	 * close the iterator
-	 */
-	public void close() {
-		super.close();
-		it = null;
-	}
-}
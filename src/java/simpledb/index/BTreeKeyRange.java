@@ -0,0 +1,70 @@
+package simpledb.index;
+
+import simpledb.storage.Field;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * BTreeKeyRange identifies a next-key lock on a BTreeFile: the key itself plus
+ * the gap up to (but not including) the next larger key in the index. A null
+ * key stands for the gap before the smallest key of the index.
+ * <p>
+ * Range scans lock every key they return together with the range preceding
+ * their first key, so a concurrent insert of any key inside the scanned
+ * interval has to wait on one of those ranges.
+ *
+ * @see BTreeFile#indexIterator
+ * @see simpledb.transaction.LockManager#acquireKeyRangeLock
+ */
+public class BTreeKeyRange implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int tableId;
+	private final Field key;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tableId - the id of the BTreeFile
+	 * @param key - the key starting this range, or null for the range before the first key
+	 */
+	public BTreeKeyRange(int tableId, Field key) {
+		this.tableId = tableId;
+		this.key = key;
+	}
+
+	/**
+	 * @return the id of the BTreeFile this range belongs to
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the key starting this range, or null if this is the range before
+	 * the first key of the index
+	 */
+	public Field getKey() {
+		return key;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		BTreeKeyRange that = (BTreeKeyRange) o;
+		return tableId == that.tableId && Objects.equals(key, that.key);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(tableId, key);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BTreeKeyRange(%d, [%s, next))", tableId, key == null ? "-inf" : key.toString());
+	}
+}
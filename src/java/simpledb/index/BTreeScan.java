@@ -3,8 +3,8 @@ package simpledb.index;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
 import simpledb.execution.IndexPredicate;
-import simpledb.execution.OpIterator;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -17,7 +17,7 @@ import java.util.*;
  * BTreeScan is an operator which reads tuples in sorted order 
  * according to a predicate
  */
-public class BTreeScan implements OpIterator {
+public class BTreeScan implements IndexOpIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -28,6 +28,7 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -85,6 +86,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
@@ -155,4 +157,34 @@ public class BTreeScan implements OpIterator {
 		close();
 		open();
 	}
+
+	/**
+	 * Open the scan with a new index predicate, replacing the one given in the
+	 * constructor.
+	 */
+	public void open(IndexPredicate ipred) throws NoSuchElementException,
+	DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		this.ipred = ipred;
+		it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+		open();
+	}
+
+	/**
+	 * Begin a new scan with the specified predicate. Successive probes with
+	 * ascending keys reuse the leaf the previous probe started on.
+	 */
+	public void rewind(IndexPredicate ipred) throws DbException,
+	TransactionAbortedException {
+		if (isOpen && it instanceof BTreeSearchIterator) {
+			this.ipred = ipred;
+			((BTreeSearchIterator) it).reopen(ipred);
+			return;
+		}
+		if (isOpen)
+			close();
+		open(ipred);
+	}
 }
@@ -0,0 +1,213 @@
+package simpledb.index;
+
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File.
+ * <p>
+ * The iterator uses next-key locking instead of holding locks on whole leaf
+ * pages: it locks the range preceding the first qualifying key and every key
+ * it returns (each covering the gap up to the next key), and releases a leaf
+ * page once it moves past it. Inserts into the scanned interval have to wait,
+ * while inserts elsewhere on the same leaves can proceed.
+ */
+class BTreeSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	// 最近一次加了范围锁的key，相同的key不用重复加锁
+	Field lockedKey = null;
+	// 上一次按key定位到的叶子页，reopen时如果新key还落在这一页就不必从根节点查找
+	BTreePageId startLeafId = null;
+
+	final TransactionId tid;
+	final BTreeFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page applicable
+	 * for the given predicate operation, and lock the key range in front of the
+	 * first qualifying key
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(startsAtKey()) {
+			start(f.findLeafPage(tid, root, ipred.getField()));
+		}
+		else {
+			curp = f.findLeafPage(tid, root, null);
+			startLeafId = null;
+			lockKeyRange(null);
+			it = curp.iterator();
+		}
+	}
+
+	/**
+	 * Restart the scan with a new predicate. If the new search key falls
+	 * inside the leaf the previous scan started on, as it usually does when
+	 * keys are probed in ascending order, the scan starts from that leaf
+	 * instead of descending from the root again.
+	 *
+	 * @param ipred - the new predicate to filter on
+	 */
+	public void reopen(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		BTreePageId hint = startLeafId;
+		close();
+		this.ipred = ipred;
+		if(hint != null && startsAtKey()) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, hint, Permissions.READ_ONLY);
+			if(covers(leaf, ipred.getField())) {
+				start(leaf);
+				return;
+			}
+			BTreeFile.releaseLeafLatch(tid, leaf);
+		}
+		open();
+	}
+
+	private boolean startsAtKey() {
+		return ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+	}
+
+	/**
+	 * Return true if the scan for key can start on leaf: key is greater than
+	 * the first key of the leaf (so no equal key sits in the left sibling) and
+	 * not greater than its last key.
+	 */
+	private boolean covers(BTreeLeafPage leaf, Field key) {
+		Iterator<Tuple> first = leaf.iterator();
+		Iterator<Tuple> last = leaf.reverseIterator();
+		if(!first.hasNext() || !last.hasNext()) {
+			return false;
+		}
+		return key.compare(Op.GREATER_THAN, first.next().getField(f.keyField()))
+				&& key.compare(Op.LESS_THAN_OR_EQ, last.next().getField(f.keyField()));
+	}
+
+	/**
+	 * Start the scan on the given leaf and lock the key range in front of
+	 * the first qualifying key
+	 */
+	private void start(BTreeLeafPage leaf) throws DbException, TransactionAbortedException {
+		curp = leaf;
+		startLeafId = leaf.getId();
+		// a key equal to the search key starts the range in front of the first key > search key
+		Field start = f.precedingKey(tid, new HashMap<>(), curp, ipred.getField(),
+				ipred.getOp() == Op.GREATER_THAN);
+		lockKeyRange(start);
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the next page by following the right sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					lockKeyRange(t.getField(f.keyField()));
+					return t;
+				}
+				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+					// if the predicate was not satisfied and the operation is less than, we have
+					// hit the end
+					return finish();
+				}
+				else if(ipred.getOp() == Op.EQUALS && 
+						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+					// if the tuple is now greater than the field passed in and the operation
+					// is equals, we have reached the end
+					return finish();
+				}
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			// if there are no more pages to the right, end the iteration
+			if(nextp == null) {
+				return finish();
+			}
+			else {
+				BTreeFile.releaseLeafLatch(tid, curp);
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Take a shared next-key lock on the range starting at key, unless it is
+	 * the range locked last.
+	 */
+	private void lockKeyRange(Field key) throws TransactionAbortedException {
+		if (lockedKey != null && lockedKey.equals(key)) {
+			return;
+		}
+		Database.getBufferPool().acquireKeyRangeLock(tid, new BTreeKeyRange(f.getId(), key),
+				Permissions.READ_ONLY);
+		lockedKey = key;
+	}
+
+	/**
+	 * End the iteration, releasing the leaf page the scan stopped on.
+	 */
+	private Tuple finish() {
+		if (curp != null) {
+			BTreeFile.releaseLeafLatch(tid, curp);
+			curp = null;
+		}
+		it = null;
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		finish();
+		lockedKey = null;
+	}
+}
@@ -1,8 +1,14 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -44,6 +50,24 @@ public class JoinOptimizer {
 	 */
 	public static OpIterator instantiateJoin(LogicalJoinNode lj,
 											 OpIterator plan1, OpIterator plan2) throws ParsingException {
+		return instantiateJoin(lj, plan1, plan2, -1);
+	}
+
+	/**
+	 * Return best iterator for computing a given logical join, like
+	 * {@link #instantiateJoin(LogicalJoinNode, OpIterator, OpIterator)}. When
+	 * the estimated cardinality of plan1 is known and plan2 scans a BTreeFile
+	 * keyed on the join field, an {@link IndexNestedLoopJoin} is chosen if
+	 * probing the index once per outer tuple reads fewer pages than scanning
+	 * plan2.
+	 *
+	 * @param lj        The join being considered
+	 * @param plan1     The left join node's child
+	 * @param plan2     The right join node's child
+	 * @param outerCard Estimated cardinality of plan1, or -1 if unknown
+	 */
+	public static OpIterator instantiateJoin(LogicalJoinNode lj,
+											 OpIterator plan1, OpIterator plan2, int outerCard) throws ParsingException {
 
 		int t1id = 0, t2id = 0;
 		OpIterator j;
@@ -68,18 +92,25 @@ public class JoinOptimizer {
 
 		JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-		if (lj.p == Predicate.Op.EQUALS) {
+		if (lj instanceof LogicalSubplanJoinNode && lj.p == Predicate.Op.EQUALS) {
+			return instantiateSubplanJoin((LogicalSubplanJoinNode) lj, p, plan1, plan2, outerCard);
+		}
 
-			try {
-				// dynamically load HashEquiJoin -- if it doesn't exist, just
-				// fall back on regular join
-				Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-				java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-				j = (OpIterator) ct
-					.newInstance(new Object[]{p, plan1, plan2});
-			} catch (Exception e) {
-				j = new Join(p, plan1, plan2);
-			}
+		BTreeFile index = plan2 instanceof SeqScan && !(lj instanceof LogicalSubplanJoinNode)
+			? indexOn(((SeqScan) plan2).getTableId(), t2id) : null;
+		if (outerCard >= 0 && index != null && SortMergeJoin.supports(lj.p)
+			&& (double) outerCard * estimateIndexProbePages(index) < index.numPages()) {
+			// 外表很小，对内表的每次索引查找只读几页
+			SeqScan scan = (SeqScan) plan2;
+			j = new IndexNestedLoopJoin(p, plan1, new BTreeScan(scan.getTransactionId(),
+				scan.getTableId(), scan.getAlias(), null));
+		} else if (SortMergeJoin.supports(lj.p) && (lj.p != Predicate.Op.EQUALS
+			|| SortMergeJoin.isSortedOn(plan1, t1id) && SortMergeJoin.isSortedOn(plan2, t2id))) {
+			// 范围连接先排序再归并(SortMergeJoin自己给无序的输入加OrderBy)；
+			// 等值连接只在两边都已有序时归并，否则用hash连接
+			j = new SortMergeJoin(p, plan1, plan2);
+		} else if (lj.p == Predicate.Op.EQUALS) {
+			j = new HashEquiJoin(p, plan1, plan2);
 		} else {
 			j = new Join(p, plan1, plan2);
 		}
@@ -88,6 +119,30 @@ public class JoinOptimizer {
 
 	}
 
+	/**
+	 * Return the iterator for an IN or NOT IN subquery: a semi-join (or
+	 * anti-join) that returns each tuple of plan1 at most once. When the
+	 * subquery just projects the key field of a BTreeFile and probing the
+	 * index once per outer tuple reads fewer pages than scanning it, the index
+	 * variant is chosen, as for {@link IndexNestedLoopJoin}; otherwise the
+	 * distinct keys of the subquery are hashed.
+	 */
+	private static OpIterator instantiateSubplanJoin(LogicalSubplanJoinNode lj, JoinPredicate p,
+													 OpIterator plan1, OpIterator plan2, int outerCard) {
+		if (outerCard >= 0 && plan2 instanceof Project && plan2.getTupleDesc().numFields() == 1) {
+			OpIterator child = ((Project) plan2).getChildren()[0];
+			int field = ((Project) plan2).getFieldList().get(0);
+			BTreeFile index = child instanceof SeqScan ? indexOn(((SeqScan) child).getTableId(), field) : null;
+			if (index != null && (double) outerCard * estimateIndexProbePages(index) < index.numPages()) {
+				SeqScan scan = (SeqScan) child;
+				JoinPredicate ip = new JoinPredicate(p.getField1(), p.getOperator(), field);
+				BTreeScan inner = new BTreeScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), null);
+				return lj.anti ? new IndexAntiJoin(ip, plan1, inner) : new IndexSemiJoin(ip, plan1, inner);
+			}
+		}
+		return lj.anti ? new AntiJoin(p, plan1, plan2) : new SemiJoin(p, plan1, plan2);
+	}
+
 	/**
 	 * Estimate the cost of a join.
 	 * <p>
@@ -110,17 +165,193 @@ public class JoinOptimizer {
 	 */
 	public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
 								   double cost1, double cost2) {
+		return estimateJoinCost(j, card1, card2, cost1, cost2, true, true);
+	}
+
+	/**
+	 * Estimate the cost of a join like
+	 * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)},
+	 * knowing whether each side is a base table or the result of earlier
+	 * joins. An {@link IndexNestedLoopJoin} is priced only where
+	 * {@link #instantiateJoin} would build one.
+	 *
+	 * @param outerBase true if the left-hand side is a base table
+	 * @param innerBase true if the right-hand side is a base table
+	 */
+	private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+									double cost1, double cost2, boolean outerBase, boolean innerBase) {
 		if (j instanceof LogicalSubplanJoinNode) {
 			// A LogicalSubplanJoinNode represents a subquery.
-			// You do not need to implement proper support for these for Lab 3.
+			if (j.p == Predicate.Op.EQUALS) {
+				// 半连接：子查询读一遍建hash表，外表读一遍，每行查一次
+				return cost1 + cost2 + card1 + card2;
+			}
 			return card1 + cost1 + cost2;
 		} else {
 			// Insert your code here.
 			// HINT: You may need to use the variable "j" if you implemented
 			// a join algorithm that's more complicated than a basic
 			// nested-loops join.
-			return cost1 + card1 * cost2 + card1 * card2;
+			double cost = cost1 + card1 * cost2 + card1 * card2;
+			if (SortMergeJoin.supports(j.p)) {
+				// 和instantiateJoin一样：范围连接总是排序后归并，
+				// 等值连接只在两边都已有序时归并
+				boolean sorted1 = isOrderedOn(j.t1Alias, j.f1PureName);
+				boolean sorted2 = isOrderedOn(j.t2Alias, j.f2PureName);
+				if (j.p != Predicate.Op.EQUALS) {
+					cost = estimateSortMergeJoinCost(j.p, card1, card2, cost1, cost2, sorted1, sorted2);
+				} else if (sorted1 && sorted2) {
+					cost = Math.min(cost, estimateSortMergeJoinCost(j.p, card1, card2,
+						cost1, cost2, true, true));
+				}
+			}
+			BTreeFile index = indexJoinIndex(j, card1, outerBase, innerBase);
+			if (index != null) {
+				// instantiateJoin在可以用索引时总是用它
+				cost = estimateIndexJoinCost(j.p, card1, card2, cost1, cost2, index);
+			}
+			return cost;
+		}
+	}
+
+	/**
+	 * Estimate the cost of a {@link SortMergeJoin}: one scan of each input,
+	 * sorting the inputs that are not already ordered on the join field, and
+	 * one comparison per input tuple while merging. Range predicates also pay
+	 * for each output tuple, since every buffered match is emitted, and, when
+	 * the right-hand side does not fit in {@link SortMergeJoin#MEMORY_TUPLES},
+	 * for writing the rest of it to disk once and reading it back for every
+	 * left tuple.
+	 *
+	 * @param op      the join predicate operator
+	 * @param card1   Estimated cardinality of the left-hand side of the query
+	 * @param card2   Estimated cardinality of the right-hand side of the query
+	 * @param cost1   Estimated cost of one full scan of the left-hand side
+	 * @param cost2   Estimated cost of one full scan of the right-hand side
+	 * @param sorted1 true if the left-hand side is ordered on its join field
+	 * @param sorted2 true if the right-hand side is ordered on its join field
+	 */
+	public static double estimateSortMergeJoinCost(Predicate.Op op, int card1, int card2,
+												   double cost1, double cost2, boolean sorted1, boolean sorted2) {
+		double cost = cost1 + cost2 + card1 + card2;
+		if (!sorted1) {
+			cost += sortCost(card1);
+		}
+		if (!sorted2) {
+			cost += sortCost(card2);
+		}
+		if (op != Predicate.Op.EQUALS) {
+			cost += 0.3 * card1 * card2;
+			int spilled = Math.max(0, card2 - SortMergeJoin.MEMORY_TUPLES);
+			cost += spilled + (double) card1 * spilled;
+		}
+		return cost;
+	}
+
+	/**
+	 * Estimate the cost of an {@link IndexNestedLoopJoin}: one scan of the
+	 * outer input and one index probe per outer tuple, each reading
+	 * {@link #estimateIndexProbePages} pages of the inner table. Range
+	 * predicates also pay for each output tuple.
+	 *
+	 * @param op    the join predicate operator
+	 * @param card1 Estimated cardinality of the outer side
+	 * @param card2 Estimated cardinality of the inner side
+	 * @param cost1 Estimated cost of one full scan of the outer side
+	 * @param cost2 Estimated cost of one full scan of the inner side
+	 * @param index the BTreeFile of the inner side
+	 */
+	public static double estimateIndexJoinCost(Predicate.Op op, int card1, int card2,
+											   double cost1, double cost2, BTreeFile index) {
+		double pageCost = cost2 / Math.max(1, index.numPages());
+		double cost = cost1 + card1 * estimateIndexProbePages(index) * pageCost + card1;
+		if (op != Predicate.Op.EQUALS) {
+			cost += 0.3 * card1 * card2;
 		}
+		return cost;
+	}
+
+	/**
+	 * Return the index {@link #instantiateJoin} would probe for j: the outer
+	 * side is a scan of a base table, so its cardinality is estimated, the
+	 * inner side is an unfiltered scan of a BTreeFile keyed on the join field,
+	 * and probing it once per outer tuple reads fewer pages than scanning it.
+	 *
+	 * @param card1     Estimated cardinality of the outer side
+	 * @param outerBase true if the outer side is a base table
+	 * @param innerBase true if the inner side is a base table
+	 * @return the index, or null if the join is not an index nested-loop join
+	 */
+	private BTreeFile indexJoinIndex(LogicalJoinNode j, int card1, boolean outerBase, boolean innerBase) {
+		if (!outerBase || !innerBase || !SortMergeJoin.supports(j.p) || p.hasFilter(j.t2Alias)) {
+			return null;
+		}
+		Integer outerId = p.getTableId(j.t1Alias);
+		if (outerId == null || p.getParallelism() > 1
+			&& Database.getCatalog().getDatabaseFile(outerId) instanceof HeapFile) {
+			// 并行计划中堆表的扫描在Gather之下，估计不了外表的基数
+			return null;
+		}
+		BTreeFile index = indexOn(j.t2Alias, j.f2PureName);
+		if (index == null || (double) card1 * estimateIndexProbePages(index) >= index.numPages()) {
+			return null;
+		}
+		return index;
+	}
+
+	/**
+	 * @return the estimated number of pages read by one probe of index: one
+	 * page per level of internal nodes plus the leaf
+	 */
+	public static double estimateIndexProbePages(BTreeFile index) {
+		Type keyType = index.getTupleDesc().getFieldType(index.keyField());
+		// 内部节点每个entry大约是一个key加一个子节点指针
+		double fanout = Math.max(2, BufferPool.getPageSize() / (keyType.getLen() + 4));
+		double height = Math.ceil(Math.log(Math.max(index.numPages(), 2)) / Math.log(fanout));
+		return height + 1;
+	}
+
+	/**
+	 * @return the BTreeFile of the table if it is keyed on field, otherwise null
+	 */
+	private static BTreeFile indexOn(int tableId, int field) {
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == field) {
+			return (BTreeFile) file;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the BTreeFile of the table with the specified alias if it is
+	 * keyed on the field with the specified pure name, otherwise null
+	 */
+	private BTreeFile indexOn(String tableAlias, String field) {
+		Integer tableId = tableAlias == null ? null : p.getTableId(tableAlias);
+		if (tableId == null) {
+			return null;
+		}
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (!(file instanceof BTreeFile)) {
+			return null;
+		}
+		BTreeFile index = (BTreeFile) file;
+		return file.getTupleDesc().getFieldName(index.keyField()).equals(field) ? index : null;
+	}
+
+	private static double sortCost(int card) {
+		return card * (Math.log(Math.max(card, 2)) / Math.log(2));
+	}
+
+	/**
+	 * Return true if scanning the table with the specified alias returns its
+	 * tuples in order of the field, i.e. the table is a BTreeFile keyed on it
+	 *
+	 * @param tableAlias The alias of the table in the query
+	 * @param field      The pure name of the field
+	 */
+	private boolean isOrderedOn(String tableAlias, String field) {
+		return indexOn(tableAlias, field) != null;
 	}
 
 	/**
@@ -139,8 +370,8 @@ public class JoinOptimizer {
 	public int estimateJoinCardinality(LogicalJoinNode j, int card1, int card2,
 									   boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
 		if (j instanceof LogicalSubplanJoinNode) {
-			// A LogicalSubplanJoinNode represents a subquery.
-			// You do not need to implement proper support for these for Lab 3.
+			// A LogicalSubplanJoinNode represents a subquery; each tuple of
+			// the outer side is returned at most once.
 			return card1;
 		} else {
 			return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
@@ -285,6 +516,8 @@ public class JoinOptimizer {
 		double t1cost, t2cost;
 		int t1card, t2card;
 		boolean leftPkey, rightPkey;
+		// 另一边是之前连接的结果时为false
+		boolean leftBase = true, rightBase = true;
 
 		if (news.isEmpty()) { // base case -- both are base relations
 			prevBest = new ArrayList<>();
@@ -320,6 +553,7 @@ public class JoinOptimizer {
 				// subtree is
 				t1card = bestCard;
 				leftPkey = hasPkey(prevBest);
+				leftBase = false;
 
 				t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
 					.estimateScanCost();
@@ -336,6 +570,7 @@ public class JoinOptimizer {
 				// subtree is
 				t2card = bestCard;
 				rightPkey = hasPkey(prevBest);
+				rightBase = false;
 				t1cost = stats.get(table1Name).estimateScanCost();
 				t1card = stats.get(table1Name).estimateTableCardinality(
 					filterSelectivities.get(j.t1Alias));
@@ -349,10 +584,10 @@ public class JoinOptimizer {
 		}
 
 		// case where prevbest is left
-		double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+		double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, leftBase, rightBase);
 
 		LogicalJoinNode j2 = j.swapInnerOuter();
-		double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+		double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, rightBase, leftBase);
 		if (cost2 < cost1) {
 			boolean tmp;
 			j = j2;
@@ -15,9 +15,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, a list of aggregates and a list
+ * of group by fields, all of which are computed by a single Aggregate
+ * operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,15 +32,25 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    // 分组列和聚合表达式，由同一个Aggregate一次扫描算出
+    private final List<String> groupByFields = new ArrayList<>();
+    private final List<LogicalSelectListNode> aggregates = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    // 没有LIMIT时为-1
+    private int limit = -1;
+    private int offset = 0;
+    private boolean distinct = false;
     private String query;
+    private int parallelism = DEFAULT_PARALLELISM;
 //    private Query owner;
 
+    /** Default degree of parallelism of physical plans, read from the
+        simpledb.parallelism system property; 1 runs every query on the
+        calling thread. */
+    public static final int DEFAULT_PARALLELISM = Math.max(1, Integer.getInteger("simpledb.parallelism", 1));
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
@@ -149,16 +159,49 @@ public class LogicalPlan {
      *      or is not in one of the tables added via {@link #addScan}
      */
     public void addJoin(String joinField1, OpIterator joinField2, Predicate.Op pred) throws ParsingException {
+        addJoin(joinField1, joinField2, pred, false);
+    }
+
+    /** Add a join between a field and a subquery, like
+     *  {@link #addJoin(String, OpIterator, Predicate.Op)}.
+     *  @param anti true to keep the tuples that have no match in the
+     *    subquery, as for NOT IN, instead of those that have one
+     */
+    public void addJoin(String joinField1, OpIterator joinField2, Predicate.Op pred, boolean anti) throws ParsingException {
         joinField1 = disambiguateName(joinField1);
 
         String table1 = joinField1.split("[.]")[0];
         String pureField = joinField1.split("[.]")[1];
 
-        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred);
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred, anti);
         System.out.println("Added subplan join on " + joinField1);
         joins.add(lj);
     }
 
+    /** Set the number of worker pipelines used to scan heap tables and to
+        aggregate in parallel.
+        @param parallelism the degree of parallelism; 1 disables parallelism
+    */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    /** @return the degree of parallelism of the physical plan */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return true if the plan filters the table with the specified alias */
+    boolean hasFilter(String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                return true;
+        }
+        return false;
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -189,21 +232,36 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once per aggregate expression; all
+        aggregates are computed together over the same GROUP BY fields.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or "*" for COUNT(*)
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        if (gfield != null)
+            addGroupBy(gfield);
         afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        if (afield.equals("*"))
+            afield="null.*";
         hasAgg = true;
+        for (LogicalSelectListNode agg : aggregates) {
+            if (agg.aggOp.equals(op) && agg.fname.equals(afield))
+                return;
+        }
+        aggregates.add(new LogicalSelectListNode(op, afield));
+    }
+
+    /** Add a field to the GROUP BY list of the query.  Fields are grouped on
+        in the order they are added.
+        @param gfield the field to group by
+     * @throws ParsingException
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
@@ -219,6 +277,41 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause to the query: only output rows offset through
+        offset + limit - 1 of the result.
+        @param limit the maximum number of rows to output
+        @param offset the number of rows to skip first
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0) {
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** Set whether duplicate rows are removed from the output, as in
+        SELECT DISTINCT. */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** @return true if duplicate rows are removed from the output */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    /** @return the LIMIT of the query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the OFFSET of the query */
+    public int getOffset() {
+        return offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -261,6 +354,152 @@ public class LogicalPlan {
 
     }
 
+    /** @return the qualified names of all fields the plan reads above the
+        scans, or null if the select list has a * */
+    private Set<String> referencedFields() {
+        Set<String> fields = new HashSet<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.aggOp == null && si.fname.equals("null.*"))
+                return null;
+            fields.add(si.fname);
+        }
+        for (LogicalSelectListNode agg : aggregates)
+            fields.add(agg.fname);
+        fields.addAll(groupByFields);
+        if (hasOrderBy)
+            fields.add(oByField);
+        for (LogicalJoinNode lj : joins) {
+            fields.add(lj.f1QuantifiedName);
+            fields.add(lj.f2QuantifiedName);
+        }
+        return fields;
+    }
+
+    /** @return the columns of a scan with one of the given names, or null if
+        that is all of them; at least one column is kept for COUNT(*) */
+    private static int[] projectedColumns(TupleDesc td, Set<String> names) {
+        List<Integer> columns = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(td.getFieldName(i)))
+                columns.add(i);
+        }
+        if (columns.size() == td.numFields())
+            return null;
+        if (columns.isEmpty())
+            columns.add(0);
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = columns.get(i);
+        return result;
+    }
+
+    /** @return the SeqScan of a plan of filters over a scan of a heap table,
+        or null if the plan is anything else */
+    private static SeqScan heapScanOf(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (plan instanceof SeqScan && Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId()) instanceof HeapFile)
+            return (SeqScan) plan;
+        return null;
+    }
+
+    /** @return parallelism copies of a plan of filters over a scan, the
+        scans sharing morsels */
+    private OpIterator[] parallelCopies(OpIterator plan, Morsels morsels) {
+        OpIterator[] copies = new OpIterator[parallelism];
+        for (int i = 0; i < copies.length; i++)
+            copies[i] = copyPipeline(plan, morsels);
+        return copies;
+    }
+
+    private static OpIterator copyPipeline(OpIterator plan, Morsels morsels) {
+        if (plan instanceof Filter) {
+            Filter f = (Filter) plan;
+            return new Filter(f.getPredicates(), copyPipeline(f.getChildren()[0], morsels));
+        }
+        SeqScan s = (SeqScan) plan;
+        SeqScan copy = new SeqScan(s.getTransactionId(), s.getTableId(), s.getAlias(), morsels);
+        if (!s.getPushedPredicates().isEmpty() || s.getColumns() != null)
+            copy.pushDown(s.getPushedPredicates(), s.getColumns());
+        return copy;
+    }
+
+    /** @return the estimated cardinality of a plan of filters over a scan
+        of a single table, possibly run in parallel under a Gather, or -1 if
+        the plan is anything else */
+    private int parallelCardinality(OpIterator plan, String alias, Map<String, TableStats> statsMap,
+                                    Map<String, Double> filterSelectivities) throws ParsingException {
+        OpIterator pipeline = plan instanceof Gather ? ((Gather) plan).getChildren()[0] : plan;
+        if (heapScanOf(pipeline) == null)
+            return -1;
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+        return s.estimateTableCardinality(filterSelectivities.get(alias));
+    }
+
+    /** Plan an equi-join as a {@link ParallelHashJoin} when one input is
+        run in parallel under a Gather and the other, the build side, is
+        estimated to fit into the memory budget of a {@link HashEquiJoin}.
+        The probe pipelines of the input under the Gather each probe the
+        shared table, so that joins of a large table with several small
+        ones all run in the same parallel pipelines.
+        @param card1 the estimated cardinality of plan1, or -1 if unknown
+        @param card2 the estimated cardinality of plan2, or -1 if unknown
+        @return a Gather over the probes, or null to keep the serial join */
+    private OpIterator parallelHashJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2,
+                                        int card1, int card2) {
+        boolean buildLeft;
+        if (plan1 instanceof Gather && plan2 instanceof Gather)
+            // 两边都并行时在较小(已知)的一边建表
+            buildLeft = card1 >= 0 && (card2 < 0 || card1 <= card2);
+        else if (plan2 instanceof Gather)
+            buildLeft = true;
+        else if (plan1 instanceof Gather)
+            buildLeft = false;
+        else
+            return null;
+        int buildCard = buildLeft ? card1 : card2;
+        if (buildCard < 0 || buildCard > HashEquiJoin.MAP_SIZE)
+            return null;
+
+        if (plan1.getTupleDesc().getFieldType(p.getField1()) != plan2.getTupleDesc().getFieldType(p.getField2()))
+            return null;
+
+        OpIterator build = buildLeft ? plan1 : plan2;
+        Gather probe = (Gather) (buildLeft ? plan2 : plan1);
+        JoinHashTable table;
+        if (build instanceof Gather)
+            table = new JoinHashTable(((Gather) build).getChildren(), ((Gather) build).getMorsels(),
+                    buildLeft ? p.getField1() : p.getField2(), parallelism);
+        else
+            table = new JoinHashTable(new OpIterator[]{build}, null,
+                    buildLeft ? p.getField1() : p.getField2(), parallelism);
+        OpIterator[] probes = probe.getChildren();
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = new ParallelHashJoin(p, table, probes[i], buildLeft);
+        return new Gather(probes, probe.getMorsels());
+    }
+
+    private int aggregateIndex(LogicalSelectListNode si) throws ParsingException {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode agg = aggregates.get(i);
+            if (agg.aggOp.equals(si.aggOp) && agg.fname.equals(si.fname))
+                return i;
+        }
+        throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+    }
+
+    private static int fieldIndex(TupleDesc td, String fname, String where) throws ParsingException {
+        try {
+            return td.fieldNameToIndex(fname);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + fname + " in " + where);
+        }
+    }
+
+    private static Type fieldType(TupleDesc td, String fname, String where) throws ParsingException {
+        return td.getFieldType(fieldIndex(td, fname, where));
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -292,6 +531,8 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        // 下推到堆表扫描里的过滤条件
+        Map<String,List<Predicate>> pushedFilters = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -335,7 +576,19 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan
+                    && Database.getCatalog().getDatabaseFile(((SeqScan) subplan).getTableId()) instanceof HeapFile) {
+                // 在页上直接求值，见下面的pushDown
+                pushedFilters.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
+            } else if (subplan instanceof Filter) {
+                // 同一张表上的条件合成一个Filter，编译成一个求值器
+                Filter prev = (Filter) subplan;
+                List<Predicate> conjuncts = new ArrayList<>(prev.getPredicates());
+                conjuncts.add(p);
+                subplanMap.put(lf.tableAlias, new Filter(conjuncts, prev.getChildren()[0]));
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -344,7 +597,32 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // 堆表扫描只解码用到的列，并在页上求值过滤条件
+        Set<String> referenced = referencedFields();
+        for (Map.Entry<String, OpIterator> e : subplanMap.entrySet()) {
+            if (!(e.getValue() instanceof SeqScan))
+                continue;
+            SeqScan scan = (SeqScan) e.getValue();
+            if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+                continue;
+            List<Predicate> preds = pushedFilters.getOrDefault(e.getKey(), Collections.emptyList());
+            int[] columns = referenced == null ? null : projectedColumns(scan.getTupleDesc(), referenced);
+            if (!preds.isEmpty() || columns != null)
+                scan.pushDown(preds, columns);
+        }
         
+        if (parallelism > 1 && !joins.isEmpty()) {
+            // 有连接时只并行各表的扫描和过滤，汇总后再连接
+            for (Map.Entry<String, OpIterator> e : subplanMap.entrySet()) {
+                SeqScan scan = heapScanOf(e.getValue());
+                if (scan != null) {
+                    Morsels morsels = SeqScan.morsels(scan.getTableId());
+                    e.setValue(new Gather(parallelCopies(e.getValue(), morsels), morsels));
+                }
+            }
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -380,8 +658,22 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            // 外表还是单表(扫描或过滤)时可以估计它的基数，供选择索引嵌套循环连接
+            int outerCard = -1;
+            if (plan1 instanceof SeqScan || plan1 instanceof Filter) {
+                TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(t1name)));
+                outerCard = s.estimateTableCardinality(filterSelectivities.get(t1name));
+            }
+
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, outerCard);
+            if (parallelism > 1 && !isSubqueryJoin && j instanceof HashEquiJoin) {
+                OpIterator pj = parallelHashJoin(((HashEquiJoin) j).getJoinPredicate(), plan1, plan2,
+                        parallelCardinality(plan1, t1name, statsMap, filterSelectivities),
+                        parallelCardinality(plan2, t2name, statsMap, filterSelectivities));
+                if (pj != null)
+                    j = pj;
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -406,6 +698,11 @@ public class LogicalPlan {
         }
         
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        // 单表查询时整条流水线都可以并行
+        SeqScan parallelScan = parallelism > 1 && joins.isEmpty() ? heapScanOf(node) : null;
+        Morsels morsels = parallelScan == null ? null : SeqScan.morsels(parallelScan.getTableId());
+        // 输出列名与child不同时才设置
+        TupleDesc outTd = null;
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -413,30 +710,17 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
-                }
+                // 聚合结果排在所有分组列之后
+                outFields.add(groupByFields.size() + aggregateIndex(si));
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
-                    TupleDesc td = node.getTupleDesc();
-                    int  id;
-                    try {
-                        id = td.fieldNameToIndex(groupByField);
-                    } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
-                    }
-                    outTypes.add(td.getFieldType(id));
+                    outFields.add(g);
+                    outTypes.add(fieldType(node.getTupleDesc(), si.fname, "GROUP BY statement"));
             } else if (si.fname.equals("null.*")) {
                     TupleDesc td = node.getTupleDesc();
                     for ( i = 0; i < td.numFields(); i++) {
@@ -459,25 +743,118 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int[] gfields = new int[groupByFields.size()];
+            for (int i = 0; i < gfields.length; i++) {
+                gfields[i] = fieldIndex(td, groupByFields.get(i), "GROUP BY statement");
+            }
+            int[] afields = new int[aggregates.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+            for (int i = 0; i < afields.length; i++) {
+                LogicalSelectListNode agg = aggregates.get(i);
+                aops[i] = getAggOp(agg.aggOp);
+                if (agg.fname.equals("null.*")) {
+                    // COUNT(*)只数行数，任取一列
+                    if (aops[i] != Aggregator.Op.COUNT)
+                        throw new ParsingException(agg.aggOp + "(*) is not supported");
+                    afields[i] = 0;
+                } else {
+                    afields[i] = fieldIndex(td, agg.fname, "SELECT list");
+                }
+            }
+            OpIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                if (parallelScan != null && gfields.length > 0) {
+                    // 按分组列重分区，每个分区的组是完整的，各自聚合后汇总
+                    Repartition[] parts = Repartition.partition(parallelCopies(node, morsels), morsels,
+                            gfields, parallelism);
+                    OpIterator[] partials = new OpIterator[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        partials[i] = new Aggregate(parts[i], afields, gfields, aops);
+                    }
+                    aggNode = new Gather(partials);
+                } else if (parallelScan != null && !Arrays.asList(aops).contains(Aggregator.Op.AVG)) {
+                    // 每个流水线先算部分聚合，汇总后再合并；COUNT的合并是求和
+                    OpIterator[] partials = parallelCopies(node, morsels);
+                    for (int i = 0; i < partials.length; i++) {
+                        partials[i] = new Aggregate(partials[i], afields, gfields, aops);
+                    }
+                    int[] mergeFields = new int[aops.length];
+                    Aggregator.Op[] mergeOps = new Aggregator.Op[aops.length];
+                    String[] names = new String[aops.length];
+                    for (int i = 0; i < aops.length; i++) {
+                        mergeFields[i] = i;
+                        mergeOps[i] = aops[i] == Aggregator.Op.COUNT ? Aggregator.Op.SUM : aops[i];
+                        names[i] = Aggregate.nameOfAggregatorOp(aops[i]) + "(" + td.getFieldName(afields[i]) + ")";
+                    }
+                    aggNode = new Aggregate(new Gather(partials, morsels), mergeFields, gfields, mergeOps);
+                    // 输出列名和串行计划一致
+                    String[] outNames = new String[outFields.size()];
+                    for (int i = 0; i < outNames.length; i++) {
+                        outNames[i] = names[outFields.get(i)];
+                    }
+                    outTd = new TupleDesc(outTypes.toArray(new Type[0]), outNames);
+                } else if (parallelScan != null) {
+                    aggNode = new Aggregate(new Gather(parallelCopies(node, morsels), morsels), afields, gfields, aops);
+                } else if (gfields.length == 1 && StreamAggregate.isGroupedOn(node, gfields[0])) {
+                    // 输入已按分组列有序，不用建hash表
+                    aggNode = new StreamAggregate(node, afields, gfields, aops);
+                } else {
+                    aggNode = new Aggregate(node, afields, gfields, aops);
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
+        } else if (parallelScan != null) {
+            if (!hasOrderBy && limit < 0) {
+                // 投影也放进各个流水线
+                OpIterator[] pipelines = parallelCopies(node, morsels);
+                for (int i = 0; i < pipelines.length; i++) {
+                    pipelines[i] = new Project(outFields, outTypes, pipelines[i]);
+                }
+                Gather gather = new Gather(pipelines, morsels);
+                return distinct ? new Distinct(gather) : gather;
+            }
+            node = new Gather(parallelCopies(node, morsels), morsels);
         }
 
-        if (hasOrderBy) {
+        if (distinct) {
+            return distinctPlan(node, outFields, outTypes, outTd);
+        }
+
+        if (hasOrderBy && limit >= 0) {
+            // 只需要前offset+limit行，用有界堆代替全排序
+            node = new TopN(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, limit, offset, node);
+        } else if (hasOrderBy) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
+        if (outTd != null)
+            return new Project(outFields, outTd, node);
         return new Project(outFields, outTypes, node);
     }
 
+    /** 先投影再去重，ORDER BY和LIMIT作用在去重后的结果上；
+        先排序的话去重只需记住排序值相同的行 */
+    private OpIterator distinctPlan(OpIterator node, List<Integer> outFields, List<Type> outTypes,
+                                    TupleDesc outTd) throws ParsingException {
+        int sortedField = -1;
+        if (hasOrderBy) {
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            sortedField = outFields.indexOf(field);
+            if (sortedField < 0)
+                throw new ParsingException("ORDER BY field " + oByField + " must appear in the SELECT DISTINCT list");
+            node = new OrderBy(field, oByAsc, node);
+        }
+        node = outTd != null ? new Project(outFields, outTd, node) : new Project(outFields, outTypes, node);
+        node = sortedField >= 0 ? Distinct.sorted(node, sortedField) : new Distinct(node);
+        if (limit >= 0)
+            node = new Limit(limit, offset, node);
+        return node;
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
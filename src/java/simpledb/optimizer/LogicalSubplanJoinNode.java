@@ -11,8 +11,15 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
     /** The subplan (used on the inner) of the join */
     final OpIterator subPlan;
+
+    /** True for NOT IN: the tuples of table1 without a match are kept */
+    final boolean anti;
     
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, false);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred, boolean anti) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -22,6 +29,7 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.anti = anti;
     }
     
     @Override public int hashCode() {
@@ -33,11 +41,11 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan) && ((LogicalSubplanJoinNode)o).anti == anti);
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, anti);
     }
 
 }
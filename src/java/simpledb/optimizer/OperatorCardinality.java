@@ -29,11 +29,20 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof ParallelHashJoin) {
+            ParallelHashJoin j = (ParallelHashJoin) o;
+            return updateHashEquiJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof SemiJoin || o instanceof IndexSemiJoin) {
+            return updateSemiJoinCardinality(o, tableAliasToId, tableStats);
         } else {
             OpIterator[] children = o.getChildren();
             int childC = 1;
@@ -44,34 +53,55 @@ public class OperatorCardinality {
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
                 } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                    childC = scanCardinality((SeqScan) children[0], tableStats);
                 }
             }
+            if (o instanceof Limit) {
+                childC = Math.max(0, Math.min(childC - ((Limit) o).getOffset(), ((Limit) o).getLimit()));
+            } else if (o instanceof TopN) {
+                childC = Math.max(0, Math.min(childC - ((TopN) o).getOffset(), ((TopN) o).getLimit()));
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
     }
 
+    /**
+     * @return the estimated cardinality of a scan, with the selectivity of
+     *         the predicates pushed down into it
+     */
+    private static int scanCardinality(SeqScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        double selectivity = 1.0;
+        for (Predicate p : s.getPushedPredicates()) {
+            selectivity *= stats.estimateSelectivity(p.getField(), p.getOp(),
+                    p.getOperand());
+        }
+        return stats.estimateTableCardinality(selectivity);
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
-        Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
+        String[] tmp = child.getTupleDesc().getFieldName(f.getPredicate().getField())
                 .split("[.]");
         String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
         Integer tableId = tableAliasToId.get(tableAlias);
         double selectivity = 1.0;
         if (tableId != null) {
-            selectivity = tableStats.get(
-                    Database.getCatalog().getTableName(tableId))
-                    .estimateSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            pred.getOp(), pred.getOperand());
+            // 各个条件的选择率相乘
+            for (Predicate pred : f.getPredicates()) {
+                String pureFieldName = child.getTupleDesc().getFieldName(pred.getField())
+                        .split("[.]")[1];
+                selectivity *= tableStats.get(
+                        Database.getCatalog().getTableName(tableId))
+                        .estimateSelectivity(
+                                Database.getCatalog().getTupleDesc(tableId)
+                                        .fieldNameToIndex(pureFieldName),
+                                pred.getOp(), pred.getOperand());
+            }
             if (child instanceof Operator) {
                 Operator oChild = (Operator) child;
                 boolean hasJoinPK = updateOperatorCardinality(oChild,
@@ -80,9 +110,8 @@ public class OperatorCardinality {
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
             } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        (SeqScan) child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -123,8 +152,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -135,8 +163,7 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -146,7 +173,9 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
+    private static boolean updateHashEquiJoinCardinality(Operator j,
+                                                         JoinPredicate predicate,
+                                                         String field1Name, String field2Name,
                                                          Map<String, Integer> tableAliasToId,
                                                          Map<String, TableStats> tableStats) {
 
@@ -156,10 +185,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -178,8 +207,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -190,17 +218,38 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                predicate.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    /**
+     * A semi-join or anti-join returns each tuple of its first child at most
+     * once, so its cardinality is at most that of the first child.
+     */
+    private static boolean updateSemiJoinCardinality(Operator j,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator[] children = j.getChildren();
+        boolean hasJoinPK = false;
+        int childC = 1;
+        if (children[0] instanceof Operator) {
+            hasJoinPK = updateOperatorCardinality((Operator) children[0],
+                    tableAliasToId, tableStats);
+            childC = ((Operator) children[0]).getEstimatedCardinality();
+        } else if (children[0] instanceof SeqScan) {
+            childC = scanCardinality((SeqScan) children[0], tableStats);
+        }
+        // 子查询的表不在tableAliasToId中，不估计第二个child
+        j.setEstimatedCardinality(childC);
+        return hasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -220,28 +269,27 @@ public class OperatorCardinality {
         }
 
         if (child instanceof SeqScan) {
-            childCard = tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0);
+            childCard = scanCardinality((SeqScan) child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // 多列分组时各列的不同值个数相乘，不超过输入基数
+        double groups = 1.0;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = a.getTupleDesc().getFieldName(i).split("[.]");
+            Integer tableId = tmp.length == 2 ? tableAliasToId.get(tmp[0]) : null;
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
+                                    .fieldNameToIndex(tmp[1]),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
         return hasJoinPK;
     }
 }
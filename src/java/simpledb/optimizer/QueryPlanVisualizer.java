@@ -4,6 +4,7 @@ import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import simpledb.common.Database;
 import simpledb.execution.*;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
@@ -12,11 +13,15 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
+    static final String DISTINCT = "δ";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -29,7 +34,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof ParallelHashJoin
+                || o instanceof SemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -76,8 +82,19 @@ public class QueryPlanVisualizer {
                 alias = " " + alias;
             else
                 alias = "";
+            StringBuilder pushed = new StringBuilder();
+            for (Predicate p : s.getPushedPredicates()) {
+                pushed.append(pushed.length() == 0 ? "," + SELECT + "(" : " AND ")
+                        .append(alias.isEmpty() ? tableName : alias.trim())
+                        .append('.')
+                        .append(Database.getCatalog().getTupleDesc(s.getTableId())
+                                .getFieldName(p.getField()))
+                        .append(p.getOp()).append(p.getOperand());
+            }
+            if (pushed.length() > 0)
+                pushed.append(')');
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s%3$s)", SCAN, tableName + alias, pushed);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -138,15 +155,15 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof ParallelHashJoin) {
+                JoinPredicate jp = plan instanceof HashEquiJoin ? ((HashEquiJoin) plan).getJoinPredicate()
+                        : ((ParallelHashJoin) plan).getJoinPredicate();
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
                 thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = HASH_JOIN.length() / 2;
@@ -167,21 +184,76 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof SemiJoin) {
+                SemiJoin j = (SemiJoin) plan;
+                String name = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name, j.getJoinField1Name()
+                        + j.getJoinPredicate().getOperator() + j.getJoinField2Name(), j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
+            }
+            else if (plan instanceof IndexSemiJoin) {
+                // 索引一侧不是完整的子树，只画child1
+                IndexSemiJoin j = (IndexSemiJoin) plan;
+                String name = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                thisNode.text = String.format("%1$s(%2$s,index),card:%3$d", name, j.getJoinField1Name()
+                        + j.getJoinPredicate().getOperator() + j.getJoinField2Name(), j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                int numGroupFields = a.groupFields().length;
+                // 输出列名已经是op(field)的形式
+                StringBuilder aggs = new StringBuilder();
+                for (int i = numGroupFields; i < td.numFields(); i++) {
+                    aggs.append(i > numGroupFields ? ", " : "").append(td.getFieldName(i));
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int i = 0; i < numGroupFields; i++) {
+                        groups.append(i > 0 ? ", " : "").append(td.getFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -200,11 +272,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                StringBuilder conjuncts = new StringBuilder();
+                for (Predicate p : f.getPredicates()) {
+                    if (conjuncts.length() > 0)
+                        conjuncts.append(" AND ");
+                    conjuncts.append(children[0].getTupleDesc().getFieldName(p.getField()))
+                            .append(p.getOp()).append(p.getOperand());
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, conjuncts,
+                        f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -240,6 +316,40 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit || plan instanceof Distinct) {
+                String name = plan instanceof TopN ? ORDERBY : plan instanceof Limit ? LIMIT : DISTINCT;
+                if (plan instanceof Distinct) {
+                    Distinct d = (Distinct) plan;
+                    thisNode.text = d.getSortedField() < 0
+                            ? String.format("%1$s,card:%2$d", DISTINCT, d.getEstimatedCardinality())
+                            : String.format("%1$s(sorted:%2$s),card:%3$d", DISTINCT,
+                                    children[0].getTupleDesc().getFieldName(d.getSortedField()),
+                                    d.getEstimatedCardinality());
+                } else if (plan instanceof TopN) {
+                    TopN t = (TopN) plan;
+                    thisNode.text = String.format("%1$s(%2$s),limit:%3$d,offset:%4$d,card:%5$d",
+                            ORDERBY,
+                            children[0].getTupleDesc().getFieldName(t.getOrderByField()),
+                            t.getLimit(), t.getOffset(), t.getEstimatedCardinality());
+                } else {
+                    Limit l = (Limit) plan;
+                    thisNode.text = String.format("%1$s(%2$d),offset:%3$d,card:%4$d",
+                            LIMIT, l.getLimit(), l.getOffset(), l.getEstimatedCardinality());
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 StringBuilder fields = new StringBuilder();
@@ -263,15 +373,10 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name="Exchange";
-                int card=0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } 
+            else if (plan instanceof Exchange) {
+                // 并行的各条流水线相同，只画第一条
+                String name = ((Exchange) plan).getName();
+                int card = ((Exchange) plan).getEstimatedCardinality();
 
                 thisNode.text = String.format("%1$s,card:%2$d", name,card);
                 int upBarShift = parentUpperBarStartShift;
@@ -2,6 +2,7 @@ package simpledb.optimizer;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
@@ -101,18 +102,18 @@ public class TableStats {
 				Tuple tuple = dbFileIterator.next();
 				tupleCount += 1;
 				for (int i = 0; i < tupleDesc.numFields(); i++) {
-					if (tuple.getField(i) instanceof IntField) {
-						IntField intField = (IntField) tuple.getField(i);
+					if (tupleDesc.getFieldType(i) == Type.INT_TYPE) {
+						int value = tuple.getInt(i);
 						if (fieldIndexWithIntHistogram.containsKey(i)) {
 							IntFieldHistogram intFieldHistogram = fieldIndexWithIntHistogram.get(i);
-							intFieldHistogram.values.add(intField.getValue());
-							intFieldHistogram.max = Math.max(intField.getValue(), intFieldHistogram.max);
-							intFieldHistogram.min = Math.min(intField.getValue(), intFieldHistogram.min);
+							intFieldHistogram.values.add(value);
+							intFieldHistogram.max = Math.max(value, intFieldHistogram.max);
+							intFieldHistogram.min = Math.min(value, intFieldHistogram.min);
 						} else {
 							IntFieldHistogram intFieldHistogram = new IntFieldHistogram();
-							intFieldHistogram.values.add(intField.getValue());
-							intFieldHistogram.max = intField.getValue();
-							intFieldHistogram.min = intField.getValue();
+							intFieldHistogram.values.add(value);
+							intFieldHistogram.max = value;
+							intFieldHistogram.min = value;
 							fieldIndexWithIntHistogram.put(i, intFieldHistogram);
 						}
 					} else {
@@ -25,6 +25,31 @@ public abstract class AbstractDbFileIterator implements DbFileIterator {
         return result;
     }
 
+    /**
+     * Fill a batch from {@link #next()}, for subclasses whose
+     * {@link #nextBatch(TupleDesc)} is called after tuples have been read
+     * one at a time.
+     */
+    protected TupleBatch nextBatchByRow(TupleDesc td)
+            throws DbException, TransactionAbortedException {
+        TupleBatch batch = null;
+        while (hasNext()) {
+            if (batch == null) {
+                batch = new TupleBatch(td);
+            }
+            batch.addTuple(next());
+            if (batch.isFull()) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /** @return true if hasNext() has read a tuple that next() has not returned */
+    protected boolean hasReadAhead() {
+        return next != null;
+    }
+
     /** If subclasses override this, they should call super.close(). */
     public void close() {
         // Ensures that a future call to next() will fail
@@ -3,6 +3,9 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.index.BTreeKeyRange;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -32,6 +35,26 @@ public class BufferPool {
 	private ConcurrentHashMap<PageId, Page> idWithPage;
 	private Deque<PageId> pageIds;
 	private int numPages;
+	private final LockManager lockManager;
+	// 事务第一次以READ_WRITE取到某页时该页的内容，abort时用来恢复
+	private final Map<TransactionId, Map<PageId, Page>> beforeImages;
+	// 事务在只加了行锁的页上插入、删除的行，最近的在前，abort时逐行撤销
+	private final Map<TransactionId, Deque<RowChange>> rowChanges;
+	// 事务修改过的页，提交时写回。行锁下同一页可能被几个事务修改
+	private final Map<TransactionId, Set<PageId>> dirtied;
+
+	/**
+	 * 行锁下的一次插入或删除
+	 */
+	private static class RowChange {
+		final Tuple tuple;
+		final boolean inserted;
+
+		RowChange(Tuple tuple, boolean inserted) {
+			this.tuple = tuple;
+			this.inserted = inserted;
+		}
+	}
 
 	/**
 	 * Default number of pages passed to the constructor. This is used by
@@ -46,9 +69,36 @@ public class BufferPool {
 	 * @param numPages maximum number of pages in this buffer pool.
 	 */
 	public BufferPool(int numPages) {
+		this(numPages, DeadlockPolicy.DETECTION);
+	}
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages and resolves lock
+	 * conflicts with the given deadlock policy.
+	 *
+	 * @param numPages maximum number of pages in this buffer pool.
+	 * @param policy   how lock conflicts that may deadlock are handled.
+	 */
+	public BufferPool(int numPages, DeadlockPolicy policy) {
 		this.numPages = numPages;
 		idWithPage = new ConcurrentHashMap<>(numPages);
 		pageIds = new ArrayDeque<>();
+		lockManager = new LockManager(policy);
+		beforeImages = new HashMap<>();
+		rowChanges = new HashMap<>();
+		dirtied = new HashMap<>();
+	}
+
+	public DeadlockPolicy getDeadlockPolicy() {
+		return lockManager.getPolicy();
+	}
+
+	/**
+	 * Change how lock conflicts are resolved. Should be called while no
+	 * transaction is running.
+	 */
+	public void setDeadlockPolicy(DeadlockPolicy policy) {
+		lockManager.setPolicy(policy);
 	}
 
 	public static int getPageSize() {
@@ -82,20 +132,142 @@ public class BufferPool {
 	 */
 	public Page getPage(TransactionId tid, PageId pid, Permissions perm)
 		throws TransactionAbortedException, DbException {
-		int tableId = pid.getTableId();
-		if (!idWithPage.containsKey(pid)) {
-			Page page = Database.getCatalog().getDatabaseFile(tableId).readPage(pid);
-			if (idWithPage.size() > DEFAULT_PAGES) {
-				PageId lastUsedPageId = pageIds.removeLast();
-				discardPage(lastUsedPageId);
+		// 加锁可能阻塞，不能放在BufferPool的同步块里；perm为null表示调用方已经持有行锁，
+		// 不再加锁，但被wound的事务仍然要在这里abort
+		if (perm != null) {
+			lockManager.acquireLock(tid, pid, perm);
+		} else {
+			checkWounded(tid);
+		}
+		synchronized (this) {
+			Page page = fetchPage(pid);
+			if (perm == Permissions.READ_WRITE) {
+				saveBeforeImage(tid, page);
 			}
-			idWithPage.put(pid, page);
-			pageIds.addFirst(pid);
 			return page;
 		}
-		pageIds.remove(pid);
+	}
+
+	/**
+	 * 从缓存中取页，不在缓存中时从磁盘读入，缓存满了换出最久没用的干净页
+	 */
+	private synchronized Page fetchPage(PageId pid) throws DbException {
+		Page page = idWithPage.get(pid);
+		if (page == null) {
+			if (idWithPage.size() >= numPages) {
+				evictPage();
+			}
+			page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+			idWithPage.put(pid, page);
+		} else {
+			pageIds.remove(pid);
+		}
 		pageIds.addFirst(pid);
-		return idWithPage.get(pid);
+		return page;
+	}
+
+	/**
+	 * 事务第一次以排他锁取到页时记下页的内容。此时没有别的事务在修改这一页，
+	 * 之前修改过它的事务都已经提交或者回滚，所以这就是abort时要恢复成的内容
+	 */
+	private void saveBeforeImage(TransactionId tid, Page page) {
+		Map<PageId, Page> images = beforeImages.computeIfAbsent(tid, k -> new HashMap<>());
+		if (!images.containsKey(page.getId())) {
+			page.setBeforeImage();
+			images.put(page.getId(), page.getBeforeImage());
+		}
+	}
+
+	/**
+	 * Throw if tid has been wounded by an older transaction under
+	 * {@link DeadlockPolicy#WOUND_WAIT}, so that a victim that already holds
+	 * every lock it needs still aborts at its next page access.
+	 */
+	private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+		if (tid != null && lockManager.isWounded(tid)) {
+			throw new TransactionAbortedException();
+		}
+	}
+
+	/**
+	 * Retrieve the specified page under an intention lock only. The caller
+	 * locks each row it reads or changes with {@link #lockTuple}, and must
+	 * hold the page's monitor while reading or changing its slots.
+	 *
+	 * @param tid  the ID of the transaction requesting the page
+	 * @param pid  the ID of the requested page
+	 * @param perm READ_ONLY to read rows of the page, READ_WRITE to change them
+	 */
+	public Page getPageForRows(TransactionId tid, PageId pid, Permissions perm)
+		throws TransactionAbortedException, DbException {
+		lockManager.acquireIntentionLock(tid, pid, perm);
+		return getPage(tid, pid, null);
+	}
+
+	/**
+	 * Acquire a row lock on behalf of tid, together with the matching
+	 * intention lock on the row's page. The locks are held until the
+	 * transaction completes. May block if a conflicting lock is held by
+	 * another transaction.
+	 * <p>
+	 * Callers then fetch the page with {@link #getPage} and a null permission,
+	 * and must hold the page's monitor while changing its slots.
+	 *
+	 * @param tid  the ID of the transaction requesting the lock
+	 * @param rid  the row to lock
+	 * @param perm READ_ONLY to read the row, READ_WRITE to change or delete it
+	 */
+	public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+		throws TransactionAbortedException {
+		lockManager.acquireTupleLock(tid, rid, perm);
+	}
+
+	/**
+	 * Return true if the specified transaction has a lock on the specified row
+	 */
+	public boolean holdsTupleLock(TransactionId tid, RecordId rid) {
+		return lockManager.holdsTupleLock(tid, rid);
+	}
+
+	/**
+	 * Acquire a next-key lock on a range of a B+ tree index on behalf of tid.
+	 * The lock is held until the transaction completes. May block if a
+	 * conflicting lock is held by another transaction.
+	 *
+	 * @param tid   the ID of the transaction requesting the lock
+	 * @param range the key plus the gap up to the next key
+	 * @param perm  READ_ONLY for scans, READ_WRITE for inserted keys
+	 */
+	public void acquireKeyRangeLock(TransactionId tid, BTreeKeyRange range, Permissions perm)
+		throws TransactionAbortedException {
+		lockManager.acquireKeyRangeLock(tid, range, perm);
+	}
+
+	/**
+	 * Block until no other transaction holds a lock on the given key range,
+	 * without keeping a lock on it. Inserts call this on the gap the new key
+	 * falls into.
+	 *
+	 * @param tid   the ID of the inserting transaction
+	 * @param range the range the new key falls into
+	 */
+	public void waitForKeyRange(TransactionId tid, BTreeKeyRange range)
+		throws TransactionAbortedException {
+		lockManager.waitForKeyRange(tid, range);
+	}
+
+	/**
+	 * Return true if a transaction other than tid has a lock on the specified key range
+	 */
+	public boolean isKeyRangeLockedByOthers(TransactionId tid, BTreeKeyRange range) {
+		return lockManager.isKeyRangeLockedByOthers(tid, range);
+	}
+
+	/**
+	 * Return true if the specified transaction has a lock on the specified key range
+	 */
+	public boolean holdsKeyRangeLock(TransactionId tid, BTreeKeyRange range) {
+		return lockManager.holdsKeyRangeLock(tid, range);
 	}
 
 	/**
@@ -108,8 +280,7 @@ public class BufferPool {
 	 * @param pid the ID of the page to unlock
 	 */
 	public void unsafeReleasePage(TransactionId tid, PageId pid) {
-		// some code goes here
-		// not necessary for lab1|lab2
+		lockManager.releaseLock(tid, pid);
 	}
 
 	/**
@@ -118,17 +289,14 @@ public class BufferPool {
 	 * @param tid the ID of the transaction requesting the unlock
 	 */
 	public void transactionComplete(TransactionId tid) {
-		// some code goes here
-		// not necessary for lab1|lab2
+		transactionComplete(tid, true);
 	}
 
 	/**
 	 * Return true if the specified transaction has a lock on the specified page
 	 */
 	public boolean holdsLock(TransactionId tid, PageId p) {
-		// some code goes here
-		// not necessary for lab1|lab2
-		return false;
+		return lockManager.holdsLock(tid, p);
 	}
 
 	/**
@@ -139,8 +307,107 @@ public class BufferPool {
 	 * @param commit a flag indicating whether we should commit or abort
 	 */
 	public void transactionComplete(TransactionId tid, boolean commit) {
-		// some code goes here
-		// not necessary for lab1|lab2
+		// 先把页恢复或写回，再放锁，其他事务拿到锁后看到的就是提交后或回滚后的内容
+		synchronized (this) {
+			try {
+				if (commit) {
+					flushPages(tid);
+				} else {
+					restorePages(tid);
+					undoRowChanges(tid);
+				}
+			} catch (IOException | DbException e) {
+				e.printStackTrace();
+			}
+			beforeImages.remove(tid);
+			rowChanges.remove(tid);
+			dirtied.remove(tid);
+		}
+		lockManager.releaseAllLocks(tid);
+	}
+
+	/**
+	 * Undo the changes tid made to the pages it locked exclusively by
+	 * dropping the modified copies from the cache. Dirty pages are never
+	 * evicted and are only written at commit, so the disk still holds the
+	 * contents each page had when tid first fetched it READ_WRITE.
+	 */
+	private synchronized void restorePages(TransactionId tid) {
+		Map<PageId, Page> images = beforeImages.get(tid);
+		if (images == null) {
+			return;
+		}
+		for (PageId pid : images.keySet()) {
+			Page page = idWithPage.get(pid);
+			if (page != null && tid.equals(page.isDirty())) {
+				discardPage(pid);
+			}
+		}
+	}
+
+	/**
+	 * Undo the inserts and deletes tid made under row locks, most recent
+	 * first. They run after {@link #restorePages}, so rows changed before tid
+	 * locked their page exclusively are undone on the restored page.
+	 */
+	private synchronized void undoRowChanges(TransactionId tid) throws IOException, DbException {
+		Deque<RowChange> changes = rowChanges.get(tid);
+		if (changes == null) {
+			return;
+		}
+		for (RowChange change : changes) {
+			PageId pid = change.tuple.getRecordId().getPageId();
+			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+			HeapPage page = (HeapPage) fetchPage(pid);
+			synchronized (page) {
+				try {
+					if (change.inserted) {
+						page.deleteTuple(change.tuple);
+					} else {
+						page.restoreTuple(change.tuple);
+					}
+				} catch (DbException e) {
+					e.printStackTrace();
+				}
+				// 页上还有别的事务没提交的修改时留给它们写回，否则写回撤销后的内容：
+				// 别的事务提交时可能已经把本事务的修改一起写到了磁盘上
+				TransactionId other = otherDirtier(tid, pid);
+				if (other != null) {
+					page.markDirty(true, other);
+				} else {
+					file.writePage(page);
+					page.markDirty(false, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a transaction other than tid that has modified the page and
+	 * not yet completed, or null
+	 */
+	private TransactionId otherDirtier(TransactionId tid, PageId pid) {
+		for (Map.Entry<TransactionId, Set<PageId>> e : dirtied.entrySet()) {
+			if (!e.getKey().equals(tid) && e.getValue().contains(pid)) {
+				return e.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 记下行锁下的插入或删除。以排他锁修改的页abort时整页恢复，不用逐行记
+	 */
+	private synchronized void recordRowChange(TransactionId tid, Tuple t, boolean inserted) {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !lockManager.holdsTupleLock(tid, rid)) {
+			return;
+		}
+		Map<PageId, Page> images = beforeImages.get(tid);
+		if (images != null && images.containsKey(rid.getPageId())) {
+			return;
+		}
+		rowChanges.computeIfAbsent(tid, k -> new ArrayDeque<>()).push(new RowChange(t, inserted));
 	}
 
 	/**
@@ -160,8 +427,10 @@ public class BufferPool {
 	 */
 	public void insertTuple(TransactionId tid, int tableId, Tuple t)
 		throws DbException, IOException, TransactionAbortedException {
-		HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-		file.insertTuple(tid, t);
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		List<Page> pages = file.insertTuple(tid, t);
+		recordRowChange(tid, t, true);
+		cacheDirtyPages(tid, pages);
 	}
 
 	/**
@@ -179,8 +448,25 @@ public class BufferPool {
 	 */
 	public void deleteTuple(TransactionId tid, Tuple t)
 		throws DbException, IOException, TransactionAbortedException {
-		HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-		file.deleteTuple(tid, t);
+		DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+		List<Page> pages = file.deleteTuple(tid, t);
+		recordRowChange(tid, t, false);
+		cacheDirtyPages(tid, pages);
+	}
+
+	/**
+	 * 把被修改的page标记为脏页并放进缓存，替换掉缓存中的旧版本
+	 */
+	private synchronized void cacheDirtyPages(TransactionId tid, List<Page> pages)
+		throws TransactionAbortedException {
+		checkWounded(tid);
+		for (Page page : pages) {
+			page.markDirty(true, tid);
+			dirtied.computeIfAbsent(tid, k -> new HashSet<>()).add(page.getId());
+			if (idWithPage.put(page.getId(), page) == null) {
+				pageIds.addFirst(page.getId());
+			}
+		}
 	}
 
 	/**
@@ -189,14 +475,9 @@ public class BufferPool {
 	 * break simpledb if running in NO STEAL mode.
 	 */
 	public synchronized void flushAllPages() throws IOException {
-		Iterator<Integer> tableIdIterator = Database.getCatalog().tableIdIterator();
-		while (tableIdIterator.hasNext()) {
-			int tableId = tableIdIterator.next();
-			DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-
-//			dbFile.readPage()
+		for (PageId pid : new ArrayList<>(idWithPage.keySet())) {
+			flushPage(pid);
 		}
-
 	}
 
 	/**
@@ -210,6 +491,7 @@ public class BufferPool {
 	 */
 	public synchronized void discardPage(PageId pid) {
 		idWithPage.remove(pid);
+		pageIds.remove(pid);
 	}
 
 	/**
@@ -218,25 +500,63 @@ public class BufferPool {
 	 * @param pid an ID indicating the page to flush
 	 */
 	private synchronized void flushPage(PageId pid) throws IOException {
-		// some code goes here
-		// not necessary for lab1
+		Page page = idWithPage.get(pid);
+		if (page == null || page.isDirty() == null) {
+			return;
+		}
+		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+		page.markDirty(false, null);
+		page.setBeforeImage();
 	}
 
 	/**
 	 * Write all pages of the specified transaction to disk.
+	 * <p>
+	 * A heap page changed under row locks may also hold rows of other
+	 * transactions that have not completed. Their rows are written too, and
+	 * the page stays dirty on their behalf; if they abort, their rows are
+	 * undone and the page is written again.
 	 */
 	public synchronized void flushPages(TransactionId tid) throws IOException {
-		// some code goes here
-		// not necessary for lab1|lab2
+		Set<PageId> pids = new HashSet<>(dirtied.getOrDefault(tid, Collections.emptySet()));
+		for (Page page : idWithPage.values()) {
+			if (tid.equals(page.isDirty())) {
+				pids.add(page.getId());
+			}
+		}
+		dirtied.remove(tid);
+		for (PageId pid : pids) {
+			flushPage(pid);
+			TransactionId other = otherDirtier(tid, pid);
+			Page page = idWithPage.get(pid);
+			if (other != null && page != null) {
+				page.markDirty(true, other);
+			}
+		}
 	}
 
 	/**
 	 * Discards a page from the buffer pool.
-	 * Flushes the page to disk to ensure dirty pages are updated on disk.
+	 * Only clean pages are evicted (NO STEAL): the least recently used page
+	 * that no running transaction has modified is dropped, so uncommitted
+	 * changes never reach the disk through eviction.
+	 *
+	 * @throws DbException if every page in the buffer pool is dirty
 	 */
 	private synchronized void evictPage() throws DbException {
-		// some code goes here
-		// not necessary for lab1
+		Iterator<PageId> it = pageIds.descendingIterator();
+		while (it.hasNext()) {
+			PageId pid = it.next();
+			Page page = idWithPage.get(pid);
+			if (page == null) {
+				it.remove();
+			} else if (page.isDirty() == null) {
+				it.remove();
+				idWithPage.remove(pid);
+				return;
+			}
+		}
+		throw new DbException("all pages in the buffer pool are dirty");
 	}
 
 }
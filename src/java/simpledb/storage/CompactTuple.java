@@ -0,0 +1,151 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * CompactTuple is a fixed-layout Tuple: the values of its
+ * {@link Type#INT_TYPE} fields are kept unboxed in one int array in the
+ * column order of its TupleDesc, and only the other fields are kept as Field
+ * objects. Reading a row of ints this way costs a single array instead of an
+ * IntField per field and a list holding them; {@link #getInt(int)} reads a
+ * value without allocating, while {@link #getField(int)} wraps it on demand.
+ * <p>
+ * Pages, batches and projections produce CompactTuples; a field that has not
+ * been set reads as 0 or null.
+ */
+public class CompactTuple extends Tuple {
+
+	private static final long serialVersionUID = 1L;
+	// int字段的值，非int字段的位置不用
+	private final int[] ints;
+	// 非int字段，schema全是int时为null
+	private final Field[] others;
+
+	public CompactTuple(TupleDesc td) {
+		super(td, null);
+		int n = td.numFields();
+		ints = new int[n];
+		Field[] others = null;
+		for (int i = 0; i < n; i++) {
+			if (td.getFieldType(i) != Type.INT_TYPE) {
+				others = new Field[n];
+				break;
+			}
+		}
+		this.others = others;
+	}
+
+	private boolean isInt(int i) {
+		return others == null || getTupleDesc().getFieldType(i) == Type.INT_TYPE;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= ints.length) {
+			throw new IllegalArgumentException(String.format("index of %d is out of fields range", i));
+		}
+	}
+
+	@Override
+	public Field getField(int i) {
+		checkIndex(i);
+		return isInt(i) ? new IntField(ints[i]) : others[i];
+	}
+
+	@Override
+	public void setField(int i, Field f) {
+		checkIndex(i);
+		if (isInt(i)) {
+			ints[i] = ((IntField) f).getValue();
+		} else {
+			others[i] = f;
+		}
+	}
+
+	@Override
+	public int getInt(int i) {
+		checkIndex(i);
+		if (!isInt(i)) {
+			throw new IllegalArgumentException(String.format("field %d is not an int", i));
+		}
+		return ints[i];
+	}
+
+	@Override
+	public void setInt(int i, int value) {
+		checkIndex(i);
+		if (!isInt(i)) {
+			throw new IllegalArgumentException(String.format("field %d is not an int", i));
+		}
+		ints[i] = value;
+	}
+
+	@Override
+	public Iterator<Field> fields() {
+		return new Iterator<Field>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < ints.length;
+			}
+
+			public Field next() {
+				if (next == ints.length) {
+					throw new NoSuchElementException();
+				}
+				return getField(next++);
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < ints.length; i++) {
+			if (i > 0) {
+				result.append('\t');
+			}
+			if (isInt(i)) {
+				result.append(ints[i]);
+			} else {
+				result.append(others[i]);
+			}
+		}
+		result.append(System.lineSeparator());
+		return result.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof CompactTuple) {
+			// 同为CompactTuple时直接比较数组，不创建Field
+			CompactTuple tuple = (CompactTuple) o;
+			if (!getTupleDesc().equals(tuple.getTupleDesc()) || !Objects.equals(getRecordId(), tuple.getRecordId())) {
+				return false;
+			}
+			for (int i = 0; i < ints.length; i++) {
+				if (isInt(i) ? ints[i] != tuple.ints[i] : !Objects.equals(others[i], tuple.others[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return super.equals(o);
+	}
+
+	/**
+	 * The same hash as {@link Tuple#hashCode()} for the same values, computed
+	 * without creating Fields; IntField hashes to its value.
+	 */
+	@Override
+	public int hashCode() {
+		int h = 1;
+		for (int i = 0; i < ints.length; i++) {
+			h = 31 * h + (isInt(i) ? ints[i] : Objects.hashCode(others[i]));
+		}
+		return h;
+	}
+}
@@ -1,5 +1,6 @@
 package simpledb.storage;
 import simpledb.common.DbException;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 
 import java.util.*;
@@ -30,6 +31,54 @@ public interface DbFileIterator{
     Tuple next()
         throws DbException, TransactionAbortedException, NoSuchElementException;
 
+    /**
+     * Reads the next tuples into a batch, like {@link #next()} but without
+     * materializing each tuple if the iterator can avoid it.
+     *
+     * @param td the schema of the batch; the types of the tuples returned
+     * @return the next batch, or null if there are no more tuples
+     */
+    default TupleBatch nextBatch(TupleDesc td)
+        throws DbException, TransactionAbortedException {
+        TupleBatch batch = null;
+        while (hasNext()) {
+            if (batch == null) {
+                batch = new TupleBatch(td);
+            }
+            batch.addTuple(next());
+            if (batch.isFull()) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Pushes a filter and a projection down into the iterator, so that it
+     * only returns the given columns of the tuples that satisfy all
+     * predicates. Must be called before {@link #open()}.
+     *
+     * @param predicates conjuncts over the columns of the file, evaluated
+     *                   before the projection
+     * @param columns    the columns of the file to return, in order; null for
+     *                   all columns
+     * @return false if the iterator does not support pushdown and is unchanged
+     */
+    default boolean pushDown(List<Predicate> predicates, int[] columns) {
+        return false;
+    }
+
+    /**
+     * Makes the iterator lock each row it returns instead of the pages it
+     * reads, so that other transactions can change other rows of the same
+     * pages. Must be called before {@link #open()}.
+     *
+     * @return false if the iterator only supports page locks and is unchanged
+     */
+    default boolean lockRows() {
+        return false;
+    }
+
     /**
      * Resets the iterator to the start.
      * @throws DbException When rewind is unsupported.
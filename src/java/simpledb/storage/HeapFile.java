@@ -2,6 +2,10 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.execution.PredicateCompiler;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -9,6 +13,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
@@ -37,7 +43,8 @@ public class HeapFile implements DbFile {
 	 *          file.
 	 */
 	public HeapFile(File f, TupleDesc td) {
-		pageCount = 1;
+		// 已有的文件按长度算出页数，这样从磁盘打开的表能被完整扫描
+		pageCount = (int) (f.length() / BufferPool.getPageSize());
 		this.file = f;
 		this.tupleDesc = td;
 		this.id = new Random().nextInt();
@@ -101,6 +108,23 @@ public class HeapFile implements DbFile {
 		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
 		randomAccessFile.seek(offset);
 		randomAccessFile.write(page.getPageData());
+		coverPage(pageId.getPageNumber());
+	}
+
+	/**
+	 * 页在文件里有内容时要算进页数：删空后去掉的最后一页，事务abort或又插入了行时要加回来
+	 */
+	private synchronized void coverPage(int pageNumber) {
+		pageCount = Math.max(pageCount, pageNumber + 1);
+	}
+
+	/**
+	 * 删空的是最后一页时不再扫描它
+	 */
+	private synchronized void trimPage(int pageNumber) {
+		if (pageNumber == pageCount - 1) {
+			pageCount -= 1;
+		}
 	}
 
 	/**
@@ -112,103 +136,342 @@ public class HeapFile implements DbFile {
 
 	// see DbFile.java for javadocs
 	/**
-	 * 找到有空余位置的page（如果没有创建一页），插入tuple
+	 * 行级锁插入：在最后一页（满了就新加一页）上加意向排他锁，对要插入的slot加排他锁，
+	 * 写入slot时持有page的monitor作为短时latch。修改后的页留在BufferPool中，事务提交时才写回
 	 * */
 	public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
-		HeapPageId heapPageId = new HeapPageId(id, pageCount - 1);
-		Page page = Database.getBufferPool().getPage(tid, heapPageId, null);
-		if (page == null || ((HeapPage) page).getNumEmptySlots() == 0) {
-			page = new HeapPage(new HeapPageId(id, pageCount), new byte[BufferPool.getPageSize()]);
-			pageCount += 1;
+		BufferPool bufferPool = Database.getBufferPool();
+		while (true) {
+			int last = pageCount - 1;
+			if (last < 0) {
+				addPage(0);
+				continue;
+			}
+			HeapPageId heapPageId = new HeapPageId(id, last);
+			HeapPage page = (HeapPage) bufferPool.getPageForRows(tid, heapPageId, Permissions.READ_WRITE);
+			int slot = page.getFirstEmptySlot();
+			if (slot < 0) {
+				addPage(last + 1);
+				continue;
+			}
+			// 先锁住slot再写入：它可能刚被一个还没结束的事务删除，那个事务abort时要把行放回去
+			bufferPool.lockTuple(tid, new RecordId(heapPageId, slot), Permissions.READ_WRITE);
+			synchronized (page) {
+				// 等锁时slot可能被别的事务占用，或者前面又空出了slot，重新找
+				if (page.getFirstEmptySlot() == slot) {
+					page.insertTuple(t);
+					page.markDirty(true, tid);
+					// 这一页可能刚被删空去掉了
+					coverPage(last);
+					return List.of(page);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 最后一页满了时在文件末尾加一个空页，并发插入的事务可能已经加过了。
+	 * 删空后去掉的页还在文件里，直接重新用它，不能覆盖
+	 */
+	private synchronized void addPage(int pageNumber) throws IOException {
+		if (pageCount == pageNumber) {
+			if ((long) (pageNumber + 1) * BufferPool.getPageSize() <= file.length()) {
+				coverPage(pageNumber);
+			} else {
+				writePage(new HeapPage(new HeapPageId(id, pageNumber), HeapPage.createEmptyPageData()));
+			}
 		}
-		((HeapPage) page).insertTuple(t);
-		writePage(page);
-		return List.of(page);
 	}
 
 	// see DbFile.java for javadocs
+	/**
+	 * 行级锁删除：只对要删除的行加排他锁，所在page加意向排他锁，
+	 * 不同事务删除同一page上的不同行不会冲突。修改slot时持有page的monitor作为短时latch。
+	 * 删空的最后一页不再算在页数里；中间的页删空了仍然算，后面的页不会因此扫描不到
+	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
 		TransactionAbortedException {
-		ArrayList<Page> pages = new ArrayList<>();
-		int pageNumber = 0;
-		while (true) {
-			HeapPageId heapPageId = new HeapPageId(id, pageNumber);
-			Page page = Database.getBufferPool().getPage(tid, heapPageId, null);
-			if (page == null) {
-				break;
-			}
-			if (page instanceof HeapPage) {
-				HeapPage heapPage = (HeapPage) page;
-				try {
-					heapPage.deleteTuple(t);
-					heapPage.markDirty(true, tid);
-					pages.add(heapPage);
-					if (heapPage.getNumEmptySlots() == heapPage.numSlots) {
-						pageCount -= 1;
-					}
-					writePage(heapPage);
-					break;
-				} catch (DbException e) {
-					pageNumber += 1;
-				} catch (IOException e) {
-					throw new DbException("write page error");
-				}
+		RecordId recordId = t.getRecordId();
+		if (recordId == null || recordId.getPageId().getTableId() != id) {
+			throw new DbException("tuple doesn't belong to this table");
+		}
+		BufferPool bufferPool = Database.getBufferPool();
+		bufferPool.lockTuple(tid, recordId, Permissions.READ_WRITE);
+		HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, recordId.getPageId(), null);
+		synchronized (heapPage) {
+			heapPage.deleteTuple(t);
+			heapPage.markDirty(true, tid);
+			if (heapPage.getNumEmptySlots() == heapPage.numSlots) {
+				trimPage(recordId.getPageId().getPageNumber());
 			}
 		}
+		ArrayList<Page> pages = new ArrayList<>();
+		pages.add(heapPage);
 		return pages;
 	}
 
 	// see DbFile.java for javadocs
 	public DbFileIterator iterator(TransactionId tid) {
-		return new HeapFileIterator(tid, id, pageCount);
+		return new HeapFileIterator(tid, id, tupleDesc, 0, pageCount);
+	}
+
+	/**
+	 * Returns an iterator over the tuples of a range of pages, used to scan
+	 * a table in parallel.
+	 *
+	 * @param firstPage the first page to read
+	 * @param endPage   the page after the last page to read
+	 */
+	public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+		return new HeapFileIterator(tid, id, tupleDesc, firstPage, endPage);
+	}
+
+	/**
+	 * @return the number of the last page read by {@link #iterator(TransactionId)},
+	 * or -1 if the file has no pages
+	 */
+	public int lastPage() {
+		return pageCount - 1;
 	}
 }
 
 class HeapFileIterator extends AbstractDbFileIterator {
 	private Iterator<Tuple> iterator;
+	// 下一个要读的页，已经取出但还没有读
 	private HeapPage page;
 	private int pageNumber;
-	private int pageCount;
+	private final int firstPage;
+	// 最后一页之后的页号(不包含)
+	private final int endPage;
 	private TransactionId tid;
 	private int tableId;
+	private final TupleDesc td;
+	private boolean open;
 
-	public HeapFileIterator(TransactionId tid, int tableId, int pageCount) {
+	// 解码的列：先是返回的列，然后是只有过滤条件用到的列
+	private int[] scanColumns;
+	private TupleDesc scanTd;
+	// 返回的列数，及逐行读时tuple的schema
+	private int numColumns;
+	private TupleDesc tupleDesc;
+	private PredicateCompiler.CompiledPredicate predicate;
+	private boolean[] predicateColumns;
+	// 下推后逐行读时，当前页解码出的batch
+	private boolean pushed;
+	private TupleBatch batch;
+	private int batchIndex;
+	// 为true时页上只加意向共享锁，返回的每一行加共享行锁
+	private boolean rowLocks;
+
+	public HeapFileIterator(TransactionId tid, int tableId, TupleDesc td, int firstPage, int endPage) {
 		this.tid = tid;
 		this.tableId = tableId;
-		this.pageCount = pageCount;
-		pageNumber = 0;
+		this.td = td;
+		this.firstPage = firstPage;
+		this.endPage = endPage;
+		pageNumber = firstPage;
+		int[] all = new int[td.numFields()];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		setScan(all, Collections.emptyList());
+	}
+
+	@Override
+	public boolean lockRows() {
+		rowLocks = true;
+		return true;
+	}
+
+	@Override
+	public boolean pushDown(List<Predicate> predicates, int[] columns) {
+		if (columns == null) {
+			columns = new int[td.numFields()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = i;
+			}
+		}
+		setScan(columns, predicates);
+		pushed = true;
+		return true;
+	}
+
+	/**
+	 * 过滤条件改为引用解码后batch中的列
+	 */
+	private void setScan(int[] columns, List<Predicate> predicates) {
+		List<Integer> read = new ArrayList<>();
+		for (int c : columns) {
+			read.add(c);
+		}
+		List<Predicate> remapped = new ArrayList<>();
+		for (Predicate p : predicates) {
+			int col = read.indexOf(p.getField());
+			if (col < 0) {
+				col = read.size();
+				read.add(p.getField());
+			}
+			remapped.add(new Predicate(col, p.getOp(), p.getOperand()));
+		}
+		scanColumns = new int[read.size()];
+		Type[] types = new Type[read.size()];
+		String[] names = new String[read.size()];
+		predicateColumns = new boolean[read.size()];
+		for (int i = 0; i < scanColumns.length; i++) {
+			scanColumns[i] = read.get(i);
+			types[i] = td.getFieldType(scanColumns[i]);
+			names[i] = td.getFieldName(scanColumns[i]);
+		}
+		for (Predicate p : remapped) {
+			predicateColumns[p.getField()] = true;
+		}
+		scanTd = new TupleDesc(types, names);
+		numColumns = columns.length;
+		tupleDesc = numColumns == scanColumns.length ? scanTd
+			: new TupleDesc(Arrays.copyOf(types, numColumns), Arrays.copyOf(names, numColumns));
+		predicate = remapped.isEmpty() ? null : PredicateCompiler.compile(remapped, scanTd);
 	}
 
 	@Override
 	protected Tuple readNext() throws DbException, TransactionAbortedException {
-		if (iterator == null) {
-			return null;
+		Tuple t;
+		while ((t = readUnlocked()) != null) {
+			if (!rowLocks || lockRow(t.getRecordId())) {
+				return t;
+			}
 		}
-		while (pageNumber < pageCount && !iterator.hasNext()) {
-			pageNumber += 1;
-			page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pageNumber), null);
-			iterator = page.iterator();
+		return null;
+	}
+
+	private Tuple readUnlocked() throws DbException, TransactionAbortedException {
+		if (!open) {
+			return null;
 		}
-		if (iterator.hasNext()) {
+		if (!pushed) {
+			// 直接返回页里的Tuple
+			while (iterator == null || !iterator.hasNext()) {
+				HeapPage p = nextPage();
+				if (p == null) {
+					return null;
+				}
+				if (rowLocks) {
+					synchronized (p) {
+						iterator = p.iterator();
+					}
+				} else {
+					iterator = p.iterator();
+				}
+			}
 			return iterator.next();
 		}
+		while (batch == null || batchIndex == batch.numRows()) {
+			batch = readBatch(tupleDesc);
+			batchIndex = 0;
+			if (batch == null) {
+				return null;
+			}
+		}
+		return batch.getTuple(batch.rowAt(batchIndex++));
+	}
+
+	/**
+	 * 对读到的行加共享锁。等锁时行可能被删除的事务提交掉了，此时跳过它。
+	 * 读页时已被未提交的事务删除的行读不到，即使那个事务之后abort
+	 *
+	 * @return false if the row is gone
+	 */
+	private boolean lockRow(RecordId rid) throws DbException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		bufferPool.lockTuple(tid, rid, Permissions.READ_ONLY);
+		HeapPage p = (HeapPage) bufferPool.getPage(tid, rid.getPageId(), null);
+		synchronized (p) {
+			return p.isSlotUsed(rid.getTupleNumber());
+		}
+	}
+
+	/**
+	 * 按页解码成batch，不为每行生成Tuple
+	 */
+	@Override
+	public TupleBatch nextBatch(TupleDesc td) throws DbException, TransactionAbortedException {
+		if (rowLocks || hasReadAhead() || (iterator != null && iterator.hasNext())
+			|| (batch != null && batchIndex < batch.numRows())) {
+			// 已经逐行读到页中间，剩下的也逐行读
+			return nextBatchByRow(td);
+		}
+		return open ? readBatch(td) : null;
+	}
+
+	/**
+	 * @return the rows of the next page with any row passing the filter, or
+	 * null after the last page
+	 */
+	private TupleBatch readBatch(TupleDesc td) throws DbException, TransactionAbortedException {
+		HeapPage p;
+		while ((p = nextPage()) != null) {
+			TupleBatch b;
+			// 行锁下别的事务可能正在改这一页的其他行
+			synchronized (p) {
+				b = p.scan(numColumns == scanColumns.length ? td : scanTd, scanColumns, predicate, predicateColumns);
+			}
+			if (numColumns != scanColumns.length) {
+				// 只有过滤条件用到的列不返回
+				int[] columns = new int[numColumns];
+				for (int i = 0; i < columns.length; i++) {
+					columns[i] = i;
+				}
+				b = b.project(td, columns);
+			}
+			if (b.numRows() > 0) {
+				return b;
+			}
+		}
 		return null;
 	}
 
+	private HeapPage nextPage() throws DbException, TransactionAbortedException {
+		if (page == null) {
+			if (pageNumber + 1 >= endPage) {
+				return null;
+			}
+			pageNumber += 1;
+			page = readPage(pageNumber);
+		}
+		HeapPage p = page;
+		page = null;
+		return p;
+	}
+
 	@Override
 	public void open() throws DbException, TransactionAbortedException {
-		page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pageNumber), null);
-		iterator = page.iterator();
+		// 空文件没有页可读，不要去读文件末尾之后的页
+		page = pageNumber < endPage ? readPage(pageNumber) : null;
+		iterator = null;
+		batch = null;
+		open = true;
+	}
+
+	private HeapPage readPage(int pageNumber) throws DbException, TransactionAbortedException {
+		HeapPageId pid = new HeapPageId(tableId, pageNumber);
+		if (rowLocks) {
+			return (HeapPage) Database.getBufferPool().getPageForRows(tid, pid, Permissions.READ_ONLY);
+		}
+		return (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
 	}
 
 	@Override
 	public void rewind() throws DbException, TransactionAbortedException {
-		iterator = page.iterator();
+		super.close();
+		pageNumber = firstPage;
+		open();
 	}
 
 	@Override
 	public void close() {
 		super.close();
 		iterator = null;
+		page = null;
+		batch = null;
+		open = false;
 	}
 }
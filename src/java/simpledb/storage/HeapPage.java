@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
+import simpledb.execution.PredicateCompiler;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -12,6 +14,11 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page read from disk keeps its bytes and only decodes them into Tuples
+ * when they are first needed, e.g. by {@link #iterator()} or a modification.
+ * Until then {@link #scan} reads the values it needs straight from the bytes,
+ * at the fixed offset of each field.
  *
  * @see HeapFile
  * @see BufferPool
@@ -21,7 +28,12 @@ public class HeapPage implements Page {
 	final HeapPageId pid;
 	final TupleDesc td;
 	final byte[] header;
-	final Tuple[] tuples;
+	// 解码前为null，此时data是页的内容
+	volatile Tuple[] tuples;
+	// 从磁盘读到的原始字节，解码成Tuple后为null
+	private volatile byte[] data;
+	// 每一列在tuple中的字节偏移
+	private final int[] fieldOffsets;
 	final int numSlots;
 	private int lastIndex;
 	private TransactionId transactionId;
@@ -57,23 +69,44 @@ public class HeapPage implements Page {
 		header = new byte[getHeaderSize()];
 		for (int i = 0; i < header.length; i++)
 			header[i] = dis.readByte();
+		dis.close();
 
-		tuples = new Tuple[numSlots];
-		try {
-			// allocate and read the actual records of this page
-			for (int i = 0; i < tuples.length; i++) {
-				tuples[i] = readNextTuple(dis, i);
-				if (tuples[i] != null) {
-					lastIndex += 1;
-				}
+		for (int i = 0; i < numSlots; i++) {
+			if (isSlotUsed(i)) {
+				lastIndex += 1;
 			}
-		} catch (NoSuchElementException e) {
-			e.printStackTrace();
 		}
-		dis.close();
+		fieldOffsets = new int[td.numFields()];
+		for (int i = 1; i < fieldOffsets.length; i++) {
+			fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
+		}
+		this.data = data;
 		setBeforeImage();
 	}
 
+	/**
+	 * 第一次需要Tuple对象时才解码整页
+	 */
+	private Tuple[] tuples() {
+		Tuple[] decoded = tuples;
+		if (decoded != null) {
+			return decoded;
+		}
+		synchronized (this) {
+			if (tuples == null) {
+				decoded = new Tuple[numSlots];
+				for (int i = 0; i < decoded.length; i++) {
+					if (isSlotUsed(i)) {
+						decoded[i] = readTuple(data, i);
+					}
+				}
+				tuples = decoded;
+				data = null;
+			}
+			return tuples;
+		}
+	}
+
 	/**
 	 * 计算一个page里能放多少tuple, 单位是bit, page的bit / 单个tuple所需的bit + 1
 	 */
@@ -121,37 +154,22 @@ public class HeapPage implements Page {
 	}
 
 	/**
-	 * Suck up tuples from the source file.
+	 * Suck up tuples from the source file: decode the tuple of a used slot
+	 * straight from the page bytes into a CompactTuple.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		/*
-		* 没有tuple, 返回null
-		* */
-		if (!isSlotUsed(slotId)) {
-			for (int i = 0; i < td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
+	private Tuple readTuple(byte[] bytes, int slotId) {
+		CompactTuple t = new CompactTuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		int offset = header.length + slotId * td.getSize();
+		for (int j = 0; j < fieldOffsets.length; j++) {
+			int fieldOffset = offset + fieldOffsets[j];
+			if (td.getFieldType(j) == Type.INT_TYPE) {
+				t.setInt(j, readInt(bytes, fieldOffset));
+			} else {
+				int len = readInt(bytes, fieldOffset);
+				t.setField(j, new StringField(new String(bytes, fieldOffset + 4, len), Type.STRING_LEN));
 			}
-			return null;
 		}
-
-		// read fields in the tuple
-		Tuple t = new Tuple(td);
-		RecordId rid = new RecordId(pid, slotId);
-		t.setRecordId(rid);
-		try {
-			for (int j = 0; j < td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
 		return t;
 	}
 
@@ -167,6 +185,12 @@ public class HeapPage implements Page {
 	 * @see #HeapPage
 	 */
 	public byte[] getPageData() {
+		byte[] bytes = data;
+		if (bytes != null) {
+			// 还没解码，页没有被修改过
+			return bytes.clone();
+		}
+		Tuple[] tuples = tuples();
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -199,10 +223,12 @@ public class HeapPage implements Page {
 
 			// non-empty slot
 			for (int j = 0; j < td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
 				try {
-					f.serialize(dos);
-
+					if (td.getFieldType(j) == Type.INT_TYPE) {
+						dos.writeInt(tuples[i].getInt(j));
+					} else {
+						tuples[i].getField(j).serialize(dos);
+					}
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -254,6 +280,7 @@ public class HeapPage implements Page {
 		if (!isSlotUsed(recordId.getTupleNumber())) {
 			throw new DbException(String.format("tuple with no: %d doesn't exist on page: %d", recordId.getTupleNumber(), recordId.getPageId().getPageNumber()));
 		}
+		Tuple[] tuples = tuples();
 		Tuple tuple = tuples[recordId.getTupleNumber()];
 		if (tuple.equals(t)) {
 			tuples[recordId.getTupleNumber()] = null;
@@ -308,15 +335,49 @@ public class HeapPage implements Page {
 	 *                     is mismatch.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
-		if (getNumEmptySlots() == 0) {
+		int slot = getFirstEmptySlot();
+		if (slot < 0) {
 			throw new DbException("page is full, can't add new tuple");
 		}
-		t.setRecordId(new RecordId(pid, lastIndex));
-		tuples[lastIndex] = t;
-		markSlotUsed(lastIndex, true);
+		t.setRecordId(new RecordId(pid, slot));
+		tuples()[slot] = t;
+		markSlotUsed(slot, true);
 		lastIndex += 1;
 	}
 
+	/**
+	 * Put a deleted tuple back into the slot of its record id, undoing the
+	 * delete of a transaction that aborts.
+	 *
+	 * @throws DbException if the slot is in use
+	 */
+	public void restoreTuple(Tuple t) throws DbException {
+		int slot = t.getRecordId().getTupleNumber();
+		if (isSlotUsed(slot)) {
+			throw new DbException(String.format("slot %d of page %d is in use", slot, pid.getPageNumber()));
+		}
+		tuples()[slot] = t;
+		markSlotUsed(slot, true);
+		lastIndex += 1;
+	}
+
+	/**
+	 * @return the slot the next inserted tuple goes into, or -1 if the page
+	 * is full
+	 */
+	public int getFirstEmptySlot() {
+		// lastIndex是已用slot的个数，删除后中间会有空slot
+		if (lastIndex == numSlots) {
+			return -1;
+		}
+		for (int i = 0; i < numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
@@ -340,7 +401,7 @@ public class HeapPage implements Page {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		return tuples.length - lastIndex;
+		return numSlots - lastIndex;
 //		int sum = 0;
 //		for (byte b : header) {
 //			// 0b11111111 = -1，即全部占用
@@ -362,20 +423,7 @@ public class HeapPage implements Page {
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		byte b = header[i / 8];
-		String bitStr = byteToBit(b);
-		return bitStr.charAt(bitStr.length() - 1 - (i % 8)) == '1';
-	}
-
-	private String byteToBit(byte b) {
-		return "" + (byte) ((b >> 7) & 0x1) +
-			(byte) ((b >> 6) & 0x1) +
-			(byte) ((b >> 5) & 0x1) +
-			(byte) ((b >> 4) & 0x1) +
-			(byte) ((b >> 3) & 0x1) +
-			(byte) ((b >> 2) & 0x1) +
-			(byte) ((b >> 1) & 0x1) +
-			(byte) ((b) & 0x1);
+		return ((header[i / 8] >> (i % 8)) & 1) == 1;
 	}
 
 	/**
@@ -425,7 +473,113 @@ public class HeapPage implements Page {
 	 * (note that this iterator shouldn't return tuples in empty slots!)
 	 */
 	public Iterator<Tuple> iterator() {
-		return new ArrayList<>(Arrays.asList(tuples)).stream().filter(Objects::nonNull).iterator();
+		return new ArrayList<>(Arrays.asList(tuples())).stream().filter(Objects::nonNull).iterator();
+	}
+
+	/**
+	 * Decode some columns of the tuples on this page into a batch, one
+	 * physical row per tuple in slot order. The columns the predicate reads
+	 * are decoded for every tuple; the other columns only for the tuples that
+	 * pass, which are selected in the returned batch. Int columns are read
+	 * into the int vectors of the batch without creating IntFields.
+	 *
+	 * @param schema           the schema of the batch
+	 * @param columns          the column of this page for each column of
+	 *                         schema
+	 * @param predicate        evaluated over the batch, or null to keep every
+	 *                         tuple
+	 * @param predicateColumns the columns of schema the predicate reads
+	 */
+	public TupleBatch scan(TupleDesc schema, int[] columns, PredicateCompiler.CompiledPredicate predicate,
+	                       boolean[] predicateColumns) {
+		TupleBatch batch = new TupleBatch(schema, Math.max(1, numSlots));
+		byte[] bytes = data;
+		if (bytes == null) {
+			// 已经解码过(或被修改过)，从Tuple对象取值
+			for (Tuple t : tuples()) {
+				if (t == null) {
+					continue;
+				}
+				int row = batch.size();
+				for (int i = 0; i < columns.length; i++) {
+					if (schema.getFieldType(i) == Type.INT_TYPE) {
+						batch.setInt(i, row, t.getInt(columns[i]));
+					} else {
+						batch.setField(i, row, t.getField(columns[i]));
+					}
+				}
+				batch.setRecordId(row, t.getRecordId());
+				batch.appendRow();
+			}
+			if (predicate != null) {
+				int[] rows = new int[batch.size()];
+				for (int i = 0; i < rows.length; i++) {
+					rows[i] = i;
+				}
+				batch.select(rows, predicate.filter(batch, rows, rows.length));
+			}
+			return batch;
+		}
+
+		// 每一行在页中的起始字节
+		int[] offsets = new int[batch.capacity()];
+		for (int slot = 0; slot < numSlots; slot++) {
+			if (isSlotUsed(slot)) {
+				int row = batch.size();
+				offsets[row] = header.length + slot * td.getSize();
+				batch.setRecordId(row, new RecordId(pid, slot));
+				batch.appendRow();
+			}
+		}
+		int count = batch.size();
+		int[] rows = new int[count];
+		for (int i = 0; i < count; i++) {
+			rows[i] = i;
+		}
+		if (predicate != null) {
+			for (int i = 0; i < columns.length; i++) {
+				if (predicateColumns[i]) {
+					decodeColumn(bytes, batch, i, columns[i], offsets, rows, count);
+				}
+			}
+			count = predicate.filter(batch, rows, count);
+		}
+		for (int i = 0; i < columns.length; i++) {
+			if (predicate == null || !predicateColumns[i]) {
+				decodeColumn(bytes, batch, i, columns[i], offsets, rows, count);
+			}
+		}
+		if (predicate != null) {
+			batch.select(rows, count);
+		}
+		return batch;
+	}
+
+	/**
+	 * 把给定行的一列从页字节解码到batch
+	 */
+	private void decodeColumn(byte[] bytes, TupleBatch batch, int col, int field, int[] offsets,
+	                          int[] rows, int count) {
+		int fieldOffset = fieldOffsets[field];
+		if (td.getFieldType(field) == Type.INT_TYPE) {
+			int[] values = batch.getIntColumn(col);
+			for (int i = 0; i < count; i++) {
+				int row = rows[i];
+				values[row] = readInt(bytes, offsets[row] + fieldOffset);
+			}
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			int row = rows[i];
+			int offset = offsets[row] + fieldOffset;
+			int len = readInt(bytes, offset);
+			batch.setField(col, row, new StringField(new String(bytes, offset + 4, len), Type.STRING_LEN));
+		}
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+			| ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
 	}
 }
 
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * JoinedTuple is the output row of a join: a read-only view of a left and a
+ * right tuple whose fields are the fields of the left tuple followed by those
+ * of the right one. No field is copied; {@link #getField(int)} resolves the
+ * index against the width of the left tuple. A join over joined tuples nests
+ * the views, so each join level costs one small object instead of a copy of
+ * the whole, ever wider, row. Operators that need only a few of the columns,
+ * such as Project, read just those through the view.
+ */
+public class JoinedTuple extends Tuple {
+
+	private static final long serialVersionUID = 1L;
+	private final Tuple left;
+	private final Tuple right;
+	private final int leftWidth;
+	private final int width;
+
+	/**
+	 * @param td    the merged schema of left and right
+	 * @param left  the tuple supplying the first fields
+	 * @param right the tuple supplying the remaining fields
+	 */
+	public JoinedTuple(TupleDesc td, Tuple left, Tuple right) {
+		super(td, null);
+		this.left = left;
+		this.right = right;
+		leftWidth = left.getTupleDesc().numFields();
+		width = td.numFields();
+		if (leftWidth + right.getTupleDesc().numFields() != width) {
+			throw new IllegalArgumentException("the schema does not match the joined tuples");
+		}
+	}
+
+	public Tuple getLeft() {
+		return left;
+	}
+
+	public Tuple getRight() {
+		return right;
+	}
+
+	@Override
+	public Field getField(int i) {
+		if (i < 0 || i >= width) {
+			throw new IllegalArgumentException(String.format("index of %d is out of fields range", i));
+		}
+		return i < leftWidth ? left.getField(i) : right.getField(i - leftWidth);
+	}
+
+	@Override
+	public int getInt(int i) {
+		if (i < 0 || i >= width) {
+			throw new IllegalArgumentException(String.format("index of %d is out of fields range", i));
+		}
+		return i < leftWidth ? left.getInt(i) : right.getInt(i - leftWidth);
+	}
+
+	/**
+	 * Joined tuples share their fields with the joined inputs and cannot be
+	 * changed.
+	 */
+	@Override
+	public void setField(int i, Field f) {
+		throw new UnsupportedOperationException("a joined tuple is read-only");
+	}
+
+	@Override
+	public Iterator<Field> fields() {
+		return new Iterator<Field>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < width;
+			}
+
+			public Field next() {
+				if (next == width) {
+					throw new NoSuchElementException();
+				}
+				return getField(next++);
+			}
+		};
+	}
+}
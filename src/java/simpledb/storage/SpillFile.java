@@ -0,0 +1,188 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file holding tuples that an operator could not keep
+ * in memory, e.g. the partitions of a hash join. Tuples are appended
+ * sequentially, then read back in column-oriented batches once writing has
+ * finished. Int fields are written as 4 bytes and string fields in their
+ * modified UTF-8 form, so spilled rows are usually smaller than on a HeapPage.
+ * <p>
+ * Spill files are not pages of a DbFile: they never go through the BufferPool,
+ * take no locks and are not logged.
+ */
+public class SpillFile {
+
+	private final TupleDesc td;
+	private final File file;
+	private DataOutputStream out;
+	private int size;
+
+	/**
+	 * Create an empty spill file for tuples of td.
+	 *
+	 * @throws DbException if the temporary file cannot be created
+	 */
+	public SpillFile(TupleDesc td) throws DbException {
+		this.td = td;
+		try {
+			file = File.createTempFile("simpledb-spill", ".tmp");
+			file.deleteOnExit();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		} catch (IOException e) {
+			throw new DbException("create spill file error");
+		}
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * @return the number of tuples written to this file
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Append a tuple to the end of this file.
+	 */
+	public void write(Tuple t) throws DbException {
+		try {
+			for (int i = 0; i < td.numFields(); i++) {
+				if (td.getFieldType(i) == Type.INT_TYPE) {
+					out.writeInt(t.getInt(i));
+				} else {
+					writeField(t.getField(i));
+				}
+			}
+		} catch (IOException e) {
+			throw new DbException("write spill file error");
+		}
+		size++;
+	}
+
+	/**
+	 * Append a physical row of a batch to the end of this file.
+	 */
+	public void write(TupleBatch batch, int row) throws DbException {
+		try {
+			for (int i = 0; i < td.numFields(); i++) {
+				if (td.getFieldType(i) == Type.INT_TYPE) {
+					out.writeInt(batch.getInt(i, row));
+				} else {
+					writeField(batch.getField(i, row));
+				}
+			}
+		} catch (IOException e) {
+			throw new DbException("write spill file error");
+		}
+		size++;
+	}
+
+	private void writeField(Field field) throws IOException {
+		if (field.getType() == Type.INT_TYPE) {
+			out.writeInt(((IntField) field).getValue());
+		} else {
+			out.writeUTF(((StringField) field).getValue());
+		}
+	}
+
+	/**
+	 * Flush the written tuples to disk. No more tuples may be written afterwards.
+	 */
+	public void finishWriting() throws DbException {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new DbException("write spill file error");
+		} finally {
+			out = null;
+		}
+	}
+
+	/**
+	 * @return a new reader from the first tuple of this file; finishes writing
+	 * first if needed. Several readers may be opened one after another.
+	 */
+	public Reader reader() throws DbException {
+		finishWriting();
+		return new Reader();
+	}
+
+	/**
+	 * Remove the file from disk.
+	 */
+	public void delete() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ignored) {
+			}
+			out = null;
+		}
+		file.delete();
+	}
+
+	/**
+	 * Sequential reader over the tuples of a SpillFile.
+	 */
+	public class Reader implements Closeable {
+		private final DataInputStream in;
+		private int remaining;
+
+		private Reader() throws DbException {
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			} catch (IOException e) {
+				throw new DbException("read spill file error");
+			}
+			remaining = size;
+		}
+
+		/**
+		 * @return the next batch of at most {@link TupleBatch#DEFAULT_CAPACITY}
+		 * tuples, or null when the whole file has been read
+		 */
+		public TupleBatch nextBatch() throws DbException {
+			if (remaining == 0) {
+				close();
+				return null;
+			}
+			TupleBatch batch = new TupleBatch(td, Math.min(remaining, TupleBatch.DEFAULT_CAPACITY));
+			try {
+				while (!batch.isFull()) {
+					int row = batch.size();
+					for (int i = 0; i < td.numFields(); i++) {
+						if (td.getFieldType(i) == Type.INT_TYPE) {
+							batch.setInt(i, row, in.readInt());
+						} else {
+							batch.setField(i, row, new StringField(in.readUTF(), Type.STRING_LEN));
+						}
+					}
+					batch.appendRow();
+					remaining--;
+				}
+			} catch (IOException e) {
+				throw new DbException("read spill file error");
+			}
+			return batch;
+		}
+
+		@Override
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
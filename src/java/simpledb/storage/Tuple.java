@@ -32,6 +32,15 @@ public class Tuple implements Serializable {
 		fields = new ArrayList<>(td.numFields());
 	}
 
+	/**
+	 * Constructor for subclasses that keep their fields elsewhere and
+	 * override the field accessors.
+	 */
+	protected Tuple(TupleDesc td, List<Field> fields) {
+		this.td = td;
+		this.fields = fields;
+	}
+
 	/**
 	 * @return The TupleDesc representing the schema of this tuple.
 	 */
@@ -84,6 +93,21 @@ public class Tuple implements Serializable {
 		return fields.get(i);
 	}
 
+	/**
+	 * @param i index of an INT_TYPE field. Must be a valid index.
+	 * @return the value of the ith field
+	 */
+	public int getInt(int i) {
+		return ((IntField) getField(i)).getValue();
+	}
+
+	/**
+	 * Change the value of the ith field, an INT_TYPE field, of this tuple.
+	 */
+	public void setInt(int i, int value) {
+		setField(i, new IntField(value));
+	}
+
 	/**
 	 * Returns the contents of this Tuple as a string. Note that to pass the
 	 * system tests, the format needs to be as follows:
@@ -94,24 +118,12 @@ public class Tuple implements Serializable {
 	 */
 	public String toString() {
 		StringBuilder result = new StringBuilder();
-		for (int i = 0; i < fields.size(); i++) {
-			Field field = fields.get(i);
-			Object value = null;
-			switch (field.getType()) {
-				case INT_TYPE: {
-					value = ((IntField)field).getValue();
-					break;
-				}
-				case STRING_TYPE: {
-					value = ((StringField)field).getValue();
-					break;
-				}
-				default: {
-					throw new IllegalArgumentException("un support field type");
-				}
-			}
-			result.append(value.toString());
-			if (i < fields.size() - 1) {
+		Iterator<Field> it = fields();
+		while (it.hasNext()) {
+			Field field = it.next();
+			// IntField和StringField的toString就是它们的值
+			result.append(field);
+			if (it.hasNext()) {
 				result.append("\t");
 			}
 		}
@@ -136,13 +148,29 @@ public class Tuple implements Serializable {
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
-		if (o == null || getClass() != o.getClass()) return false;
+		if (!(o instanceof Tuple)) return false;
 		Tuple tuple = (Tuple) o;
-		return Objects.equals(td, tuple.td) && Objects.equals(recordId, tuple.recordId) && Objects.equals(fields, tuple.fields);
+		if (!Objects.equals(td, tuple.td) || !Objects.equals(recordId, tuple.recordId)) return false;
+		// 按字段比较，物化的tuple和JoinedTuple之间也能相等
+		Iterator<Field> it1 = fields();
+		Iterator<Field> it2 = tuple.fields();
+		while (it1.hasNext() && it2.hasNext()) {
+			if (!Objects.equals(it1.next(), it2.next())) return false;
+		}
+		return !it1.hasNext() && !it2.hasNext();
 	}
 
+	/**
+	 * Hashes the field values only; tuples that are equal have the same
+	 * fields, and the values are what tells tuples apart.
+	 */
 	@Override
 	public int hashCode() {
-		return Objects.hash(td, recordId, fields);
+		int h = 1;
+		Iterator<Field> it = fields();
+		while (it.hasNext()) {
+			h = 31 * h + Objects.hashCode(it.next());
+		}
+		return h;
 	}
 }
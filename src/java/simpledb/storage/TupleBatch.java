@@ -0,0 +1,244 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to {@link #DEFAULT_CAPACITY} rows of one schema in
+ * column-oriented form, returned by {@link simpledb.execution.OpIterator#nextBatch()}.
+ * Columns of {@link Type#INT_TYPE} are stored as primitive int vectors, other
+ * columns as Field vectors.
+ * <p>
+ * A batch carries a selection vector: operators such as Filter narrow the
+ * batch by selecting a subset of its physical rows instead of copying them.
+ * All row arguments of the accessors are physical row numbers; iterate the
+ * live rows with {@link #numRows()} and {@link #rowAt(int)}.
+ * <p>
+ * Operators may share column vectors between batches (e.g. Project), so a
+ * batch must not be modified after it has been returned from nextBatch.
+ */
+public class TupleBatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final TupleDesc td;
+	private final int capacity;
+	// int列的数据，非int列为null
+	private final int[][] intColumns;
+	// 非int列的数据，int列为null
+	private final Field[][] fieldColumns;
+	private final RecordId[] recordIds;
+	// 物理行数
+	private int size;
+	// 选择向量，为null时所有物理行都有效
+	private int[] selection;
+	private int selected;
+
+	/**
+	 * Create an empty batch with the default capacity.
+	 */
+	public TupleBatch(TupleDesc td) {
+		this(td, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty batch.
+	 *
+	 * @param td       the schema of the rows in this batch
+	 * @param capacity the maximum number of physical rows
+	 */
+	public TupleBatch(TupleDesc td, int capacity) {
+		this.td = td;
+		this.capacity = capacity;
+		int n = td.numFields();
+		intColumns = new int[n][];
+		fieldColumns = new Field[n][];
+		for (int i = 0; i < n; i++) {
+			if (td.getFieldType(i) == Type.INT_TYPE) {
+				intColumns[i] = new int[capacity];
+			} else {
+				fieldColumns[i] = new Field[capacity];
+			}
+		}
+		recordIds = new RecordId[capacity];
+	}
+
+	private TupleBatch(TupleDesc td, int capacity, int[][] intColumns, Field[][] fieldColumns,
+	                   RecordId[] recordIds, int size, int[] selection, int selected) {
+		this.td = td;
+		this.capacity = capacity;
+		this.intColumns = intColumns;
+		this.fieldColumns = fieldColumns;
+		this.recordIds = recordIds;
+		this.size = size;
+		this.selection = selection;
+		this.selected = selected;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of physical rows, selected or not
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if no more rows can be appended
+	 */
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	/**
+	 * @return the number of selected rows
+	 */
+	public int numRows() {
+		return selection == null ? size : selected;
+	}
+
+	/**
+	 * @return the physical row number of the i-th selected row
+	 */
+	public int rowAt(int i) {
+		return selection == null ? i : selection[i];
+	}
+
+	/**
+	 * Replace the selection vector, keeping only the given physical rows.
+	 *
+	 * @param rows  physical row numbers in increasing order; the array is taken
+	 *              over by this batch
+	 * @param count the number of valid entries in rows
+	 */
+	public void select(int[] rows, int count) {
+		selection = rows;
+		selected = count;
+	}
+
+	/**
+	 * Append a row to the end of this batch.
+	 *
+	 * @throws IllegalStateException if the batch is full
+	 */
+	public void addTuple(Tuple t) {
+		if (size == capacity) {
+			throw new IllegalStateException("batch is full");
+		}
+		for (int i = 0; i < intColumns.length; i++) {
+			if (intColumns[i] != null) {
+				intColumns[i][size] = t.getInt(i);
+			} else {
+				fieldColumns[i][size] = t.getField(i);
+			}
+		}
+		recordIds[size] = t.getRecordId();
+		appendRow();
+	}
+
+	/**
+	 * Append a row whose values have already been written with
+	 * {@link #setInt}/{@link #setField} at physical row {@link #size()}.
+	 */
+	public void appendRow() {
+		if (selection != null) {
+			if (selection.length == selected) {
+				int[] newSelection = new int[capacity];
+				System.arraycopy(selection, 0, newSelection, 0, selected);
+				selection = newSelection;
+			}
+			selection[selected++] = size;
+		}
+		size++;
+	}
+
+	/**
+	 * @return the primitive vector of an INT_TYPE column; only the first
+	 * {@link #size()} entries are valid
+	 * @throws IllegalArgumentException if the column is not INT_TYPE
+	 */
+	public int[] getIntColumn(int col) {
+		if (intColumns[col] == null) {
+			throw new IllegalArgumentException(String.format("column %d is not INT_TYPE", col));
+		}
+		return intColumns[col];
+	}
+
+	public int getInt(int col, int row) {
+		return getIntColumn(col)[row];
+	}
+
+	public void setInt(int col, int row, int value) {
+		getIntColumn(col)[row] = value;
+	}
+
+	/**
+	 * @return the value at a physical row, boxed into a Field for INT_TYPE columns
+	 */
+	public Field getField(int col, int row) {
+		if (intColumns[col] != null) {
+			return new IntField(intColumns[col][row]);
+		}
+		return fieldColumns[col][row];
+	}
+
+	public void setField(int col, int row, Field f) {
+		if (intColumns[col] != null) {
+			intColumns[col][row] = ((IntField) f).getValue();
+		} else {
+			fieldColumns[col][row] = f;
+		}
+	}
+
+	public RecordId getRecordId(int row) {
+		return recordIds[row];
+	}
+
+	public void setRecordId(int row, RecordId rid) {
+		recordIds[row] = rid;
+	}
+
+	/**
+	 * Materialize a physical row as a Tuple; int values are copied unboxed
+	 * into a {@link CompactTuple}.
+	 */
+	public Tuple getTuple(int row) {
+		CompactTuple tuple = new CompactTuple(td);
+		for (int i = 0; i < intColumns.length; i++) {
+			if (intColumns[i] != null) {
+				tuple.setInt(i, intColumns[i][row]);
+			} else {
+				tuple.setField(i, fieldColumns[i][row]);
+			}
+		}
+		tuple.setRecordId(recordIds[row]);
+		return tuple;
+	}
+
+	/**
+	 * Return a view of this batch with only the given columns, sharing the
+	 * column vectors and the selection vector.
+	 *
+	 * @param td      the schema of the projected batch
+	 * @param columns the column of this batch for each column of td
+	 */
+	public TupleBatch project(TupleDesc td, int[] columns) {
+		int[][] ints = new int[columns.length][];
+		Field[][] fields = new Field[columns.length][];
+		for (int i = 0; i < columns.length; i++) {
+			ints[i] = intColumns[columns[i]];
+			fields[i] = fieldColumns[columns[i]];
+		}
+		return new TupleBatch(td, capacity, ints, fields, recordIds, size, selection, selected);
+	}
+}
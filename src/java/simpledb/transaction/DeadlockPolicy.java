@@ -0,0 +1,26 @@
+package simpledb.transaction;
+
+/**
+ * 死锁处理策略，由BufferPool的LockManager使用。
+ * <p>
+ * DETECTION 维护等待图，出现环时让本次请求锁的事务abort；
+ * WAIT_DIE 和 WOUND_WAIT 是基于时间戳的死锁预防，时间戳即 {@link TransactionId#getId()}，
+ * id越小的事务越老。
+ */
+public enum DeadlockPolicy {
+	/**
+	 * Maintain a waits-for graph and abort the requesting transaction when
+	 * waiting would close a cycle.
+	 */
+	DETECTION,
+	/**
+	 * An older requester waits for a younger holder; a younger requester
+	 * aborts (dies) instead of waiting for an older holder.
+	 */
+	WAIT_DIE,
+	/**
+	 * An older requester aborts (wounds) younger holders and waits for them
+	 * to release; a younger requester waits for an older holder.
+	 */
+	WOUND_WAIT
+}
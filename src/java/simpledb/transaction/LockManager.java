@@ -0,0 +1,302 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+import simpledb.execution.QueryScheduler;
+import simpledb.index.BTreeKeyRange;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+
+/**
+ * 页级别的共享/排他锁管理，BufferPool.getPage时加锁，事务结束时统一释放（严格两阶段锁）。
+ * B+树的索引扫描和插入还会在 {@link BTreeKeyRange} 上加next-key锁；堆表的删除只在要修改的行({@link RecordId})上加锁，
+ * 所在的页上加意向锁(见 {@link LockMode})。所有锁都在同一张锁表、同一张等待图里。
+ * 锁冲突时按照 {@link DeadlockPolicy} 决定是等待还是abort。
+ *
+ * @Threadsafe, all methods are synchronized on this
+ */
+public class LockManager {
+	// 每个加锁对象(PageId、RecordId或BTreeKeyRange)上每个事务持有的锁模式
+	private final Map<Object, Map<TransactionId, LockMode>> locks;
+	// 事务持有锁的所有对象，用于事务结束时释放
+	private final Map<TransactionId, Set<Object>> transactionLocks;
+	// 等待图，只在DETECTION策略下维护
+	private final Map<TransactionId, Set<TransactionId>> waitsFor;
+	// WOUND_WAIT下被更老的事务打断的事务，下一次请求锁或者访问页时abort
+	private final Set<TransactionId> wounded;
+	private DeadlockPolicy policy;
+
+	public LockManager(DeadlockPolicy policy) {
+		this.policy = policy;
+		locks = new HashMap<>();
+		transactionLocks = new HashMap<>();
+		waitsFor = new HashMap<>();
+		wounded = new HashSet<>();
+	}
+
+	public synchronized DeadlockPolicy getPolicy() {
+		return policy;
+	}
+
+	public synchronized void setPolicy(DeadlockPolicy policy) {
+		this.policy = policy;
+		waitsFor.clear();
+	}
+
+	/**
+	 * Acquire a lock on the specified page, blocking while a conflicting lock
+	 * is held by another transaction. A shared lock held only by tid is
+	 * upgraded in place.
+	 *
+	 * @param tid  the transaction requesting the lock
+	 * @param pid  the page to lock
+	 * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+	 * @throws TransactionAbortedException if the deadlock policy decides tid
+	 *                                     should abort instead of waiting
+	 */
+	public synchronized void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+		throws TransactionAbortedException {
+		acquire(tid, pid, LockMode.of(perm), true);
+	}
+
+	/**
+	 * Acquire a lock on a single row: an intention lock on the page holding
+	 * it, then a shared or exclusive lock on the row itself. Transactions
+	 * touching different rows of the same page do not conflict, while page
+	 * level locks still conflict with the intention locks.
+	 *
+	 * @param tid  the transaction requesting the lock
+	 * @param rid  the row to lock
+	 * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+	 * @throws TransactionAbortedException if the deadlock policy decides tid
+	 *                                     should abort instead of waiting
+	 */
+	public synchronized void acquireTupleLock(TransactionId tid, RecordId rid, Permissions perm)
+		throws TransactionAbortedException {
+		acquire(tid, rid.getPageId(), LockMode.intentionOf(perm), true);
+		acquire(tid, rid, LockMode.of(perm), true);
+	}
+
+	/**
+	 * Acquire only the intention lock on a page, for a reader or writer that
+	 * locks the rows it touches one by one with {@link #acquireTupleLock}.
+	 *
+	 * @param tid  the transaction requesting the lock
+	 * @param pid  the page to lock
+	 * @param perm READ_ONLY for an intention shared lock, READ_WRITE for an
+	 *             intention exclusive lock
+	 * @throws TransactionAbortedException if the deadlock policy decides tid
+	 *                                     should abort instead of waiting
+	 */
+	public synchronized void acquireIntentionLock(TransactionId tid, PageId pid, Permissions perm)
+		throws TransactionAbortedException {
+		acquire(tid, pid, LockMode.intentionOf(perm), true);
+	}
+
+	/**
+	 * Acquire a next-key lock on the specified key range, blocking while a
+	 * conflicting lock is held by another transaction. Index scans take
+	 * READ_ONLY range locks; inserted keys are locked READ_WRITE.
+	 *
+	 * @param tid   the transaction requesting the lock
+	 * @param range the key plus the gap up to the next key
+	 * @param perm  READ_ONLY for a shared lock, READ_WRITE for an exclusive lock
+	 * @throws TransactionAbortedException if the deadlock policy decides tid
+	 *                                     should abort instead of waiting
+	 */
+	public synchronized void acquireKeyRangeLock(TransactionId tid, BTreeKeyRange range, Permissions perm)
+		throws TransactionAbortedException {
+		acquire(tid, range, LockMode.of(perm), true);
+	}
+
+	/**
+	 * Wait until no other transaction holds any lock on the specified range,
+	 * without keeping a lock afterwards. Used by inserts to check the gap the
+	 * new key falls into: inserts into the same gap do not conflict with each
+	 * other, only with the scans that locked it.
+	 *
+	 * @throws TransactionAbortedException if the deadlock policy decides tid
+	 *                                     should abort instead of waiting
+	 */
+	public synchronized void waitForKeyRange(TransactionId tid, BTreeKeyRange range)
+		throws TransactionAbortedException {
+		acquire(tid, range, LockMode.EXCLUSIVE, false);
+	}
+
+	/**
+	 * Return true if a transaction other than tid holds any lock on the range.
+	 */
+	public synchronized boolean isKeyRangeLockedByOthers(TransactionId tid, BTreeKeyRange range) {
+		return !getBlockers(tid, range, LockMode.EXCLUSIVE).isEmpty();
+	}
+
+	/**
+	 * Return true if an older transaction has wounded tid under
+	 * {@link DeadlockPolicy#WOUND_WAIT}. The victim must abort at its next
+	 * page access even when it requests no more locks; a victim that commits
+	 * before touching another page keeps its work, and the older transaction
+	 * gets the lock when it completes.
+	 */
+	public synchronized boolean isWounded(TransactionId tid) {
+		return wounded.contains(tid);
+	}
+
+	/**
+	 * 加锁的主循环，grant为false时只等到没有冲突为止，不真正持有锁
+	 */
+	private void acquire(TransactionId tid, Object lockId, LockMode mode, boolean grant)
+		throws TransactionAbortedException {
+		while (true) {
+			if (wounded.contains(tid)) {
+				waitsFor.remove(tid);
+				throw new TransactionAbortedException();
+			}
+			// 已经持有锁时，冲突检查要按合并升级后的模式来做
+			Map<TransactionId, LockMode> holders = locks.get(lockId);
+			LockMode held = holders == null ? null : holders.get(tid);
+			LockMode wanted = held == null ? mode : held.combine(mode);
+			Set<TransactionId> blockers = getBlockers(tid, lockId, wanted);
+			if (blockers.isEmpty()) {
+				waitsFor.remove(tid);
+				if (grant) {
+					grant(tid, lockId, wanted);
+				}
+				return;
+			}
+			switch (policy) {
+				case WAIT_DIE: {
+					for (TransactionId blocker : blockers) {
+						if (blocker.getId() < tid.getId()) {
+							throw new TransactionAbortedException();
+						}
+					}
+					break;
+				}
+				case WOUND_WAIT: {
+					for (TransactionId blocker : blockers) {
+						if (blocker.getId() > tid.getId() && wounded.add(blocker)) {
+							// 唤醒正在等待的被打断事务，让它尽快abort释放锁
+							notifyAll();
+						}
+					}
+					break;
+				}
+				default: {
+					waitsFor.put(tid, blockers);
+					if (hasCycle(tid)) {
+						waitsFor.remove(tid);
+						throw new TransactionAbortedException();
+					}
+				}
+			}
+			try {
+				// 在worker上等待时让线程池补一个worker，持锁的事务可能还有分片在排队
+				QueryScheduler.waitOn(this);
+			} catch (InterruptedException e) {
+				waitsFor.remove(tid);
+				throw new TransactionAbortedException();
+			}
+		}
+	}
+
+	/**
+	 * 返回阻塞本次加锁请求的其他事务，为空表示可以直接加锁
+	 */
+	private Set<TransactionId> getBlockers(TransactionId tid, Object lockId, LockMode mode) {
+		Map<TransactionId, LockMode> holders = locks.get(lockId);
+		if (holders == null || holders.isEmpty()) {
+			return Collections.emptySet();
+		}
+		Set<TransactionId> blockers = new HashSet<>();
+		for (Map.Entry<TransactionId, LockMode> entry : holders.entrySet()) {
+			if (entry.getKey().equals(tid)) {
+				continue;
+			}
+			if (!mode.isCompatibleWith(entry.getValue())) {
+				blockers.add(entry.getKey());
+			}
+		}
+		return blockers;
+	}
+
+	private void grant(TransactionId tid, Object lockId, LockMode mode) {
+		Map<TransactionId, LockMode> holders = locks.computeIfAbsent(lockId, k -> new HashMap<>());
+		holders.put(tid, mode);
+		transactionLocks.computeIfAbsent(tid, k -> new HashSet<>()).add(lockId);
+	}
+
+	/**
+	 * 从tid出发在等待图上做DFS，能回到tid说明有环
+	 */
+	private boolean hasCycle(TransactionId tid) {
+		Deque<TransactionId> stack = new ArrayDeque<>(waitsFor.getOrDefault(tid, Collections.emptySet()));
+		Set<TransactionId> visited = new HashSet<>();
+		while (!stack.isEmpty()) {
+			TransactionId current = stack.pop();
+			if (current.equals(tid)) {
+				return true;
+			}
+			if (visited.add(current)) {
+				stack.addAll(waitsFor.getOrDefault(current, Collections.emptySet()));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Release the lock tid holds on pid, if any.
+	 */
+	public synchronized void releaseLock(TransactionId tid, PageId pid) {
+		Map<TransactionId, LockMode> holders = locks.get(pid);
+		if (holders != null) {
+			holders.remove(tid);
+			if (holders.isEmpty()) {
+				locks.remove(pid);
+			}
+		}
+		Set<Object> lockIds = transactionLocks.get(tid);
+		if (lockIds != null) {
+			lockIds.remove(pid);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Release every lock held by tid and forget any deadlock bookkeeping for it.
+	 */
+	public synchronized void releaseAllLocks(TransactionId tid) {
+		Set<Object> lockIds = transactionLocks.remove(tid);
+		if (lockIds != null) {
+			for (Object lockId : lockIds) {
+				Map<TransactionId, LockMode> holders = locks.get(lockId);
+				if (holders != null) {
+					holders.remove(tid);
+					if (holders.isEmpty()) {
+						locks.remove(lockId);
+					}
+				}
+			}
+		}
+		waitsFor.remove(tid);
+		wounded.remove(tid);
+		notifyAll();
+	}
+
+	public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+		return holds(tid, pid);
+	}
+
+	public synchronized boolean holdsTupleLock(TransactionId tid, RecordId rid) {
+		return holds(tid, rid);
+	}
+
+	public synchronized boolean holdsKeyRangeLock(TransactionId tid, BTreeKeyRange range) {
+		return holds(tid, range);
+	}
+
+	private boolean holds(TransactionId tid, Object lockId) {
+		Map<TransactionId, LockMode> holders = locks.get(lockId);
+		return holders != null && holders.containsKey(tid);
+	}
+}
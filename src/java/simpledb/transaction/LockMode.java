@@ -0,0 +1,68 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+
+/**
+ * LockManager中锁的模式。页上除了共享/排他锁，还可以加意向锁，
+ * 表示事务会在这一页的某些行(RecordId)上加对应的行锁。
+ * <p>
+ * 兼容矩阵:
+ * <pre>
+ *            IS   IX   S    X
+ *      IS    y    y    y    n
+ *      IX    y    y    n    n
+ *      S     y    n    y    n
+ *      X     n    n    n    n
+ * </pre>
+ */
+public enum LockMode {
+	INTENTION_SHARED,
+	INTENTION_EXCLUSIVE,
+	SHARED,
+	EXCLUSIVE;
+
+	/**
+	 * @return the lock mode taken directly on a page or row for perm
+	 */
+	public static LockMode of(Permissions perm) {
+		return perm == Permissions.READ_WRITE ? EXCLUSIVE : SHARED;
+	}
+
+	/**
+	 * @return the intention lock mode taken on a page before locking one of
+	 * its rows with perm
+	 */
+	public static LockMode intentionOf(Permissions perm) {
+		return perm == Permissions.READ_WRITE ? INTENTION_EXCLUSIVE : INTENTION_SHARED;
+	}
+
+	/**
+	 * @return true if another transaction may hold other while this mode is held
+	 */
+	public boolean isCompatibleWith(LockMode other) {
+		switch (this) {
+			case INTENTION_SHARED:
+				return other != EXCLUSIVE;
+			case INTENTION_EXCLUSIVE:
+				return other == INTENTION_SHARED || other == INTENTION_EXCLUSIVE;
+			case SHARED:
+				return other == INTENTION_SHARED || other == SHARED;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * 同一个事务在同一对象上已持有this时再申请other，返回能同时覆盖两者的最弱模式。
+	 * 没有SIX模式，IX和S合并时直接升级为X；Delete下的扫描只加IS和行锁，删除时不会合并出X
+	 */
+	public LockMode combine(LockMode other) {
+		if (this == other || other == INTENTION_SHARED) {
+			return this;
+		}
+		if (this == INTENTION_SHARED) {
+			return other;
+		}
+		return EXCLUSIVE;
+	}
+}
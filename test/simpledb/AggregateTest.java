@@ -191,6 +191,46 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for several aggregates over a two-column group key, computed
+   * in one pass
+   */
+  @Test public void multipleAggregates() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 5,
+                    1, 2, 8 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2, 0 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.MAX, Aggregator.Op.MIN });
+    assertEquals(new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE,
+        Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }), op.getTupleDesc());
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 1, 2, 6, 4, 1,
+                    1, 2, 2, 14, 8, 1,
+                    3, 1, 2, 7, 5, 3 }), op);
+    op.close();
+
+    // 不分组时只有一行
+    op = new Aggregate(scan3, new int[] { 0, 1 }, new int[0],
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.AVG });
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(2, new int[] { 7, 4 }), op);
+  }
+
+  /**
+   * Aggregates other than COUNT are rejected on string fields
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void sumOverString() {
+    new Aggregate(scan2, new int[] { 0, 1 }, new int[0],
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.SUM });
+  }
+
   /**
    * JUnit suite target
    */
@@ -7,6 +7,7 @@ import simpledb.index.*;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.index.BTreeUtility.BTreeWriter;
 import simpledb.execution.Predicate.Op;
@@ -244,6 +245,68 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	/**
+	 * An insert that only changes its leaf keeps the leaf locked until the transaction
+	 * completes, so nobody else can read the uncommitted tuple on that page.
+	 */
+	@Test
+	public void insertHoldsLeafLock() throws Exception {
+		// a single leaf page with room to spare
+		BTreeFile file = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+		Database.getBufferPool().insertTuple(tid, file.getId(), BTreeUtility.getBTreeTuple(7, 2));
+
+		BTreePageId rootPtrPid = new BTreePageId(file.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrPid, Permissions.READ_ONLY);
+		BTreePageId leafId = rootPtr.getRootId();
+		assertEquals(BTreePageId.LEAF, leafId.pgcateg());
+		assertTrue(Database.getBufferPool().holdsLock(tid, leafId));
+
+		TransactionId reader = new TransactionId();
+		TestUtil.LockGrabber grabber = new TestUtil.LockGrabber(reader, leafId, Permissions.READ_ONLY);
+		grabber.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(grabber.acquired());
+
+		Database.getBufferPool().transactionComplete(tid);
+		grabber.join(5000);
+		assertTrue(grabber.acquired());
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * A delete of a key that a range scan of another transaction has returned waits
+	 * until the scanning transaction completes, and then keeps the key locked.
+	 */
+	@Test
+	public void deleteWaitsForRangeScan() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile file = BTreeUtility.createRandomBTreeFile(2, 10, null, tuples, 0);
+		Field key = new IntField(tuples.get(0).get(0));
+		DbFileIterator fit = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		fit.open();
+		assertTrue(fit.hasNext());
+		Tuple t = fit.next();
+		fit.close();
+
+		TransactionId deleter = new TransactionId();
+		Thread thread = new Thread(() -> {
+			try {
+				Database.getBufferPool().deleteTuple(deleter, t);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		thread.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertTrue(thread.isAlive());
+
+		Database.getBufferPool().transactionComplete(tid);
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertTrue(Database.getBufferPool().holdsKeyRangeLock(deleter, new BTreeKeyRange(file.getId(), key)));
+		Database.getBufferPool().transactionComplete(deleter);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -5,6 +5,8 @@ import simpledb.TestUtil.LockGrabber;
 import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
@@ -14,9 +16,30 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.DeadlockPolicy;
 import simpledb.transaction.TransactionId;
 
+@RunWith(Parameterized.class)
 public class DeadlockTest extends TestUtil.CreateHeapFile {
+  /**
+   * Run every deadlock scenario under each deadlock policy the buffer pool
+   * supports.
+   */
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> policies() {
+    List<Object[]> policies = new ArrayList<>();
+    for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+      policies.add(new Object[]{policy});
+    }
+    return policies;
+  }
+
+  private final DeadlockPolicy policy;
+
+  public DeadlockTest(DeadlockPolicy policy) {
+    this.policy = policy;
+  }
+
   private PageId p0;
     private PageId p1;
     private TransactionId tid1, tid2;
@@ -61,6 +84,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
     bp.flushAllPages();
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setDeadlockPolicy(policy);
   }
 
   /**
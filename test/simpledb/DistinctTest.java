@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Distinct;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+	private static final String[] WORDS = {"apple", "banana", "cherry"};
+
+	/**
+	 * @return 3000 rows of an int and a string column with many duplicates
+	 */
+	private static OpIterator table() {
+		Object[] data = new Object[3000 * 2];
+		for (int i = 0; i < 3000; i++) {
+			data[2 * i] = (i * 7) % 200;
+			data[2 * i + 1] = WORDS[i % WORDS.length];
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	/**
+	 * @return the distinct rows of child in order of first appearance
+	 */
+	private static List<String> expected(OpIterator child) throws Exception {
+		Set<String> rows = new LinkedHashSet<>();
+		child.open();
+		while (child.hasNext()) {
+			rows.add(child.next().toString());
+		}
+		child.close();
+		return new ArrayList<>(rows);
+	}
+
+	private static List<String> rows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		return rows;
+	}
+
+	private static List<String> batchRows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		TupleBatch batch;
+		while ((batch = it.nextBatch()) != null) {
+			for (int i = 0; i < batch.numRows(); i++) {
+				rows.add(batch.getTuple(batch.rowAt(i)).toString());
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Test that the hash strategy returns each distinct tuple once, in order of
+	 * first appearance, row by row, batch by batch and after a rewind
+	 */
+	@Test
+	public void hash() throws Exception {
+		List<String> expected = expected(table());
+		Distinct op = new Distinct(table());
+		op.open();
+		assertEquals(expected, rows(op));
+		op.rewind();
+		assertEquals(expected, batchRows(op));
+		op.close();
+	}
+
+	/**
+	 * Test that the hash strategy returns the same tuples when most of them
+	 * are spilled to disk
+	 */
+	@Test
+	public void spill() throws Exception {
+		List<String> expected = expected(table());
+		Distinct op = new Distinct(table(), 10);
+		op.open();
+		List<String> actual = rows(op);
+		op.rewind();
+		List<String> batches = batchRows(op);
+		op.close();
+		// 溢出的tuple在内存中的tuple之后返回
+		Collections.sort(expected);
+		Collections.sort(actual);
+		Collections.sort(batches);
+		assertEquals(expected, actual);
+		assertEquals(expected, batches);
+	}
+
+	/**
+	 * Test the strategy for input sorted on one field, where duplicates of a
+	 * sort value are not adjacent
+	 */
+	@Test
+	public void sorted() throws Exception {
+		List<String> expected = expected(new OrderBy(0, false, table()));
+		Distinct op = Distinct.sorted(new OrderBy(0, false, table()), 0);
+		op.open();
+		assertEquals(expected, rows(op));
+		op.rewind();
+		assertEquals(expected, batchRows(op));
+		op.close();
+	}
+
+	/**
+	 * Test that a logical plan with DISTINCT removes duplicates after the
+	 * projection, and applies ORDER BY and LIMIT to the distinct rows
+	 */
+	@Test
+	public void logicalPlan() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		Map<Integer, Integer> columns = new HashMap<>();
+		columns.put(1, 3);
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 50, columns, tuples, "c");
+		Database.getCatalog().addTable(f, "d");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("d", new TableStats(f.getId(), 1));
+		TransactionId tid = new TransactionId();
+
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(f.getId(), "d");
+		lp.addProjectField("d.c0", null);
+		lp.addProjectField("d.c1", null);
+		lp.setDistinct(true);
+		lp.addOrderBy("d.c0", true);
+		lp.addLimit(20, 5);
+
+		Set<String> distinct = new LinkedHashSet<>();
+		tuples.sort((a, b) -> Integer.compare(a.get(0), b.get(0)));
+		for (List<Integer> t : tuples) {
+			distinct.add(t.toString());
+		}
+		List<String> expected = new ArrayList<>(distinct).subList(5, 25);
+
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		plan.open();
+		List<String> actual = new ArrayList<>();
+		while (plan.hasNext()) {
+			actual.add(SystemTestUtil.tupleToList(plan.next()).toString());
+		}
+		plan.close();
+		assertEquals(expected, actual);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(DistinctTest.class);
+	}
+}
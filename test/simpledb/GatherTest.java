@@ -0,0 +1,283 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Gather;
+import simpledb.execution.Morsels;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.ParallelHashJoin;
+import simpledb.execution.Predicate;
+import simpledb.execution.Repartition;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class GatherTest extends SimpleDbTestBase {
+
+	private static OpIterator[] scans(int copies, int low, int high) {
+		OpIterator[] children = new OpIterator[copies];
+		for (int i = 0; i < copies; i++) {
+			children[i] = new TestUtil.MockScan(low + i * (high - low), low + (i + 1) * (high - low), 1);
+		}
+		return children;
+	}
+
+	/**
+	 * Test that every morsel is claimed exactly once
+	 */
+	@Test
+	public void morsels() {
+		Morsels morsels = new Morsels(35, 16);
+		assertEquals(0, morsels.next());
+		assertEquals(16, morsels.next());
+		assertEquals(32, morsels.next());
+		assertEquals(35, morsels.end(32));
+		assertEquals(-1, morsels.next());
+		morsels.reset();
+		assertEquals(0, morsels.next());
+	}
+
+	/**
+	 * Unit test for Gather over independent children, row by row and after
+	 * a rewind
+	 */
+	@Test
+	public void gatherAll() throws Exception {
+		Gather gather = new Gather(scans(4, 0, 3000));
+		assertEquals("gather(4)", gather.getName());
+		gather.open();
+		for (int pass = 0; pass < 2; pass++) {
+			Set<Integer> seen = new HashSet<>();
+			while (gather.hasNext()) {
+				assertTrue(seen.add(((IntField) gather.next().getField(0)).getValue()));
+			}
+			assertEquals(12000, seen.size());
+			gather.rewind();
+		}
+		gather.close();
+	}
+
+	/**
+	 * Test that a grouped aggregate per partition of a Repartition returns
+	 * the same groups as a serial aggregate
+	 */
+	@Test
+	public void repartitionAggregate() throws Exception {
+		int[] data = new int[4000 * 2];
+		for (int i = 0; i < 4000; i++) {
+			data[2 * i] = (i * 31) % 97;
+			data[2 * i + 1] = i;
+		}
+		OpIterator[] children = new OpIterator[3];
+		for (int i = 0; i < children.length; i++) {
+			// 每个生产者读数据的一段
+			int from = i * 4000 / 3, to = (i + 1) * 4000 / 3;
+			int[] part = new int[(to - from) * 2];
+			System.arraycopy(data, from * 2, part, 0, part.length);
+			children[i] = TestUtil.createTupleList(2, part);
+		}
+		Repartition[] partitions = Repartition.partition(children, null, new int[]{0}, 4);
+		OpIterator[] aggregates = new OpIterator[partitions.length];
+		for (int p = 0; p < partitions.length; p++) {
+			assertEquals(p, partitions[p].getPartition());
+			aggregates[p] = new Aggregate(partitions[p], 1, 0, Aggregator.Op.SUM);
+		}
+		Gather gather = new Gather(aggregates);
+		Aggregate expected = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, Aggregator.Op.SUM);
+		gather.open();
+		expected.open();
+		TestUtil.matchAllTuples(expected, gather);
+		gather.close();
+	}
+
+	/**
+	 * Test that parallel SeqScans sharing morsels read every tuple of a heap
+	 * file once
+	 */
+	@Test
+	public void morselScan() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		Database.getCatalog().addTable(f, "t");
+		TransactionId tid = new TransactionId();
+		Morsels morsels = new Morsels(f.numPages(), 2);
+		OpIterator[] children = new OpIterator[4];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = new SeqScan(tid, f.getId(), "t", morsels);
+		}
+		Gather gather = new Gather(children, morsels);
+		SystemTestUtil.matchTuples(gather, tuples);
+		// 重新打开时morsel被重置
+		SystemTestUtil.matchTuples(gather, tuples);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return true if plan contains an operator of class c
+	 */
+	private static boolean contains(OpIterator plan, Class<?> c) {
+		if (c.isInstance(plan)) {
+			return true;
+		}
+		if (plan instanceof Operator) {
+			for (OpIterator child : ((Operator) plan).getChildren()) {
+				if (contains(child, c)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the tuples returned by lp with the specified parallelism, sorted
+	 */
+	private static List<String> run(LogicalPlan lp, int parallelism, Class<?> parallelOp,
+									TransactionId tid, Map<String, TableStats> stats) throws Exception {
+		lp.setParallelism(parallelism);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+		assertEquals(parallelism > 1, contains(plan, parallelOp));
+		List<String> result = new ArrayList<>();
+		plan.open();
+		while (plan.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(plan.next()).toString());
+		}
+		plan.close();
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Test that logical plans over heap files read from disk return the same
+	 * tuples in parallel as serially: a filtered scan, a grouped aggregate
+	 * and a hash join
+	 */
+	@Test(timeout = 120000)
+	public void parallelLogicalPlan() throws Exception {
+		List<List<Integer>> aTuples = new ArrayList<>();
+		List<List<Integer>> bTuples = new ArrayList<>();
+		HeapFile a = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, aTuples, "c");
+		HeapFile b = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, bTuples, "c");
+		Database.getCatalog().addTable(a, "a");
+		Database.getCatalog().addTable(b, "b");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("a", new TableStats(a.getId(), 1));
+		stats.put("b", new TableStats(b.getId(), 1));
+		TransactionId tid = new TransactionId();
+
+		// SELECT a.c0, a.c1 FROM a WHERE a.c1 < 500
+		List<String> expected = new ArrayList<>();
+		for (List<Integer> t : aTuples) {
+			if (t.get(1) < 500) {
+				expected.add(t.toString());
+			}
+		}
+		Collections.sort(expected);
+		for (int parallelism : new int[]{1, 4}) {
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(a.getId(), "a");
+			lp.addFilter("a.c1", Predicate.Op.LESS_THAN, "500");
+			lp.addProjectField("a.c0", null);
+			lp.addProjectField("a.c1", null);
+			assertEquals(expected, run(lp, parallelism, Gather.class, tid, stats));
+		}
+
+		// SELECT a.c0, SUM(a.c1) FROM a GROUP BY a.c0
+		Map<Integer, Integer> sums = new HashMap<>();
+		for (List<Integer> t : aTuples) {
+			sums.merge(t.get(0), t.get(1), Integer::sum);
+		}
+		expected.clear();
+		for (Map.Entry<Integer, Integer> e : sums.entrySet()) {
+			expected.add("[" + e.getKey() + ", " + e.getValue() + "]");
+		}
+		Collections.sort(expected);
+		for (int parallelism : new int[]{1, 4}) {
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(a.getId(), "a");
+			lp.addProjectField("a.c0", null);
+			lp.addProjectField("a.c1", "SUM");
+			lp.addAggregate("SUM", "a.c1", "a.c0");
+			assertEquals(expected, run(lp, parallelism, Repartition.class, tid, stats));
+		}
+
+		// SELECT a.c1, b.c1 FROM a, b WHERE a.c0 = b.c0 AND b.c1 < 100
+		Map<Integer, List<Integer>> bByKey = new HashMap<>();
+		for (List<Integer> t : bTuples) {
+			if (t.get(1) < 100) {
+				bByKey.computeIfAbsent(t.get(0), k -> new ArrayList<>()).add(t.get(1));
+			}
+		}
+		expected.clear();
+		for (List<Integer> t : aTuples) {
+			for (int v : bByKey.getOrDefault(t.get(0), Collections.emptyList())) {
+				expected.add("[" + t.get(1) + ", " + v + "]");
+			}
+		}
+		Collections.sort(expected);
+		for (int parallelism : new int[]{1, 4}) {
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(a.getId(), "a");
+			lp.addScan(b.getId(), "b");
+			lp.addFilter("b.c1", Predicate.Op.LESS_THAN, "100");
+			lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+			lp.addProjectField("a.c1", null);
+			lp.addProjectField("b.c1", null);
+			assertEquals(expected, run(lp, parallelism, ParallelHashJoin.class, tid, stats));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Test that a failing producer is reported to the consumer
+	 */
+	@Test(expected = DbException.class)
+	public void producerFailure() throws Exception {
+		OpIterator failing = new TestUtil.MockScan(0, 10, 1) {
+			@Override
+			public TupleBatch nextBatch() throws DbException {
+				throw new DbException("failed");
+			}
+		};
+		Gather gather = new Gather(new OpIterator[]{scans(1, 0, 100)[0], failing});
+		gather.open();
+		try {
+			while (gather.hasNext()) {
+				gather.next();
+			}
+		} finally {
+			gather.close();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(GatherTest.class);
+	}
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashAggregator;
+import simpledb.execution.IntegerAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.StringAggregator;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+	private static final int GROUPS = 3000;
+	private static final int ROWS = GROUPS * 4;
+
+	/**
+	 * 每组的4行分散在输入各处，这样溢出之后内存中的组仍然会收到新行
+	 */
+	private static int[] intData() {
+		int[] data = new int[ROWS * 2];
+		for (int i = 0; i < ROWS; i++) {
+			data[2 * i] = (i * 7919) % GROUPS;
+			data[2 * i + 1] = i;
+		}
+		return data;
+	}
+
+	private static Map<Integer, Integer> drain(OpIterator it) throws Exception {
+		Map<Integer, Integer> result = new HashMap<>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			Integer old = result.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+			assertEquals("group returned twice", null, old);
+		}
+		return result;
+	}
+
+	private static Map<Integer, Integer> aggregate(Aggregator agg, int[] data) throws Exception {
+		OpIterator scan = TestUtil.createTupleList(2, data);
+		scan.open();
+		TupleBatch batch;
+		while ((batch = scan.nextBatch()) != null) {
+			agg.mergeBatchIntoGroup(batch);
+		}
+		OpIterator it = agg.iterator();
+		it.open();
+		Map<Integer, Integer> result = drain(it);
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Test that spilling groups beyond the memory budget gives the same
+	 * results as aggregating everything in memory
+	 */
+	@Test
+	public void spillSum() throws Exception {
+		int[] data = intData();
+		IntegerAggregator inMemory = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+		Map<Integer, Integer> expected = aggregate(inMemory, data);
+		assertFalse(inMemory.isSpilling());
+		assertEquals(GROUPS, expected.size());
+
+		IntegerAggregator spilled = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM, 100);
+		assertEquals(expected, aggregate(spilled, data));
+		assertTrue(spilled.isSpilling());
+		spilled.close();
+		assertFalse(spilled.isSpilling());
+	}
+
+	/**
+	 * Test AVG, whose partial results cannot be merged, with a budget small
+	 * enough to partition more than once
+	 */
+	@Test
+	public void spillAvgRepartition() throws Exception {
+		int[] data = intData();
+		Map<Integer, Integer> expected = aggregate(
+			new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG), data);
+		HashAggregator spilled = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG, 4);
+		assertEquals(expected, aggregate(spilled, data));
+		spilled.close();
+	}
+
+	/**
+	 * Test spilling string group keys through mergeTupleIntoGroup, and
+	 * rewinding the result iterator
+	 */
+	@Test
+	public void spillStringGroups() throws Exception {
+		Object[] data = new Object[ROWS * 2];
+		for (int i = 0; i < ROWS; i++) {
+			data[2 * i] = "g" + (i * 7919) % GROUPS;
+			data[2 * i + 1] = i;
+		}
+		StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.COUNT, 50);
+		OpIterator scan = TestUtil.createTupleList(2, data);
+		scan.open();
+		while (scan.hasNext()) {
+			agg.mergeTupleIntoGroup(scan.next());
+		}
+		assertTrue(agg.isSpilling());
+		OpIterator it = agg.iterator();
+		it.open();
+		for (int pass = 0; pass < 2; pass++) {
+			int groups = 0;
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				assertTrue(t.getField(0) instanceof StringField);
+				assertEquals(ROWS / GROUPS, ((IntField) t.getField(1)).getValue());
+				groups++;
+			}
+			assertEquals(GROUPS, groups);
+			it.rewind();
+		}
+		it.close();
+		agg.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashAggregatorTest.class);
+	}
+}
@@ -0,0 +1,81 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+	private static int[] table(int rows, int distinctKeys) {
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = i % distinctKeys;
+			data[2 * i + 1] = i;
+		}
+		return data;
+	}
+
+	/**
+	 * Join two tables with a small memory budget and compare the result with
+	 * the nested-loop Join.
+	 */
+	private void checkSpilledJoin(int[] left, int[] right, int memoryTuples) throws Exception {
+		JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+			TestUtil.createTupleList(2, right), memoryTuples);
+		OpIterator expected = new Join(pred, TestUtil.createTupleList(2, left),
+			TestUtil.createTupleList(2, right));
+		op.open();
+		expected.open();
+		int count = 0;
+		while (op.hasNext()) {
+			op.next();
+			count++;
+		}
+		int expectedCount = 0;
+		while (expected.hasNext()) {
+			expected.next();
+			expectedCount++;
+		}
+		assertEquals(expectedCount, count);
+		expected.rewind();
+		op.rewind();
+		TestUtil.matchAllTuples(expected, op);
+		op.close();
+		expected.close();
+	}
+
+	/**
+	 * Unit test for HashEquiJoin.getNext() when the build side is
+	 * partitioned to disk
+	 */
+	@Test
+	public void partitionedJoin() throws Exception {
+		checkSpilledJoin(table(500, 200), table(300, 250), 50);
+	}
+
+	/**
+	 * Unit test for HashEquiJoin.getNext() when a single key has more
+	 * duplicates than the memory budget, so repartitioning cannot help
+	 */
+	@Test
+	public void skewedJoin() throws Exception {
+		checkSpilledJoin(table(120, 2), table(10, 5), 20);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashEquiJoinTest.class);
+	}
+}
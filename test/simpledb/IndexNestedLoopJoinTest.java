@@ -0,0 +1,224 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.DbException;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.IndexOpIterator;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+	final int width1 = 2;
+	final int width2 = 3;
+	final int[] data1 = new int[]{
+		5, 6,
+		1, 2,
+		3, 4,
+		3, 5,
+		7, 8
+	};
+	final int[] data2 = new int[]{
+		3, 4, 5,
+		1, 2, 3,
+		5, 6, 7,
+		3, 9, 9,
+		2, 3, 4,
+		4, 5, 6
+	};
+
+	/**
+	 * An in-memory stand-in for an index on field 0 of a tuple list: returns
+	 * the tuples satisfying the index predicate and counts the probes.
+	 */
+	static class ListIndex implements IndexOpIterator {
+		private static final long serialVersionUID = 1L;
+		private final List<Tuple> tuples = new ArrayList<>();
+		private final TupleDesc td;
+		private List<Tuple> matches;
+		private int pos;
+		int probes;
+
+		ListIndex(OpIterator source) throws Exception {
+			td = source.getTupleDesc();
+			source.open();
+			while (source.hasNext()) {
+				tuples.add(source.next());
+			}
+			source.close();
+		}
+
+		public void open(IndexPredicate ipred) {
+			matches = new ArrayList<>();
+			for (Tuple t : tuples) {
+				if (t.getField(0).compare(ipred.getOp(), ipred.getField())) {
+					matches.add(t);
+				}
+			}
+			pos = 0;
+			probes++;
+		}
+
+		public void rewind(IndexPredicate ipred) {
+			open(ipred);
+		}
+
+		public void open() {
+			throw new UnsupportedOperationException("needs an index predicate");
+		}
+
+		public boolean hasNext() {
+			return pos < matches.size();
+		}
+
+		public Tuple next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return matches.get(pos++);
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			pos = 0;
+		}
+
+		public TupleDesc getTupleDesc() {
+			return td;
+		}
+
+		public void close() {
+			matches = null;
+		}
+	}
+
+	/**
+	 * Check that IndexNestedLoopJoin returns the same tuples as the
+	 * nested-loop Join and probes the index once per outer tuple.
+	 */
+	private void checkAgainstJoin(Predicate.Op op) throws Exception {
+		JoinPredicate pred = new JoinPredicate(0, op, 0);
+		ListIndex index = new ListIndex(TestUtil.createTupleList(width2, data2));
+		IndexNestedLoopJoin inlj = new IndexNestedLoopJoin(pred,
+			TestUtil.createTupleList(width1, data1), index);
+		Join expected = new Join(pred, TestUtil.createTupleList(width1, data1),
+			TestUtil.createTupleList(width2, data2));
+		inlj.open();
+		expected.open();
+		int count = 0;
+		while (inlj.hasNext()) {
+			inlj.next();
+			count++;
+		}
+		int expectedCount = 0;
+		while (expected.hasNext()) {
+			expected.next();
+			expectedCount++;
+		}
+		assertEquals(expectedCount, count);
+		assertEquals(data1.length / width1, index.probes);
+		expected.rewind();
+		inlj.rewind();
+		TestUtil.matchAllTuples(expected, inlj);
+		inlj.close();
+		expected.close();
+	}
+
+	/**
+	 * Unit test for IndexNestedLoopJoin.getNext() using an = predicate
+	 */
+	@Test
+	public void eqJoin() throws Exception {
+		checkAgainstJoin(Predicate.Op.EQUALS);
+	}
+
+	/**
+	 * Unit test for IndexNestedLoopJoin.getNext() using range predicates
+	 */
+	@Test
+	public void rangeJoin() throws Exception {
+		checkAgainstJoin(Predicate.Op.GREATER_THAN);
+		checkAgainstJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+		checkAgainstJoin(Predicate.Op.LESS_THAN);
+		checkAgainstJoin(Predicate.Op.LESS_THAN_OR_EQ);
+	}
+
+	/**
+	 * Unit test for IndexNestedLoopJoin.indexOp()
+	 */
+	@Test
+	public void indexOp() {
+		assertEquals(Predicate.Op.EQUALS, IndexNestedLoopJoin.indexOp(Predicate.Op.EQUALS));
+		assertEquals(Predicate.Op.GREATER_THAN, IndexNestedLoopJoin.indexOp(Predicate.Op.LESS_THAN));
+		assertEquals(Predicate.Op.LESS_THAN_OR_EQ, IndexNestedLoopJoin.indexOp(Predicate.Op.GREATER_THAN_OR_EQ));
+	}
+
+	/**
+	 * Test that the index nested-loop join is priced only where
+	 * instantiateJoin builds it: a small outer side and an unfiltered inner
+	 * base table
+	 */
+	@Test
+	public void indexJoinCost() throws Exception {
+		File file = File.createTempFile("index", ".dat");
+		file.deleteOnExit();
+		BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0, 100);
+		BTreeFile index = BTreeUtility.openBTreeFile(2, "f", file, 0);
+		HeapFile outer = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(outer.getId(), "a");
+		lp.addScan(index.getId(), "b");
+		LogicalJoinNode j = new LogicalJoinNode("a", "b", "a.f0", "b.f0", Predicate.Op.EQUALS);
+		List<LogicalJoinNode> joins = new ArrayList<>();
+		joins.add(j);
+		JoinOptimizer jo = new JoinOptimizer(lp, joins);
+
+		// 每次查找读2页，外表少于50行时比扫描100页的内表便宜
+		assertEquals(JoinOptimizer.estimateIndexJoinCost(Predicate.Op.EQUALS, 10, 1000, 5, 100, index),
+			jo.estimateJoinCost(j, 10, 1000, 5, 100), 0.001);
+		assertEquals(5 + 60 * 100 + 60 * 1000, jo.estimateJoinCost(j, 60, 1000, 5, 100), 0.001);
+
+		// 内表有过滤条件时不是单纯的扫描，不会用索引
+		lp.addFilter("b.f1", Predicate.Op.EQUALS, "3");
+		assertNotEquals(JoinOptimizer.estimateIndexJoinCost(Predicate.Op.EQUALS, 10, 1000, 5, 100, index),
+			jo.estimateJoinCost(j, 10, 1000, 5, 100), 0.001);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedOp() throws Exception {
+		new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+			TestUtil.createTupleList(width1, data1),
+			new ListIndex(TestUtil.createTupleList(width2, data2)));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+	}
+}
@@ -16,6 +16,7 @@ import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -199,6 +200,58 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Test that AVG divides the full sum by the count, even when the sum of a
+	 * group does not fit in an int
+	 */
+	@Test
+	public void mergeAvgLargeValues() throws Exception {
+		OpIterator scan = TestUtil.createTupleList(width1,
+			new int[]{1, Integer.MAX_VALUE,
+				1, Integer.MAX_VALUE - 2,
+				2, Integer.MIN_VALUE,
+				2, Integer.MIN_VALUE});
+		scan.open();
+		IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+		while (scan.hasNext()) {
+			agg.mergeTupleIntoGroup(scan.next());
+		}
+		OpIterator it = agg.iterator();
+		it.open();
+		TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+			new int[]{1, Integer.MAX_VALUE - 1,
+				2, Integer.MIN_VALUE}), it);
+	}
+
+	/**
+	 * Test IntegerAggregator.mergeBatchIntoGroup() with enough groups to grow
+	 * the group table several times
+	 */
+	@Test
+	public void mergeManyGroups() throws Exception {
+		int groups = 5000;
+		int[] data = new int[groups * 3 * 2];
+		int[] expected = new int[groups * 2];
+		for (int i = 0; i < groups * 3; i++) {
+			data[2 * i] = i % groups - groups / 2;
+			data[2 * i + 1] = i;
+		}
+		for (int g = 0; g < groups; g++) {
+			expected[2 * g] = g - groups / 2;
+			expected[2 * g + 1] = g + (g + groups) + (g + 2 * groups);
+		}
+		OpIterator scan = TestUtil.createTupleList(width1, data);
+		scan.open();
+		IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+		TupleBatch batch;
+		while ((batch = scan.nextBatch()) != null) {
+			agg.mergeBatchIntoGroup(batch);
+		}
+		OpIterator it = agg.iterator();
+		it.open();
+		TestUtil.compareDbIterators(TestUtil.createTupleList(width1, expected), it);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -69,7 +69,6 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		this.tuples1 = new ArrayList<>();
 		this.f1 = SystemTestUtil.createRandomHeapFile(10, 1000, 20, null,
 			tuples1, "c");
-		f1.setPageCount(f1.getTupleDesc().getSize() * 1000 / BufferPool.getPageSize());
 
 		this.tableName1 = "TA";
 		Database.getCatalog().addTable(f1, tableName1);
@@ -82,7 +81,6 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		this.tuples2 = new ArrayList<>();
 		this.f2 = SystemTestUtil.createRandomHeapFile(10, 10000, 20, null,
 			tuples2, "c");
-		f2.setPageCount((int) Math.rint(f2.getTupleDesc().getSize() * 10000.0 / BufferPool.getPageSize()));
 
 		this.tableName2 = "TB";
 		Database.getCatalog().addTable(f2, tableName2);
@@ -124,6 +124,32 @@ public class JoinTest extends SimpleDbTestBase {
 		TestUtil.matchAllTuples(eqJoin, op);
 	}
 
+	/**
+	 * Unit test for Join.getNext() when the outer relation spans several
+	 * blocks, so the inner relation is rescanned once per block
+	 */
+	@Test
+	public void multiBlockJoin() throws Exception {
+		int outerRows = 1200;
+		int[] outer = new int[outerRows * width1];
+		for (int i = 0; i < outerRows; i++) {
+			outer[i * width1] = i % 5;
+			outer[i * width1 + 1] = i;
+		}
+		JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		Join op = new Join(pred, TestUtil.createTupleList(width1, outer), scan2, 1);
+		op.open();
+		int count = 0;
+		while (op.hasNext()) {
+			Tuple t = op.next();
+			assertEquals(t.getField(0), t.getField(width1));
+			count++;
+		}
+		// values 1..4 of the outer join with one inner tuple each
+		assertEquals(outerRows / 5 * 4, count);
+		op.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
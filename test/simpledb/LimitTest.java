@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.Limit;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+	/**
+	 * MockScan that counts the tuples read and whether it was closed
+	 */
+	private static class CountingScan extends TestUtil.MockScan {
+		int read;
+		boolean closed;
+
+		CountingScan(int low, int high) {
+			super(low, high, 1);
+		}
+
+		@Override
+		public void open() {
+			super.open();
+			closed = false;
+		}
+
+		@Override
+		public Tuple next() {
+			read++;
+			return super.next();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Unit test for Limit.getNext() with an offset
+	 */
+	@Test
+	public void limitOffset() throws Exception {
+		CountingScan scan = new CountingScan(0, 100);
+		Limit op = new Limit(10, 5, scan);
+		op.open();
+		for (int i = 5; i < 15; i++) {
+			assertTrue(op.hasNext());
+			assertEquals(i, ((IntField) op.next().getField(0)).getValue());
+		}
+		assertFalse(op.hasNext());
+		// 只读了需要的行，并且提前关闭了孩子
+		assertEquals(15, scan.read);
+		assertTrue(scan.closed);
+
+		op.rewind();
+		assertEquals(5, ((IntField) op.next().getField(0)).getValue());
+		op.close();
+	}
+
+	/**
+	 * Unit test for Limit.getNext() when the child has fewer tuples than the
+	 * limit, or the limit is zero
+	 */
+	@Test
+	public void shortChild() throws Exception {
+		Limit op = new Limit(10, 3, new CountingScan(0, 8));
+		op.open();
+		int count = 0;
+		while (op.hasNext()) {
+			op.next();
+			count++;
+		}
+		assertEquals(5, count);
+		op.close();
+
+		CountingScan scan = new CountingScan(0, 8);
+		op = new Limit(0, 0, scan);
+		op.open();
+		assertFalse(op.hasNext());
+		assertEquals(0, scan.read);
+		op.close();
+	}
+
+	/**
+	 * Unit test for the LIMIT clause removed by Parser before Zql parses
+	 * the statement
+	 */
+	@Test
+	public void parseLimit() {
+		Parser p = new Parser();
+		assertEquals("SELECT * FROM t ORDER BY t.a;",
+			p.stripLimit("SELECT * FROM t ORDER BY t.a LIMIT 10 OFFSET 20;"));
+		assertEquals("select * from t;", p.stripLimit("select * from t limit 3;"));
+		assertEquals("SELECT * FROM t;", p.stripLimit("SELECT * FROM t;"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LimitTest.class);
+	}
+}
@@ -3,14 +3,25 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -193,6 +204,156 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Grab a row lock in a new thread, like {@link #grabLock}.
+   */
+  public void grabTupleLock(TransactionId tid, RecordId rid, Permissions perm,
+      boolean expected) throws Exception {
+
+    final boolean[] acquired = new boolean[1];
+    Thread t = new Thread(() -> {
+      try {
+        Database.getBufferPool().lockTuple(tid, rid, perm);
+        synchronized (acquired) {
+          acquired[0] = true;
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+    t.start();
+
+    Thread.sleep(TIMEOUT);
+    synchronized (acquired) {
+      assertEquals(expected, acquired[0]);
+    }
+    t.stop();
+  }
+
+  /**
+   * Unit test for BufferPool.lockTuple().
+   * Acquires write locks on different rows of the same page.
+   */
+  @Test public void acquireWriteLocksOnDifferentRows() throws Exception {
+    bp.lockTuple(tid1, new RecordId(p0, 0), Permissions.READ_WRITE);
+    grabTupleLock(tid2, new RecordId(p0, 1), Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for BufferPool.lockTuple().
+   * Acquires write locks on the same row.
+   */
+  @Test public void acquireWriteLocksOnSameRow() throws Exception {
+    bp.lockTuple(tid1, new RecordId(p0, 0), Permissions.READ_WRITE);
+    grabTupleLock(tid2, new RecordId(p0, 0), Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.lockTuple() and BufferPool.getPage().
+   * A read lock on a whole page conflicts with a row write lock on it.
+   */
+  @Test public void acquireRowWriteThenPageReadLock() throws Exception {
+    bp.lockTuple(tid1, new RecordId(p0, 0), Permissions.READ_WRITE);
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * @return a delete of the rows whose first field is value, with the
+   * predicate pushed into the scan
+   */
+  private Delete deleteWhere(TransactionId tid, int value) {
+    SeqScan scan = new SeqScan(tid, empty.getId(), "t");
+    scan.pushDown(Collections.singletonList(
+        new Predicate(0, Predicate.Op.EQUALS, new IntField(value))), null);
+    return new Delete(tid, scan);
+  }
+
+  /**
+   * @return the number of rows of the table whose first field is value
+   */
+  private int count(TransactionId tid, int value) throws Exception {
+    SeqScan scan = new SeqScan(tid, empty.getId(), "t");
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      if (((IntField) scan.next().getField(0)).getValue() == value) {
+        n++;
+      }
+    }
+    scan.close();
+    return n;
+  }
+
+  /**
+   * Unit test for Delete under row locks.
+   * Two transactions delete different rows of the same page without
+   * waiting for each other.
+   */
+  @Test public void deleteDifferentRowsOfSamePage() throws Exception {
+    Delete d1 = deleteWhere(tid1, 0);
+    d1.open();
+    assertEquals(1, ((IntField) d1.next().getField(0)).getValue());
+
+    final int[] deleted = {-1};
+    Thread t = new Thread(() -> {
+      try {
+        Delete d2 = deleteWhere(tid2, 1);
+        d2.open();
+        deleted[0] = ((IntField) d2.next().getField(0)).getValue();
+        d2.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+    t.start();
+    t.join(5000);
+    assertFalse(t.isAlive());
+    assertEquals(1, deleted[0]);
+    d1.close();
+    assertTrue(bp.holdsTupleLock(tid1, new RecordId(p0, 0)));
+    assertTrue(bp.holdsTupleLock(tid2, new RecordId(p0, 1)));
+  }
+
+  /**
+   * Unit test for HeapFile.insertTuple() under row locks.
+   * An insert locks the new row, and its page with an intention lock.
+   */
+  @Test public void insertLocksNewRow() throws Exception {
+    Tuple t = Utility.getHeapTuple(new int[] {7, 7});
+    bp.insertTuple(tid1, empty.getId(), t);
+    RecordId rid = t.getRecordId();
+    assertTrue(bp.holdsTupleLock(tid1, rid));
+    grabTupleLock(tid2, rid, Permissions.READ_ONLY, false);
+    grabTupleLock(tid2, new RecordId(rid.getPageId(), 0), Permissions.READ_WRITE, true);
+    grabLock(tid2, rid.getPageId(), Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() under row locks.
+   * Aborting undoes the rows a transaction inserted and deleted, while
+   * a concurrent delete on the same page is kept when it commits.
+   */
+  @Test public void abortUndoesRowChanges() throws Exception {
+    Delete d1 = deleteWhere(tid1, 0);
+    d1.open();
+    d1.next();
+    d1.close();
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(new int[] {-5, -5}));
+    Delete d2 = deleteWhere(tid2, 1);
+    d2.open();
+    d2.next();
+    d2.close();
+
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+
+    TransactionId tid = new TransactionId();
+    assertEquals(1, count(tid, 0));
+    assertEquals(0, count(tid, -5));
+    assertEquals(0, count(tid, 1));
+    bp.transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,213 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Distinct;
+import simpledb.execution.MemoryBroker;
+import simpledb.execution.MemoryGrant;
+import simpledb.execution.MemoryReservation;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Query;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class MemoryBrokerTest extends SimpleDbTestBase {
+
+	/**
+	 * @return rows rows with distinct values, in increasing order
+	 */
+	private static OpIterator table(int rows) {
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = i;
+			data[2 * i + 1] = i % 7;
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	/**
+	 * Test that a grant is capped at the per-query maximum, and that a query
+	 * waits for admission until enough of the budget is returned
+	 */
+	@Test
+	public void admission() throws Exception {
+		MemoryBroker broker = new MemoryBroker(100, 60, 60000);
+		MemoryGrant first = broker.admit(1000);
+		assertEquals(60, first.getSize());
+		assertEquals(60, broker.getGranted());
+
+		AtomicReference<MemoryGrant> second = new AtomicReference<>();
+		Thread waiter = new Thread(() -> {
+			try {
+				second.set(broker.admit(50));
+			} catch (InterruptedException ignored) {
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+		assertEquals(null, second.get());
+
+		first.close();
+		// 重复close不会多归还
+		first.close();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(50, second.get().getSize());
+		assertEquals(50, broker.getGranted());
+		second.get().close();
+		assertEquals(0, broker.getGranted());
+	}
+
+	/**
+	 * Test that a query that wants no memory is admitted at once, even behind
+	 * a query waiting for its grant
+	 */
+	@Test
+	public void zeroDemand() throws Exception {
+		MemoryBroker broker = new MemoryBroker(100, 100, 60000);
+		MemoryGrant first = broker.admit(100);
+		Thread waiter = new Thread(() -> {
+			try {
+				broker.admit(50).close();
+			} catch (InterruptedException ignored) {
+			}
+		});
+		waiter.start();
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+
+		MemoryGrant none = broker.admit(0);
+		assertEquals(0, none.getSize());
+		none.close();
+		assertEquals(100, broker.getGranted());
+		first.close();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(0, broker.getGranted());
+	}
+
+	/**
+	 * Test that a query that has waited longer than the admission timeout is
+	 * admitted with the rest of the budget, so that a query holding a grant
+	 * while it waits for a lock of the waiting transaction cannot block it
+	 * forever
+	 */
+	@Test
+	public void admissionTimeout() throws Exception {
+		MemoryBroker broker = new MemoryBroker(100, 60, 100);
+		MemoryGrant first = broker.admit(60);
+		MemoryGrant second = broker.admit(60);
+		assertEquals(40, second.getSize());
+		MemoryGrant third = broker.admit(10);
+		assertEquals(0, third.getSize());
+		assertEquals(100, broker.getGranted());
+
+		// 没有分到内存的查询，算子仍然有第一个chunk
+		MemoryReservation reservation = new MemoryReservation(third, 5000);
+		assertTrue(reservation.fits(MemoryReservation.CHUNK));
+		assertFalse(reservation.fits(MemoryReservation.CHUNK + 1));
+		reservation.release();
+
+		first.close();
+		second.close();
+		third.close();
+		assertEquals(0, broker.getGranted());
+	}
+
+	/**
+	 * Test that reservations grow in chunks until the grant is used up, while
+	 * each operator always gets its first chunk
+	 */
+	@Test
+	public void reservation() throws Exception {
+		MemoryGrant grant = new MemoryBroker(10000, 3000).admit(3000);
+		MemoryReservation a = new MemoryReservation(grant, 5000);
+		assertEquals(MemoryReservation.CHUNK, a.getReserved());
+		assertTrue(a.fits(2000));
+		assertEquals(2 * MemoryReservation.CHUNK, a.getReserved());
+		assertFalse(a.fits(5000));
+		assertEquals(3000, a.getReserved());
+		assertFalse(a.fits(5001));
+
+		MemoryReservation b = new MemoryReservation(grant, 5000);
+		assertTrue(b.fits(MemoryReservation.CHUNK));
+		assertFalse(b.fits(MemoryReservation.CHUNK + 1));
+		a.release();
+		assertEquals(MemoryReservation.CHUNK, grant.getReserved());
+		assertTrue(b.fits(2500));
+		b.release();
+		assertEquals(0, grant.getReserved());
+
+		// 没有grant时只受算子自己的预算限制
+		MemoryReservation c = new MemoryReservation(null, 5000);
+		assertTrue(c.fits(5000));
+		assertFalse(c.fits(5001));
+	}
+
+	/**
+	 * Test that the demand of a plan is the sum of the demands of its
+	 * consumers, using estimated cardinalities where known
+	 */
+	@Test
+	public void demand() {
+		OrderBy sort = new OrderBy(0, true, table(10));
+		sort.setEstimatedCardinality(500);
+		assertEquals(OrderBy.MEMORY_TUPLES + 500, MemoryBroker.demand(new Distinct(sort)));
+		assertEquals(OrderBy.MEMORY_TUPLES, MemoryBroker.demand(Distinct.sorted(sort, 0)));
+	}
+
+	/**
+	 * Test that a query with a small grant spills, returns the same tuples,
+	 * and returns its grant when closed
+	 */
+	@Test
+	public void query() throws Exception {
+		int rows = 5000;
+		List<String> expected = new ArrayList<>();
+		OpIterator child = table(rows);
+		child.open();
+		while (child.hasNext()) {
+			expected.add(child.next().toString());
+		}
+		child.close();
+
+		MemoryBroker broker = Database.resetMemoryBroker(800);
+		Query query = new Query(new Distinct(table(rows)), new TransactionId());
+		query.start();
+		assertEquals(100, broker.getGranted());
+		List<String> actual = new ArrayList<>();
+		while (query.hasNext()) {
+			actual.add(query.next().toString());
+		}
+		query.close();
+		assertEquals(0, broker.getGranted());
+
+		// 溢出的tuple在内存中的tuple之后返回，顺序和输入不同
+		assertNotEquals(expected, actual);
+		Collections.sort(expected);
+		Collections.sort(actual);
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(MemoryBrokerTest.class);
+	}
+}
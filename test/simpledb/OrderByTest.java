@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+	private static int[] randomTable(int rows) {
+		Random random = new Random(rows);
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = random.nextInt(rows / 2) - rows / 4;
+			data[2 * i + 1] = i;
+		}
+		return data;
+	}
+
+	/**
+	 * Sort the table on field 0 and check the keys come out in order, that
+	 * every tuple is returned, and that rewind returns the same tuples.
+	 */
+	private void checkSort(int[] data, boolean asc, int memoryTuples) throws Exception {
+		int rows = data.length / 2;
+		int[] expected = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			expected[i] = data[2 * i];
+		}
+		Arrays.sort(expected);
+
+		OrderBy op = new OrderBy(0, asc, TestUtil.createTupleList(2, data), memoryTuples);
+		op.open();
+		boolean[] seen = new boolean[rows];
+		for (int i = 0; i < rows; i++) {
+			Tuple t = op.next();
+			int key = asc ? expected[i] : expected[rows - 1 - i];
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+			int id = ((IntField) t.getField(1)).getValue();
+			assertFalse(seen[id]);
+			seen[id] = true;
+		}
+		assertFalse(op.hasNext());
+
+		op.rewind();
+		OrderBy again = new OrderBy(0, asc, TestUtil.createTupleList(2, data));
+		again.open();
+		TestUtil.compareDbIterators(again, op);
+		op.close();
+		again.close();
+	}
+
+	/**
+	 * Unit test for OrderBy.getNext() when the input fits in memory
+	 */
+	@Test
+	public void inMemorySort() throws Exception {
+		checkSort(randomTable(500), true, 1000);
+		checkSort(randomTable(500), false, 1000);
+	}
+
+	/**
+	 * Unit test for OrderBy.getNext() when sorted runs are spilled and
+	 * merged in several passes
+	 */
+	@Test
+	public void externalSort() throws Exception {
+		checkSort(randomTable(3000), true, 50);
+		checkSort(randomTable(3000), false, 50);
+		checkSort(randomTable(3000), true, 1500);
+	}
+
+	/**
+	 * Unit test for OrderBy.getNext() on a string key with spilled runs
+	 */
+	@Test
+	public void externalStringSort() throws Exception {
+		String[] keys = new String[]{"pear", "apple", "fig", "kiwi", "banana", "cherry", "date", "lime"};
+		Object[] data = new Object[keys.length * 10 * 2];
+		for (int i = 0; i < keys.length * 10; i++) {
+			data[2 * i] = keys[(i * 3) % keys.length];
+			data[2 * i + 1] = i;
+		}
+		OpIterator op = new OrderBy(0, false, TestUtil.createTupleList(2, data), 7);
+		op.open();
+		String last = null;
+		int count = 0;
+		while (op.hasNext()) {
+			String key = ((StringField) op.next().getField(0)).getValue();
+			if (last != null) {
+				assertFalse(key.compareTo(last) > 0);
+			}
+			last = key;
+			count++;
+		}
+		assertEquals(keys.length * 10, count);
+		op.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(OrderByTest.class);
+	}
+}
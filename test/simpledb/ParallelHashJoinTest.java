@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.Gather;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinHashTable;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelHashJoin;
+import simpledb.execution.Predicate;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+
+	private static int[] table(int from, int to, int distinctKeys) {
+		int[] data = new int[(to - from) * 2];
+		for (int i = from; i < to; i++) {
+			data[2 * (i - from)] = (i * 7) % distinctKeys;
+			data[2 * (i - from) + 1] = i;
+		}
+		return data;
+	}
+
+	/**
+	 * @return copies pipelines, each reading a slice of rows rows
+	 */
+	private static OpIterator[] slices(int copies, int rows, int distinctKeys) {
+		OpIterator[] children = new OpIterator[copies];
+		for (int i = 0; i < copies; i++) {
+			children[i] = TestUtil.createTupleList(2, table(i * rows / copies, (i + 1) * rows / copies, distinctKeys));
+		}
+		return children;
+	}
+
+	private static List<String> rows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		Collections.sort(rows);
+		return rows;
+	}
+
+	/**
+	 * Join build and probe slices in parallel and compare the result with a
+	 * serial HashEquiJoin, also after a rewind
+	 */
+	private void checkJoin(int buildRows, int probeRows, int distinctKeys, boolean buildLeft) throws Exception {
+		JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		JoinHashTable table = new JoinHashTable(slices(3, buildRows, distinctKeys), null, 0, 4);
+		OpIterator[] probes = slices(4, probeRows, distinctKeys);
+		for (int i = 0; i < probes.length; i++) {
+			probes[i] = new ParallelHashJoin(pred, table, probes[i], buildLeft);
+		}
+		Gather op = new Gather(probes);
+		OpIterator left = TestUtil.createTupleList(2, table(0, buildLeft ? buildRows : probeRows, distinctKeys));
+		OpIterator right = TestUtil.createTupleList(2, table(0, buildLeft ? probeRows : buildRows, distinctKeys));
+		HashEquiJoin expected = new HashEquiJoin(pred, left, right);
+		assertEquals(expected.getTupleDesc(), op.getTupleDesc());
+
+		expected.open();
+		List<String> expectedRows = rows(expected);
+		expected.close();
+		op.open();
+		List<String> actual = rows(op);
+		assertTrue(actual.size() > 0);
+		assertEquals(expectedRows, actual);
+		op.rewind();
+		assertEquals(expectedRows, rows(op));
+		op.close();
+	}
+
+	/**
+	 * Unit test for a parallel join building on the left input
+	 */
+	@Test
+	public void buildLeft() throws Exception {
+		checkJoin(500, 4000, 300, true);
+	}
+
+	/**
+	 * Unit test for a parallel join building on the right input, with many
+	 * duplicate keys on both sides
+	 */
+	@Test
+	public void buildRight() throws Exception {
+		checkJoin(3000, 2000, 17, false);
+	}
+
+	/**
+	 * Unit test for a parallel join on a string key
+	 */
+	@Test
+	public void stringKeys() throws Exception {
+		Object[] build = new Object[200 * 2];
+		for (int i = 0; i < 200; i++) {
+			build[2 * i] = "k" + (i % 50);
+			build[2 * i + 1] = i;
+		}
+		Object[] probe = new Object[100 * 2];
+		for (int i = 0; i < 100; i++) {
+			probe[2 * i] = i;
+			probe[2 * i + 1] = "k" + (i % 80);
+		}
+		JoinPredicate pred = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+		JoinHashTable table = new JoinHashTable(new OpIterator[]{TestUtil.createTupleList(2, build)}, null, 0, 2);
+		OpIterator[] probes = {new ParallelHashJoin(pred, table, TestUtil.createTupleList(2, probe), false)};
+		Gather op = new Gather(probes);
+		HashEquiJoin expected = new HashEquiJoin(pred, TestUtil.createTupleList(2, probe),
+			TestUtil.createTupleList(2, build));
+		expected.open();
+		op.open();
+		List<String> actual = rows(op);
+		// 70个probe行的key在build端，每个key有4行
+		assertEquals(70 * 4, actual.size());
+		assertEquals(rows(expected), actual);
+		op.close();
+		expected.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ParallelHashJoinTest.class);
+	}
+}
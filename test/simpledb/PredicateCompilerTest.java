@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PredicateCompilerTest extends SimpleDbTestBase {
+
+	private static final String[] WORDS = {"apple", "banana", "cherry", "date", "grape"};
+
+	private static OpIterator table() {
+		Object[] data = new Object[3000 * 2];
+		for (int i = 0; i < 3000; i++) {
+			data[2 * i] = (i * 13) % 100;
+			data[2 * i + 1] = WORDS[i % WORDS.length] + (i % 7);
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	private static List<String> expected(List<Predicate> predicates) throws Exception {
+		List<String> rows = new ArrayList<>();
+		OpIterator it = table();
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			boolean pass = true;
+			for (Predicate p : predicates) {
+				pass &= p.filter(t);
+			}
+			if (pass) {
+				rows.add(t.toString());
+			}
+		}
+		it.close();
+		return rows;
+	}
+
+	/**
+	 * Test that a fused Filter over an int and a string conjunct keeps exactly
+	 * the tuples that satisfy both, for every pair of operators, row by row
+	 * and batch by batch
+	 */
+	@Test
+	public void conjunctions() throws Exception {
+		for (Predicate.Op intOp : Predicate.Op.values()) {
+			for (Predicate.Op stringOp : Predicate.Op.values()) {
+				List<Predicate> predicates = Arrays.asList(
+					new Predicate(0, intOp, new IntField(40)),
+					new Predicate(1, stringOp, new StringField(stringOp == Predicate.Op.LIKE ? "an" : "cherry3", 128)));
+				List<String> expected = expected(predicates);
+
+				Filter op = new Filter(predicates, table());
+				op.open();
+				List<String> actual = new ArrayList<>();
+				while (op.hasNext()) {
+					actual.add(op.next().toString());
+				}
+				assertEquals(intOp + " " + stringOp, expected, actual);
+
+				op.rewind();
+				actual.clear();
+				TupleBatch batch;
+				while ((batch = op.nextBatch()) != null) {
+					for (int i = 0; i < batch.numRows(); i++) {
+						actual.add(batch.getTuple(batch.rowAt(i)).toString());
+					}
+				}
+				assertEquals(intOp + " " + stringOp, expected, actual);
+				op.close();
+			}
+		}
+	}
+
+	/**
+	 * Test that a compiled JoinPredicate agrees with Field.compare for int and
+	 * string join fields
+	 */
+	@Test
+	public void joinPredicate() {
+		Tuple[] tuples = new Tuple[WORDS.length];
+		for (int i = 0; i < tuples.length; i++) {
+			tuples[i] = new Tuple(new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}));
+			tuples[i].setField(0, new IntField(i % 3));
+			tuples[i].setField(1, new StringField(WORDS[(i * 2) % WORDS.length], 128));
+		}
+		int checked = 0;
+		for (Predicate.Op op : Predicate.Op.values()) {
+			for (int field = 0; field < 2; field++) {
+				JoinPredicate p = new JoinPredicate(field, op, field);
+				for (Tuple t1 : tuples) {
+					for (Tuple t2 : tuples) {
+						assertEquals(t1.getField(field).compare(op, t2.getField(field)), p.filter(t1, t2));
+						checked++;
+					}
+				}
+			}
+		}
+		assertTrue(checked > 0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PredicateCompilerTest.class);
+	}
+}
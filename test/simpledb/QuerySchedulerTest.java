@@ -0,0 +1,182 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.Gather;
+import simpledb.execution.Morsels;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Query;
+import simpledb.execution.QueryScheduler;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class QuerySchedulerTest extends SimpleDbTestBase {
+
+	/**
+	 * A task of slices slices that records its name when a slice runs
+	 */
+	private static QueryScheduler.Task task(String name, int slices, List<String> log, CountDownLatch done) {
+		int[] left = {slices};
+		return () -> {
+			log.add(name);
+			if (--left[0] > 0) {
+				return false;
+			}
+			done.countDown();
+			return true;
+		};
+	}
+
+	/**
+	 * Test that the groups take turns: a query with one short task runs after
+	 * at most one slice of a query with many long tasks
+	 */
+	@Test
+	public void rotation() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler(1);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch gate = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(4);
+		// 先占住唯一的worker，让后面的任务都排好队
+		scheduler.schedule(new QueryScheduler.Group(), () -> {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		});
+		QueryScheduler.Group big = new QueryScheduler.Group();
+		QueryScheduler.Group small = new QueryScheduler.Group();
+		for (int i = 0; i < 3; i++) {
+			scheduler.schedule(big, task("big", 5, log, done));
+		}
+		scheduler.schedule(small, task("small", 2, log, done));
+		gate.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(17, log.size());
+		assertEquals("big", log.get(0));
+		assertEquals("small", log.get(1));
+		assertEquals("big", log.get(2));
+		assertEquals("small", log.get(3));
+		assertEquals(2, Collections.frequency(log, "small"));
+	}
+
+	/**
+	 * Test that nested exchanges with more producers than workers, all waiting
+	 * for each other, return every tuple
+	 */
+	@Test(timeout = 60000)
+	public void nestedExchanges() throws Exception {
+		int copies = 2 * QueryScheduler.shared().getParallelism() + 2;
+		int rows = 500;
+		OpIterator[] inner = new OpIterator[copies];
+		for (int i = 0; i < copies; i++) {
+			OpIterator[] scans = new OpIterator[copies];
+			for (int j = 0; j < copies; j++) {
+				int low = (i * copies + j) * rows;
+				scans[j] = new TestUtil.MockScan(low, low + rows, 1);
+			}
+			inner[i] = new Gather(scans);
+		}
+		Query query = new Query(new Gather(inner), new TransactionId());
+		query.start();
+		Set<Integer> seen = new HashSet<>();
+		while (query.hasNext()) {
+			assertTrue(seen.add(((IntField) query.next().getField(0)).getValue()));
+		}
+		query.close();
+		assertEquals(copies * copies * rows, seen.size());
+	}
+
+	/**
+	 * Test that producers waiting for locks do not take up the workers: with
+	 * more producers blocked behind a transaction than workers, the lock
+	 * holder still runs its own parallel query, commits, and then the
+	 * blocked producers read every tuple
+	 */
+	@Test(timeout = 60000)
+	public void lockWaits() throws Exception {
+		int copies = 2 * QueryScheduler.shared().getParallelism() + 2;
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, copies * 600, null, tuples);
+		Database.getCatalog().addTable(f, "t");
+		TransactionId holder = new TransactionId();
+		for (int i = 0; i < f.numPages(); i++) {
+			Database.getBufferPool().getPage(holder, new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+		}
+
+		// 每个生产者的第一个morsel都在等holder的锁
+		TransactionId reader = new TransactionId();
+		Morsels morsels = new Morsels(f.numPages(), 1);
+		OpIterator[] scans = new OpIterator[copies];
+		for (int i = 0; i < copies; i++) {
+			scans[i] = new SeqScan(reader, f.getId(), "t", morsels);
+		}
+		Query blocked = new Query(new Gather(scans, morsels), reader);
+		AtomicInteger read = new AtomicInteger();
+		Thread t = new Thread(() -> {
+			try {
+				blocked.start();
+				while (blocked.hasNext()) {
+					blocked.next();
+					read.incrementAndGet();
+				}
+				blocked.close();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		t.start();
+		Thread.sleep(500);
+		assertEquals(0, read.get());
+
+		// holder自己的并行查询也需要worker
+		OpIterator[] own = new OpIterator[copies];
+		for (int i = 0; i < copies; i++) {
+			own[i] = new TestUtil.MockScan(i * 1000, (i + 1) * 1000, 1);
+		}
+		Query query = new Query(new Gather(own), holder);
+		query.start();
+		int count = 0;
+		while (query.hasNext()) {
+			query.next();
+			count++;
+		}
+		query.close();
+		assertEquals(copies * 1000, count);
+		Database.getBufferPool().transactionComplete(holder);
+
+		t.join();
+		assertEquals(tuples.size(), read.get());
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(QuerySchedulerTest.class);
+	}
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.BloomFilter;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+	/**
+	 * Test that a Bloom filter has no false negatives and few false
+	 * positives
+	 */
+	@Test
+	public void bloomFilter() {
+		BloomFilter bloom = new BloomFilter(1000);
+		for (int i = 0; i < 1000; i++) {
+			bloom.add(new IntField(i * 3));
+		}
+		bloom.add(new StringField("key", 10));
+		int falsePositives = 0;
+		for (int i = 0; i < 3000; i++) {
+			boolean contains = bloom.mightContain(new IntField(i));
+			if (i % 3 == 0) {
+				assertTrue(contains);
+			} else if (contains) {
+				falsePositives++;
+			}
+		}
+		assertTrue(bloom.mightContain(new StringField("key", 10)));
+		assertTrue("too many false positives: " + falsePositives, falsePositives < 2000 / 20);
+	}
+
+	/**
+	 * Test that the build keys of a HashEquiJoin are pushed down to the
+	 * probe side's SeqScan through a Filter, and the join result is unchanged
+	 */
+	@Test
+	public void hashJoinPushdown() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		Map<Integer, Integer> columns = new HashMap<>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, columns, tuples);
+		Database.getCatalog().addTable(f, "fact");
+		TransactionId tid = new TransactionId();
+
+		int[] dim = {7, 0, 123, 1, 500, 2};
+		JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		SeqScan scan = new SeqScan(tid, f.getId(), "fact");
+		OpIterator probe = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), scan);
+		HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, dim), probe);
+		Join expected = new Join(pred, TestUtil.createTupleList(2, dim),
+			new SeqScan(tid, f.getId(), "fact"));
+		op.open();
+		expected.open();
+		int count = 0;
+		while (op.hasNext()) {
+			op.next();
+			count++;
+		}
+		int expectedCount = 0;
+		while (expected.hasNext()) {
+			expected.next();
+			expectedCount++;
+		}
+		assertEquals(expectedCount, count);
+		op.rewind();
+		TestUtil.matchAllTuples(expected, op);
+
+		// 扫描只返回key可能在build端的行
+		scan.rewind();
+		int scanned = 0;
+		while (scan.hasNext()) {
+			scan.next();
+			scanned++;
+		}
+		assertTrue(scanned >= expectedCount);
+		assertTrue("scan was not filtered: " + scanned, scanned < tuples.size() / 10);
+		op.close();
+		expected.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(RuntimeFilterTest.class);
+	}
+}
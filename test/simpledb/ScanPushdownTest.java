@@ -0,0 +1,143 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ScanPushdownTest extends SimpleDbTestBase {
+
+	private static final List<Predicate> PREDICATES = Arrays.asList(
+		new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300)),
+		new Predicate(3, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(500)));
+	// 第3列只在过滤条件中用到
+	private static final int[] COLUMNS = {2, 0};
+
+	private static List<String> rows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		while (it.hasNext()) {
+			rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+		}
+		return rows;
+	}
+
+	private static List<String> batchRows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		TupleBatch batch;
+		while ((batch = it.nextBatch()) != null) {
+			for (int i = 0; i < batch.numRows(); i++) {
+				rows.add(SystemTestUtil.tupleToList(batch.getTuple(batch.rowAt(i))).toString());
+			}
+		}
+		return rows;
+	}
+
+	private static HeapFile table(int rows) throws Exception {
+		return SystemTestUtil.createRandomHeapFile(4, rows, 1000, null, new ArrayList<>());
+	}
+
+	/**
+	 * @return the expected rows: a Project over a Filter over a plain scan
+	 */
+	private static List<String> expected(TransactionId tid, HeapFile f) throws Exception {
+		OpIterator plan = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE},
+			new Filter(PREDICATES, new SeqScan(tid, f.getId(), "t")));
+		plan.open();
+		List<String> rows = rows(plan);
+		plan.close();
+		return rows;
+	}
+
+	/**
+	 * Test that a scan with a pushed down filter and projection returns the
+	 * same rows as a Filter and a Project over a scan, row by row, batch by
+	 * batch and after a rewind
+	 */
+	@Test
+	public void filterAndProject() throws Exception {
+		HeapFile f = table(5000);
+		TransactionId tid = new TransactionId();
+		List<String> expected = expected(tid, f);
+		assertTrue(expected.size() > 0);
+
+		SeqScan scan = new SeqScan(tid, f.getId(), "t");
+		scan.pushDown(PREDICATES, COLUMNS);
+		assertEquals(2, scan.getTupleDesc().numFields());
+		scan.open();
+		assertEquals(expected, rows(scan));
+		scan.rewind();
+		assertEquals(expected, batchRows(scan));
+		scan.rewind();
+		// 先逐行读一行，再按batch读剩下的
+		assertTrue(scan.hasNext());
+		List<String> mixed = new ArrayList<>();
+		mixed.add(SystemTestUtil.tupleToList(scan.next()).toString());
+		mixed.addAll(batchRows(scan));
+		assertEquals(expected, mixed);
+		scan.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Test that pushdown also sees the tuples of pages modified since they
+	 * were read from disk
+	 */
+	@Test
+	public void modifiedPage() throws Exception {
+		HeapFile f = table(1000);
+		TransactionId tid = new TransactionId();
+		List<String> before = expected(tid, f);
+		// 删除第一页上一个满足条件的tuple
+		SeqScan plain = new SeqScan(tid, f.getId(), "t");
+		plain.open();
+		Tuple t = plain.next();
+		while (!(PREDICATES.get(0).filter(t) && PREDICATES.get(1).filter(t))) {
+			t = plain.next();
+		}
+		plain.close();
+		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
+			Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		List<String> expected = expected(tid, f);
+		assertEquals(before.size() - 1, expected.size());
+
+		SeqScan scan = new SeqScan(tid, f.getId(), "t");
+		scan.pushDown(PREDICATES, COLUMNS);
+		scan.open();
+		assertEquals(expected, batchRows(scan));
+		scan.rewind();
+		assertEquals(expected, rows(scan));
+		scan.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ScanPushdownTest.class);
+	}
+}
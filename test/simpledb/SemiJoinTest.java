@@ -0,0 +1,240 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.AntiJoin;
+import simpledb.execution.IndexAntiJoin;
+import simpledb.execution.IndexSemiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SemiJoin;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SemiJoinTest extends SimpleDbTestBase {
+
+	private static final JoinPredicate EQUALS = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+	private static final int OUTER_ROWS = 1000;
+	private static final int INNER_ROWS = 300;
+
+	/**
+	 * @return 1000 rows whose first field takes 100 values
+	 */
+	private static OpIterator outer() {
+		int[] data = new int[OUTER_ROWS * 2];
+		for (int i = 0; i < OUTER_ROWS; i++) {
+			data[2 * i] = (i * 7) % 100;
+			data[2 * i + 1] = i;
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	/**
+	 * @return 300 rows whose first field takes 20 values, each many times
+	 */
+	private static OpIterator inner() {
+		int[] data = new int[INNER_ROWS * 3];
+		for (int i = 0; i < INNER_ROWS; i++) {
+			data[3 * i] = (i * 3) % 60;
+			data[3 * i + 1] = i;
+			data[3 * i + 2] = -i;
+		}
+		return TestUtil.createTupleList(3, data);
+	}
+
+	/**
+	 * @return the rows of outer() with (anti: without) a match in inner(), in
+	 * order
+	 */
+	private static List<String> expected(boolean anti) throws Exception {
+		Set<Integer> keys = new HashSet<>();
+		OpIterator in = inner();
+		in.open();
+		while (in.hasNext()) {
+			keys.add(in.next().getInt(0));
+		}
+		in.close();
+		List<String> rows = new ArrayList<>();
+		OpIterator out = outer();
+		out.open();
+		while (out.hasNext()) {
+			Tuple t = out.next();
+			if (keys.contains(t.getInt(0)) != anti) {
+				rows.add(t.toString());
+			}
+		}
+		out.close();
+		return rows;
+	}
+
+	private static List<String> rows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		return rows;
+	}
+
+	private static List<String> batchRows(OpIterator it) throws Exception {
+		List<String> rows = new ArrayList<>();
+		TupleBatch batch;
+		while ((batch = it.nextBatch()) != null) {
+			for (int i = 0; i < batch.numRows(); i++) {
+				rows.add(batch.getTuple(batch.rowAt(i)).toString());
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Check that op returns the expected rows, row by row and batch by batch
+	 * after a rewind, sorting both when the order is not kept
+	 */
+	private static void check(List<String> expected, OpIterator op, boolean ordered) throws Exception {
+		op.open();
+		List<String> actual = rows(op);
+		op.rewind();
+		List<String> batches = batchRows(op);
+		op.close();
+		if (!ordered) {
+			expected = new ArrayList<>(expected);
+			Collections.sort(expected);
+			Collections.sort(actual);
+			Collections.sort(batches);
+		}
+		assertEquals(expected, actual);
+		assertEquals(expected, batches);
+	}
+
+	/**
+	 * Test that SemiJoin returns each outer tuple with a match once, in order,
+	 * although every key occurs many times in the inner relation
+	 */
+	@Test
+	public void semiJoin() throws Exception {
+		List<String> expected = expected(false);
+		assertTrue(expected.size() > 0 && expected.size() < OUTER_ROWS);
+		SemiJoin op = new SemiJoin(EQUALS, outer(), inner());
+		assertEquals(2, op.getTupleDesc().numFields());
+		check(expected, op, true);
+	}
+
+	/**
+	 * Test that AntiJoin returns the outer tuples without a match, in order
+	 */
+	@Test
+	public void antiJoin() throws Exception {
+		check(expected(true), new AntiJoin(EQUALS, outer(), inner()), true);
+	}
+
+	/**
+	 * Test that both joins return the same tuples when most of the keys of the
+	 * inner relation are spilled to disk
+	 */
+	@Test
+	public void spill() throws Exception {
+		check(expected(false), new SemiJoin(EQUALS, outer(), inner(), 3), false);
+		check(expected(true), new AntiJoin(EQUALS, outer(), inner(), 3), false);
+	}
+
+	/**
+	 * Test the index variants: one probe per outer tuple, which stops at the
+	 * first match
+	 */
+	@Test
+	public void indexJoin() throws Exception {
+		IndexNestedLoopJoinTest.ListIndex index = new IndexNestedLoopJoinTest.ListIndex(inner());
+		check(expected(false), new IndexSemiJoin(EQUALS, outer(), index), true);
+		assertEquals(2 * OUTER_ROWS, index.probes);
+		index = new IndexNestedLoopJoinTest.ListIndex(inner());
+		check(expected(true), new IndexAntiJoin(EQUALS, outer(), index), true);
+		assertEquals(2 * OUTER_ROWS, index.probes);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedOp() {
+		new SemiJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0), outer(), inner());
+	}
+
+	/**
+	 * Test that a logical plan with an IN or NOT IN subquery returns each
+	 * outer tuple at most once
+	 */
+	@Test
+	public void logicalPlan() throws Exception {
+		List<List<Integer>> outerTuples = new ArrayList<>();
+		List<List<Integer>> innerTuples = new ArrayList<>();
+		Map<Integer, Integer> columns = new HashMap<>();
+		HeapFile a = SystemTestUtil.createRandomHeapFile(2, 1000, 100, columns, outerTuples, "c");
+		HeapFile b = SystemTestUtil.createRandomHeapFile(2, 500, 100, columns, innerTuples, "c");
+		Database.getCatalog().addTable(a, "a");
+		Database.getCatalog().addTable(b, "b");
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put("a", new TableStats(a.getId(), 1));
+		stats.put("b", new TableStats(b.getId(), 1));
+		TransactionId tid = new TransactionId();
+
+		Set<Integer> keys = new HashSet<>();
+		for (List<Integer> t : innerTuples) {
+			if (t.get(1) < 50) {
+				keys.add(t.get(0));
+			}
+		}
+		for (boolean anti : new boolean[]{false, true}) {
+			LogicalPlan sub = new LogicalPlan();
+			sub.addScan(b.getId(), "b");
+			sub.addFilter("b.c1", Predicate.Op.LESS_THAN, "50");
+			sub.addProjectField("b.c0", null);
+
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(a.getId(), "a");
+			lp.addJoin("a.c0", sub.physicalPlan(tid, stats, false), Predicate.Op.EQUALS, anti);
+			lp.addProjectField("null.*", null);
+
+			List<String> expected = new ArrayList<>();
+			for (List<Integer> t : outerTuples) {
+				if (keys.contains(t.get(0)) != anti) {
+					expected.add(t.toString());
+				}
+			}
+			OpIterator plan = lp.physicalPlan(tid, stats, false);
+			assertEquals(2, plan.getTupleDesc().numFields());
+			plan.open();
+			List<String> actual = new ArrayList<>();
+			while (plan.hasNext()) {
+				actual.add(SystemTestUtil.tupleToList(plan.next()).toString());
+			}
+			plan.close();
+			assertEquals(expected, actual);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SemiJoinTest.class);
+	}
+}
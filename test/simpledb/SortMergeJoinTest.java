@@ -0,0 +1,191 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+	final int width1 = 2;
+	final int width2 = 3;
+	// unsorted, with duplicate join keys on both sides
+	final int[] data1 = new int[]{
+		5, 6,
+		1, 2,
+		3, 4,
+		3, 5,
+		7, 8
+	};
+	final int[] data2 = new int[]{
+		3, 4, 5,
+		1, 2, 3,
+		5, 6, 7,
+		3, 9, 9,
+		2, 3, 4,
+		4, 5, 6
+	};
+	OpIterator scan1;
+	OpIterator scan2;
+
+	/**
+	 * Initialize each unit test
+	 */
+	@Before
+	public void createTupleLists() {
+		this.scan1 = TestUtil.createTupleList(width1, data1);
+		this.scan2 = TestUtil.createTupleList(width2, data2);
+	}
+
+	/**
+	 * Check that SortMergeJoin returns the same tuples as the nested-loop Join.
+	 */
+	private void checkAgainstJoin(Predicate.Op op) throws Exception {
+		checkAgainstJoin(op, SortMergeJoin.MEMORY_TUPLES);
+	}
+
+	private void checkAgainstJoin(Predicate.Op op, int memoryTuples) throws Exception {
+		JoinPredicate pred = new JoinPredicate(0, op, 0);
+		SortMergeJoin smj = new SortMergeJoin(pred, scan1, scan2, memoryTuples);
+		Join expected = new Join(pred, TestUtil.createTupleList(width1, data1),
+			TestUtil.createTupleList(width2, data2));
+		smj.open();
+		expected.open();
+		int count = 0;
+		while (smj.hasNext()) {
+			smj.next();
+			count++;
+		}
+		int expectedCount = 0;
+		while (expected.hasNext()) {
+			expected.next();
+			expectedCount++;
+		}
+		assertEquals(expectedCount, count);
+		expected.rewind();
+		TestUtil.matchAllTuples(expected, smj);
+		smj.close();
+		expected.close();
+	}
+
+	/**
+	 * Unit test for SortMergeJoin.getNext() using an = predicate with
+	 * duplicate keys on both sides
+	 */
+	@Test
+	public void eqJoin() throws Exception {
+		checkAgainstJoin(Predicate.Op.EQUALS);
+	}
+
+	/**
+	 * Unit test for SortMergeJoin.getNext() using range predicates
+	 */
+	@Test
+	public void rangeJoin() throws Exception {
+		checkAgainstJoin(Predicate.Op.GREATER_THAN);
+		createTupleLists();
+		checkAgainstJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+		createTupleLists();
+		checkAgainstJoin(Predicate.Op.LESS_THAN);
+		createTupleLists();
+		checkAgainstJoin(Predicate.Op.LESS_THAN_OR_EQ);
+	}
+
+	/**
+	 * Range joins whose right input does not fit in memory spill the rest of
+	 * it and still return every match, also after a rewind.
+	 */
+	@Test
+	public void rangeJoinSpills() throws Exception {
+		Predicate.Op[] ops = {Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+			Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ};
+		for (Predicate.Op op : ops) {
+			for (int memoryTuples = 1; memoryTuples <= 3; memoryTuples++) {
+				createTupleLists();
+				checkAgainstJoin(op, memoryTuples);
+			}
+		}
+	}
+
+	/**
+	 * Unit test for SortMergeJoin.isSortedOn()
+	 */
+	@Test
+	public void sortedInputs() {
+		assertFalse(SortMergeJoin.isSortedOn(scan1, 0));
+		OpIterator sorted = new OrderBy(0, true, scan1);
+		assertTrue(SortMergeJoin.isSortedOn(sorted, 0));
+		assertFalse(SortMergeJoin.isSortedOn(sorted, 1));
+		assertFalse(SortMergeJoin.isSortedOn(new OrderBy(0, false, scan2), 0));
+
+		// an already sorted child is used directly
+		SortMergeJoin smj = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), sorted, scan2);
+		assertTrue(smj.getChildren()[0] == sorted);
+		assertTrue(SortMergeJoin.isSortedOn(smj, 0));
+		assertTrue(SortMergeJoin.isSortedOn(smj, width1));
+	}
+
+	/**
+	 * @return the tuples of data with fields named alias.0, alias.1, ...
+	 */
+	private static OpIterator named(String alias, int width, int[] data) {
+		TupleDesc td = Utility.getTupleDesc(width, alias + ".");
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < data.length; i += width) {
+			Tuple t = new Tuple(td);
+			for (int j = 0; j < width; j++) {
+				t.setField(j, new IntField(data[i + j]));
+			}
+			tuples.add(t);
+		}
+		return new TupleIterator(td, tuples);
+	}
+
+	/**
+	 * Test that the optimizer builds the join it prices: range joins of
+	 * unsorted inputs are sorted and merged, equality joins of unsorted
+	 * inputs are hashed
+	 */
+	@Test
+	public void instantiateUnsorted() throws Exception {
+		OpIterator j = JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.0", "b.0",
+			Predicate.Op.LESS_THAN), named("a", width1, data1), named("b", width2, data2));
+		assertTrue(j instanceof SortMergeJoin);
+		assertTrue(((SortMergeJoin) j).getChildren()[0] instanceof OrderBy);
+		assertTrue(((SortMergeJoin) j).getChildren()[1] instanceof OrderBy);
+
+		j = JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "b", "a.0", "b.0",
+			Predicate.Op.EQUALS), named("a", width1, data1), named("b", width2, data2));
+		assertTrue(j instanceof HashEquiJoin);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SortMergeJoinTest.class);
+	}
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.StreamAggregate;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+	/**
+	 * MockScan that counts the tuples read
+	 */
+	private static class CountingScan extends TestUtil.MockScan {
+		int read;
+
+		CountingScan(int low, int high, int width) {
+			super(low, high, width);
+		}
+
+		@Override
+		public Tuple next() {
+			read++;
+			return super.next();
+		}
+	}
+
+	/**
+	 * Unit test for StreamAggregate over input sorted on the group field,
+	 * compared with the hash-based Aggregate
+	 */
+	@Test
+	public void sortedInput() throws Exception {
+		int[] data = new int[200 * 2];
+		for (int i = 0; i < 200; i++) {
+			data[2 * i] = (i * 37) % 11;
+			data[2 * i + 1] = i;
+		}
+		Aggregator.Op[] ops = {Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN,
+			Aggregator.Op.MAX, Aggregator.Op.AVG};
+		int[] afields = {1, 1, 1, 1, 1};
+		OpIterator sorted = new OrderBy(0, false, TestUtil.createTupleList(2, data));
+		assertTrue(StreamAggregate.isGroupedOn(sorted, 0));
+		assertFalse(StreamAggregate.isGroupedOn(sorted, 1));
+
+		StreamAggregate op = new StreamAggregate(sorted, afields, new int[]{0}, ops);
+		Aggregate expected = new Aggregate(TestUtil.createTupleList(2, data), afields, new int[]{0}, ops);
+		assertEquals(expected.getTupleDesc(), op.getTupleDesc());
+		op.open();
+		expected.open();
+		TestUtil.matchAllTuples(expected, op);
+		op.rewind();
+		int groups = 0;
+		while (op.hasNext()) {
+			// 降序输入，组也按降序输出
+			assertEquals(10 - groups, ((IntField) op.next().getField(0)).getValue());
+			groups++;
+		}
+		assertEquals(11, groups);
+		op.close();
+	}
+
+	/**
+	 * Test that the first group is returned after reading only the first
+	 * batch of the child
+	 */
+	@Test
+	public void pipelined() throws Exception {
+		CountingScan scan = new CountingScan(0, 10000, 2);
+		StreamAggregate op = new StreamAggregate(scan, 1, 0, Aggregator.Op.COUNT);
+		op.open();
+		Tuple first = op.next();
+		assertEquals(0, ((IntField) first.getField(0)).getValue());
+		assertEquals(1, ((IntField) first.getField(1)).getValue());
+		assertTrue(scan.read < 10000);
+		int groups = 1;
+		while (op.hasNext()) {
+			op.next();
+			groups++;
+		}
+		assertEquals(10000, groups);
+		op.close();
+	}
+
+	/**
+	 * Unit test for a string group field and no grouping
+	 */
+	@Test
+	public void stringKeysAndNoGrouping() throws Exception {
+		OpIterator scan = TestUtil.createTupleList(2,
+			new Object[]{"a", 2, "a", 4, "b", 6, "c", 1, "c", 3});
+		StreamAggregate op = new StreamAggregate(scan, 1, 0, Aggregator.Op.SUM);
+		op.open();
+		TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+			new Object[]{"a", 6, "b", 6, "c", 4}), op);
+		op.close();
+
+		op = new StreamAggregate(scan, 1, Aggregator.NO_GROUPING, Aggregator.Op.MAX);
+		op.open();
+		TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[]{6}), op);
+		op.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(StreamAggregateTest.class);
+	}
+}
@@ -12,7 +12,6 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.TableStats;
-import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
@@ -33,7 +32,6 @@ public class TableStatsTest extends SimpleDbTestBase {
 		super.setUp();
 		this.tuples = new ArrayList<>();
 		this.f = SystemTestUtil.createRandomHeapFile(10, 10200, 32, null, tuples);
-		f.setPageCount(f.getTupleDesc().getSize() * 10200 / BufferPool.getPageSize());
 
 		this.tableName = SystemTestUtil.getUUID();
 		Database.getCatalog().addTable(f, tableName);
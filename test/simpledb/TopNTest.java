@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.TopN;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+	private static int[] randomTable(int rows) {
+		Random random = new Random(rows);
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = random.nextInt(rows / 4) - rows / 8;
+			data[2 * i + 1] = i;
+		}
+		return data;
+	}
+
+	/**
+	 * Check that TopN returns the same tuples, in the same order, as a full
+	 * OrderBy followed by Limit.
+	 */
+	private void checkTopN(OpIterator input, OpIterator copy, boolean asc, int limit, int offset)
+		throws Exception {
+		TopN op = new TopN(0, asc, limit, offset, input);
+		OpIterator expected = new Limit(limit, offset, new OrderBy(0, asc, copy));
+		op.open();
+		expected.open();
+		TestUtil.compareDbIterators(expected, op);
+		assertFalse(op.hasNext());
+		op.rewind();
+		expected.rewind();
+		TestUtil.compareDbIterators(expected, op);
+		op.close();
+		expected.close();
+	}
+
+	private void checkTopN(int[] data, boolean asc, int limit, int offset) throws Exception {
+		checkTopN(TestUtil.createTupleList(2, data), TestUtil.createTupleList(2, data), asc, limit, offset);
+	}
+
+	/**
+	 * Unit test for TopN.getNext() on int keys with duplicates
+	 */
+	@Test
+	public void intKeys() throws Exception {
+		int[] data = randomTable(2000);
+		checkTopN(data, true, 10, 0);
+		checkTopN(data, false, 10, 0);
+		checkTopN(data, true, 25, 40);
+		checkTopN(data, false, 3000, 0);
+		checkTopN(data, true, 0, 5);
+	}
+
+	/**
+	 * Unit test for TopN.getNext() on string keys
+	 */
+	@Test
+	public void stringKeys() throws Exception {
+		String[] keys = new String[]{"pear", "apple", "fig", "kiwi", "banana", "cherry"};
+		Object[] data = new Object[keys.length * 20 * 2];
+		for (int i = 0; i < keys.length * 20; i++) {
+			data[2 * i] = keys[(i * 5) % keys.length];
+			data[2 * i + 1] = i;
+		}
+		checkTopN(TestUtil.createTupleList(2, data), TestUtil.createTupleList(2, data), true, 7, 2);
+		checkTopN(TestUtil.createTupleList(2, data), TestUtil.createTupleList(2, data), false, 30, 0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(TopNTest.class);
+	}
+}
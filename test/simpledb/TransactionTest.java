@@ -3,11 +3,16 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.Iterator;
@@ -118,6 +123,49 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * @return true if page holds a tuple with the same fields as t
+   */
+  private static boolean contains(HeapPage page, Tuple t) {
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext()) {
+      if (it.next().toString().equals(t.toString())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Unit test for wound-wait. A younger transaction that already holds every
+   * lock it needs is wounded by an older one, aborts at its next page access
+   * without requesting another lock, and its change is rolled back before
+   * the older transaction gets the lock.
+   */
+  @Test public void woundedVictimAbortsAtNextPageAccess() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    HeapPage p = (HeapPage) bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    Tuple t = p.iterator().next();
+    bp.deleteTuple(tid2, t);
+    assertFalse(contains(p, t));
+
+    TestUtil.LockGrabber lg = new TestUtil.LockGrabber(tid1, p0, Permissions.READ_WRITE);
+    lg.start();
+    Thread.sleep(200);
+    assertFalse(lg.acquired());
+
+    try {
+      bp.getPage(tid2, p0, null);
+      fail("wounded transaction should abort at its next page access");
+    } catch (TransactionAbortedException expected) {
+    }
+    bp.transactionComplete(tid2, false);
+
+    lg.join(5000);
+    assertTrue(lg.acquired());
+    assertTrue(contains((HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY), t));
+  }
+
   /**
    * JUnit suite target
    */
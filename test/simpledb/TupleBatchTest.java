@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+	/**
+	 * Read all batches of an opened iterator back as tuples.
+	 */
+	private static TupleIterator drain(OpIterator it) throws DbException, TransactionAbortedException {
+		List<Tuple> tuples = new ArrayList<>();
+		TupleBatch batch;
+		while ((batch = it.nextBatch()) != null) {
+			for (int i = 0; i < batch.numRows(); i++) {
+				tuples.add(batch.getTuple(batch.rowAt(i)));
+			}
+		}
+		TupleIterator result = new TupleIterator(it.getTupleDesc(), tuples);
+		result.open();
+		return result;
+	}
+
+	/**
+	 * Unit test for the default OpIterator.nextBatch() adapter: batches are
+	 * filled up to capacity.
+	 */
+	@Test
+	public void defaultBatchSize() throws Exception {
+		int rows = TupleBatch.DEFAULT_CAPACITY + 10;
+		OpIterator scan = new TestUtil.MockScan(0, rows, 2);
+		scan.open();
+		assertEquals(TupleBatch.DEFAULT_CAPACITY, scan.nextBatch().numRows());
+		assertEquals(10, scan.nextBatch().numRows());
+		assertNull(scan.nextBatch());
+		scan.close();
+	}
+
+	/**
+	 * Unit test for Filter.nextBatch(), stacking two filters so the second
+	 * one works on a batch that already has a selection vector.
+	 */
+	@Test
+	public void filterBatch() throws Exception {
+		OpIterator scan = new TestUtil.MockScan(-5, 5, 3);
+		Filter gt = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(-3)), scan);
+		Filter ne = new Filter(new Predicate(0, Predicate.Op.NOT_EQUALS, TestUtil.getField(0)), gt);
+		ne.open();
+		TupleIterator expected = TestUtil.createTupleList(3, new int[]{
+			-2, -2, -2,
+			-1, -1, -1,
+			1, 1, 1,
+			2, 2, 2,
+			3, 3, 3,
+			4, 4, 4
+		});
+		expected.open();
+		TestUtil.compareDbIterators(expected, drain(ne));
+		ne.close();
+	}
+
+	/**
+	 * Unit test for Project.nextBatch() over a filtered batch.
+	 */
+	@Test
+	public void projectBatch() throws Exception {
+		OpIterator scan = TestUtil.createTupleList(3, new int[]{
+			1, 2, 3,
+			4, 5, 6,
+			7, 8, 9
+		});
+		Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(1)), scan);
+		Project project = new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, filter);
+		project.open();
+		TupleIterator expected = TestUtil.createTupleList(2, new int[]{
+			6, 4,
+			9, 7
+		});
+		expected.open();
+		TestUtil.compareDbIterators(expected, drain(project));
+		project.close();
+	}
+
+	/**
+	 * Unit test for HashEquiJoin.nextBatch() where one probe row has more
+	 * matches than fit into a single output batch.
+	 */
+	@Test
+	public void hashJoinBatch() throws Exception {
+		int matches = TupleBatch.DEFAULT_CAPACITY + 5;
+		int[] left = new int[matches * 2 + 2];
+		for (int i = 0; i < matches; i++) {
+			left[2 * i] = 1;
+			left[2 * i + 1] = i;
+		}
+		left[2 * matches] = 2;
+		left[2 * matches + 1] = -1;
+		OpIterator scan1 = TestUtil.createTupleList(2, left);
+		OpIterator scan2 = TestUtil.createTupleList(1, new int[]{1, 3, 2});
+		HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+		join.open();
+		TupleIterator actual = drain(join);
+		join.close();
+
+		OpIterator expectedJoin = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+			TestUtil.createTupleList(2, left), TestUtil.createTupleList(1, new int[]{1, 3, 2}));
+		expectedJoin.open();
+		TestUtil.compareDbIterators(expectedJoin, actual);
+		expectedJoin.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(TupleBatchTest.class);
+	}
+}
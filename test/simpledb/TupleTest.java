@@ -1,11 +1,13 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
 
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -73,6 +75,64 @@ public class TupleTest extends SimpleDbTestBase {
 		assertEquals("-1\t0\n", tup.toString());
 	}
 
+	/**
+	 * Unit test for CompactTuple: typed and Field accessors agree, and it
+	 * equals, hashes and prints like a Tuple with the same values
+	 */
+	@Test
+	public void compactTuple() {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+		CompactTuple compact = new CompactTuple(td);
+		compact.setInt(0, -7);
+		compact.setField(1, new StringField("abc", Type.STRING_LEN));
+		compact.setField(2, new IntField(42));
+
+		Tuple expected = new Tuple(td);
+		expected.setField(0, new IntField(-7));
+		expected.setField(1, new StringField("abc", Type.STRING_LEN));
+		expected.setField(2, new IntField(42));
+
+		assertEquals(-7, compact.getInt(0));
+		assertEquals(new IntField(42), compact.getField(2));
+		assertEquals(42, expected.getInt(2));
+		assertEquals(expected, compact);
+		assertEquals(compact, expected);
+		assertEquals(expected.hashCode(), compact.hashCode());
+		assertEquals(expected.toString(), compact.toString());
+		assertEquals("-7\tabc\t42\n", compact.toString());
+	}
+
+	/**
+	 * Unit test for JoinedTuple: a nested join view reads the fields of its
+	 * inputs and equals the materialized concatenation
+	 */
+	@Test
+	public void joinedTuple() {
+		Tuple a = Utility.getHeapTuple(new int[]{1, 2});
+		Tuple b = Utility.getHeapTuple(new int[]{3});
+		Tuple c = Utility.getHeapTuple(new int[]{4, 5});
+		Tuple ab = new JoinedTuple(TupleDesc.merge(a.getTupleDesc(), b.getTupleDesc()), a, b);
+		Tuple abc = new JoinedTuple(TupleDesc.merge(ab.getTupleDesc(), c.getTupleDesc()), ab, c);
+
+		Tuple expected = new Tuple(abc.getTupleDesc());
+		for (int i = 0; i < 5; i++) {
+			expected.setField(i, new IntField(i + 1));
+		}
+		for (int i = 0; i < 5; i++) {
+			assertEquals(expected.getField(i), abc.getField(i));
+		}
+		assertEquals(expected, abc);
+		assertEquals(abc, expected);
+		assertEquals(expected.hashCode(), abc.hashCode());
+		assertEquals(expected.toString(), abc.toString());
+		try {
+			abc.setField(0, new IntField(0));
+			fail("a joined tuple should be read-only");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
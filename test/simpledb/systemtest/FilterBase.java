@@ -72,6 +72,8 @@ public abstract class FilterBase extends SimpleDbTestBase {
 		temp.deleteOnExit();
 		HeapFile heapFile = new HeapFile(temp, Utility.getTupleDesc(COLUMNS));
 		Database.getCatalog().addTable(heapFile);
+		// 插入会加行锁，建表的事务结束后测试的事务才能读这些行
+		TransactionId tid = new TransactionId();
 		for (int i = 0; i < ROWS; i++) {
 			Tuple tuple = new Tuple(Utility.getTupleDesc(COLUMNS));
 			tuple.setField(0, new IntField(columnValue));
@@ -79,8 +81,9 @@ public abstract class FilterBase extends SimpleDbTestBase {
 				tuple.setField(j, new IntField(i));
 			}
 			createdTuples.add(null);
-			heapFile.insertTuple(new TransactionId(), tuple);
+			heapFile.insertTuple(tid, tuple);
 		}
+		Database.getBufferPool().transactionComplete(tid);
 		return heapFile;
 	}
 
@@ -114,7 +114,7 @@ public class ScanTest extends SimpleDbTestBase {
 
 		// Scan the table once
 		SystemTestUtil.matchTuples(table, tuples);
-		assertEquals(PAGES, table.readCount - 1);
+		assertEquals(PAGES, table.readCount);
 		table.readCount = 0;
 
 		// Scan the table again: all pages should be cached